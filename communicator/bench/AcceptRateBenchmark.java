@@ -0,0 +1,101 @@
+package proz.communicator.bench;
+
+import proz.communicator.model.*;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pomiar liczby połączeń przyjmowanych przez serwer na sekundę, gdy wielu nadawców jednocześnie
+ * otwiera nowe połączenie, wysyła jedną wiadomość i je zamyka.
+ */
+public class AcceptRateBenchmark {
+
+    /**
+     * Port serwera używany w pomiarze.
+     */
+    private static final int PORT = 47002;
+
+    /**
+     * Liczba równoczesnych nadawców.
+     */
+    private static final int SENDERS = 64;
+
+    /**
+     * Liczba połączeń otwieranych przez każdego nadawcę.
+     */
+    private static final int CONNECTIONS_PER_SENDER = 200;
+
+    /**
+     * Wykonuje pomiar dla serwera NIO i serwera z wątkiem na połączenie.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    public static void run(BenchmarkReport report) throws Exception {
+        run(report, true);
+        run(report, false);
+    }
+
+    /**
+     * Wykonuje pomiar dla wybranego serwera.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @param nio true dla serwera NIO.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    private static void run(BenchmarkReport report, boolean nio) throws Exception {
+        int total = SENDERS * CONNECTIONS_PER_SENDER;
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(total);
+        MessageSink sink = message -> {
+            received.incrementAndGet();
+            done.countDown();
+        };
+
+        // All senders connect from 127.0.0.1, so the per-address limit must not apply here.
+        MessageServer server = nio ? new NioMessageListener(sink, PORT)
+                : new MessageListener(sink, PORT, null, new ListenerSettings(256, 1024, 1024, 60_000, 30_000, 100_000));
+        server.startListening().get(5, TimeUnit.SECONDS);
+
+        ByteBuffer frame = MessageFrames.encode(new Message("hello", "benchmark"), MessageCodecs.BINARY, null);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService senders = Executors.newFixedThreadPool(SENDERS);
+        long start = System.nanoTime();
+        for (int s = 0; s < SENDERS; s++) {
+            senders.execute(() -> {
+                for (int i = 0; i < CONNECTIONS_PER_SENDER; i++) {
+                    try (Socket socket = new Socket("127.0.0.1", PORT)) {
+                        OutputStream out = socket.getOutputStream();
+                        out.write(bytes);
+                        out.flush();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        boolean completed = done.await(120, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        senders.shutdown();
+        server.stopListening().get();
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("listener", nio ? "nio" : "thread-per-connection");
+        values.put("senders", SENDERS);
+        values.put("connections", total);
+        values.put("delivered", received.get());
+        values.put("failed", failed.get());
+        values.put("completed", String.valueOf(completed));
+        values.put("connectionsPerSec", received.get() * 1_000_000_000L / Math.max(1, elapsed));
+        report.add("accept-rate", values);
+    }
+}
@@ -0,0 +1,100 @@
+package proz.communicator.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Zbiór wyników pomiarów zapisywany do pliku JSON, aby można było porównywać kolejne uruchomienia.
+ */
+public class BenchmarkReport {
+
+    /**
+     * Wyniki kolejnych pomiarów. Każdy wynik to nazwa pomiaru i mapa zmierzonych wartości.
+     */
+    private final List<Map<String, Object>> results = new ArrayList<>();
+
+    /**
+     * Dodaje wynik pomiaru.
+     * @param benchmark nazwa pomiaru.
+     * @param values zmierzone wartości (liczby lub napisy), w kolejności wypisywania.
+     */
+    public void add(String benchmark, Map<String, Object> values) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("benchmark", benchmark);
+        result.putAll(values);
+        results.add(result);
+        System.out.println(toJson(result));
+    }
+
+    /**
+     * Zapisuje wszystkie wyniki razem z opisem środowiska do pliku JSON.
+     * @param file plik wynikowy.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    public void write(Path file) throws IOException {
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+
+        Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("timestamp", Instant.now().toString());
+        environment.put("java", System.getProperty("java.version"));
+        environment.put("vm", System.getProperty("java.vm.name"));
+        environment.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        environment.put("cpus", Runtime.getRuntime().availableProcessors());
+
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("{\n  \"environment\": " + toJson(environment) + ",\n  \"results\": [\n");
+            for (int i = 0; i < results.size(); i++) {
+                out.write("    " + toJson(results.get(i)));
+                out.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            out.write("  ]\n}\n");
+        }
+    }
+
+    /**
+     * Zamienia płaską mapę na obiekt JSON.
+     * @param values mapa wartości.
+     * @return obiekt JSON w jednej linii.
+     */
+    private static String toJson(Map<String, Object> values) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (json.length() > 1)
+                json.append(", ");
+            json.append(quote(entry.getKey())).append(": ");
+            Object value = entry.getValue();
+            if (value instanceof Number)
+                json.append(value);
+            else
+                json.append(quote(String.valueOf(value)));
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Zamienia napis na napis JSON w cudzysłowach.
+     * @param s napis.
+     * @return napis JSON.
+     */
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,70 @@
+package proz.communicator.bench;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Uruchamia wszystkie pomiary ścieżki wysyłania i odbioru wiadomości i zapisuje wyniki do pliku JSON.
+ *
+ * Użycie: BenchmarkRunner [plik-wynikowy.json] [nazwa-pomiaru...]
+ * Dostępne pomiary: codec, compression, latency, accept, handlers, relay, tls, flood. Domyślnie wykonywane są wszystkie.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Główna funkcja programu pomiarowego.
+     * @param args plik wynikowy oraz opcjonalnie nazwy pomiarów do wykonania.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    public static void main(String[] args) throws Exception {
+        Path output = args.length > 0
+                ? Paths.get(args[0])
+                : Paths.get("bench-results", "run-" + System.currentTimeMillis() + ".json");
+
+        // Measure the network path, not the history journal.
+        if (System.getProperty("wazzup.journal") == null)
+            System.setProperty("wazzup.journal", "false");
+        // Measure the path at full speed, the flood benchmark sets its own rate limits.
+        if (System.getProperty("wazzup.listener.rate") == null)
+            System.setProperty("wazzup.listener.rate", "0");
+        if (System.getProperty("wazzup.listener.addressRate") == null)
+            System.setProperty("wazzup.listener.addressRate", "0");
+
+        BenchmarkReport report = new BenchmarkReport();
+        if (selected(args, "codec"))
+            CodecBenchmark.run(report);
+        if (selected(args, "compression"))
+            CompressionBenchmark.run(report);
+        if (selected(args, "latency"))
+            LoopbackLatencyBenchmark.run(report);
+        if (selected(args, "accept"))
+            AcceptRateBenchmark.run(report);
+        if (selected(args, "handlers"))
+            HandlerPoolBenchmark.run(report);
+        if (selected(args, "relay"))
+            RelayBenchmark.run(report);
+        if (selected(args, "tls"))
+            TlsBenchmark.run(report);
+        if (selected(args, "flood"))
+            FloodBenchmark.run(report);
+
+        report.write(output);
+        System.out.println("Results written to " + output.toAbsolutePath());
+    }
+
+    /**
+     * Sprawdza czy pomiar o zadanej nazwie ma zostać wykonany.
+     * @param args argumenty wywołania.
+     * @param name nazwa pomiaru.
+     * @return true, gdy nie wybrano żadnego pomiaru lub wybrano ten.
+     */
+    private static boolean selected(String[] args, String name) {
+        if (args.length < 2)
+            return true;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals(name))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+package proz.communicator.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Funkcje pomocnicze wspólne dla pomiarów.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Zwraca zadany percentyl z próbek.
+     * @param samples próbki, sortowane w miejscu.
+     * @param count liczba próbek.
+     * @param percentile percentyl z przedziału 0-100.
+     * @return wartość percentyla.
+     */
+    static long percentile(long[] samples, int count, double percentile) {
+        if (count == 0)
+            return 0;
+        Arrays.sort(samples, 0, count);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return samples[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Czeka, aż serwer na zadanym porcie zacznie przyjmować połączenia.
+     * @param port numer portu.
+     * @param timeoutMillis maksymalny czas oczekiwania.
+     * @throws IOException gdy serwer nie zaczął nasłuchiwać w zadanym czasie.
+     */
+    static void awaitPort(int port, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("Nothing listens on port " + port, e);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ee) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", ee);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tworzy tekst wiadomości o zadanej długości.
+     * @param length liczba znaków.
+     * @return tekst wiadomości.
+     */
+    static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        String sample = "Wazzup! Zażółć gęślą jaźń. ";
+        while (text.length() < length)
+            text.append(sample.charAt(text.length() % sample.length()));
+        return text.toString();
+    }
+}
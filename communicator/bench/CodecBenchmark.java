@@ -0,0 +1,126 @@
+package proz.communicator.bench;
+
+import proz.communicator.model.Message;
+import proz.communicator.model.MessageCodec;
+import proz.communicator.model.MessageCodecs;
+import proz.communicator.model.MessageFrames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pomiar przepustowości kodowania i dekodowania wiadomości oraz liczby bajtów ramki na wiadomość.
+ */
+public class CodecBenchmark {
+
+    /**
+     * Długości treści wiadomości, dla których wykonywany jest pomiar.
+     */
+    private static final int[] TEXT_LENGTHS = {16, 256, 4096};
+
+    /**
+     * Liczba operacji rozgrzewających maszynę wirtualną.
+     */
+    private static final int WARMUP = 200_000;
+
+    /**
+     * Liczba mierzonych operacji.
+     */
+    private static final int ITERATIONS = 500_000;
+
+    /**
+     * Wykonuje pomiary dla wszystkich kodeków i długości wiadomości.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws IOException gdy kodowanie się nie powiodło.
+     */
+    public static void run(BenchmarkReport report) throws IOException {
+        for (String codecName : new String[] {"binary", "binary-v1", "serialized"}) {
+            MessageCodec codec = MessageCodecs.forName(codecName);
+            for (int length : TEXT_LENGTHS) {
+                Message message = new Message(Benchmarks.text(length), "benchmark", 42, "benchmark", 47000, 1, 1, Message.currentTimeMicros());
+                int iterations = codec == MessageCodecs.SERIALIZED ? ITERATIONS / 10 : ITERATIONS;
+
+                Map<String, Object> values = new LinkedHashMap<>();
+                values.put("codec", codecName);
+                values.put("textLength", length);
+                values.put("frameBytes", MessageFrames.encode(message, codec, null).remaining());
+                values.put("encodeOpsPerSec", encode(message, codec, iterations));
+                values.put("decodeOpsPerSec", decode(message, codec, iterations));
+                report.add("codec", values);
+            }
+        }
+    }
+
+    /**
+     * Mierzy przepustowość kodowania.
+     * @param message wiadomość do kodowania.
+     * @param codec kodek.
+     * @param iterations liczba mierzonych operacji.
+     * @return liczba operacji na sekundę.
+     * @throws IOException gdy kodowanie się nie powiodło.
+     */
+    static long encode(Message message, MessageCodec codec, int iterations) throws IOException {
+        ByteBuffer buffer = null;
+        long sink = 0;
+        for (int i = 0; i < Math.min(WARMUP, iterations); i++) {
+            buffer = MessageFrames.encode(message, codec, buffer);
+            sink += buffer.remaining();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            buffer = MessageFrames.encode(message, codec, buffer);
+            sink += buffer.remaining();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        consume(sink);
+        return iterations * 1_000_000_000L / Math.max(1, elapsed);
+    }
+
+    /**
+     * Mierzy przepustowość dekodowania.
+     * @param message wiadomość do dekodowania.
+     * @param codec kodek.
+     * @param iterations liczba mierzonych operacji.
+     * @return liczba operacji na sekundę.
+     * @throws IOException gdy dekodowanie się nie powiodło.
+     */
+    static long decode(Message message, MessageCodec codec, int iterations) throws IOException {
+        ByteBuffer frame = MessageFrames.encode(message, codec, null);
+        long sink = 0;
+        for (int i = 0; i < Math.min(WARMUP, iterations); i++)
+            sink += decodeOnce(frame).getMessageText().length();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink += decodeOnce(frame).getMessageText().length();
+        long elapsed = System.nanoTime() - start;
+
+        consume(sink);
+        return iterations * 1_000_000_000L / Math.max(1, elapsed);
+    }
+
+    /**
+     * Dekoduje ramkę, nie zmieniając pozycji przekazanego bufora.
+     * @param frame ramka z nagłówkiem.
+     * @return odczytana wiadomość.
+     * @throws IOException gdy dekodowanie się nie powiodło.
+     */
+    private static Message decodeOnce(ByteBuffer frame) throws IOException {
+        ByteBuffer payload = frame.duplicate();
+        payload.position(payload.position() + MessageFrames.HEADER_LENGTH);
+        return MessageFrames.decode(payload);
+    }
+
+    /**
+     * Zapobiega usunięciu mierzonego kodu przez kompilator JIT.
+     * @param value wynik obliczeń.
+     */
+    private static void consume(long value) {
+        if (value == 42)
+            System.out.print("");
+    }
+}
@@ -0,0 +1,107 @@
+package proz.communicator.bench;
+
+import proz.communicator.model.CompressingMessageCodec;
+import proz.communicator.model.Message;
+import proz.communicator.model.MessageCodec;
+import proz.communicator.model.MessageCodecs;
+import proz.communicator.model.MessageFrames;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pomiar kosztu kompresji wiadomości względem liczby zaoszczędzonych bajtów,
+ * dla typowych wiadomości: krótkiej odpowiedzi, akapitu rozmowy, wklejonego logu i wklejonego stosu wywołań.
+ */
+public class CompressionBenchmark {
+
+    /**
+     * Liczba mierzonych operacji.
+     */
+    private static final int ITERATIONS = 100_000;
+
+    /**
+     * Wykonuje pomiary dla wszystkich przykładowych wiadomości, bez kompresji i z kompresją.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws IOException gdy kodowanie się nie powiodło.
+     */
+    public static void run(BenchmarkReport report) throws IOException {
+        Map<String, String> samples = new LinkedHashMap<>();
+        samples.put("reply", "Ok, dzięki! Do zobaczenia jutro.");
+        samples.put("paragraph", paragraph());
+        samples.put("log", log(40));
+        samples.put("stackTrace", stackTrace(30));
+
+        // Threshold 0 compresses every message, which shows what the dictionary does for short ones.
+        MessageCodec compressed = new CompressingMessageCodec(MessageCodecs.BINARY, 0);
+        for (Map.Entry<String, String> sample : samples.entrySet()) {
+            Message message = new Message(sample.getValue(), "benchmark");
+            int rawBytes = MessageFrames.encode(message, MessageCodecs.BINARY, null).remaining();
+            int compressedBytes = MessageFrames.encode(message, compressed, null).remaining();
+
+            long rawEncode = CodecBenchmark.encode(message, MessageCodecs.BINARY, ITERATIONS);
+            long compressedEncode = CodecBenchmark.encode(message, compressed, ITERATIONS);
+            long rawDecode = CodecBenchmark.decode(message, MessageCodecs.BINARY, ITERATIONS);
+            long compressedDecode = CodecBenchmark.decode(message, compressed, ITERATIONS);
+
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("sample", sample.getKey());
+            values.put("frameBytes", rawBytes);
+            values.put("compressedFrameBytes", compressedBytes);
+            values.put("savedPercent", 100 - 100 * compressedBytes / rawBytes);
+            values.put("encodeNanos", 1_000_000_000L / Math.max(1, rawEncode));
+            values.put("compressedEncodeNanos", 1_000_000_000L / Math.max(1, compressedEncode));
+            values.put("decodeNanos", 1_000_000_000L / Math.max(1, rawDecode));
+            values.put("compressedDecodeNanos", 1_000_000_000L / Math.max(1, compressedDecode));
+            report.add("compression", values);
+        }
+    }
+
+    /**
+     * Tworzy akapit rozmowy.
+     * @return tekst wiadomości.
+     */
+    private static String paragraph() {
+        return "Cześć! Wczoraj próbowałem uruchomić serwer na porcie 8080, ale coś nie działało. "
+                + "Myślę, że to jest problem z konfiguracją, bo u Ciebie wszystko działa. "
+                + "Czy możesz mi wysłać plik z ustawieniami? Dzięki, odezwę się jutro.";
+    }
+
+    /**
+     * Tworzy wklejony fragment logu.
+     * @param lines liczba linii.
+     * @return tekst wiadomości.
+     */
+    private static String log(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("2018-05-").append(10 + i % 20).append("T12:").append(10 + i % 50).append(":0").append(i % 10)
+                    .append(".").append(100 + i * 7 % 900).append("Z ")
+                    .append(i % 7 == 0 ? "WARN " : "INFO ")
+                    .append("[pool-1-thread-").append(i % 4 + 1).append("] proz.communicator.model.MessageTransmitter - ")
+                    .append("sent message to 192.168.0.").append(i % 250).append(":").append(5000 + i % 3)
+                    .append(" in ").append(i * 37 % 1000).append(" us\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Tworzy wklejony stos wywołań.
+     * @param frames liczba ramek stosu.
+     * @return tekst wiadomości.
+     */
+    private static String stackTrace(int frames) {
+        StringBuilder text = new StringBuilder("Exception in thread \"main\" java.lang.IllegalStateException: connection closed\n");
+        String[] classes = {"proz.communicator.model.Model", "proz.communicator.model.Outbox", "proz.communicator.model.SendScheduler",
+                "java.util.concurrent.CompletableFuture", "java.util.concurrent.ThreadPoolExecutor"};
+        for (int i = 0; i < frames; i++) {
+            String className = classes[i % classes.length];
+            String simpleName = className.substring(className.lastIndexOf('.') + 1);
+            text.append("\tat ").append(className).append(".method").append(i % 9).append('(')
+                    .append(simpleName).append(".java:").append(100 + i * 13).append(")\n");
+        }
+        text.append("\tat java.base/java.lang.Thread.run(Thread.java:833)\n");
+        return text.toString();
+    }
+}
@@ -0,0 +1,363 @@
+package proz.communicator.bench;
+
+import proz.communicator.metrics.Metrics;
+import proz.communicator.model.*;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pomiar odporności odbiorcy na zalew wiadomości. Kilku wrogich nadawców z jednego adresu wysyła ramki
+ * tak szybko, jak przyjmuje je połączenie, do serwera NIO, którego odbiorcą jest model wątku Widoku:
+ * ograniczona kolejka opróżniana paczkami w jednym wątku, z kosztem wyświetlenia każdej wiadomości
+ * (jak MessageDispatcher). Co UI_TICK_MILLIS do wątku Widoku trafia zadanie mierzące, jak długo czeka
+ * na wykonanie, czyli jak długo Widok nie reagowałby na użytkownika.
+ * Porównuje serwer bez limitów szybkości z serwerem z limitami, a w wariancie "credit" współpracującego
+ * nadawcę (Model), którego spowalnia kredyt przyznawany przez odbiorcę.
+ */
+public class FloodBenchmark {
+
+    /**
+     * Port odbiorcy.
+     */
+    private static final int PORT = 47007;
+
+    /**
+     * Port serwera nadawcy w wariancie z kredytem, na który wracają potwierdzenia.
+     */
+    private static final int SENDER_PORT = 47008;
+
+    /**
+     * Liczba połączeń wrogich nadawców.
+     */
+    private static final int FLOODERS = 8;
+
+    /**
+     * Czas trwania zalewu w milisekundach.
+     */
+    private static final long DURATION_MILLIS = 3_000;
+
+    /**
+     * Liczba ramek zapisywanych przez nadawcę jednym wywołaniem.
+     */
+    private static final int FRAMES_PER_WRITE = 256;
+
+    /**
+     * Czas wyświetlenia jednej wiadomości przez model Widoku w nanosekundach.
+     */
+    private static final long RENDER_NANOS = 20_000;
+
+    /**
+     * Pojemność kolejki modelu Widoku.
+     */
+    private static final int UI_CAPACITY = 10_000;
+
+    /**
+     * Maksymalna liczba wiadomości wyświetlanych w jednym zadaniu wątku Widoku.
+     */
+    private static final int UI_BATCH = 1_000;
+
+    /**
+     * Odstęp między zadaniami mierzącymi opóźnienie wątku Widoku w milisekundach.
+     */
+    private static final long UI_TICK_MILLIS = 10;
+
+    /**
+     * Liczba wiadomości wysyłanych przez nadawcę w wariancie z kredytem.
+     */
+    private static final int CREDIT_MESSAGES = 100_000;
+
+    /**
+     * Wykonuje pomiar bez limitów szybkości, z limitami i z kredytem.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    public static void run(BenchmarkReport report) throws Exception {
+        flood(report, "unlimited", new ListenerSettings(1, 0, 1024, 60_000, 30_000, 1024, 0, 0));
+        flood(report, "limited", new ListenerSettings(1, 0, 1024, 60_000, 30_000, 1024, 2_000, 10_000));
+        credit(report);
+    }
+
+    /**
+     * Wykonuje pomiar zalewu dla jednych ustawień serwera.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @param name nazwa wariantu w raporcie.
+     * @param settings ustawienia z limitami szybkości.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    private static void flood(BenchmarkReport report, String name, ListenerSettings settings) throws Exception {
+        UiModel ui = new UiModel();
+        NioMessageListener listener = new NioMessageListener(null, settings);
+        MessageServer endpoint = listener.endpoint("flood", new InetSocketAddress(PORT), ui);
+        listener.startListening().get(5, TimeUnit.SECONDS);
+        endpoint.startListening().get(5, TimeUnit.SECONDS);
+
+        ByteBuffer frame = MessageFrames.encode(new Message("flood", "hostile"), MessageCodecs.BINARY, null);
+        int frameLength = frame.remaining();
+        byte[] chunk = new byte[frameLength * FRAMES_PER_WRITE];
+        for (int i = 0; i < FRAMES_PER_WRITE; i++)
+            frame.duplicate().get(chunk, i * frameLength, frameLength);
+
+        Metrics metrics = Metrics.get();
+        long throttledBefore = metrics.listenerThrottled.sum();
+        AtomicLong offered = new AtomicLong();
+        List<Socket> sockets = new ArrayList<>();
+        List<Thread> flooders = new ArrayList<>();
+        for (int f = 0; f < FLOODERS; f++) {
+            Socket socket = new Socket("127.0.0.1", PORT);
+            sockets.add(socket);
+            Thread flooder = new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    while (true) {
+                        out.write(chunk);
+                        offered.addAndGet(FRAMES_PER_WRITE);
+                    }
+                } catch (Exception e) {
+                    // Closed at the end of the run.
+                }
+            }, "flooder-" + f);
+            flooder.setDaemon(true);
+            flooders.add(flooder);
+        }
+
+        ui.startTicks();
+        long start = System.nanoTime();
+        for (Thread flooder : flooders)
+            flooder.start();
+        Thread.sleep(DURATION_MILLIS);
+        long elapsed = System.nanoTime() - start;
+        long offeredCount = offered.get();
+        long deliveredCount = ui.received.get();
+        long displayedCount = ui.displayed.get();
+        ui.stopTicks();
+
+        // A writer blocked by a throttled connection returns once its socket is closed.
+        for (Socket socket : sockets)
+            socket.close();
+        for (Thread flooder : flooders)
+            flooder.join(5_000);
+        endpoint.stopListening().get(10, TimeUnit.SECONDS);
+        listener.stopListening().get(10, TimeUnit.SECONDS);
+        ui.close();
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("variant", name);
+        values.put("connections", FLOODERS);
+        values.put("connectionRate", settings.getMessagesPerSecond());
+        values.put("addressRate", settings.getAddressMessagesPerSecond());
+        values.put("offeredPerSec", offeredCount * 1_000_000_000L / elapsed);
+        values.put("deliveredPerSec", deliveredCount * 1_000_000_000L / elapsed);
+        values.put("displayedPerSec", displayedCount * 1_000_000_000L / elapsed);
+        values.put("uiDropped", ui.dropped.get());
+        values.put("throttled", metrics.listenerThrottled.sum() - throttledBefore);
+        ui.putLag(values, elapsed, displayedCount);
+        report.add("flood", values);
+    }
+
+    /**
+     * Wykonuje pomiar współpracującego nadawcy, który wysyła wiadomości szybciej, niż Widok odbiorcy je wyświetla.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    private static void credit(BenchmarkReport report) throws Exception {
+        UiModel ui = new UiModel();
+        Model receiver = new Model(ui);
+        receiver.setServerPort(PORT);
+        receiver.startServerListening().get(5, TimeUnit.SECONDS);
+
+        // The sender listens too, that is where the acknowledgements with credit arrive.
+        Model sender = new Model(message -> { });
+        sender.setServerPort(SENDER_PORT);
+        sender.startServerListening().get(5, TimeUnit.SECONDS);
+        sender.addNewConnection("127.0.0.1", PORT, "receiver");
+        Connection connection = sender.getConnection("receiver");
+
+        Metrics metrics = Metrics.get();
+        long blockedBefore = metrics.flowBlocked.sum();
+        ui.startTicks();
+        long start = System.nanoTime();
+        for (int i = 0; i < CREDIT_MESSAGES; i++)
+            sender.sendMessage("credit", connection);
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(60);
+        while (ui.displayed.get() + ui.dropped.get() < CREDIT_MESSAGES && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        long elapsed = System.nanoTime() - start;
+        ui.stopTicks();
+
+        sender.shutdown(2, TimeUnit.SECONDS);
+        receiver.shutdown(2, TimeUnit.SECONDS);
+        ui.close();
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("variant", "credit");
+        values.put("messages", CREDIT_MESSAGES);
+        values.put("displayed", ui.displayed.get());
+        values.put("uiDropped", ui.dropped.get());
+        values.put("flowBlocked", metrics.flowBlocked.sum() - blockedBefore);
+        values.put("displayedPerSec", ui.displayed.get() * 1_000_000_000L / elapsed);
+        ui.putLag(values, elapsed, ui.displayed.get());
+        report.add("flood", values);
+    }
+
+    /**
+     * Model wątku Widoku: ograniczona kolejka, z której jeden wątek wyświetla wiadomości paczkami.
+     */
+    private static class UiModel implements MessageSink {
+
+        /**
+         * Wątek Widoku.
+         */
+        private final ExecutorService ui = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ui");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * Wątek zlecający zadania mierzące opóźnienie wątku Widoku.
+         */
+        private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ui-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * Wiadomości czekające na wyświetlenie.
+         */
+        private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(UI_CAPACITY);
+
+        /**
+         * Flaga mówiąca o tym czy zadanie opróżniające kolejkę czeka w wątku Widoku.
+         */
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+        /**
+         * Liczba wiadomości przekazanych przez serwer.
+         */
+        private final AtomicLong received = new AtomicLong();
+
+        /**
+         * Liczba wyświetlonych wiadomości.
+         */
+        private final AtomicLong displayed = new AtomicLong();
+
+        /**
+         * Liczba wiadomości odrzuconych z powodu pełnej kolejki.
+         */
+        private final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * Zmierzone opóźnienia wątku Widoku w nanosekundach.
+         */
+        private final long[] lags = new long[100_000];
+
+        /**
+         * Liczba zmierzonych opóźnień.
+         */
+        private final AtomicInteger lagCount = new AtomicInteger();
+
+        /**
+         * Przyjmuje wiadomość od serwera.
+         * @param m odebrana wiadomość.
+         */
+        @Override
+        public void write(Message m) {
+            received.incrementAndGet();
+            if (!queue.offer(m)) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (drainScheduled.compareAndSet(false, true))
+                ui.execute(this::drain);
+        }
+
+        /**
+         * Zwraca liczbę wiadomości czekających na wyświetlenie.
+         * @return liczba wiadomości w kolejce.
+         */
+        @Override
+        public int getBacklog() {
+            return queue.size();
+        }
+
+        /**
+         * Wyświetla paczkę wiadomości w wątku Widoku.
+         */
+        private void drain() {
+            List<Message> batch = new ArrayList<>(UI_BATCH);
+            queue.drainTo(batch, UI_BATCH);
+            drainScheduled.set(false);
+            for (int i = 0; i < batch.size(); i++) {
+                long until = System.nanoTime() + RENDER_NANOS;
+                while (System.nanoTime() < until)
+                    Thread.onSpinWait();
+            }
+            displayed.addAndGet(batch.size());
+            if (!queue.isEmpty() && drainScheduled.compareAndSet(false, true))
+                ui.execute(this::drain);
+        }
+
+        /**
+         * Zaczyna mierzyć opóźnienie wątku Widoku.
+         */
+        void startTicks() {
+            ticker.scheduleAtFixedRate(() -> {
+                long scheduled = System.nanoTime();
+                ui.execute(() -> {
+                    int n = lagCount.getAndIncrement();
+                    if (n < lags.length)
+                        lags[n] = System.nanoTime() - scheduled;
+                });
+            }, 0, UI_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Przestaje mierzyć opóźnienie wątku Widoku.
+         */
+        void stopTicks() {
+            ticker.shutdownNow();
+        }
+
+        /**
+         * Zamyka wątek Widoku i czeka na jego zakończenie, by wyniki nie zmieniały się w trakcie odczytu.
+         * @throws InterruptedException gdy oczekiwanie zostało przerwane.
+         */
+        void close() throws InterruptedException {
+            ticker.shutdownNow();
+            ui.shutdownNow();
+            ui.awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Dopisuje do wyników opóźnienia i zajętość wątku Widoku.
+         * @param values wyniki wariantu.
+         * @param elapsed czas pomiaru w nanosekundach.
+         * @param displayedCount liczba wiadomości wyświetlonych w czasie pomiaru.
+         */
+        void putLag(Map<String, Object> values, long elapsed, long displayedCount) {
+            int count = Math.min(lagCount.get(), lags.length);
+            values.put("uiBusyPercent", displayedCount * RENDER_NANOS * 100 / elapsed);
+            values.put("uiLagP50Micros", Benchmarks.percentile(lags, count, 50) / 1000);
+            values.put("uiLagP99Micros", Benchmarks.percentile(lags, count, 99) / 1000);
+            values.put("uiLagMaxMicros", Benchmarks.percentile(lags, count, 100) / 1000);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package proz.communicator.bench;
+
+import proz.communicator.metrics.Metrics;
+import proz.communicator.model.*;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pomiar serwera z pulą wątków obsługujących połączenia (MessageListener) przy 1000 nadawców,
+ * którzy jednocześnie łączą się z serwerem, wysyłają po kilka wiadomości i rozłączają się.
+ * Porównuje rozmiary puli, długość kolejki połączeń oczekujących na przyjęcie, ciasną pulę,
+ * w której działa odrzucanie połączeń, oraz wirtualne wątki, gdy pozwala na to wersja Javy.
+ */
+public class HandlerPoolBenchmark {
+
+    /**
+     * Port serwera używany w pomiarze.
+     */
+    private static final int PORT = 47006;
+
+    /**
+     * Liczba równoczesnych nadawców.
+     */
+    private static final int SENDERS = 1000;
+
+    /**
+     * Liczba wiadomości wysyłanych przez każdego nadawcę jednym połączeniem.
+     */
+    private static final int MESSAGES_PER_SENDER = 20;
+
+    /**
+     * Limit połączeń z jednego adresu, wysoki, bo wszyscy nadawcy łączą się z 127.0.0.1.
+     */
+    private static final int MAX_PER_ADDRESS = 100_000;
+
+    /**
+     * Wykonuje pomiar dla kolejnych ustawień serwera.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    public static void run(BenchmarkReport report) throws Exception {
+        run(report, "pool-256", new ListenerSettings(256, 1024, 1024, 60_000, 30_000, MAX_PER_ADDRESS), 0);
+        run(report, "pool-64", new ListenerSettings(64, 2048, 1024, 60_000, 30_000, MAX_PER_ADDRESS), 0);
+        run(report, "pool-256-backlog-50", new ListenerSettings(256, 1024, 50, 60_000, 30_000, MAX_PER_ADDRESS), 0);
+        // Connections held open for a while saturate a small pool, so the rejection policy kicks in.
+        run(report, "pool-16-queue-64-hold", new ListenerSettings(16, 64, 1024, 60_000, 30_000, MAX_PER_ADDRESS), 200);
+        if (Runtime.version().feature() >= 21)
+            run(report, "virtual", new ListenerSettings(ListenerSettings.VIRTUAL_THREADS, 0, 1024, 60_000, 30_000, MAX_PER_ADDRESS), 0);
+    }
+
+    /**
+     * Wykonuje pomiar dla jednych ustawień serwera.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @param name nazwa wariantu w raporcie.
+     * @param settings ustawienia serwera.
+     * @param holdMillis czas, przez który nadawca trzyma połączenie otwarte po wysłaniu wiadomości.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    private static void run(BenchmarkReport report, String name, ListenerSettings settings, long holdMillis) throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        AtomicLong lastDelivery = new AtomicLong();
+        MessageListener server = new MessageListener(message -> {
+            received.incrementAndGet();
+            lastDelivery.set(System.nanoTime());
+        }, PORT, null, settings);
+        server.startListening().get(5, TimeUnit.SECONDS);
+
+        ByteBuffer frame = MessageFrames.encode(new Message("hello", "benchmark"), MessageCodecs.BINARY, null);
+        byte[] bytes = new byte[frame.remaining() * MESSAGES_PER_SENDER];
+        for (int i = 0; i < MESSAGES_PER_SENDER; i++)
+            frame.duplicate().get(bytes, i * frame.remaining(), frame.remaining());
+
+        Metrics metrics = Metrics.get();
+        long rejectedBefore = metrics.listenerRejected.sum();
+        long[] connectTimes = new long[SENDERS];
+        AtomicInteger connected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(SENDERS);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(SENDERS);
+
+        List<Thread> senders = new ArrayList<>();
+        for (int s = 0; s < SENDERS; s++) {
+            Thread sender = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    long connectStart = System.nanoTime();
+                    try (Socket socket = new Socket("127.0.0.1", PORT)) {
+                        connectTimes[connected.getAndIncrement()] = System.nanoTime() - connectStart;
+                        OutputStream out = socket.getOutputStream();
+                        out.write(bytes);
+                        out.flush();
+                        if (holdMillis > 0)
+                            Thread.sleep(holdMillis);
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }, "sender-" + s);
+            sender.setDaemon(true);
+            senders.add(sender);
+            sender.start();
+        }
+        ready.await();
+
+        long start = System.nanoTime();
+        go.countDown();
+        boolean completed = done.await(120, TimeUnit.SECONDS);
+        long connectElapsed = System.nanoTime() - start;
+
+        // Wait for the handlers to read what the senders have written.
+        int expected = connected.get() * MESSAGES_PER_SENDER;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        int last = -1;
+        while (received.get() < expected && System.nanoTime() < deadline && received.get() != last) {
+            last = received.get();
+            Thread.sleep(500);
+        }
+        long elapsed = lastDelivery.get() - start;
+
+        server.stopListening().get();
+
+        int count = connected.get();
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("variant", name);
+        values.put("handlers", settings.getHandlerThreads() == ListenerSettings.VIRTUAL_THREADS ? "virtual" : settings.getHandlerThreads());
+        values.put("queue", settings.getQueueCapacity());
+        values.put("backlog", settings.getBacklog());
+        values.put("holdMillis", holdMillis);
+        values.put("senders", SENDERS);
+        values.put("connected", count);
+        values.put("failed", failed.get());
+        values.put("rejected", metrics.listenerRejected.sum() - rejectedBefore);
+        values.put("delivered", received.get());
+        values.put("expected", expected);
+        values.put("completed", String.valueOf(completed));
+        values.put("connectionsPerSec", count * 1_000_000_000L / Math.max(1, connectElapsed));
+        values.put("messagesPerSec", received.get() * 1_000_000_000L / Math.max(1, elapsed));
+        values.put("connectP50Micros", Benchmarks.percentile(connectTimes, count, 50) / 1000);
+        values.put("connectP99Micros", Benchmarks.percentile(connectTimes, count, 99) / 1000);
+        report.add("handler-pool", values);
+    }
+}
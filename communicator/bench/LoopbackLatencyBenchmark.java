@@ -0,0 +1,97 @@
+package proz.communicator.bench;
+
+import proz.communicator.model.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pomiar opóźnienia od wywołania Model.sendMessage do dostarczenia wiadomości przez serwer, przez interfejs pętli zwrotnej.
+ * Nadawca i odbiorca to dwa obiekty Model w jednym procesie. Zamiast Widoku JavaFX wiadomości odbiera
+ * zaślepka MessageSink, która zapisuje czas dostarczenia.
+ */
+public class LoopbackLatencyBenchmark {
+
+    /**
+     * Port serwera używany w pomiarze.
+     */
+    private static final int PORT = 47001;
+
+    /**
+     * Liczba wiadomości rozgrzewających.
+     */
+    private static final int WARMUP = 20_000;
+
+    /**
+     * Liczba mierzonych wiadomości.
+     */
+    private static final int MESSAGES = 50_000;
+
+    /**
+     * Wykonuje pomiar dla serwera NIO i serwera z wątkiem na połączenie.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    public static void run(BenchmarkReport report) throws Exception {
+        run(report, true);
+        run(report, false);
+    }
+
+    /**
+     * Wykonuje pomiar dla wybranego serwera.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @param nio true dla serwera NIO.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    private static void run(BenchmarkReport report, boolean nio) throws Exception {
+        long[] latencies = new long[MESSAGES];
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Each message carries its send time, the stub records delivery time on the listener thread.
+        MessageSink sink = message -> {
+            long latency = System.nanoTime() - Long.parseLong(message.getMessageText());
+            int n = received.getAndIncrement() - WARMUP;
+            if (n >= 0 && n < MESSAGES)
+                latencies[n] = latency;
+            if (n == MESSAGES - 1)
+                done.countDown();
+        };
+
+        Model receiver = new Model(sink);
+        receiver.setNioListenerEnabled(nio);
+        receiver.setServerPort(PORT);
+        receiver.startServerListening().get(5, TimeUnit.SECONDS);
+
+        Model sender = new Model(message -> { });
+        sender.addNewConnection("127.0.0.1", PORT, "benchmark");
+        Connection connection = sender.getConnection("benchmark");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < WARMUP + MESSAGES; i++) {
+            sender.sendMessage(Long.toString(System.nanoTime()), connection);
+            // Pace the sender a little, otherwise we measure queueing instead of the path.
+            if (i % 64 == 0)
+                Thread.sleep(0, 100_000);
+        }
+        boolean completed = done.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        sender.shutdown(5, TimeUnit.SECONDS);
+        receiver.shutdown(5, TimeUnit.SECONDS);
+
+        int count = Math.min(MESSAGES, Math.max(0, received.get() - WARMUP));
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("listener", nio ? "nio" : "thread-per-connection");
+        values.put("messages", count);
+        values.put("completed", String.valueOf(completed));
+        values.put("p50Micros", Benchmarks.percentile(latencies, count, 50) / 1000);
+        values.put("p99Micros", Benchmarks.percentile(latencies, count, 99) / 1000);
+        values.put("maxMicros", Benchmarks.percentile(latencies, count, 100) / 1000);
+        values.put("messagesPerSec", (WARMUP + count) * 1_000_000_000L / Math.max(1, elapsed));
+        report.add("loopback-latency", values);
+    }
+}
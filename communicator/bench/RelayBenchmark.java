@@ -0,0 +1,169 @@
+package proz.communicator.bench;
+
+import proz.communicator.main.HeadlessMain;
+import proz.communicator.model.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pomiar huba przy wielu klientach połączonych jednocześnie przez interfejs pętli zwrotnej.
+ * Hub działa w osobnym procesie (HeadlessMain --relay), żeby obie strony miały własny limit deskryptorów plików.
+ * Każdy klient w każdej rundzie wysyła przez hub jedną wiadomość do następnego klienta.
+ * Liczbę klientów można zmienić właściwością systemową wazzup.bench.relay.clients.
+ */
+public class RelayBenchmark {
+
+    /**
+     * Port huba używany w pomiarze.
+     */
+    private static final int PORT = 47003;
+
+    /**
+     * Domyślna liczba klientów.
+     */
+    private static final int CLIENTS = 10_000;
+
+    /**
+     * Liczba rund wysyłania.
+     */
+    private static final int ROUNDS = 10;
+
+    /**
+     * Wykonuje pomiar.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    public static void run(BenchmarkReport report) throws Exception {
+        int clients = Integer.getInteger("wazzup.bench.relay.clients", CLIENTS);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process hub = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-Dwazzup.journal=false", "-Dwazzup.listener.rate=0", "-Dwazzup.listener.addressRate=0",
+                HeadlessMain.class.getName(), "--port", String.valueOf(PORT), "--relay", "--quiet")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        SocketChannel[] channels = new SocketChannel[clients];
+        Selector selector = Selector.open();
+        try {
+            Benchmarks.awaitPort(PORT, 10_000);
+
+            long connectStart = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                writeFully(channel, RelayProtocol.hello(id(i)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new FrameReader());
+                channels[i] = channel;
+            }
+            long connectElapsed = System.nanoTime() - connectStart;
+            // Let the hub process the last introductions before routing to them.
+            Thread.sleep(500);
+
+            int total = clients * ROUNDS;
+            long[] latencies = new long[total];
+            int received = 0;
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(120);
+
+            for (int round = 0; round < ROUNDS && System.nanoTime() < deadline; round++) {
+                for (int i = 0; i < clients; i++) {
+                    Message message = new Message(Long.toString(System.nanoTime()), id(i));
+                    writeFully(channels[i], RelayProtocol.route(id((i + 1) % clients), message, MessageCodecs.BINARY));
+                }
+                int expected = (round + 1) * clients;
+                while (received < expected && System.nanoTime() < deadline)
+                    received = receive(selector, latencies, received);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("clients", clients);
+            values.put("rounds", ROUNDS);
+            values.put("connectSeconds", connectElapsed / 1e9);
+            values.put("messages", total);
+            values.put("delivered", received);
+            values.put("messagesPerSec", received * 1_000_000_000L / Math.max(1, elapsed));
+            values.put("p50Micros", Benchmarks.percentile(latencies, received, 50) / 1000);
+            values.put("p99Micros", Benchmarks.percentile(latencies, received, 99) / 1000);
+            report.add("relay", values);
+        } finally {
+            for (SocketChannel channel : channels) {
+                if (channel != null)
+                    channel.close();
+            }
+            selector.close();
+            try (OutputStream in = hub.getOutputStream()) {
+                in.write("/quit\n".getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // The hub is already gone.
+            }
+            if (!hub.waitFor(10, TimeUnit.SECONDS))
+                hub.destroyForcibly();
+        }
+    }
+
+    /**
+     * Odbiera wiadomości ze wszystkich gotowych kanałów i zapisuje ich opóźnienie.
+     * @param selector selektor kanałów klientów.
+     * @param latencies tablica opóźnień w nanosekundach.
+     * @param received liczba odebranych dotąd wiadomości.
+     * @return nowa liczba odebranych wiadomości.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    private static int receive(Selector selector, long[] latencies, int received) throws IOException {
+        selector.select(100);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            FrameReader reader = (FrameReader) key.attachment();
+            if (reader.readFrom((SocketChannel) key.channel()) < 0)
+                throw new IOException("Hub closed a client connection");
+
+            ByteBuffer payload;
+            while ((payload = reader.nextFrame()) != null) {
+                Message message = RelayProtocol.decodeRoute(payload);
+                long latency = System.nanoTime() - Long.parseLong(message.getMessageText());
+                if (received < latencies.length)
+                    latencies[received++] = latency;
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Zwraca identyfikator klienta o zadanym numerze.
+     * @param i numer klienta.
+     * @return identyfikator klienta.
+     */
+    private static String id(int i) {
+        return "client-" + i;
+    }
+
+    /**
+     * Zapisuje całą ramkę do kanału, także nieblokującego.
+     * @param channel kanał klienta.
+     * @param frame ramka do zapisania.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    private static void writeFully(SocketChannel channel, ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining())
+            channel.write(frame);
+    }
+}
@@ -0,0 +1,189 @@
+package proz.communicator.bench;
+
+import proz.communicator.model.Message;
+import proz.communicator.model.MessageCodecs;
+import proz.communicator.model.MessageTransmitter;
+import proz.communicator.model.NioMessageListener;
+import proz.communicator.model.TlsContext;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pomiar kosztu szyfrowania TLS względem połączeń nieszyfrowanych:
+ * czasu nawiązania połączenia (pełne i wznowione uzgadnianie TLS) oraz przepustowości wysyłania wiadomości.
+ * Certyfikat jest tworzony na potrzeby pomiaru programem keytool w katalogu tymczasowym.
+ */
+public class TlsBenchmark {
+
+    /**
+     * Port serwera nieszyfrowanego.
+     */
+    private static final int PLAIN_PORT = 47004;
+
+    /**
+     * Port serwera szyfrowanego.
+     */
+    private static final int TLS_PORT = 47005;
+
+    /**
+     * Liczba mierzonych nawiązań połączenia.
+     */
+    private static final int CONNECTIONS = 200;
+
+    /**
+     * Liczba mierzonych pełnych uzgodnień TLS. Każde wymaga nowego kontekstu TLS, bez zapamiętanych sesji.
+     */
+    private static final int FULL_HANDSHAKES = 50;
+
+    /**
+     * Liczba wiadomości w pomiarze przepustowości.
+     */
+    private static final int MESSAGES = 100_000;
+
+    /**
+     * Hasło magazynu kluczy utworzonego na potrzeby pomiaru.
+     */
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    /**
+     * Wykonuje pomiary.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    public static void run(BenchmarkReport report) throws Exception {
+        Path directory = Files.createTempDirectory("wazzup-tls");
+        Path keyStore = directory.resolve("benchmark.p12");
+        TlsContext.generateKeyStore(keyStore, "benchmark", PASSWORD);
+
+        AtomicInteger received = new AtomicInteger();
+        NioMessageListener plain = new NioMessageListener(message -> received.incrementAndGet(), PLAIN_PORT);
+        NioMessageListener secure = new NioMessageListener(message -> received.incrementAndGet(), TLS_PORT,
+                new TlsContext(keyStore, keyStore, PASSWORD));
+        plain.startListening().get(5, TimeUnit.SECONDS);
+        secure.startListening().get(5, TimeUnit.SECONDS);
+
+        try {
+            TlsContext[] fresh = new TlsContext[FULL_HANDSHAKES];
+            for (int i = 0; i < fresh.length; i++)
+                fresh[i] = new TlsContext(keyStore, keyStore, PASSWORD);
+            TlsContext shared = new TlsContext(keyStore, keyStore, PASSWORD);
+
+            connect(report, "plain", PLAIN_PORT, new TlsContext[] {null}, CONNECTIONS, received);
+            connect(report, "tls-full", TLS_PORT, fresh, FULL_HANDSHAKES, received);
+            connect(report, "tls-resumed", TLS_PORT, new TlsContext[] {shared}, CONNECTIONS, received);
+
+            for (int length : new int[] {64, 1024, 16 * 1024}) {
+                throughput(report, "plain", PLAIN_PORT, null, length, received);
+                throughput(report, "tls", TLS_PORT, shared, length, received);
+            }
+        } finally {
+            plain.stopListening().get();
+            secure.stopListening().get();
+            Files.deleteIfExists(keyStore);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Mierzy czas nawiązania połączenia i wysłania pierwszej wiadomości.
+     * Po każdym połączeniu czeka na dostarczenie wiadomości, a potem zamyka połączenie.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @param mode nazwa wariantu.
+     * @param port port serwera.
+     * @param contexts konteksty TLS używane po kolei (null dla połączenia nieszyfrowanego).
+     * @param connections liczba mierzonych połączeń.
+     * @param received licznik wiadomości dostarczonych przez serwer.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    private static void connect(BenchmarkReport report, String mode, int port, TlsContext[] contexts, int connections,
+                                AtomicInteger received) throws Exception {
+        Message message = new Message("hello", "benchmark");
+        long[] samples = new long[connections];
+        // One unmeasured connection per context would hide the full handshake, so only the shared context warms up.
+        if (contexts.length == 1)
+            connectOnce(port, contexts[0], message, received);
+
+        for (int i = 0; i < connections; i++)
+            samples[i] = connectOnce(port, contexts[i % contexts.length], message, received);
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("mode", mode);
+        values.put("connections", connections);
+        values.put("p50Micros", Benchmarks.percentile(samples, connections, 50) / 1000);
+        values.put("p99Micros", Benchmarks.percentile(samples, connections, 99) / 1000);
+        report.add("tls-connect", values);
+    }
+
+    /**
+     * Nawiązuje jedno połączenie, wysyła wiadomość i czeka na jej dostarczenie.
+     * @param port port serwera.
+     * @param tls kontekst TLS lub null.
+     * @param message wiadomość do wysłania.
+     * @param received licznik wiadomości dostarczonych przez serwer.
+     * @return czas nawiązania połączenia i wysłania wiadomości w nanosekundach.
+     * @throws Exception gdy wysłanie się nie powiodło.
+     */
+    private static long connectOnce(int port, TlsContext tls, Message message, AtomicInteger received) throws Exception {
+        int expected = received.get() + 1;
+        MessageTransmitter transmitter = new MessageTransmitter("127.0.0.1", port, MessageCodecs.BINARY, tls);
+        long start = System.nanoTime();
+        transmitter.send(message);
+        long elapsed = System.nanoTime() - start;
+        awaitReceived(received, expected);
+        transmitter.close();
+        return elapsed;
+    }
+
+    /**
+     * Mierzy przepustowość wysyłania wiadomości jednym połączeniem.
+     * @param report raport, do którego dopisywane są wyniki.
+     * @param mode nazwa wariantu.
+     * @param port port serwera.
+     * @param tls kontekst TLS lub null.
+     * @param length długość treści wiadomości.
+     * @param received licznik wiadomości dostarczonych przez serwer.
+     * @throws Exception gdy pomiar się nie powiódł.
+     */
+    private static void throughput(BenchmarkReport report, String mode, int port, TlsContext tls, int length,
+                                   AtomicInteger received) throws Exception {
+        Message message = new Message(Benchmarks.text(length), "benchmark");
+        int messages = length > 1024 ? MESSAGES / 10 : MESSAGES;
+        MessageTransmitter transmitter = new MessageTransmitter("127.0.0.1", port, MessageCodecs.BINARY, tls);
+        transmitter.send(message);
+        awaitReceived(received, received.get());
+
+        int expected = received.get() + messages;
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++)
+            transmitter.send(message);
+        awaitReceived(received, expected);
+        long elapsed = System.nanoTime() - start;
+        transmitter.close();
+
+        long bytes = (long) messages * message.getMessageText().getBytes("UTF-8").length;
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("mode", mode);
+        values.put("textLength", length);
+        values.put("messages", messages);
+        values.put("messagesPerSec", messages * 1_000_000_000L / Math.max(1, elapsed));
+        values.put("megabytesPerSec", bytes * 1000 / Math.max(1, elapsed));
+        report.add("tls-throughput", values);
+    }
+
+    /**
+     * Czeka, aż serwer dostarczy zadaną liczbę wiadomości.
+     * @param received licznik wiadomości dostarczonych przez serwer.
+     * @param expected oczekiwana wartość licznika.
+     * @throws InterruptedException gdy oczekiwanie zostało przerwane.
+     */
+    private static void awaitReceived(AtomicInteger received, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (received.get() < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(0, 50_000);
+    }
+}
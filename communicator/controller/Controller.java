@@ -1,18 +1,41 @@
 package proz.communicator.controller;
 
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
 import javafx.event.Event;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.Scene;
 import javafx.scene.layout.AnchorPane;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+import proz.communicator.metrics.Metrics;
 import proz.communicator.model.Connection;
+import proz.communicator.model.HistoryEntry;
 import proz.communicator.model.Message;
 import proz.communicator.model.Model;
+import proz.communicator.model.SearchIndex;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -24,12 +47,74 @@ public class Controller implements WritableGUI {
     /**
      * Obiekt model, przechowuje dane oraz udostepnia metody dostepu do danych.
      */
-    private Model model = new Model(this);
+    private Model model = new Model(new MessageDispatcher(this, MessageDispatcher.DEFAULT_CAPACITY));
     /**
      * Flaga oznaczająca czy opcja wysyłania wiadomości za pomocą klawisza Enter jest aktwyna.
      */
     private boolean sendWithEnterKey = false;
 
+    /**
+     * Otwarte karty wiadomości według nazwy połączenia.
+     */
+    private Map<String, Tab> tabs = new HashMap<>();
+
+    /**
+     * Widoki historii otwartych kart wiadomości według nazwy połączenia.
+     */
+    private Map<String, ConversationView> conversations = new HashMap<>();
+
+    /**
+     * Maksymalna liczba wyników wyszukiwania, między którymi można przechodzić.
+     */
+    private static final int MAX_SEARCH_HITS = 1000;
+
+    /**
+     * Ostatnio wyszukiwane zapytanie.
+     */
+    private String lastQuery;
+
+    /**
+     * Wyniki ostatniego wyszukiwania.
+     */
+    private List<SearchIndex.Hit> searchHits = Collections.emptyList();
+
+    /**
+     * Numer wyniku wyszukiwania, który zostanie pokazany jako następny.
+     */
+    private int searchHitIndex = 0;
+
+    /**
+     * Okno statystyk lub null, gdy nie zostało jeszcze otwarte.
+     */
+    private Stage statsStage;
+
+    /**
+     * Nazwy połączeń, których widoki czekają na odświeżenie po zmianie stanu dostarczenia wiadomości.
+     */
+    private final Set<String> staleConversations = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Flaga mówiąca o tym czy w wątku JavaFX czeka już zadanie odświeżające widoki.
+     */
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+
+    /**
+     * Konstruktor klasy. Rejestruje odświeżanie widoków po zmianie stanu dostarczenia wiadomości.
+     */
+    public Controller() {
+        model.setDeliveryListener(this::deliveryStateChanged);
+    }
+
+    /**
+     * Wywoływana po wczytaniu Widoku. Przyciski Listen i Stop śledzą port wpisany w polu portu,
+     * więc można nasłuchiwać na kilku portach naraz.
+     */
+    @FXML
+    private void initialize() {
+        portInput.textProperty().addListener((observable, oldValue, newValue) -> updateListenButtons());
+        updateListenButtons();
+    }
+
 
     //region FXML Variables
     /**
@@ -63,10 +148,9 @@ public class Controller implements WritableGUI {
     private TextArea messageInput;
 
     /**
-     * Pole tekstowe do wyświetlania wiadomości.
+     * Widok historii aktywnej karty, w którym wyświetlane są wiadomości.
      */
-    @FXML
-    private TextArea messageOutput;
+    private ConversationView messageOutput;
 
     /**
      * Kolekcja otwartych kart wiadmości.
@@ -74,6 +158,12 @@ public class Controller implements WritableGUI {
     @FXML
     private TabPane tabPane;
 
+    /**
+     * Pole tekstowe do wprowadzania zapytania wyszukiwania wiadomości.
+     */
+    @FXML
+    private TextField searchInput;
+
     /**
      * Przycisk do włączania i wyłączania opcji wysyłania wiadomości przy pomocy klawisza Enter.
      */
@@ -86,6 +176,12 @@ public class Controller implements WritableGUI {
     @FXML
     private Button sendButton;
 
+    /**
+     * Przycisk do wysyłania pliku.
+     */
+    @FXML
+    private Button sendFileButton;
+
     /**
      * Przycisk do włączania nasłuchiwania wiadomości.
      */
@@ -166,17 +262,16 @@ public class Controller implements WritableGUI {
      * Pobiera numer portu z Widoku. Sprawdza jego poprawność.
      * Ustawia w Modelu numer portu serwera.
      * Każe Modelowi rozpocząć działanie serwera.
-     * Deaktywuje przycisk Listen i akrywuje Stop.
+     * Deaktywuje przycisk Listen i akrywuje Stop. Gdy serwer nie zajmie portu, przywraca je i wyświetla błąd.
      */
     @FXML
     private void listenButtonClicked() {
-
         /*
         1. Get port
         2. Validate in controller
-        3. Set Model with port
-        4. Start Listening: model.startServerListening()
-        5. Update view: disable listen button and port input, enable stop button.
+        3. Note whether it is the first listener, the model advertises the first one that runs
+        4. Start Listening: model.startListener(port)
+        5. Update view: disable listen button, enable stop button for this port.
          */
 
         // AD 1. Get port
@@ -193,31 +288,72 @@ public class Controller implements WritableGUI {
         }
 
         // Port number is ok.
-        // AD 3. Set Model
-        model.setServerPort(Integer.parseInt(port));
-
-        // AD 4. Start listening
-        model.startServerListening();
+        // AD 3. Discovery starts with the first listener and follows whichever port the model advertises.
+        boolean first = model.getListenerNames().isEmpty();
+
+        // AD 4. Start listening. Binding happens on the listener thread, a failure is reported back here.
+        model.startListener(port, new InetSocketAddress(Integer.parseInt(port))).whenComplete((result, error) -> {
+            if (error == null) {
+                if (first)
+                    startDiscovery();
+                return;
+            }
+            Platform.runLater(() -> {
+                updateListenButtons();
+
+                Alert alert = new Alert(Alert.AlertType.ERROR);
+                alert.setTitle("Error!");
+                alert.setHeaderText("Could not listen on port " + port + "!");
+                alert.setContentText(String.valueOf(error.getMessage()));
+                alert.showAndWait();
+            });
+        });
 
         // AD 5.
-        portInput.setEditable(false);
-        listenButton.setDisable(true);
-        stopButton.setDisable(false);
+        updateListenButtons();
     }
 
     /**
      * Wykonuje się przy kliknieciu przycisku Stop.
-     * Każe Modelowi zakończyć nasłuchiwanie.
-     * Deaktywuje przycisk Stop i aktywuje Listen.
+     * Każe Modelowi zakończyć nasłuchiwanie na porcie wpisanym w polu portu, pozostałe porty nasłuchują dalej.
+     * Od razu deaktywuje przycisk Stop, a Listen aktywuje dopiero po zwolnieniu portu przez serwer.
      */
     @FXML
     private void stopButtonClicked() {
 
-        model.stopServerListening();
-
-        portInput.setEditable(true);
-        listenButton.setDisable(false);
+        String port = portInput.getText();
         stopButton.setDisable(true);
+
+        // Another running listener takes over acknowledgements and discovery, with none left discovery stops.
+        model.stopListener(port).whenComplete((result, error) -> Platform.runLater(this::updateListenButtons));
+    }
+
+    /**
+     * Uaktualnia przyciski Listen i Stop według tego, czy na porcie wpisanym w polu portu działa już serwer.
+     */
+    private void updateListenButtons() {
+        boolean listening = model.getListenerNames().contains(portInput.getText());
+        listenButton.setDisable(listening);
+        stopButton.setDisable(!listening);
+    }
+
+    /**
+     * Rozpoczyna wykrywanie hostów w sieci lokalnej, jeśli włączono je właściwością wazzup.discovery.
+     * Ta instancja przedstawia się nazwą z właściwości wazzup.name lub nazwą użytkownika systemu.
+     * Dla każdego wykrytego hosta otwierana jest karta wiadomości.
+     */
+    private void startDiscovery() {
+        if (!Boolean.getBoolean("wazzup.discovery"))
+            return;
+        String name = System.getProperty("wazzup.name", System.getProperty("user.name"));
+        try {
+            model.startDiscovery(name, connection -> Platform.runLater(() -> {
+                if (getTab(connection.getConnectionName()) == null)
+                    openNewTab(connection.getConnectionName());
+            }));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -249,17 +385,43 @@ public class Controller implements WritableGUI {
         String connectionName = selectedTab.getText();
 
         Connection connection = model.getConnection(connectionName);
+        if (connection == null) {
+            // Replying to a host that wrote first accepts it.
+            connection = model.acceptPeer(connectionName);
+        }
 
-        // AD 2.
-        model.sendMessage(message, connection);
+        // AD 3. Record the message first, the outbox keeps its delivery state up to date.
+        HistoryEntry entry = printOutputMessage(message);
+        entry.setDeliveryState(HistoryEntry.DeliveryState.PENDING);
 
-        // AD 3.
-        printOutputMessage(message);
+        // AD 2.
+        model.sendMessage(message, connection, entry);
 
         // AD 4.
         messageInput.clear();
     }
 
+    /**
+     * Wykonuje się przy kliknieciu przycisku File.
+     * Pozwala wybrać plik i każe Modelowi wysłać go do hosta aktywnej karty.
+     * Plik jest zapisywany w historii jak wiadomość, ze stanem dostarczenia.
+     */
+    @FXML
+    private void sendFileButtonClicked() {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Send file");
+        File file = chooser.showOpenDialog(sendFileButton.getScene().getWindow());
+        if (file == null)
+            return;
+
+        Connection connection = model.getConnection(selectedTab.getText());
+        if (connection == null)
+            connection = model.acceptPeer(selectedTab.getText());
+        HistoryEntry entry = printOutputMessage("[file] " + file.getName());
+        entry.setDeliveryState(HistoryEntry.DeliveryState.PENDING);
+        model.sendFile(file.toPath(), connection, entry);
+    }
+
     /**
      * Wykonuje się przy kliknieciu przycisku Send With Enter.
      * Ustawia flagę opcji wysyłania wiadomości za pomocą przycisku Enter.
@@ -283,7 +445,8 @@ public class Controller implements WritableGUI {
 
         if(tab.isSelected()) {
             selectedTab = tab;
-            if (checkIfConnectionAlreadyExists(tab.getText()))
+            // A host that wrote first can be answered, the reply accepts it.
+            if (checkIfConnectionAlreadyExists(tab.getText()) || model.isPendingPeer(tab.getText()))
                 enableInput();
             else
                 disableInput();
@@ -306,10 +469,104 @@ public class Controller implements WritableGUI {
         }
     }
 
+    /**
+     * Wykonuje się po wciśnięciu Enter w polu wyszukiwania.
+     * Przy nowym zapytaniu wyszukuje wiadomości we wszystkich rozmowach i pokazuje najnowszą z nich.
+     * Przy powtórzonym zapytaniu pokazuje kolejną, starszą wiadomość.
+     */
+    @FXML
+    private void searchEntered() {
+
+        String query = searchInput.getText().trim();
+        if (query.isEmpty())
+            return;
+
+        if (!query.equals(lastQuery)) {
+            lastQuery = query;
+            searchHits = model.search(query, MAX_SEARCH_HITS);
+            searchHitIndex = 0;
+        }
+
+        if (searchHits.isEmpty()) {
+            Alert alert = new Alert(Alert.AlertType.INFORMATION);
+            alert.setTitle("Search");
+            alert.setHeaderText("No messages found!");
+            alert.showAndWait();
+            return;
+        }
+
+        SearchIndex.Hit hit = searchHits.get(searchHitIndex);
+        searchHitIndex = (searchHitIndex + 1) % searchHits.size();
+
+        Tab tab = getTab(hit.getConnectionName());
+        if (tab == null)
+            tab = openNewTab(hit.getConnectionName());
+        tabPane.getSelectionModel().select(tab);
+        getConversation(hit.getConnectionName()).reveal(hit.getSequence(), hit.getTimestamp());
+    }
+
+    /**
+     * Wykonuje się przy kliknieciu przycisku Stats.
+     * Otwiera okno z raportem metryk odświeżanym co sekundę.
+     */
+    @FXML
+    private void statsButtonClicked() {
+
+        if (statsStage == null) {
+            TextArea report = new TextArea(Metrics.get().report());
+            report.setEditable(false);
+            report.setStyle("-fx-font-family: monospace;");
+
+            // Refresh only while the window is shown.
+            Timeline refresh = new Timeline(new KeyFrame(Duration.seconds(1),
+                    event -> report.setText(Metrics.get().report())));
+            refresh.setCycleCount(Timeline.INDEFINITE);
+
+            statsStage = new Stage();
+            statsStage.setTitle("Wazzup - stats");
+            statsStage.setScene(new Scene(report, 480, 600));
+            statsStage.setOnShown(event -> refresh.play());
+            statsStage.setOnHidden(event -> refresh.stop());
+        }
+        statsStage.show();
+        statsStage.toFront();
+    }
+
     //endregion
 
+    /**
+     * Kończy pracę programu: czeka chwilę na wysłanie zleconych wiadomości i zamyka połączenia.
+     */
+    public void shutdown() {
+        model.shutdown(2, TimeUnit.SECONDS);
+    }
+
     //region Helpers
 
+    /**
+     * Zleca odświeżenie widoku rozmowy, której wiadomości zmieniły stan dostarczenia.
+     * Wywoływana z wątków wysyłających. Wiele zmian przed odświeżeniem daje jedno zadanie w wątku JavaFX.
+     * @param connectionName nazwa połączenia.
+     */
+    private void deliveryStateChanged(String connectionName) {
+        staleConversations.add(connectionName);
+        if (refreshScheduled.compareAndSet(false, true))
+            Platform.runLater(this::refreshStaleConversations);
+    }
+
+    /**
+     * Odświeża widoki rozmów, których wiadomości zmieniły stan dostarczenia. Wykonywana w wątku JavaFX.
+     */
+    private void refreshStaleConversations() {
+        refreshScheduled.set(false);
+        for (Iterator<String> names = staleConversations.iterator(); names.hasNext(); ) {
+            ConversationView conversation = getConversation(names.next());
+            names.remove();
+            if (conversation != null)
+                conversation.refresh();
+        }
+    }
+
     /**
      * Otwiera w Widoku nową kartę.
      * @param name nazwa nowej karty.
@@ -325,13 +582,17 @@ public class Controller implements WritableGUI {
         anchorPane.setPrefHeight(180.0);
         anchorPane.setMinWidth(200.0);
 
-        TextArea textArea = new TextArea();
-        textArea.setLayoutX(12.0);
-        textArea.setLayoutY(8.0);
-        textArea.setPrefHeight(150.0);
-        textArea.setPrefWidth(331.0);
+        ConversationView conversation = new ConversationView(model.getHistory(name));
+        ListView<HistoryEntry> listView = conversation.getNode();
+        listView.setLayoutX(12.0);
+        listView.setLayoutY(8.0);
+        listView.setPrefHeight(150.0);
+        listView.setPrefWidth(331.0);
 
-        anchorPane.getChildren().add(textArea);
+        anchorPane.getChildren().add(listView);
+
+        tabs.put(name, newTab);
+        conversations.put(name, conversation);
 
         newTab.setContent(anchorPane);
 
@@ -345,7 +606,10 @@ public class Controller implements WritableGUI {
         newTab.setOnClosed(new EventHandler<Event>() {
             @Override
             public void handle(Event event) {
-                deleteConnection( ((Tab)event.getSource()).getText() );
+                String closedName = ((Tab)event.getSource()).getText();
+                tabs.remove(closedName);
+                conversations.remove(closedName);
+                deleteConnection(closedName);
             }
         });
 
@@ -355,12 +619,10 @@ public class Controller implements WritableGUI {
     }
 
     /**
-     * Wybiera pole tekstowe do wyświetlenia wiadomości, w zależności od tego, która karta jest aktywna.
+     * Wybiera widok historii do wyświetlenia wiadomości, w zależności od tego, która karta jest aktywna.
      */
     private void selectMessageOutput(){
-
-        AnchorPane anchorPane = (AnchorPane) selectedTab.getContent();
-        messageOutput = (TextArea) anchorPane.getChildren().get(0);
+        messageOutput = getConversation(selectedTab.getText());
     }
 
     /**
@@ -368,20 +630,37 @@ public class Controller implements WritableGUI {
      * @param message wiadomość do wyświetlenia.
      */
     public void write(Message message) {
+        writeAll(Collections.singletonList(message));
+    }
 
-        String connectionName = message.getConnectionName();
-        String messageText = message.getMessageText();
+    /**
+     * Wypisuje paczkę wiadomości w Widoku.
+     * Wiadomości są zapisywane w historii i grupowane według karty, a do każdej karty dopisywane jednym wywołaniem.
+     * @param messages wiadomości do wyświetlenia, w kolejności odebrania.
+     */
+    @Override
+    public void writeAll(List<Message> messages) {
 
-        TextArea output = getTextAreaFromTab(connectionName);
+        Map<String, List<HistoryEntry>> entriesByConnection = new LinkedHashMap<>();
+        for (Message message : messages) {
+            String connectionName = message.getConversationName();
+            HistoryEntry entry = model.recordMessage(connectionName, HistoryEntry.Direction.INCOMING,
+                    connectionName, message.getMessageText());
+            entriesByConnection.computeIfAbsent(connectionName, name -> new ArrayList<>()).add(entry);
+        }
 
-        if (output == null) {
-            // There is not such tab. Create a new one.
-            openNewTab(connectionName);
-            getTextAreaFromTab(connectionName).appendText(connectionName + ": \t" + messageText + "\n");
-        } else {
-            // There is connection like this, tab also. Write message in the proper tab.
-            output.appendText(connectionName + ": \t" + messageText + "\n");
+        for (Map.Entry<String, List<HistoryEntry>> entry : entriesByConnection.entrySet()) {
+            ConversationView output = getConversation(entry.getKey());
+            if (output == null) {
+                // There is not such tab. Create a new one, it loads the new entries from the history.
+                openNewTab(entry.getKey());
+            } else {
+                // There is connection like this, tab also. Write messages in the proper tab.
+                output.append(entry.getValue());
+            }
         }
+        // The messages are on screen now, let their senders know.
+        model.messagesDisplayed(messages);
     }
 
     /**
@@ -448,27 +727,16 @@ public class Controller implements WritableGUI {
      * @return zwraca true, gdy połączenie o zadanej nazwie już istnieje i false w przeciwnym przypadku.
      */
     private boolean checkIfConnectionAlreadyExists(String connectionName) {
-        List<Connection> connections = model.getConnections();
-
-        for(Connection connection: connections) {
-            if (connection.getConnectionName().equals(connectionName))
-                return true;
-        }
-
-        return false;
+        return model.hasConnection(connectionName);
     }
 
     /**
-     * Przeszukje tabPane w celu znalezienia karty o zadanej nazwie.
+     * Zwraca otwartą kartę o zadanej nazwie.
      * @param name nazwa karty, której szukamy
      * @return znaleziona karta lub null, gdy nie ma karty o podanej nazwie
      */
     private Tab getTab(String name) {
-        for (Tab tab: tabPane.getTabs()) {
-            if (tab.getText().equals(name))
-                return tab;
-        }
-        return null;
+        return tabs.get(name);
     }
 
 
@@ -477,6 +745,7 @@ public class Controller implements WritableGUI {
      */
     private void enableInput() {
         sendButton.setDisable(false);
+        sendFileButton.setDisable(false);
         messageInput.setDisable(false);
         messageInput.setText("");
     }
@@ -486,42 +755,37 @@ public class Controller implements WritableGUI {
      */
     private void disableInput() {
         sendButton.setDisable(true);
+        sendFileButton.setDisable(true);
         messageInput.setDisable(true);
         messageInput.setText("You are not connected...");
     }
 
     /**
-     * Wyświetla wysyłaną wiadomość w karcie nadawcy.
+     * Zapisuje wysyłaną wiadomość w historii i wyświetla ją w karcie nadawcy.
      * @param message treść wiadomośći.
+     * @return wpis historii odpowiadający wiadomości.
      */
-    private void printOutputMessage(String message) {
-        messageOutput.appendText("You: \t" + message + "\n");
+    private HistoryEntry printOutputMessage(String message) {
+        HistoryEntry entry = model.recordMessage(selectedTab.getText(), HistoryEntry.Direction.OUTGOING, "You", message);
+        messageOutput.append(Collections.singletonList(entry));
+        return entry;
     }
 
     /**
-     * Szuka karty o zadanej nazwie i zwraca jej pole tekstowe.
+     * Zwraca widok historii otwartej karty o zadanej nazwie.
      * @param name nazwa karty
-     * @return zwraca karte o zdanej nazwie.
+     * @return widok historii karty lub null, gdy nie ma karty o podanej nazwie.
      */
-    private TextArea getTextAreaFromTab(String name) {
-
-        for (Tab tabIterator: tabPane.getTabs()) {
-            if (tabIterator.getText().equals(name)) {
-                AnchorPane anchorPane = (AnchorPane) tabIterator.getContent();
-                TextArea textArea = (TextArea) anchorPane.getChildren().get(0);
-                return textArea;
-            }
-        }
-        return null;
+    private ConversationView getConversation(String name) {
+        return conversations.get(name);
     }
 
     /**
-     * Mówi Modelowi żeby usunał połączenie o zadanej nazwie z listy połączeń.
+     * Mówi Modelowi żeby usunał połączenie o zadanej nazwie z rejestru połączeń.
      * @param name nazwa połączenia.
      */
     private void deleteConnection(String name) {
-        Connection toDelete = model.getConnection(name);
-        model.getConnections().remove(toDelete);
+        model.deleteConnection(name);
         if (tabPane.getTabs().size() == 0)
             disableInput();
     }
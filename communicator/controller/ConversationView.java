@@ -0,0 +1,203 @@
+package proz.communicator.controller;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.ScrollEvent;
+import proz.communicator.model.HistoryEntry;
+import proz.communicator.model.MessageHistory;
+
+import java.util.List;
+
+/**
+ * Widok historii jednej rozmowy.
+ * Wiadomości wyświetlane są w ListView, który tworzy komórki tylko dla widocznych wierszy.
+ * W widoku trzymane jest co najwyżej MAX_VISIBLE ostatnich wpisów, a starsze wpisy z historii
+ * doładowywane są stronami, gdy użytkownik przewinie listę do początku.
+ */
+class ConversationView {
+
+    /**
+     * Liczba wpisów doładowywanych jednorazowo.
+     */
+    static final int PAGE_SIZE = 200;
+
+    /**
+     * Maksymalna liczba wpisów trzymanych w widoku przy dopisywaniu nowych wiadomości.
+     */
+    static final int MAX_VISIBLE = 5 * PAGE_SIZE;
+
+    /**
+     * Historia rozmowy, z której pochodzą wpisy.
+     */
+    private final MessageHistory history;
+
+    /**
+     * Lista wyświetlająca wpisy.
+     */
+    private final ListView<HistoryEntry> listView = new ListView<>();
+
+    /**
+     * Wpisy aktualnie załadowane do widoku.
+     */
+    private final ObservableList<HistoryEntry> items = FXCollections.observableArrayList();
+
+    /**
+     * Konstruktor klasy. Ładuje do widoku ostatnią stronę historii.
+     * @param history historia rozmowy.
+     */
+    ConversationView(MessageHistory history) {
+        this.history = history;
+
+        listView.setItems(items);
+        listView.setCellFactory(view -> new EntryCell());
+        listView.addEventFilter(ScrollEvent.SCROLL, event -> {
+            if (event.getDeltaY() > 0 && isScrolledToTop())
+                loadOlder();
+        });
+
+        long size = history.size();
+        items.setAll(history.range(size - PAGE_SIZE, size));
+        scrollToEnd();
+    }
+
+    /**
+     * Getter węzła widoku, który można umieścić w karcie.
+     * @return lista wyświetlająca wpisy.
+     */
+    ListView<HistoryEntry> getNode() {
+        return listView;
+    }
+
+    /**
+     * Dopisuje nowe wpisy na koniec widoku jedną operacją i przewija do nich.
+     * Gdy w widoku jest za dużo wpisów, najstarsze są z niego usuwane (pozostają w historii).
+     * @param entries nowe wpisy.
+     */
+    void append(List<HistoryEntry> entries) {
+        items.addAll(entries);
+        if (items.size() > MAX_VISIBLE)
+            items.remove(0, items.size() - MAX_VISIBLE);
+        scrollToEnd();
+    }
+
+    /**
+     * Odświeża widoczne komórki, np. po zmianie stanu wiadomości.
+     */
+    void refresh() {
+        listView.refresh();
+    }
+
+    /**
+     * Doładowuje na początek widoku poprzednią stronę wpisów z historii.
+     */
+    void loadOlder() {
+        long first = items.isEmpty() ? history.size() : items.get(0).getSequence();
+        List<HistoryEntry> older = history.range(first - PAGE_SIZE, first);
+        if (older.isEmpty())
+            return;
+
+        items.addAll(0, older);
+        listView.scrollTo(older.size());
+    }
+
+    /**
+     * Odnajduje wpis o zadanym numerze, w razie potrzeby doładowując starsze strony historii,
+     * zaznacza go i przewija do niego listę.
+     * @param sequence numer szukanego wpisu lub -1, gdy nie jest znany.
+     * @param timestamp czas szukanego wpisu, używany tylko wtedy, gdy numer nie jest znany.
+     * @return true, gdy wpis został znaleziony, false gdy nie ma go już w historii.
+     */
+    boolean reveal(long sequence, long timestamp) {
+        while (true) {
+            for (int i = items.size() - 1; i >= 0; i--) {
+                HistoryEntry item = items.get(i);
+                // Several messages often share a millisecond, the number tells them apart.
+                if (sequence >= 0 ? item.getSequence() == sequence : item.getTimestamp() == timestamp) {
+                    listView.getSelectionModel().select(i);
+                    listView.scrollTo(i);
+                    return true;
+                }
+            }
+
+            int loaded = items.size();
+            loadOlder();
+            if (items.size() == loaded)
+                return false;
+        }
+    }
+
+    /**
+     * Przewija listę do ostatniego wpisu.
+     */
+    private void scrollToEnd() {
+        if (!items.isEmpty())
+            listView.scrollTo(items.size() - 1);
+    }
+
+    /**
+     * Sprawdza czy lista jest przewinięta do początku.
+     * @return true, gdy widoczny jest pierwszy wpis.
+     */
+    private boolean isScrolledToTop() {
+        for (Node node : listView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                ScrollBar bar = (ScrollBar) node;
+                return !bar.isVisible() || bar.getValue() <= bar.getMin();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Komórka listy wyświetlająca jeden wpis historii.
+     */
+    private static class EntryCell extends ListCell<HistoryEntry> {
+
+        /**
+         * Aktualizuje tekst komórki po przypisaniu jej innego wpisu.
+         * @param entry wpis do wyświetlenia.
+         * @param empty true, gdy komórka jest pusta.
+         */
+        @Override
+        protected void updateItem(HistoryEntry entry, boolean empty) {
+            super.updateItem(entry, empty);
+
+            if (empty || entry == null) {
+                setText(null);
+                return;
+            }
+
+            String text = entry.getAuthor() + ": \t" + entry.getText();
+            switch (entry.getDeliveryState()) {
+                case PENDING:
+                    text += "  (sending)";
+                    break;
+                case QUEUED:
+                    text += "  (queued, will retry)";
+                    break;
+                case SENT:
+                    text += "  (sent)";
+                    break;
+                case DELIVERED:
+                    // Received messages are always delivered, only outgoing ones show it.
+                    if (entry.getDirection() == HistoryEntry.Direction.OUTGOING)
+                        text += "  (delivered)";
+                    break;
+                case DISPLAYED:
+                    text += "  (seen)";
+                    break;
+                case FAILED:
+                    text += "  (not delivered)";
+                    break;
+                default:
+                    break;
+            }
+            setText(text);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package proz.communicator.controller;
+
+import javafx.application.Platform;
+import proz.communicator.metrics.Metrics;
+import proz.communicator.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kolejka wiadomości przekazywanych z wątków serwera do Widoku.
+ * Zamiast osobnego Platform.runLater dla każdej wiadomości, wiadomości są zbierane w ograniczonej kolejce
+ * i przekazywane kontrolerowi paczkami, w co najwyżej jednym zadaniu oczekującym w wątku JavaFX.
+ * Gdy Widok nie nadąża i kolejka jest pełna, nowe wiadomości są odrzucane i zliczane; odrzuconych
+ * wiadomości Model nie potwierdza nadawcom (patrz offerAll), więc zostaną wysłane ponownie.
+ */
+public class MessageDispatcher implements WritableGUI {
+
+    /**
+     * Domyślna pojemność kolejki.
+     */
+    public static final int DEFAULT_CAPACITY = 10_000;
+
+    /**
+     * Maksymalna liczba wiadomości przekazywanych kontrolerowi w jednym zadaniu wątku JavaFX.
+     */
+    private static final int MAX_BATCH = 1_000;
+
+    /**
+     * Interfejs, któremu przekazywane są paczki wiadomości.
+     */
+    private final WritableGUI target;
+
+    /**
+     * Wiadomości oczekujące na wyświetlenie.
+     */
+    private final BlockingQueue<Message> queue;
+
+    /**
+     * Flaga mówiąca o tym czy w wątku JavaFX czeka już zadanie opróżniające kolejkę.
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    /**
+     * Liczba wiadomości odrzuconych z powodu przepełnienia kolejki.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Czas (System.nanoTime) zlecenia oczekującego zadania opróżniającego kolejkę.
+     */
+    private volatile long drainScheduledAt;
+
+    /**
+     * Konstruktor klasy.
+     * @param target interfejs wyświetlający wiadomości, wywoływany w wątku JavaFX.
+     * @param capacity maksymalna liczba wiadomości oczekujących na wyświetlenie.
+     */
+    public MessageDispatcher(WritableGUI target, int capacity) {
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        Metrics.get().registerGauge("ui.pending", this::getPendingCount);
+    }
+
+    /**
+     * Dodaje wiadomość do kolejki. Może być wywoływana z dowolnego wątku.
+     * @param m wiadomość do wyświetlenia.
+     */
+    @Override
+    public void write(Message m) {
+        if (!queue.offer(m)) {
+            dropped.incrementAndGet();
+            Metrics.get().droppedDeliveries.increment();
+            return;
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Dodaje do kolejki wiadomości z początku paczki, dopóki jest w niej miejsce. Może być wywoływana z dowolnego wątku.
+     * @param messages wiadomości do wyświetlenia.
+     * @return liczba wiadomości dodanych do kolejki.
+     */
+    @Override
+    public int offerAll(List<Message> messages) {
+        int taken = 0;
+        while (taken < messages.size() && queue.offer(messages.get(taken)))
+            taken++;
+        int rejected = messages.size() - taken;
+        if (rejected > 0) {
+            dropped.addAndGet(rejected);
+            Metrics.get().droppedDeliveries.add(rejected);
+        }
+        if (taken > 0)
+            scheduleDrain();
+        return taken;
+    }
+
+    /**
+     * Getter liczby odrzuconych wiadomości.
+     * @return liczba wiadomości odrzuconych od startu programu.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Getter liczby wiadomości oczekujących na wyświetlenie.
+     * @return liczba wiadomości w kolejce.
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Zwraca liczbę wiadomości oczekujących na wyświetlenie, by nadawcy zwolnili, gdy Widok nie nadąża.
+     * @return liczba wiadomości w kolejce.
+     */
+    @Override
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Zleca opróżnienie kolejki w wątku JavaFX, jeśli takie zadanie jeszcze nie czeka.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            drainScheduledAt = System.nanoTime();
+            Platform.runLater(this::drain);
+        }
+    }
+
+    /**
+     * Przekazuje kontrolerowi paczkę oczekujących wiadomości. Wykonywana w wątku JavaFX.
+     */
+    private void drain() {
+        Metrics.get().uiLag.record(System.nanoTime() - drainScheduledAt);
+        List<Message> batch = new ArrayList<>(Math.min(queue.size(), MAX_BATCH));
+        queue.drainTo(batch, MAX_BATCH);
+        drainScheduled.set(false);
+
+        if (!batch.isEmpty())
+            target.writeAll(batch);
+
+        // Leave the rest for the next pass so the UI can render in between.
+        if (!queue.isEmpty())
+            scheduleDrain();
+    }
+}
@@ -1,14 +1,30 @@
 package proz.communicator.controller;
 
 import proz.communicator.model.Message;
+import proz.communicator.model.MessageSink;
+
+import java.util.List;
 
 /**
  * Interfejs dla Kontrolera, zapewnia impelemntację funkcji write.
+ * Rozszerza interfejs MessageSink, przez który Model przekazuje odebrane wiadomości.
  */
-public interface WritableGUI {
+public interface WritableGUI extends MessageSink {
     /**
      * Metoda do wypisywania wiadomosci w Widoku.
      * @param m wiadomość do wyświetlenia.
      */
+    @Override
     void write(Message m);
+
+    /**
+     * Metoda do wypisywania paczki wiadomości w Widoku.
+     * Domyślnie wypisuje wiadomości po kolei metodą write.
+     * @param messages wiadomości do wyświetlenia, w kolejności odebrania.
+     */
+    @Override
+    default void writeAll(List<Message> messages) {
+        for (Message m : messages)
+            write(m);
+    }
 }
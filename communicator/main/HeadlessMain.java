@@ -0,0 +1,398 @@
+package proz.communicator.main;
+
+import proz.communicator.metrics.Metrics;
+import proz.communicator.metrics.MetricsEndpoint;
+import proz.communicator.model.Connection;
+import proz.communicator.model.ConnectionGroup;
+import proz.communicator.model.DiscoveredPeer;
+import proz.communicator.model.Model;
+import proz.communicator.model.TlsContext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Wersja programu bez interfejsu graficznego. Nie uruchamia JavaFX, więc startuje szybko
+ * i może działać jako proces serwerowy lub w wielu instancjach w testach obciążeniowych.
+ *
+ * Użycie: HeadlessMain [--port numer] [--listen nazwa=[adres:]port]... [--relay] [--quiet] [--discover nazwa] [--tls-keygen nazwa]
+ * Opcja --listen uruchamia dodatkowy nazwany serwer (tożsamość) na zadanym porcie i opcjonalnie tylko na zadanym
+ * interfejsie; można ją powtarzać. Wszystkie serwery działają w jednym procesie i dzielą wątek wejścia/wyjścia.
+ * Z opcją --relay serwer działa jako hub przekazujący wiadomości między klientami.
+ * Z opcją --discover program ogłasza swój serwer w sieci lokalnej pod zadaną nazwą i sam dodaje połączenia
+ * z wykrytymi hostami (patrz PeerDiscovery).
+ * Opcja --tls-keygen tworzy magazyn kluczy z certyfikatem dla szyfrowanych połączeń (patrz TlsContext) i kończy program.
+ * Polecenia czytane ze standardowego wejścia:
+ * /connect nazwa adres port - nawiązuje połączenie,
+ * /send nazwa treść - wysyła wiadomość,
+ * /file nazwa ścieżka - wysyła plik,
+ * /group nazwa połączenie1,połączenie2,... - tworzy grupę połączeń,
+ * /broadcast grupa treść - wysyła wiadomość do wszystkich członków grupy,
+ * /hub adres port identyfikator - łączy się z hubem,
+ * /to identyfikator treść - wysyła wiadomość do klienta huba,
+ * /peers - wypisuje hosty wykryte w sieci lokalnej,
+ * /listen nazwa [adres:]port - uruchamia nazwany serwer,
+ * /unlisten nazwa - zatrzymuje nazwany serwer,
+ * /listeners - wypisuje działające serwery i zaznacza ogłaszany,
+ * /advertise nazwa - wybiera serwer, którego port jest ogłaszany nadawcom potwierdzeń i przez wykrywanie,
+ * /stats - wypisuje liczbę odebranych wiadomości i raport metryk,
+ * /quit - kończy program.
+ */
+public class HeadlessMain {
+
+    /**
+     * Główna funkcja programu.
+     * @param args argumenty wywołania.
+     * @throws IOException gdy odczyt standardowego wejścia się nie powiódł.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = -1;
+        boolean quiet = false;
+        boolean relay = false;
+        String discoveryName = null;
+        List<String> listenSpecs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length)
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--quiet"))
+                quiet = true;
+            else if (args[i].equals("--relay"))
+                relay = true;
+            else if (args[i].equals("--listen") && i + 1 < args.length)
+                listenSpecs.add(args[++i]);
+            else if (args[i].equals("--discover") && i + 1 < args.length)
+                discoveryName = args[++i];
+            else if (args[i].equals("--tls-keygen") && i + 1 < args.length) {
+                generateKeyStore(args[++i]);
+                return;
+            }
+        }
+
+        // Many instances may run side by side, so persistence is opt-in here.
+        if (System.getProperty("wazzup.journal") == null)
+            System.setProperty("wazzup.journal", "false");
+
+        Metrics.get().registerMBean();
+        MetricsEndpoint endpoint = MetricsEndpoint.startFromProperties();
+
+        AtomicLong received = new AtomicLong();
+        boolean printMessages = !quiet;
+        // The sink is created before the model, but needs it to report printed messages as displayed.
+        AtomicReference<Model> modelRef = new AtomicReference<>();
+        Model model = new Model(message -> {
+            received.incrementAndGet();
+            if (!printMessages)
+                return;
+            String listener = message.getListenerName();
+            String prefix = listener == null || listener.equals(Model.DEFAULT_LISTENER) ? "" : "[" + listener + "] ";
+            System.out.println(prefix + message.getConversationName() + ": \t" + message.getMessageText());
+            modelRef.get().messagesDisplayed(Collections.singletonList(message));
+        });
+        modelRef.set(model);
+
+        model.setRelayEnabled(relay);
+        for (String spec : listenSpecs) {
+            int separator = spec.indexOf('=');
+            if (separator > 0)
+                listen(model, spec.substring(0, separator), spec.substring(separator + 1));
+            else
+                System.out.println("Usage: --listen name=[address:]port");
+        }
+
+        if (port > 0) {
+            model.setServerPort(port);
+            try {
+                model.startServerListening().get();
+                System.out.println("Listening on port " + port);
+            } catch (InterruptedException | ExecutionException e) {
+                System.out.println("Could not listen on port " + port + ": " + e.getCause());
+            }
+            if (discoveryName != null) {
+                try {
+                    model.startDiscovery(discoveryName,
+                            connection -> System.out.println("(discovered " + connection.getConnectionName() + " at "
+                                    + connection.getHostAddress() + ":" + connection.getHostPort() + ")"));
+                } catch (IOException e) {
+                    System.out.println("Could not start discovery: " + e.getMessage());
+                }
+            }
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] parts = line.trim().split("\\s+", 3);
+            switch (parts[0]) {
+                case "/connect":
+                    connect(model, line);
+                    break;
+                case "/send":
+                    if (parts.length == 3)
+                        send(model, parts[1], parts[2]);
+                    else
+                        System.out.println("Usage: /send name text");
+                    break;
+                case "/file":
+                    if (parts.length == 3)
+                        sendFile(model, parts[1], parts[2]);
+                    else
+                        System.out.println("Usage: /file name path");
+                    break;
+                case "/group":
+                    if (parts.length == 3)
+                        group(model, parts[1], parts[2]);
+                    else
+                        System.out.println("Usage: /group name connection1,connection2,...");
+                    break;
+                case "/broadcast":
+                    if (parts.length == 3)
+                        broadcast(model, parts[1], parts[2]);
+                    else
+                        System.out.println("Usage: /broadcast group text");
+                    break;
+                case "/hub":
+                    hub(model, line);
+                    break;
+                case "/to":
+                    if (parts.length == 3)
+                        sendRelayed(model, parts[1], parts[2]);
+                    else
+                        System.out.println("Usage: /to id text");
+                    break;
+                case "/peers":
+                    for (DiscoveredPeer peer : model.getDiscoveredPeers())
+                        System.out.println(peer);
+                    break;
+                case "/listen":
+                    if (parts.length == 3)
+                        listen(model, parts[1], parts[2]);
+                    else
+                        System.out.println("Usage: /listen name [address:]port");
+                    break;
+                case "/unlisten":
+                    if (parts.length == 2)
+                        model.stopListener(parts[1]).whenComplete((result, error) ->
+                                System.out.println("(stopped listening as " + parts[1] + ")"));
+                    else
+                        System.out.println("Usage: /unlisten name");
+                    break;
+                case "/listeners":
+                    for (String name : model.getListenerNames())
+                        System.out.println(name + (name.equals(model.getAdvertisedListener()) ? " (advertised)" : ""));
+                    break;
+                case "/advertise":
+                    if (parts.length != 2)
+                        System.out.println("Usage: /advertise name");
+                    else if (!model.advertiseListener(parts[1]))
+                        System.out.println("No running listener " + parts[1]);
+                    break;
+                case "/stats":
+                    System.out.println("Received: " + received.get());
+                    System.out.print(Metrics.get().report());
+                    break;
+                case "/quit":
+                    shutdown(model, endpoint);
+                    return;
+                case "":
+                    break;
+                default:
+                    System.out.println("Unknown command: " + parts[0]);
+            }
+        }
+        shutdown(model, endpoint);
+    }
+
+    /**
+     * Tworzy magazyn kluczy wskazany właściwościami wazzup.tls.keystore i wazzup.tls.password.
+     * @param alias nazwa hosta w certyfikacie.
+     * @throws IOException gdy nie udało się utworzyć magazynu.
+     */
+    private static void generateKeyStore(String alias) throws IOException {
+        Path keyStore = Paths.get(System.getProperty("wazzup.tls.keystore", TlsContext.defaultKeyStore().toString()));
+        if (Files.exists(keyStore)) {
+            System.out.println("Key store already exists: " + keyStore);
+            return;
+        }
+        TlsContext.generateKeyStore(keyStore, alias, System.getProperty("wazzup.tls.password", "changeit").toCharArray());
+        System.out.println("Created " + keyStore + ". Run with -Dwazzup.tls=true to encrypt connections.");
+    }
+
+    /**
+     * Kończy pracę Modelu i punktu końcowego metryk.
+     * @param model model programu.
+     * @param endpoint punkt końcowy metryk lub null, gdy nie został uruchomiony.
+     */
+    private static void shutdown(Model model, MetricsEndpoint endpoint) {
+        model.shutdown(5, TimeUnit.SECONDS);
+        if (endpoint != null)
+            endpoint.stop();
+    }
+
+    /**
+     * Uruchamia nazwany serwer i wypisuje wynik po zajęciu portu.
+     * @param model model programu.
+     * @param name nazwa serwera.
+     * @param address port lub adres interfejsu i port w postaci adres:port.
+     */
+    private static void listen(Model model, String name, String address) {
+        InetSocketAddress bindAddress;
+        try {
+            int separator = address.lastIndexOf(':');
+            if (separator < 0)
+                bindAddress = new InetSocketAddress(Integer.parseInt(address));
+            else
+                bindAddress = new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Address is incorrect: " + address);
+            return;
+        }
+        model.startListener(name, bindAddress).whenComplete((result, error) -> {
+            if (error == null)
+                System.out.println("Listening as " + name + " on " + address);
+            else
+                System.out.println("Could not listen as " + name + " on " + address + ": " + error.getMessage());
+        });
+    }
+
+    /**
+     * Obsługuje polecenie /connect.
+     * @param model model programu.
+     * @param line linia polecenia.
+     */
+    private static void connect(Model model, String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 4) {
+            System.out.println("Usage: /connect name address port");
+            return;
+        }
+        try {
+            if (!model.addNewConnection(parts[2], Integer.parseInt(parts[3]), parts[1]))
+                System.out.println("This connection is already established!");
+        } catch (NumberFormatException e) {
+            System.out.println("Port number is incorrect!");
+        }
+    }
+
+    /**
+     * Obsługuje polecenie /send.
+     * @param model model programu.
+     * @param connectionName nazwa połączenia.
+     * @param text treść wiadomości.
+     */
+    private static void send(Model model, String connectionName, String text) {
+        Connection connection = model.getConnection(connectionName);
+        if (connection == null)
+            connection = model.acceptPeer(connectionName);     // Replying to a host that wrote first accepts it.
+        if (connection == null) {
+            System.out.println("You are not connected to " + connectionName);
+            return;
+        }
+        model.sendMessage(text, connection).whenComplete((result, error) -> {
+            if (error != null)
+                System.out.println("(not delivered to " + connectionName + ")");
+        });
+    }
+
+    /**
+     * Obsługuje polecenie /file.
+     * @param model model programu.
+     * @param connectionName nazwa połączenia.
+     * @param path ścieżka pliku.
+     */
+    private static void sendFile(Model model, String connectionName, String path) {
+        Connection connection = model.getConnection(connectionName);
+        if (connection == null)
+            connection = model.acceptPeer(connectionName);     // Replying to a host that wrote first accepts it.
+        if (connection == null) {
+            System.out.println("You are not connected to " + connectionName);
+            return;
+        }
+        Path file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            System.out.println("There is no file " + path);
+            return;
+        }
+        model.sendFile(file, connection, null).whenComplete((result, error) -> {
+            if (error != null)
+                System.out.println("(file " + file.getFileName() + " not delivered to " + connectionName + ")");
+            else
+                System.out.println("(file " + file.getFileName() + " delivered to " + connectionName + ")");
+        });
+    }
+
+    /**
+     * Obsługuje polecenie /group.
+     * @param model model programu.
+     * @param groupName nazwa grupy.
+     * @param members nazwy połączeń oddzielone przecinkami.
+     */
+    private static void group(Model model, String groupName, String members) {
+        if (!model.createGroup(groupName, Arrays.asList(members.split("\\s*,\\s*"))))
+            System.out.println("This group already exists!");
+    }
+
+    /**
+     * Obsługuje polecenie /broadcast. Wypisuje członków, do których nie udało się dostarczyć wiadomości.
+     * @param model model programu.
+     * @param groupName nazwa grupy.
+     * @param text treść wiadomości.
+     */
+    private static void broadcast(Model model, String groupName, String text) {
+        ConnectionGroup group = model.getGroup(groupName);
+        if (group == null) {
+            System.out.println("There is no group " + groupName);
+            return;
+        }
+        model.broadcastMessage(text, group).forEach((member, sent) -> sent.whenComplete((result, error) -> {
+            if (error != null)
+                System.out.println("(not delivered to " + member + ")");
+        }));
+    }
+
+    /**
+     * Obsługuje polecenie /hub.
+     * @param model model programu.
+     * @param line linia polecenia.
+     */
+    private static void hub(Model model, String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 4) {
+            System.out.println("Usage: /hub address port id");
+            return;
+        }
+        try {
+            model.connectRelay(parts[1], Integer.parseInt(parts[2]), parts[3]);
+        } catch (NumberFormatException e) {
+            System.out.println("Port number is incorrect!");
+        } catch (IOException e) {
+            System.out.println("Could not connect to the hub: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Obsługuje polecenie /to.
+     * @param model model programu.
+     * @param recipientId identyfikator odbiorcy.
+     * @param text treść wiadomości.
+     */
+    private static void sendRelayed(Model model, String recipientId, String text) {
+        model.sendRelayed(text, recipientId).whenComplete((result, error) -> {
+            if (error != null)
+                System.out.println("(not delivered to " + recipientId + ")");
+        });
+    }
+}
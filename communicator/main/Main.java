@@ -5,6 +5,9 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import proz.communicator.controller.Controller;
+import proz.communicator.metrics.Metrics;
+import proz.communicator.metrics.MetricsEndpoint;
 
 import java.io.IOException;
 
@@ -18,6 +21,16 @@ import java.io.IOException;
 
 public class Main extends Application {
 
+    /**
+     * Kontroler głównego okna programu.
+     */
+    private Controller controller;
+
+    /**
+     * Lokalny punkt końcowy metryk lub null, gdy nie jest włączony (właściwość wazzup.metrics.port).
+     */
+    private MetricsEndpoint metricsEndpoint;
+
     /**
      * Inicjalizuje i wyświetla scenę.
      * @param primaryStage główne okno programu.
@@ -25,11 +38,15 @@ public class Main extends Application {
     @Override
     public void start(Stage primaryStage) {
 
+        Metrics.get().registerMBean();
+        metricsEndpoint = MetricsEndpoint.startFromProperties();
+
         Parent root = null;
         FXMLLoader fxmlLoader = null;
         try {
             fxmlLoader = new FXMLLoader(getClass().getResource("WindowView.fxml"));
             root = fxmlLoader.load();
+            controller = fxmlLoader.getController();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -41,6 +58,17 @@ public class Main extends Application {
         primaryStage.show();
     }
 
+    /**
+     * Wywoływana przy zamykaniu aplikacji. Pozwala dokończyć wysyłanie wiadomości.
+     */
+    @Override
+    public void stop() {
+        if (controller != null)
+            controller.shutdown();
+        if (metricsEndpoint != null)
+            metricsEndpoint.stop();
+    }
+
     /**
      * Główna funkcja programu. Rozpoczyna działanie aplikacji.
      * @param args argumenty wywołania
@@ -0,0 +1,69 @@
+package proz.communicator.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Liczniki ruchu jednego połączenia.
+ */
+public class ConnectionStats {
+
+    /**
+     * Liczba wysłanych wiadomości.
+     */
+    final LongAdder messagesSent = new LongAdder();
+
+    /**
+     * Liczba wysłanych bajtów.
+     */
+    final LongAdder bytesSent = new LongAdder();
+
+    /**
+     * Liczba odebranych wiadomości.
+     */
+    final LongAdder messagesReceived = new LongAdder();
+
+    /**
+     * Liczba odebranych bajtów.
+     */
+    final LongAdder bytesReceived = new LongAdder();
+
+    /**
+     * Liczba wiadomości, których nie udało się wysłać.
+     */
+    final LongAdder failedSends = new LongAdder();
+
+    /**
+     * Zapisuje wysłanie wiadomości.
+     * @param bytes liczba bajtów ramki.
+     */
+    public void sent(int bytes) {
+        messagesSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Zapisuje wysłanie kilku wiadomości jednym zapisem.
+     * @param messages liczba wiadomości.
+     * @param bytes łączna liczba bajtów ramek.
+     */
+    public void sent(int messages, int bytes) {
+        messagesSent.add(messages);
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Zapisuje odebranie wiadomości.
+     * @param bytes liczba bajtów ramki.
+     */
+    public void received(int bytes) {
+        messagesReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * Zapisuje nieudane wysłanie wiadomości.
+     */
+    public void failed() {
+        failedSends.increment();
+    }
+}
@@ -0,0 +1,131 @@
+package proz.communicator.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram czasów w nanosekundach o stałej liczbie przedziałów, w stylu HdrHistogram.
+ * Przedziały rosną wykładniczo: każda potęga dwójki dzielona jest na 8 równych części,
+ * co daje błąd względny poniżej 12,5%. Zapis wartości nie alokuje pamięci i może być wykonywany
+ * jednocześnie z wielu wątków.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Liczba bitów określających podprzedział w obrębie potęgi dwójki.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Liczba podprzedziałów w obrębie potęgi dwójki.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Liczniki wartości w kolejnych przedziałach.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    /**
+     * Liczba zapisanych wartości.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Suma zapisanych wartości.
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Największa zapisana wartość.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Zapisuje wartość w histogramie.
+     * @param nanos zmierzony czas w nanosekundach. Wartości ujemne traktowane są jak zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is at least our value.
+        }
+    }
+
+    /**
+     * Getter liczby zapisanych wartości.
+     * @return liczba wartości.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Zwraca średnią zapisanych wartości.
+     * @return średnia w nanosekundach lub 0, gdy histogram jest pusty.
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Getter największej zapisanej wartości.
+     * @return największa wartość w nanosekundach.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Zwraca przybliżoną wartość percentyla - górną granicę przedziału, w którym leży.
+     * @param percentile percentyl z przedziału 0-100.
+     * @return wartość percentyla w nanosekundach lub 0, gdy histogram jest pusty.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Wyznacza numer przedziału dla wartości.
+     * @param value nieujemna wartość.
+     * @return numer przedziału.
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Zwraca górną granicę przedziału.
+     * @param bucket numer przedziału.
+     * @return największa wartość należąca do przedziału.
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (1L << exponent) + (sub << (exponent - SUB_BUCKET_BITS));
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,300 @@
+package proz.communicator.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Rejestr metryk komunikatora, wspólny dla całego procesu.
+ * Liczniki oparte są na LongAdder, a czasy zapisywane w histogramach LatencyHistogram,
+ * więc zapis z gorącej ścieżki jest tani i nie alokuje pamięci.
+ * Metryki udostępniane są przez JMX, przez lokalny punkt końcowy HTTP (MetricsEndpoint) i w Widoku.
+ */
+public final class Metrics {
+
+    /**
+     * Jedyna instancja rejestru.
+     */
+    private static final Metrics INSTANCE = new Metrics();
+
+    /**
+     * Czas nawiązywania połączenia z hostem.
+     */
+    public final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    /**
+     * Czas kodowania wiadomości do ramki.
+     */
+    public final LatencyHistogram serializeLatency = new LatencyHistogram();
+
+    /**
+     * Czas zapisu ramki do socketu.
+     */
+    public final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    /**
+     * Czas od skompletowania ramki przez serwer do przekazania wiadomości odbiorcy.
+     */
+    public final LatencyHistogram deliverLatency = new LatencyHistogram();
+
+    /**
+     * Opóźnienie wyświetlenia wiadomości - czas oczekiwania paczki w kolejce Widoku.
+     */
+    public final LatencyHistogram uiLag = new LatencyHistogram();
+
+    /**
+     * Opóźnienie jednokierunkowe - czas od wysłania wiadomości przez nadawcę do jej odebrania,
+     * wyliczany z czasu w kopercie, więc zależny od zgodności zegarów obu hostów.
+     */
+    public final LatencyHistogram oneWayLatency = new LatencyHistogram();
+
+    /**
+     * Liczba połączeń przyjętych przez serwer w jednym przebiegu pętli - głębokość kolejki akceptacji.
+     */
+    public final LatencyHistogram acceptQueueDepth = new LatencyHistogram();
+
+    /**
+     * Czas uzgadniania połączeń TLS, pełnego lub wznowionego.
+     */
+    public final LatencyHistogram tlsHandshake = new LatencyHistogram();
+
+    /**
+     * Liczba uzgodnień TLS, które wznowiły zapamiętaną sesję zamiast pełnego uzgadniania.
+     */
+    public final LongAdder tlsResumed = new LongAdder();
+
+    /**
+     * Liczba prób wysłania przerwanych, bo połączenie lub zapis trwały dłużej niż limit czasu.
+     */
+    public final LongAdder sendTimeouts = new LongAdder();
+
+    /**
+     * Liczba zerwanych lub niepoprawnych połączeń przychodzących.
+     */
+    public final LongAdder listenerErrors = new LongAdder();
+
+    /**
+     * Liczba połączeń zamkniętych zaraz po przyjęciu, bo wszystkie wątki serwera były zajęte.
+     */
+    public final LongAdder listenerRejected = new LongAdder();
+
+    /**
+     * Liczba połączeń zamkniętych zaraz po przyjęciu z powodu limitu połączeń z jednego adresu.
+     */
+    public final LongAdder listenerLimited = new LongAdder();
+
+    /**
+     * Liczba połączeń zamkniętych po przekroczeniu limitu czasu odczytu.
+     */
+    public final LongAdder listenerTimeouts = new LongAdder();
+
+    /**
+     * Liczba wstrzymań odczytu połączeń, które przekroczyły limit szybkości przyjmowania ramek.
+     */
+    public final LongAdder listenerThrottled = new LongAdder();
+
+    /**
+     * Liczba odebranych powtórzeń wiadomości, odrzuconych na podstawie numeru kolejnego.
+     */
+    public final LongAdder duplicateMessages = new LongAdder();
+
+    /**
+     * Liczba odebranych wiadomości odrzuconych, bo brakowało wcześniejszej wiadomości w strumieniu.
+     */
+    public final LongAdder outOfOrderMessages = new LongAdder();
+
+    /**
+     * Liczba strumieni wznowionych z pominięciem luki, której nadawca nie uzupełnił na czas.
+     */
+    public final LongAdder resyncedStreams = new LongAdder();
+
+    /**
+     * Liczba wysłanych ramek potwierdzeń.
+     */
+    public final LongAdder acksSent = new LongAdder();
+
+    /**
+     * Liczba odebranych ramek potwierdzeń.
+     */
+    public final LongAdder acksReceived = new LongAdder();
+
+    /**
+     * Liczba wiadomości wysłanych ponownie z powodu braku potwierdzenia odbioru.
+     */
+    public final LongAdder retransmittedMessages = new LongAdder();
+
+    /**
+     * Liczba wstrzymań wysyłania z powodu wyczerpania kredytu przyznanego przez odbiorcę.
+     */
+    public final LongAdder flowBlocked = new LongAdder();
+
+    /**
+     * Liczba wiadomości odrzuconych, bo Widok nie nadążał.
+     */
+    public final LongAdder droppedDeliveries = new LongAdder();
+
+    /**
+     * Liczba wysłanych ramek, których treść została skompresowana.
+     */
+    public final LongAdder compressedFrames = new LongAdder();
+
+    /**
+     * Liczba bajtów zaoszczędzonych dzięki kompresji wysłanych ramek.
+     */
+    public final LongAdder compressionSavedBytes = new LongAdder();
+
+    /**
+     * Liczniki ruchu według nazwy połączenia.
+     */
+    private final Map<String, ConnectionStats> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Wskaźniki odczytywane w chwili raportu, np. długości kolejek.
+     */
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Zwraca rejestr metryk procesu.
+     * @return rejestr metryk.
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Zwraca liczniki ruchu połączenia, tworząc je przy pierwszym użyciu.
+     * @param connectionName nazwa połączenia.
+     * @return liczniki połączenia.
+     */
+    public ConnectionStats connection(String connectionName) {
+        ConnectionStats stats = connections.get(connectionName);
+        if (stats == null)
+            stats = connections.computeIfAbsent(connectionName, name -> new ConnectionStats());
+        return stats;
+    }
+
+    /**
+     * Rejestruje wskaźnik odczytywany przy każdym raporcie. Wskaźnik o tej samej nazwie jest zastępowany.
+     * @param name nazwa wskaźnika.
+     * @param gauge funkcja zwracająca bieżącą wartość.
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Zwraca bieżące wartości wszystkich metryk jako płaską mapę nazwa - wartość.
+     * Czasy podawane są w mikrosekundach.
+     * @return posortowana mapa metryk.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+
+        long sent = 0, sentBytes = 0, received = 0, receivedBytes = 0, failed = 0;
+        for (Map.Entry<String, ConnectionStats> entry : connections.entrySet()) {
+            ConnectionStats stats = entry.getValue();
+            String prefix = "connection." + entry.getKey() + ".";
+            values.put(prefix + "messages.sent", stats.messagesSent.sum());
+            values.put(prefix + "bytes.sent", stats.bytesSent.sum());
+            values.put(prefix + "messages.received", stats.messagesReceived.sum());
+            values.put(prefix + "bytes.received", stats.bytesReceived.sum());
+            values.put(prefix + "sends.failed", stats.failedSends.sum());
+
+            sent += stats.messagesSent.sum();
+            sentBytes += stats.bytesSent.sum();
+            received += stats.messagesReceived.sum();
+            receivedBytes += stats.bytesReceived.sum();
+            failed += stats.failedSends.sum();
+        }
+        values.put("messages.sent", sent);
+        values.put("bytes.sent", sentBytes);
+        values.put("messages.received", received);
+        values.put("bytes.received", receivedBytes);
+        values.put("sends.failed", failed);
+        values.put("sends.timedout", sendTimeouts.sum());
+        values.put("listener.errors", listenerErrors.sum());
+        values.put("listener.rejected", listenerRejected.sum());
+        values.put("listener.limited", listenerLimited.sum());
+        values.put("listener.throttled", listenerThrottled.sum());
+        values.put("listener.timeouts", listenerTimeouts.sum());
+        values.put("messages.duplicate", duplicateMessages.sum());
+        values.put("messages.outoforder", outOfOrderMessages.sum());
+        values.put("streams.resynced", resyncedStreams.sum());
+        values.put("messages.retransmitted", retransmittedMessages.sum());
+        values.put("outbox.flow.blocked", flowBlocked.sum());
+        values.put("acks.sent", acksSent.sum());
+        values.put("acks.received", acksReceived.sum());
+        values.put("ui.dropped", droppedDeliveries.sum());
+        values.put("compression.frames", compressedFrames.sum());
+        values.put("compression.saved.bytes", compressionSavedBytes.sum());
+        values.put("tls.resumed", tlsResumed.sum());
+
+        for (Map.Entry<String, LatencyHistogram> entry : histograms().entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            String prefix = entry.getKey() + ".";
+            boolean isCount = entry.getKey().equals("accept.queue.depth");
+            long scale = isCount ? 1 : 1000;
+            values.put(prefix + "count", histogram.getCount());
+            values.put(prefix + (isCount ? "mean" : "mean.micros"), histogram.getMean() / scale);
+            values.put(prefix + (isCount ? "p50" : "p50.micros"), histogram.getPercentile(50) / scale);
+            values.put(prefix + (isCount ? "p99" : "p99.micros"), histogram.getPercentile(99) / scale);
+            values.put(prefix + (isCount ? "max" : "max.micros"), histogram.getMax() / scale);
+        }
+
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet())
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+
+        return values;
+    }
+
+    /**
+     * Zwraca raport tekstowy: jedna metryka w linii, w postaci "nazwa wartość".
+     * @return raport tekstowy.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet())
+            report.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        return report.toString();
+    }
+
+    /**
+     * Rejestruje rejestr metryk w serwerze JMX platformy pod nazwą proz.communicator:type=Metrics.
+     * Kolejne wywołania nic nie robią.
+     */
+    public synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("proz.communicator:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBeanImpl(this), name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Zwraca wszystkie histogramy według nazwy.
+     * @return mapa histogramów.
+     */
+    private Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        histograms.put("connect", connectLatency);
+        histograms.put("serialize", serializeLatency);
+        histograms.put("write", writeLatency);
+        histograms.put("deliver", deliverLatency);
+        histograms.put("ui.lag", uiLag);
+        histograms.put("one.way", oneWayLatency);
+        histograms.put("accept.queue.depth", acceptQueueDepth);
+        histograms.put("tls.handshake", tlsHandshake);
+        return histograms;
+    }
+}
@@ -0,0 +1,62 @@
+package proz.communicator.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lokalny punkt końcowy HTTP zwracający metryki w postaci tekstowej pod adresem /metrics.
+ * Nasłuchuje wyłącznie na interfejsie pętli zwrotnej.
+ */
+public class MetricsEndpoint {
+
+    /**
+     * Serwer HTTP.
+     */
+    private final HttpServer server;
+
+    /**
+     * Konstruktor klasy. Uruchamia serwer.
+     * @param port numer portu.
+     * @throws IOException gdy nie udało się otworzyć portu.
+     */
+    public MetricsEndpoint(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.get().report().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Uruchamia punkt końcowy na porcie z właściwości systemowej wazzup.metrics.port, jeśli jest ustawiona.
+     * @return uruchomiony punkt końcowy lub null, gdy właściwość nie jest ustawiona lub port jest zajęty.
+     */
+    public static MetricsEndpoint startFromProperties() {
+        Integer port = Integer.getInteger("wazzup.metrics.port");
+        if (port == null)
+            return null;
+        try {
+            return new MetricsEndpoint(port);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Zatrzymuje serwer HTTP.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+}
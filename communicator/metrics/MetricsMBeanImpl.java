@@ -0,0 +1,32 @@
+package proz.communicator.metrics;
+
+import java.util.Map;
+
+/**
+ * Implementacja interfejsu JMX, odczytująca wartości z rejestru metryk.
+ */
+class MetricsMBeanImpl implements MetricsMXBean {
+
+    /**
+     * Rejestr metryk.
+     */
+    private final Metrics metrics;
+
+    /**
+     * Konstruktor klasy.
+     * @param metrics rejestr metryk.
+     */
+    MetricsMBeanImpl(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        return metrics.snapshot();
+    }
+
+    @Override
+    public String getReport() {
+        return metrics.report();
+    }
+}
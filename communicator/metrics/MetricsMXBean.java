@@ -0,0 +1,21 @@
+package proz.communicator.metrics;
+
+import java.util.Map;
+
+/**
+ * Interfejs JMX rejestru metryk.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Zwraca bieżące wartości wszystkich metryk.
+     * @return mapa nazwa - wartość.
+     */
+    Map<String, Long> getMetrics();
+
+    /**
+     * Zwraca raport tekstowy metryk.
+     * @return raport, jedna metryka w linii.
+     */
+    String getReport();
+}
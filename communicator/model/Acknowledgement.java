@@ -0,0 +1,174 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Potwierdzenie odbioru i wyświetlenia wiadomości, wysyłane przez odbiorcę do serwera nadawcy.
+ * Potwierdzenie jest skumulowane: obejmuje wszystkie wiadomości strumienia do podanego numeru kolejnego
+ * (patrz Message.getSequence), więc jedna ramka potwierdza całą paczkę wiadomości.
+ *
+ * Potwierdzenie przyznaje też nadawcy kredyt: numer kolejny, do którego nadawca może wysyłać wiadomości
+ * bez czekania na kolejne potwierdzenie. Odbiorca, który nie nadąża, przestaje przesuwać kredyt i w ten sposób
+ * spowalnia nadawcę.
+ *
+ * Ramka ACK: [TYPE][identyfikator nadawcy][identyfikator odbiorcy][nazwa strumienia][dostarczone do][wyświetlone do][kredyt].
+ * Nazwa strumienia to nazwa, pod którą nadawca zna odbiorcę, czyli nazwa jego skrzynki nadawczej.
+ */
+public final class Acknowledgement {
+
+    /**
+     * Pierwszy bajt treści ramki ACK ('A'), różny od bajtów wersji kodeków i typów innych ramek.
+     */
+    public static final byte TYPE = 0x41;
+
+    /**
+     * Identyfikator nadawcy potwierdzanych wiadomości, czyli adresata potwierdzenia.
+     */
+    private final long senderId;
+
+    /**
+     * Identyfikator odbiorcy, który wysyła potwierdzenie.
+     */
+    private final long receiverId;
+
+    /**
+     * Nazwa strumienia, czyli nazwa połączenia, którym nadawca wysyłał wiadomości.
+     */
+    private final String stream;
+
+    /**
+     * Największy numer kolejny, do którego włącznie wiadomości zostały odebrane.
+     */
+    private final long delivered;
+
+    /**
+     * Największy numer kolejny, do którego włącznie wiadomości zostały wyświetlone.
+     */
+    private final long displayed;
+
+    /**
+     * Największy numer kolejny, do którego nadawca może wysyłać wiadomości.
+     */
+    private final long credit;
+
+    /**
+     * Konstruktor klasy.
+     * @param senderId identyfikator nadawcy potwierdzanych wiadomości.
+     * @param receiverId identyfikator odbiorcy.
+     * @param stream nazwa strumienia.
+     * @param delivered numer kolejny, do którego wiadomości zostały odebrane.
+     * @param displayed numer kolejny, do którego wiadomości zostały wyświetlone.
+     * @param credit numer kolejny, do którego nadawca może wysyłać wiadomości.
+     */
+    public Acknowledgement(long senderId, long receiverId, String stream, long delivered, long displayed, long credit) {
+        this.senderId = senderId;
+        this.receiverId = receiverId;
+        this.stream = stream;
+        this.delivered = delivered;
+        this.displayed = displayed;
+        this.credit = credit;
+    }
+
+    /**
+     * Sprawdza, czy ramka jest ramką ACK.
+     * @param payload treść ramki, jej pozycja nie jest zmieniana.
+     * @return true, gdy ramka zawiera potwierdzenie.
+     */
+    public static boolean isAck(ByteBuffer payload) {
+        return payload.hasRemaining() && payload.get(payload.position()) == TYPE;
+    }
+
+    /**
+     * Odczytuje potwierdzenie z treści ramki.
+     * @param payload treść ramki ACK.
+     * @return odczytane potwierdzenie.
+     * @throws IOException gdy ramka jest niepoprawna.
+     */
+    public static Acknowledgement decode(ByteBuffer payload) throws IOException {
+        try {
+            if (payload.get() != TYPE)
+                throw new IOException("Not an acknowledgement frame");
+            long senderId = payload.getLong();
+            long receiverId = payload.getLong();
+            String stream = BinaryMessageCodec.getString(payload);
+            long delivered = payload.getLong();
+            long displayed = payload.getLong();
+            long credit = payload.getLong();
+            return new Acknowledgement(senderId, receiverId, stream, delivered, displayed, credit);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated acknowledgement", e);
+        }
+    }
+
+    /**
+     * Zamienia potwierdzenie na ramkę gotową do wysłania.
+     * @return bufor zawierający nagłówek i treść ramki, ustawiony do odczytu.
+     */
+    public ByteBuffer toFrame() {
+        byte[] name = stream.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 8 + 4 + name.length + 8 + 8 + 8;
+        ByteBuffer frame = ByteBuffer.allocate(MessageFrames.HEADER_LENGTH + length);
+        frame.putInt(length)
+                .put(TYPE)
+                .putLong(senderId)
+                .putLong(receiverId)
+                .putInt(name.length)
+                .put(name)
+                .putLong(delivered)
+                .putLong(displayed)
+                .putLong(credit)
+                .flip();
+        return frame;
+    }
+
+    /**
+     * Getter identyfikatora nadawcy potwierdzanych wiadomości.
+     * @return identyfikator nadawcy.
+     */
+    public long getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Getter identyfikatora odbiorcy.
+     * @return identyfikator odbiorcy.
+     */
+    public long getReceiverId() {
+        return receiverId;
+    }
+
+    /**
+     * Getter nazwy strumienia.
+     * @return nazwa połączenia, którym nadawca wysyłał wiadomości.
+     */
+    public String getStream() {
+        return stream;
+    }
+
+    /**
+     * Getter numeru kolejnego, do którego wiadomości zostały odebrane.
+     * @return numer kolejny.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Getter numeru kolejnego, do którego wiadomości zostały wyświetlone.
+     * @return numer kolejny.
+     */
+    public long getDisplayed() {
+        return displayed;
+    }
+
+    /**
+     * Getter kredytu przyznanego nadawcy.
+     * @return numer kolejny, do którego nadawca może wysyłać wiadomości.
+     */
+    public long getCredit() {
+        return credit;
+    }
+}
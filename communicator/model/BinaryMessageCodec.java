@@ -0,0 +1,166 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Zwarty, binarny format wiadomości.
+ * W wersji 1 po bajcie wersji zapisywana jest długość i treść nazwy połączenia oraz długość i treść wiadomości,
+ * obie w kodowaniu UTF-8. Wersja 2 poprzedza je kopertą nadawcy: identyfikator nadawcy, numer kolejny,
+ * identyfikator wiadomości i czas wysłania (po 8 bajtów), port nadawcy (2 bajty) i nazwę nadawcy.
+ * Odczytywane są obie wersje, a zapisywana ta wybrana w konstruktorze.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    /**
+     * Numer wersji formatu binarnego bez koperty, odczytywanego przez wszystkie wersje programu.
+     */
+    public static final byte VERSION_1 = 1;
+
+    /**
+     * Numer wersji formatu binarnego z kopertą nadawcy.
+     */
+    public static final byte VERSION = 2;
+
+    /**
+     * Rozmiar pól koperty o stałej długości w bajtach.
+     */
+    private static final int ENVELOPE_LENGTH = 4 * 8 + 2;
+
+    /**
+     * Wersja zapisywanego formatu.
+     */
+    private final byte version;
+
+    /**
+     * Konstruktor klasy. Kodek zapisuje wiadomości w wersji VERSION.
+     */
+    public BinaryMessageCodec() {
+        this(VERSION);
+    }
+
+    /**
+     * Konstruktor klasy.
+     * @param version wersja zapisywanego formatu: VERSION lub VERSION_1 dla hostów ze starszą wersją programu.
+     */
+    public BinaryMessageCodec(byte version) {
+        if (version != VERSION && version != VERSION_1)
+            throw new IllegalArgumentException("Unknown binary format version: " + version);
+        this.version = version;
+    }
+
+    /**
+     * Getter numeru wersji formatu.
+     * @return numer wersji formatu.
+     */
+    @Override
+    public byte getVersion() {
+        return version;
+    }
+
+    /**
+     * Zwraca górne ograniczenie długości zakodowanej wiadomości.
+     * Znak w UTF-16 zajmuje w UTF-8 co najwyżej trzy bajty.
+     * @param message wiadomość do zakodowania.
+     * @return maksymalna długość zakodowanej wiadomości.
+     */
+    @Override
+    public int maxEncodedLength(Message message) {
+        int length = 1 + 4 + 3 * message.getConnectionName().length() + 4 + 3 * message.getMessageText().length();
+        if (version == VERSION) {
+            String senderName = message.getSenderName();
+            length += ENVELOPE_LENGTH + 4 + (senderName == null ? 0 : 3 * senderName.length());
+        }
+        return length;
+    }
+
+    /**
+     * Zapisuje wiadomość do bufora.
+     * @param message wiadomość do zakodowania.
+     * @param buffer bufor docelowy.
+     */
+    @Override
+    public void encode(Message message, ByteBuffer buffer) {
+        buffer.put(version);
+        if (version == VERSION) {
+            buffer.putLong(message.getSenderId());
+            buffer.putLong(message.getSequence());
+            buffer.putLong(message.getMessageId());
+            buffer.putLong(message.getTimestamp());
+            buffer.putChar((char) message.getReplyPort());
+            String senderName = message.getSenderName();
+            putString(buffer, senderName == null ? "" : senderName);
+        }
+        putString(buffer, message.getConnectionName());
+        putString(buffer, message.getMessageText());
+    }
+
+    /**
+     * Odczytuje wiadomość z bufora.
+     * @param buffer bufor z zakodowaną wiadomością.
+     * @return odczytana wiadomość.
+     * @throws IOException gdy bufor zawiera inny format lub jest niekompletny.
+     */
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        try {
+            byte version = buffer.get();
+            if (version == VERSION_1) {
+                String connectionName = getString(buffer);
+                String messageText = getString(buffer);
+                return new Message(messageText, connectionName);
+            }
+            if (version != VERSION)
+                throw new IOException("Unexpected codec version: " + version);
+
+            long senderId = buffer.getLong();
+            long sequence = buffer.getLong();
+            long messageId = buffer.getLong();
+            long timestamp = buffer.getLong();
+            int replyPort = buffer.getChar();
+            String senderName = getString(buffer);
+            String connectionName = getString(buffer);
+            String messageText = getString(buffer);
+            return new Message(messageText, connectionName, senderId, senderName.isEmpty() ? null : senderName,
+                    replyPort, sequence, messageId, timestamp);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message", e);
+        }
+    }
+
+    /**
+     * Zapisuje do bufora długość i treść napisu w UTF-8.
+     * @param buffer bufor docelowy.
+     * @param s napis do zapisania.
+     */
+    static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Odczytuje z bufora napis zapisany przez putString.
+     * @param buffer bufor źródłowy.
+     * @return odczytany napis.
+     * @throws IOException gdy zapisana długość jest niepoprawna.
+     */
+    static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("Invalid string length: " + length);
+
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,203 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Obsługa jednego połączenia przyjętego przez serwer, wykonywana przez wątek z puli serwera.
+ * Odczytuje kolejne wiadomości z tego samego socketu, dopóki host nie zamknie połączenia
+ * lub nie przekroczy limitu czasu odczytu. Połączenie przekraczające limit szybkości (patrz RateLimiter)
+ * nie jest czytane, dopóki nie przybędzie żetonów, więc kolejne ramki czekają w buforach TCP.
+ */
+class ClientHandler implements Runnable {
+
+    /**
+     * Socket połączenia z hostem.
+     */
+    private Socket clientSocket;
+
+    /**
+     * Odbiorca odebranych wiadomości.
+     */
+    private MessageSink sink;
+
+    /**
+     * Serwer, który przyjął połączenie.
+     */
+    private MessageListener listener;
+
+    /**
+     * Adres hosta, zapamiętany, bo po zamknięciu socketu nie jest już dostępny.
+     */
+    private final InetAddress address;
+
+    /**
+     * Limit czasu oczekiwania na kolejną ramkę w milisekundach.
+     */
+    private final int idleTimeoutMillis;
+
+    /**
+     * Limit czasu oczekiwania na resztę rozpoczętej ramki w milisekundach.
+     */
+    private final int readTimeoutMillis;
+
+    /**
+     * Przydział żetonów tego połączenia.
+     */
+    private final RateLimiter.Quota quota;
+
+    /**
+     * Bieżący limit czasu odczytu socketu, by nie ustawiać go ponownie bez potrzeby.
+     */
+    private int currentTimeout = -1;
+
+    /**
+     * Bufor na treść odczytywanych ramek, używany ponownie dla kolejnych wiadomości.
+     */
+    private byte[] payload = new byte[8 * 1024];
+
+    /**
+     * Flaga mówiąca o tym czy wątek jest w trakcie odczytu ramki, której nagłówek już nadszedł.
+     */
+    private volatile boolean reading;
+
+    /**
+     * Flaga mówiąca o tym czy serwer jest zatrzymywany. Wątek kończy pracę po dokończeniu bieżącej ramki.
+     */
+    private volatile boolean stopping;
+
+    /**
+     * Konstruktor klasy.
+     * @param clientSocket socket przyjętego połączenia.
+     * @param sink odbiorca odebranych wiadomości.
+     * @param listener serwer, który przyjął połączenie.
+     * @param settings ustawienia serwera z limitami czasu odczytu.
+     * @param quota przydział żetonów połączenia.
+     */
+    ClientHandler(Socket clientSocket, MessageSink sink, MessageListener listener, ListenerSettings settings,
+                  RateLimiter.Quota quota) {
+        this.clientSocket = clientSocket;
+        this.sink = sink;
+        this.listener = listener;
+        this.address = clientSocket.getInetAddress();
+        this.idleTimeoutMillis = settings.getIdleTimeoutMillis();
+        this.readTimeoutMillis = settings.getReadTimeoutMillis();
+        this.quota = quota;
+    }
+
+    /**
+     * Getter adresu hosta.
+     * @return adres hosta, z którym nawiązano połączenie.
+     */
+    InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Odczytuje wiadomości od hosta i przekazuje je odbiorcy.
+     */
+    @Override
+    public void run() {
+        Metrics metrics = Metrics.get();
+        String senderAddress = address.getHostAddress();
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()))) {
+            while (!stopping) {
+                // Over the limit the frame is left unread, so the sender's socket fills up and it slows down.
+                long pause;
+                while ((pause = quota.acquire()) > 0 && !stopping)
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                setTimeout(idleTimeoutMillis);
+                int length = inputStream.readInt();
+                reading = true;
+                setTimeout(readTimeoutMillis);
+                MessageFrames.checkLength(length);
+                if (payload.length < length)
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                inputStream.readFully(payload, 0, length);
+                long frameReady = System.nanoTime();
+
+                ByteBuffer frame = ByteBuffer.wrap(payload, 0, length);
+                if (FileTransfers.isOffer(frame)) {
+                    // The rest of this connection carries the file, not frames.
+                    FileTransfers.receive(frame, senderAddress, Channels.newChannel(inputStream),
+                            Channels.newChannel(clientSocket.getOutputStream()), sink);
+                    return;
+                }
+
+                if (Acknowledgement.isAck(frame)) {
+                    sink.acknowledge(Acknowledgement.decode(frame));
+                    reading = false;
+                    continue;
+                }
+
+                final Message message = MessageFrames.decode(frame);   // Received Message object.
+                message.setSenderAddress(senderAddress);
+                metrics.connection(message.getConnectionName()).received(MessageFrames.HEADER_LENGTH + length);
+                // Hand the message over to the sink - the view or the headless console.
+                sink.write(message);
+                metrics.deliverLatency.record(System.nanoTime() - frameReady);
+                reading = false;
+            }
+        } catch (EOFException e) {
+            // Host has closed the connection.
+        } catch (SocketTimeoutException e) {
+            // Half-open or stalled host, free the pool thread.
+            metrics.listenerTimeouts.increment();
+        } catch (IOException e) {
+            // Socket closed while reading, malformed frame, the server is stopping or the host is gone.
+            if (!stopping)
+                metrics.listenerErrors.increment();
+        } catch (InterruptedException e) {
+            // The pool is shutting down while the connection was throttled.
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+            listener.handlerFinished(this);
+        }
+    }
+
+    /**
+     * Ustawia limit czasu odczytu socketu, jeśli różni się od bieżącego.
+     * @param millis limit w milisekundach lub 0 dla braku limitu.
+     * @throws SocketException gdy socket został zamknięty.
+     */
+    private void setTimeout(int millis) throws SocketException {
+        if (currentTimeout != millis) {
+            clientSocket.setSoTimeout(millis);
+            currentTimeout = millis;
+        }
+    }
+
+    /**
+     * Kończy obsługę połączenia: od razu, gdy wątek czeka na kolejną ramkę,
+     * lub po dokończeniu odczytu ramki, której nagłówek już nadszedł.
+     */
+    void drain() {
+        stopping = true;
+        if (!reading)
+            close();
+    }
+
+    /**
+     * Zamyka połączenie z hostem.
+     */
+    void close() {
+        quota.close();
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
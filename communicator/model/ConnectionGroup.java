@@ -0,0 +1,67 @@
+package proz.communicator.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Grupa połączeń - nazwany zbiór połączeń, do których wiadomość wysyłana jest jednocześnie.
+ * Członkowie wskazywani są nazwami połączeń z rejestru połączeń Modelu.
+ */
+public class ConnectionGroup {
+
+    /**
+     * Nazwa grupy. Odbiorcy widzą wiadomości grupy pod tą nazwą.
+     */
+    private final String groupName;
+
+    /**
+     * Nazwy połączeń należących do grupy, w kolejności dodania.
+     */
+    private final Set<String> members = new CopyOnWriteArraySet<>();
+
+    /**
+     * Konstruktor klasy.
+     * @param groupName nazwa grupy.
+     * @param members nazwy połączeń należących do grupy.
+     */
+    public ConnectionGroup(String groupName, Collection<String> members) {
+        this.groupName = groupName;
+        this.members.addAll(members);
+    }
+
+    /**
+     * Getter nazwy grupy.
+     * @return nazwa grupy.
+     */
+    public String getGroupName() {
+        return groupName;
+    }
+
+    /**
+     * Getter członków grupy.
+     * @return niemodyfikowalny widok nazw połączeń należących do grupy.
+     */
+    public Set<String> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Dodaje połączenie do grupy.
+     * @param connectionName nazwa połączenia.
+     * @return true, gdy połączenie nie należało jeszcze do grupy.
+     */
+    public boolean addMember(String connectionName) {
+        return members.add(connectionName);
+    }
+
+    /**
+     * Usuwa połączenie z grupy.
+     * @param connectionName nazwa połączenia.
+     * @return true, gdy połączenie należało do grupy.
+     */
+    public boolean removeMember(String connectionName) {
+        return members.remove(connectionName);
+    }
+}
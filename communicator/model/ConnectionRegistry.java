@@ -0,0 +1,95 @@
+package proz.communicator.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rejestr nawiązanych połączeń.
+ * Pozwala w stałym czasie znaleźć połączenie po jego nazwie lub po adresie i porcie hosta.
+ * Może być używany jednocześnie z wielu wątków.
+ */
+public class ConnectionRegistry {
+
+    /**
+     * Połączenia według nazwy.
+     */
+    private final Map<String, Connection> byName = new ConcurrentHashMap<>();
+
+    /**
+     * Połączenia według adresu i portu hosta.
+     */
+    private final Map<String, Connection> byAddress = new ConcurrentHashMap<>();
+
+    /**
+     * Dodaje połączenie do rejestru.
+     * @param connection nowe połączenie.
+     * @return true, gdy połączenie zostało dodane, false gdy istnieje już połączenie o tej nazwie.
+     */
+    public boolean add(Connection connection) {
+        if (byName.putIfAbsent(connection.getConnectionName(), connection) != null)
+            return false;
+
+        byAddress.put(addressKey(connection.getHostAddress(), connection.getHostPort()), connection);
+        return true;
+    }
+
+    /**
+     * Usuwa połączenie o zadanej nazwie z rejestru.
+     * @param connectionName nazwa połączenia.
+     * @return usunięte połączenie lub null, gdy nie ma połączenia o zadanej nazwie.
+     */
+    public Connection remove(String connectionName) {
+        Connection removed = byName.remove(connectionName);
+        if (removed != null)
+            byAddress.remove(addressKey(removed.getHostAddress(), removed.getHostPort()), removed);
+        return removed;
+    }
+
+    /**
+     * Zwraca połączenie o zadanej nazwie.
+     * @param connectionName nazwa połączenia.
+     * @return połączenie lub null, gdy nie ma połączenia o zadanej nazwie.
+     */
+    public Connection get(String connectionName) {
+        return byName.get(connectionName);
+    }
+
+    /**
+     * Zwraca połączenie z hostem o zadanym adresie i porcie.
+     * @param hostAddress adres IP hosta.
+     * @param hostPort numer portu hosta.
+     * @return połączenie lub null, gdy nie ma połączenia z takim hostem.
+     */
+    public Connection getByAddress(String hostAddress, int hostPort) {
+        return byAddress.get(addressKey(hostAddress, hostPort));
+    }
+
+    /**
+     * Sprawdza czy istnieje połączenie o zadanej nazwie.
+     * @param connectionName nazwa połączenia.
+     * @return true, gdy połączenie istnieje.
+     */
+    public boolean contains(String connectionName) {
+        return byName.containsKey(connectionName);
+    }
+
+    /**
+     * Zwraca wszystkie połączenia.
+     * @return niemodyfikowalny widok połączeń.
+     */
+    public Collection<Connection> getAll() {
+        return Collections.unmodifiableCollection(byName.values());
+    }
+
+    /**
+     * Tworzy klucz adresowy połączenia.
+     * @param hostAddress adres IP hosta.
+     * @param hostPort numer portu hosta.
+     * @return klucz w postaci adres:port.
+     */
+    private static String addressKey(String hostAddress, int hostPort) {
+        return hostAddress + ':' + hostPort;
+    }
+}
@@ -0,0 +1,115 @@
+package proz.communicator.model;
+
+/**
+ * Host wykryty w sieci lokalnej przez PeerDiscovery.
+ * Adres i port wskazują serwer nasłuchujący hosta, a nazwa jest nazwą, pod którą host się przedstawia.
+ */
+public class DiscoveredPeer {
+
+    /**
+     * Losowy identyfikator instancji programu. Odróżnia kilka instancji działających na jednym hoście.
+     */
+    private final long instanceId;
+
+    /**
+     * Nazwa, pod którą host się przedstawia.
+     */
+    private final String name;
+
+    /**
+     * Adres IP hosta, z którego przyszło ogłoszenie.
+     */
+    private final String hostAddress;
+
+    /**
+     * Numer portu serwera nasłuchującego hosta.
+     */
+    private final int hostPort;
+
+    /**
+     * Chwila (System.nanoTime), po której wpis wygasa, jeśli nie nadejdzie kolejne ogłoszenie.
+     */
+    private volatile long expiresAt;
+
+    /**
+     * Konstruktor klasy.
+     * @param instanceId identyfikator instancji programu.
+     * @param name nazwa hosta.
+     * @param hostAddress adres IP hosta.
+     * @param hostPort numer portu serwera nasłuchującego hosta.
+     */
+    DiscoveredPeer(long instanceId, String name, String hostAddress, int hostPort) {
+        this.instanceId = instanceId;
+        this.name = name;
+        this.hostAddress = hostAddress;
+        this.hostPort = hostPort;
+    }
+
+    /**
+     * Getter identyfikatora instancji.
+     * @return identyfikator instancji programu.
+     */
+    public long getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Getter nazwy hosta.
+     * @return nazwa, pod którą host się przedstawia.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Getter adresu IP hosta.
+     * @return adres IP hosta.
+     */
+    public String getHostAddress() {
+        return hostAddress;
+    }
+
+    /**
+     * Getter numeru portu hosta.
+     * @return numer portu serwera nasłuchującego hosta.
+     */
+    public int getHostPort() {
+        return hostPort;
+    }
+
+    /**
+     * Sprawdza czy ogłoszenie dotyczy tego samego serwera, co ten wpis.
+     * @param name nazwa z ogłoszenia.
+     * @param hostAddress adres z ogłoszenia.
+     * @param hostPort port z ogłoszenia.
+     * @return true, gdy nazwa, adres i port się zgadzają.
+     */
+    boolean sameEndpoint(String name, String hostAddress, int hostPort) {
+        return this.hostPort == hostPort && this.name.equals(name) && this.hostAddress.equals(hostAddress);
+    }
+
+    /**
+     * Getter chwili wygaśnięcia wpisu.
+     * @return chwila wygaśnięcia w jednostkach System.nanoTime.
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Przedłuża ważność wpisu po otrzymaniu ogłoszenia.
+     * @param expiresAt nowa chwila wygaśnięcia w jednostkach System.nanoTime.
+     */
+    void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Zwraca opis hosta do wyświetlenia.
+     * @return nazwa, adres i port hosta.
+     */
+    @Override
+    public String toString() {
+        return name + " (" + hostAddress + ":" + hostPort + ")";
+    }
+}
@@ -0,0 +1,379 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Przesyłanie plików osobnym połączeniem, niezależnym od połączenia z wiadomościami,
+ * więc nawet bardzo duży plik nie opóźnia wiadomości tekstowych.
+ *
+ * Nadawca łączy się z serwerem odbiorcy i wysyła ramkę OFFER: [TYPE][nazwa połączenia][nazwa pliku][rozmiar][suma CRC32C].
+ * Odbiorca odpowiada przesunięciem (long), od którego chce dostać plik - większym od zera, gdy ma już
+ * część pliku z przerwanego przesyłania - lub -1, gdy odrzuca plik.
+ * Nadawca wysyła resztę pliku bez ramek, kawałkami, przez FileChannel.transferTo prosto do socketu.
+ * Odbiorca zapisuje dane przez FileChannel.transferFrom do pliku tymczasowego, sprawdza sumę kontrolną
+ * całego pliku i odpowiada jednym bajtem: STATUS_OK lub STATUS_CORRUPTED.
+ *
+ * Pliki przyjmowane są tylko od hostów, które odbiorca zna (patrz MessageSink.acceptsFile), co najwyżej
+ * MAX_PER_ADDRESS naraz z jednego adresu i nie większe niż MAX_FILE_SIZE. Pliki tymczasowe przerwanych
+ * przesyłań, których nikt nie wznowił przez PARTIAL_TTL, są usuwane.
+ */
+public final class FileTransfers {
+
+    /**
+     * Pierwszy bajt treści ramki OFFER ('F'), różny od bajtów wersji kodeków.
+     */
+    public static final byte TYPE = 0x46;
+
+    /**
+     * Rozmiar kawałka pliku przesyłanego jednym wywołaniem transferTo lub transferFrom.
+     */
+    static final long CHUNK_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * Odpowiedź odbiorcy: plik odebrany i poprawny.
+     */
+    private static final byte STATUS_OK = 1;
+
+    /**
+     * Odpowiedź odbiorcy: suma kontrolna się nie zgadza, plik został usunięty.
+     */
+    private static final byte STATUS_CORRUPTED = 0;
+
+    /**
+     * Maksymalny rozmiar przyjmowanego pliku, z właściwości systemowej wazzup.transfer.maxSize (domyślnie 1 GiB).
+     */
+    private static final long MAX_FILE_SIZE = Long.getLong("wazzup.transfer.maxSize", 1L << 30);
+
+    /**
+     * Maksymalna liczba plików odbieranych naraz z jednego adresu, z właściwości systemowej wazzup.transfer.maxPerAddress.
+     */
+    private static final int MAX_PER_ADDRESS = Integer.getInteger("wazzup.transfer.maxPerAddress", 2);
+
+    /**
+     * Czas w milisekundach, po którym nieużywany plik tymczasowy przerwanego przesyłania jest usuwany,
+     * z właściwości systemowej wazzup.transfer.partialTtl (domyślnie doba).
+     */
+    private static final long PARTIAL_TTL = Long.getLong("wazzup.transfer.partialTtl", 24L * 60 * 60 * 1000);
+
+    /**
+     * Pliki tymczasowe aktualnie odbieranych plików, żeby dwa przesyłania nie pisały do jednego pliku.
+     */
+    private static final Set<Path> activeTransfers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Liczba plików odbieranych aktualnie z każdego adresu.
+     */
+    private static final Map<String, Integer> transfersPerAddress = new ConcurrentHashMap<>();
+
+    private FileTransfers() {
+    }
+
+    /**
+     * Zwraca domyślny katalog odebranych plików: właściwość systemowa wazzup.downloads.dir
+     * lub katalog .wazzup/downloads w katalogu domowym użytkownika.
+     * @return katalog odebranych plików.
+     */
+    public static Path downloadsDirectory() {
+        String dir = System.getProperty("wazzup.downloads.dir");
+        if (dir != null)
+            return Paths.get(dir);
+        return Paths.get(System.getProperty("user.home"), ".wazzup", "downloads");
+    }
+
+    /**
+     * Sprawdza, czy ramka jest ramką OFFER rozpoczynającą przesyłanie pliku.
+     * @param payload treść ramki, jej pozycja nie jest zmieniana.
+     * @return true, gdy ramka rozpoczyna przesyłanie pliku.
+     */
+    public static boolean isOffer(ByteBuffer payload) {
+        return payload.hasRemaining() && payload.get(payload.position()) == TYPE;
+    }
+
+    /**
+     * Wysyła plik do hosta osobnym połączeniem. Gdy odbiorca ma już początek pliku, wysyłana jest tylko reszta.
+     * Metoda blokuje wątek do czasu odebrania i sprawdzenia pliku przez odbiorcę.
+     * @param file plik do wysłania.
+     * @param hostAddress adres IP hosta.
+     * @param hostPort numer portu serwera hosta.
+     * @param connectionName nazwa połączenia, pod którą odbiorca zobaczy plik.
+     * @param tls konfiguracja szyfrowania lub null dla połączenia nieszyfrowanego.
+     * @throws IOException gdy przesyłanie się nie powiodło lub odbiorca odrzucił plik.
+     */
+    static void send(Path file, String hostAddress, int hostPort, String connectionName, TlsContext tls) throws IOException {
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = source.size();
+            int checksum = checksum(source, size);
+
+            SocketChannel socket = SocketChannel.open(new InetSocketAddress(hostAddress, hostPort));
+            // Over TLS transferTo falls back to copying, the data has to be encrypted anyway.
+            try (ByteChannel channel = tls == null ? socket : tls.clientChannel(socket, hostAddress, hostPort)) {
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                writeFully(channel, offer(connectionName, file.getFileName().toString(), size, checksum));
+
+                long offset = readFully(channel, 8).getLong();
+                if (offset < 0 || offset > size)
+                    throw new IOException("Receiver rejected " + file.getFileName());
+
+                // Chunked sendfile straight from the page cache to the socket.
+                long position = offset;
+                while (position < size)
+                    position += source.transferTo(position, Math.min(CHUNK_SIZE, size - position), channel);
+                Metrics.get().connection(connectionName).sent(1, (int) Math.min(Integer.MAX_VALUE, size - offset));
+
+                if (readFully(channel, 1).get() != STATUS_OK)
+                    throw new IOException("Receiver reported a corrupted copy of " + file.getFileName());
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Odbiera plik po odebraniu ramki OFFER. Wywoływana przez serwer w osobnym wątku.
+     * Plik od nieznanego hosta, zbyt duży lub ponad limit przesyłań z adresu jest odrzucany.
+     * @param offer treść ramki OFFER.
+     * @param senderAddress adres IP nadawcy.
+     * @param in kanał, którym przychodzą dane pliku.
+     * @param out kanał, którym wysyłane są odpowiedzi.
+     * @param sink odbiorca powiadomienia o odebranym pliku.
+     * @throws IOException gdy odbieranie się nie powiodło.
+     */
+    static void receive(ByteBuffer offer, String senderAddress, ReadableByteChannel in, WritableByteChannel out,
+                        MessageSink sink) throws IOException {
+        offer.get();    // TYPE
+        String connectionName = BinaryMessageCodec.getString(offer);
+        String fileName = safeFileName(BinaryMessageCodec.getString(offer));
+        long size = offer.getLong();
+        int checksum = offer.getInt();
+
+        if (size < 0 || size > MAX_FILE_SIZE || !sink.acceptsFile(senderAddress) || !acquireAddress(senderAddress)) {
+            Metrics.get().listenerRejected.increment();
+            writeFully(out, ByteBuffer.allocate(8).putLong(0, -1));
+            return;
+        }
+        try {
+            receive(connectionName, fileName, size, checksum, in, out, sink);
+        } finally {
+            transfersPerAddress.computeIfPresent(senderAddress, (key, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Odbiera przyjęty plik do pliku tymczasowego, a po sprawdzeniu sumy kontrolnej przenosi go do katalogu odebranych plików.
+     * @param connectionName nazwa połączenia nadawcy.
+     * @param fileName bezpieczna nazwa pliku.
+     * @param size rozmiar pliku.
+     * @param checksum suma CRC32C całego pliku.
+     * @param in kanał, którym przychodzą dane pliku.
+     * @param out kanał, którym wysyłane są odpowiedzi.
+     * @param sink odbiorca powiadomienia o odebranym pliku.
+     * @throws IOException gdy odbieranie się nie powiodło.
+     */
+    private static void receive(String connectionName, String fileName, long size, int checksum,
+                                ReadableByteChannel in, WritableByteChannel out, MessageSink sink) throws IOException {
+        Path partialDir = downloadsDirectory().resolve(".partial");
+        Files.createDirectories(partialDir);
+        expirePartials(partialDir);
+        // Same content gives the same partial file, so an interrupted transfer resumes where it stopped.
+        Path partial = partialDir.resolve(String.format("%016x-%08x.part", size, checksum));
+
+        if (!activeTransfers.add(partial)) {
+            writeFully(out, ByteBuffer.allocate(8).putLong(0, -1));
+            return;
+        }
+
+        try {
+            long position;
+            try (FileChannel target = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                position = Math.min(target.size(), size);
+                writeFully(out, ByteBuffer.allocate(8).putLong(0, position));
+
+                while (position < size) {
+                    long read = target.transferFrom(in, position, Math.min(CHUNK_SIZE, size - position));
+                    if (read <= 0)
+                        throw new IOException("Sender closed the connection after " + position + " of " + size + " bytes");
+                    position += read;
+                }
+                target.truncate(size);
+                Metrics.get().connection(connectionName).received((int) Math.min(Integer.MAX_VALUE, size));
+
+                if (checksum(target, size) != checksum) {
+                    Files.deleteIfExists(partial);
+                    writeFully(out, ByteBuffer.wrap(new byte[]{STATUS_CORRUPTED}));
+                    return;
+                }
+                target.force(true);
+            }
+
+            Path saved = moveToDownloads(partial, fileName);
+            writeFully(out, ByteBuffer.wrap(new byte[]{STATUS_OK}));
+            sink.write(new Message("Received file " + fileName + " (" + size + " bytes): " + saved, connectionName));
+        } finally {
+            activeTransfers.remove(partial);
+        }
+    }
+
+    /**
+     * Zlicza nowe przesyłanie z adresu, o ile nie przekracza ono limitu przesyłań z jednego adresu.
+     * @param address adres IP nadawcy.
+     * @return true, gdy przesyłanie mieści się w limicie.
+     */
+    private static boolean acquireAddress(String address) {
+        boolean[] acquired = new boolean[1];
+        transfersPerAddress.compute(address, (key, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= MAX_PER_ADDRESS)
+                return count;
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * Usuwa pliki tymczasowe przesyłań, które nie są odbierane i nie zmieniły się przez PARTIAL_TTL.
+     * @param partialDir katalog plików tymczasowych.
+     */
+    private static void expirePartials(Path partialDir) {
+        long cutoff = System.currentTimeMillis() - PARTIAL_TTL;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(partialDir, "*.part")) {
+            for (Path file : files) {
+                try {
+                    if (!activeTransfers.contains(file) && Files.getLastModifiedTime(file).toMillis() < cutoff)
+                        Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Gone meanwhile or not ours to delete, look again on the next transfer.
+                }
+            }
+        } catch (IOException e) {
+            // The transfer itself does not depend on the cleanup.
+        }
+    }
+
+    /**
+     * Tworzy ramkę OFFER.
+     * @param connectionName nazwa połączenia nadawcy.
+     * @param fileName nazwa pliku.
+     * @param size rozmiar pliku.
+     * @param checksum suma CRC32C całego pliku.
+     * @return kompletna ramka, gotowa do wysłania.
+     */
+    private static ByteBuffer offer(String connectionName, String fileName, long size, int checksum) {
+        byte[] name = connectionName.getBytes(StandardCharsets.UTF_8);
+        byte[] file = fileName.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + name.length + 4 + file.length + 8 + 4;
+        ByteBuffer frame = ByteBuffer.allocate(MessageFrames.HEADER_LENGTH + length);
+        frame.putInt(length).put(TYPE);
+        frame.putInt(name.length).put(name);
+        frame.putInt(file.length).put(file);
+        frame.putLong(size).putInt(checksum);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Liczy sumę CRC32C pliku, czytając go przez odwzorowanie w pamięci, kawałkami.
+     * @param file kanał pliku.
+     * @param size liczba bajtów do policzenia.
+     * @return suma kontrolna.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    static int checksum(FileChannel file, long size) throws IOException {
+        CRC32C crc = new CRC32C();
+        for (long position = 0; position < size; position += CHUNK_SIZE) {
+            MappedByteBuffer chunk = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+            crc.update(chunk);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Zostawia z nazwy pliku od nadawcy tylko ostatni człon ścieżki.
+     * @param fileName nazwa pliku od nadawcy.
+     * @return bezpieczna nazwa pliku.
+     */
+    private static String safeFileName(String fileName) {
+        String name = fileName.replace('\\', '/');
+        name = name.substring(name.lastIndexOf('/') + 1);
+        if (name.isEmpty() || name.equals(".") || name.equals(".."))
+            name = "file";
+        return name;
+    }
+
+    /**
+     * Przenosi odebrany plik do katalogu odebranych plików, dodając numer do nazwy, gdy jest zajęta.
+     * Nazwa jest rezerwowana przez atomowe utworzenie pustego pliku, który następnie jest zastępowany odebranym
+     * plikiem jedną operacją zmiany nazwy, więc dwa jednoczesne odbiory pliku o tej samej nazwie nie nadpiszą się
+     * nawzajem. Katalog plików tymczasowych leży w katalogu odebranych plików, więc jest na tym samym systemie plików.
+     * @param partial odebrany plik tymczasowy.
+     * @param fileName nazwa pliku.
+     * @return ścieżka zapisanego pliku.
+     * @throws IOException gdy przeniesienie się nie powiodło.
+     */
+    private static Path moveToDownloads(Path partial, String fileName) throws IOException {
+        Path dir = downloadsDirectory();
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        for (int i = 0; ; i++) {
+            Path target = dir.resolve(i == 0 ? fileName : base + " (" + i + ")" + extension);
+            try {
+                Files.createFile(target);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            try {
+                // Replacing the placeholder must be a single rename, a plain move deletes it first and frees the name.
+                return Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(target);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Zapisuje cały bufor do kanału.
+     * @param channel kanał docelowy.
+     * @param buffer bufor do zapisania.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Odczytuje z kanału dokładnie zadaną liczbę bajtów.
+     * @param channel kanał źródłowy.
+     * @param length liczba bajtów.
+     * @return bufor z odczytanymi bajtami, ustawiony do odczytu.
+     * @throws IOException gdy połączenie zostało zamknięte wcześniej.
+     */
+    private static ByteBuffer readFully(ReadableByteChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Connection closed by the peer");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,130 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Bufor odczytu jednego połączenia.
+ * Gromadzi dane przychodzące w kawałkach i wydziela z nich kompletne ramki wiadomości.
+ * Ramki mogą być dekodowane od razu (nextMessage) lub przekazywane dalej bez dekodowania (nextFrame).
+ */
+public class FrameReader {
+
+    /**
+     * Początkowy rozmiar bufora w bajtach.
+     */
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    /**
+     * Bufor z danymi odebranymi, ale jeszcze nie przetworzonymi - od pozycji do limitu.
+     * Poza metodą readFrom jest zawsze w trybie odczytu.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY).flip();
+
+    /**
+     * Długość ostatnio wydzielonej ramki w bajtach, razem z nagłówkiem.
+     */
+    private int lastFrameLength;
+
+    /**
+     * Odczytuje dostępne dane z kanału do bufora.
+     * Ramki zwrócone wcześniej przez nextFrame przestają być ważne.
+     * @param channel kanał połączenia.
+     * @return liczba odczytanych bajtów lub -1, gdy host zamknął połączenie.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        // Move the unprocessed tail to the front once per read rather than once per frame.
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            grow(buffer.capacity() * 2);
+            buffer.compact();
+        }
+        try {
+            return channel.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Wydziela z bufora treść kolejnej kompletnej ramki, bez jej dekodowania.
+     * @return bufor z treścią ramki (bez nagłówka), ważny do następnego wywołania readFrom,
+     * lub null, gdy w buforze nie ma jeszcze całej ramki.
+     * @throws IOException gdy długość ramki jest niepoprawna.
+     */
+    public ByteBuffer nextFrame() throws IOException {
+        if (buffer.remaining() < MessageFrames.HEADER_LENGTH)
+            return null;
+
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        MessageFrames.checkLength(length);
+
+        if (buffer.remaining() < MessageFrames.HEADER_LENGTH + length) {
+            // Make sure the whole frame fits once the rest of it arrives.
+            if (buffer.capacity() < MessageFrames.HEADER_LENGTH + length)
+                grow(MessageFrames.HEADER_LENGTH + length);
+            return null;
+        }
+
+        int end = start + MessageFrames.HEADER_LENGTH + length;
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(end).position(start + MessageFrames.HEADER_LENGTH);
+        buffer.position(end);
+        lastFrameLength = MessageFrames.HEADER_LENGTH + length;
+        return payload;
+    }
+
+    /**
+     * Wydziela z bufora kolejną kompletną wiadomość.
+     * @return wiadomość lub null, gdy w buforze nie ma jeszcze całej ramki.
+     * @throws IOException gdy ramka jest niepoprawna.
+     */
+    public Message nextMessage() throws IOException {
+        ByteBuffer payload = nextFrame();
+        return payload == null ? null : MessageFrames.decode(payload);
+    }
+
+    /**
+     * Zwraca długość ostatniej ramki wydzielonej przez nextFrame lub nextMessage.
+     * @return długość ramki w bajtach, razem z nagłówkiem.
+     */
+    public int getLastFrameLength() {
+        return lastFrameLength;
+    }
+
+    /**
+     * Sprawdza czy w buforze jest kompletna ramka, bez jej wydzielania.
+     * Ramka z niepoprawną długością jest traktowana jak kompletna, by nextFrame zgłosił błąd.
+     * @return true, gdy nextFrame zwróci ramkę lub zgłosi błąd.
+     */
+    public boolean hasFrame() {
+        if (buffer.remaining() < MessageFrames.HEADER_LENGTH)
+            return false;
+        int length = buffer.getInt(buffer.position());
+        return length < 0 || buffer.remaining() - MessageFrames.HEADER_LENGTH >= length;
+    }
+
+    /**
+     * Sprawdza czy w buforze jest początek ramki, której reszta jeszcze nie nadeszła.
+     * Ma sens po wydzieleniu wszystkich kompletnych ramek.
+     * @return true, gdy bufor zawiera nieprzetworzone dane.
+     */
+    public boolean hasPartialFrame() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Powiększa bufor, zachowując nieprzetworzone dane.
+     * @param capacity nowy rozmiar bufora.
+     */
+    private void grow(int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        bigger.put(buffer);
+        bigger.flip();
+        buffer = bigger;
+    }
+}
@@ -0,0 +1,154 @@
+package proz.communicator.model;
+
+/**
+ * Wpis historii rozmowy - jedna wysłana lub odebrana wiadomość.
+ */
+public class HistoryEntry {
+
+    /**
+     * Kierunek wiadomości.
+     */
+    public enum Direction {
+        /**
+         * Wiadomość odebrana od hosta.
+         */
+        INCOMING,
+        /**
+         * Wiadomość wysłana do hosta.
+         */
+        OUTGOING
+    }
+
+    /**
+     * Stan dostarczenia wiadomości wysłanej.
+     */
+    public enum DeliveryState {
+        /**
+         * Wiadomość czeka w skrzynce nadawczej na pierwszą próbę wysłania.
+         */
+        PENDING,
+        /**
+         * Host nie odpowiada, wiadomość czeka w skrzynce nadawczej na ponowną próbę.
+         */
+        QUEUED,
+        /**
+         * Wiadomość została wysłana i czeka na potwierdzenie odbioru przez hosta.
+         */
+        SENT,
+        /**
+         * Wiadomość została przekazana hostowi: host potwierdził jej odbiór albo, gdy potwierdzenia
+         * nie są możliwe, została zapisana do połączenia. Stan wszystkich wiadomości odebranych.
+         */
+        DELIVERED,
+        /**
+         * Host potwierdził wyświetlenie wiadomości.
+         */
+        DISPLAYED,
+        /**
+         * Wiadomość nie zostanie dostarczona, np. połączenie zostało usunięte.
+         */
+        FAILED
+    }
+
+    /**
+     * Numer wpisu w historii rozmowy, liczony od zera.
+     */
+    private final long sequence;
+
+    /**
+     * Czas wysłania lub odebrania wiadomości w milisekundach od początku epoki.
+     */
+    private final long timestamp;
+
+    /**
+     * Kierunek wiadomości.
+     */
+    private final Direction direction;
+
+    /**
+     * Nazwa autora wyświetlana przy wiadomości.
+     */
+    private final String author;
+
+    /**
+     * Treść wiadomości.
+     */
+    private final String text;
+
+    /**
+     * Stan dostarczenia wiadomości.
+     */
+    private volatile DeliveryState deliveryState = DeliveryState.DELIVERED;
+
+    /**
+     * Konstruktor klasy.
+     * @param sequence numer wpisu w historii rozmowy.
+     * @param timestamp czas wiadomości w milisekundach od początku epoki.
+     * @param direction kierunek wiadomości.
+     * @param author nazwa autora.
+     * @param text treść wiadomości.
+     */
+    public HistoryEntry(long sequence, long timestamp, Direction direction, String author, String text) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.direction = direction;
+        this.author = author;
+        this.text = text;
+    }
+
+    /**
+     * Getter numeru wpisu.
+     * @return numer wpisu w historii rozmowy.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Getter czasu wiadomości.
+     * @return czas w milisekundach od początku epoki.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Getter kierunku wiadomości.
+     * @return kierunek wiadomości.
+     */
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * Getter nazwy autora.
+     * @return nazwa autora.
+     */
+    public String getAuthor() {
+        return author;
+    }
+
+    /**
+     * Getter treści wiadomości.
+     * @return treść wiadomości.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Getter stanu dostarczenia wiadomości.
+     * @return stan dostarczenia.
+     */
+    public DeliveryState getDeliveryState() {
+        return deliveryState;
+    }
+
+    /**
+     * Setter stanu dostarczenia wiadomości.
+     * @param deliveryState nowy stan dostarczenia.
+     */
+    public void setDeliveryState(DeliveryState deliveryState) {
+        this.deliveryState = deliveryState;
+    }
+}
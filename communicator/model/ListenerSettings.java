@@ -0,0 +1,182 @@
+package proz.communicator.model;
+
+/**
+ * Ustawienia serwera nasłuchującego: pula wątków obsługujących połączenia, kolejka połączeń
+ * oczekujących na przyjęcie, limity czasu odczytu, limit połączeń z jednego adresu
+ * i limity szybkości przyjmowania ramek (patrz RateLimiter).
+ */
+public class ListenerSettings {
+
+    /**
+     * Wartość liczby wątków oznaczająca wirtualne wątki (Java 21+) zamiast ograniczonej puli.
+     */
+    public static final int VIRTUAL_THREADS = 0;
+
+    /**
+     * Maksymalna liczba wątków obsługujących połączenia lub VIRTUAL_THREADS.
+     */
+    private final int handlerThreads;
+
+    /**
+     * Liczba przyjętych połączeń, które mogą czekać na wolny wątek. Kolejne są od razu zamykane.
+     */
+    private final int queueCapacity;
+
+    /**
+     * Długość kolejki połączeń oczekujących na przyjęcie w systemie operacyjnym.
+     */
+    private final int backlog;
+
+    /**
+     * Czas oczekiwania na kolejną ramkę, po którym bezczynne połączenie jest zamykane, w milisekundach; 0 wyłącza limit.
+     */
+    private final int idleTimeoutMillis;
+
+    /**
+     * Czas oczekiwania na resztę rozpoczętej ramki, po którym połączenie jest zamykane, w milisekundach; 0 wyłącza limit.
+     */
+    private final int readTimeoutMillis;
+
+    /**
+     * Maksymalna liczba jednoczesnych połączeń z jednego adresu IP.
+     */
+    private final int maxConnectionsPerAddress;
+
+    /**
+     * Maksymalna liczba ramek na sekundę przyjmowanych jednym połączeniem; 0 wyłącza limit.
+     */
+    private final int messagesPerSecond;
+
+    /**
+     * Maksymalna liczba ramek na sekundę przyjmowanych łącznie ze wszystkich połączeń z jednego adresu IP; 0 wyłącza limit.
+     */
+    private final int addressMessagesPerSecond;
+
+    /**
+     * Konstruktor klasy. Szybkość przyjmowania ramek nie jest ograniczona.
+     * @param handlerThreads maksymalna liczba wątków obsługujących połączenia lub VIRTUAL_THREADS.
+     * @param queueCapacity liczba połączeń czekających na wolny wątek.
+     * @param backlog długość kolejki połączeń oczekujących na przyjęcie.
+     * @param idleTimeoutMillis limit czasu oczekiwania na kolejną ramkę w milisekundach lub 0.
+     * @param readTimeoutMillis limit czasu oczekiwania na resztę ramki w milisekundach lub 0.
+     * @param maxConnectionsPerAddress maksymalna liczba jednoczesnych połączeń z jednego adresu IP.
+     */
+    public ListenerSettings(int handlerThreads, int queueCapacity, int backlog,
+                            int idleTimeoutMillis, int readTimeoutMillis, int maxConnectionsPerAddress) {
+        this(handlerThreads, queueCapacity, backlog, idleTimeoutMillis, readTimeoutMillis, maxConnectionsPerAddress, 0, 0);
+    }
+
+    /**
+     * Konstruktor klasy.
+     * @param handlerThreads maksymalna liczba wątków obsługujących połączenia lub VIRTUAL_THREADS.
+     * @param queueCapacity liczba połączeń czekających na wolny wątek.
+     * @param backlog długość kolejki połączeń oczekujących na przyjęcie.
+     * @param idleTimeoutMillis limit czasu oczekiwania na kolejną ramkę w milisekundach lub 0.
+     * @param readTimeoutMillis limit czasu oczekiwania na resztę ramki w milisekundach lub 0.
+     * @param maxConnectionsPerAddress maksymalna liczba jednoczesnych połączeń z jednego adresu IP.
+     * @param messagesPerSecond maksymalna liczba ramek na sekundę z jednego połączenia lub 0.
+     * @param addressMessagesPerSecond maksymalna liczba ramek na sekundę z jednego adresu IP lub 0.
+     */
+    public ListenerSettings(int handlerThreads, int queueCapacity, int backlog,
+                            int idleTimeoutMillis, int readTimeoutMillis, int maxConnectionsPerAddress,
+                            int messagesPerSecond, int addressMessagesPerSecond) {
+        if (handlerThreads < 0 || queueCapacity < 0 || backlog < 1 || idleTimeoutMillis < 0
+                || readTimeoutMillis < 0 || maxConnectionsPerAddress < 1
+                || messagesPerSecond < 0 || addressMessagesPerSecond < 0)
+            throw new IllegalArgumentException("Invalid listener settings");
+        this.handlerThreads = handlerThreads;
+        this.queueCapacity = queueCapacity;
+        this.backlog = backlog;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.messagesPerSecond = messagesPerSecond;
+        this.addressMessagesPerSecond = addressMessagesPerSecond;
+    }
+
+    /**
+     * Tworzy ustawienia na podstawie właściwości systemowych:
+     * wazzup.listener.handlers (liczba wątków lub "virtual", domyślnie 256),
+     * wazzup.listener.queue (domyślnie 256), wazzup.listener.backlog (domyślnie 1024),
+     * wazzup.listener.idleTimeout (ms, domyślnie 10 minut), wazzup.listener.readTimeout (ms, domyślnie 30 s)
+     * wazzup.listener.maxPerAddress (domyślnie 64), wazzup.listener.rate (ramek na sekundę z połączenia,
+     * domyślnie 2000) i wazzup.listener.addressRate (ramek na sekundę z adresu, domyślnie 10000); 0 wyłącza limit szybkości.
+     * @return ustawienia serwera.
+     */
+    public static ListenerSettings fromProperties() {
+        String handlers = System.getProperty("wazzup.listener.handlers", "256");
+        return new ListenerSettings(
+                handlers.equalsIgnoreCase("virtual") ? VIRTUAL_THREADS : Integer.parseInt(handlers),
+                Integer.getInteger("wazzup.listener.queue", 256),
+                Integer.getInteger("wazzup.listener.backlog", 1024),
+                Integer.getInteger("wazzup.listener.idleTimeout", 600_000),
+                Integer.getInteger("wazzup.listener.readTimeout", 30_000),
+                Integer.getInteger("wazzup.listener.maxPerAddress", 64),
+                Integer.getInteger("wazzup.listener.rate", 2_000),
+                Integer.getInteger("wazzup.listener.addressRate", 10_000));
+    }
+
+    /**
+     * Getter liczby wątków obsługujących połączenia.
+     * @return maksymalna liczba wątków lub VIRTUAL_THREADS.
+     */
+    public int getHandlerThreads() {
+        return handlerThreads;
+    }
+
+    /**
+     * Getter pojemności kolejki połączeń czekających na wątek.
+     * @return liczba połączeń czekających na wolny wątek.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Getter długości kolejki połączeń oczekujących na przyjęcie.
+     * @return długość kolejki w systemie operacyjnym.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Getter limitu czasu oczekiwania na kolejną ramkę.
+     * @return limit w milisekundach lub 0, gdy wyłączony.
+     */
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Getter limitu czasu oczekiwania na resztę rozpoczętej ramki.
+     * @return limit w milisekundach lub 0, gdy wyłączony.
+     */
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * Getter limitu połączeń z jednego adresu.
+     * @return maksymalna liczba jednoczesnych połączeń z jednego adresu IP.
+     */
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    /**
+     * Getter limitu szybkości jednego połączenia.
+     * @return maksymalna liczba ramek na sekundę lub 0, gdy limit jest wyłączony.
+     */
+    public int getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    /**
+     * Getter limitu szybkości jednego adresu.
+     * @return maksymalna liczba ramek na sekundę lub 0, gdy limit jest wyłączony.
+     */
+    public int getAddressMessagesPerSecond() {
+        return addressMessagesPerSecond;
+    }
+}
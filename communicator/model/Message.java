@@ -1,13 +1,27 @@
 package proz.communicator.model;
 
 import java.io.Serializable;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Klasa reprezntująca wiadomość. Implementuje interfejs Serializable, aby możliwa była serializacja obiektu przed wysłaniem.
+ *
+ * Oprócz treści wiadomość niesie kopertę nadawcy: identyfikator nadawcy, jego nazwę i port, na którym słucha,
+ * numer kolejny w strumieniu wiadomości do tego odbiorcy, identyfikator wiadomości oraz czas wysłania.
+ * Na jej podstawie odbiorca przypisuje wiadomość do własnego połączenia, odrzuca powtórzenia i mierzy opóźnienie.
+ * Wiadomości starszych wersji programu mają kopertę pustą (identyfikator nadawcy 0).
  */
 public class Message implements Serializable {
 
+    /**
+     * Identyfikator wersji klasy, równy wartości wyliczanej dla pierwszej wersji, by zmiany metod
+     * nie psuły zgodności z hostami używającymi kodeka serializującego.
+     */
+    private static final long serialVersionUID = 4822902808358383276L;
+
     /**
      * treść wiadomości.
      */
@@ -19,13 +33,105 @@ public class Message implements Serializable {
     private final String connectionName;
 
     /**
-     * Konstruktor klasy.
+     * Identyfikator instancji programu, która wysłała wiadomość, lub 0, gdy koperta jest pusta.
+     */
+    private final long senderId;
+
+    /**
+     * Nazwa, pod którą przedstawia się nadawca, lub null.
+     */
+    private final String senderName;
+
+    /**
+     * Port, na którym nadawca nasłuchuje odpowiedzi, lub 0, gdy nie nasłuchuje.
+     */
+    private final int replyPort;
+
+    /**
+     * Numer kolejny wiadomości w strumieniu nadawcy do tego połączenia, rosnący od 1,
+     * lub 0 dla wiadomości spoza strumienia, np. grupowych.
+     */
+    private final long sequence;
+
+    /**
+     * Identyfikator wiadomości, niepowtarzalny u nadawcy i taki sam przy każdym ponowieniu.
+     */
+    private final long messageId;
+
+    /**
+     * Czas wysłania w mikrosekundach od początku epoki lub 0.
+     */
+    private final long timestamp;
+
+    /**
+     * Nazwa serwera nasłuchującego, który odebrał wiadomość, lub null dla wiadomości wysyłanych.
+     * Nie jest przesyłana - ustawia ją strona odbierająca.
+     */
+    private transient String listenerName;
+
+    /**
+     * Adres IP hosta, od którego odebrano wiadomość, lub null. Ustawia go strona odbierająca.
+     */
+    private transient String senderAddress;
+
+    /**
+     * Nazwa rozmowy, do której odbiorca przypisał wiadomość, lub null, gdy nie była przypisywana.
+     */
+    private transient String conversationName;
+
+    /**
+     * Źródło identyfikatorów wiadomości, zaczynające od losowej wartości, by identyfikatory
+     * nie powtarzały się między kolejnymi uruchomieniami programu.
+     */
+    private static final AtomicLong MESSAGE_IDS = new AtomicLong(ThreadLocalRandom.current().nextLong() >>> 1);
+
+    /**
+     * Konstruktor klasy. Tworzy wiadomość z pustą kopertą.
      * @param messageText treść wiadomości.
      * @param connectionName nazwa połączenia.
      */
     public Message(String messageText, String connectionName) {
+        this(messageText, connectionName, 0, null, 0, 0, 0, 0);
+    }
+
+    /**
+     * Konstruktor klasy.
+     * @param messageText treść wiadomości.
+     * @param connectionName nazwa połączenia.
+     * @param senderId identyfikator nadawcy lub 0.
+     * @param senderName nazwa nadawcy lub null.
+     * @param replyPort port, na którym nasłuchuje nadawca, lub 0.
+     * @param sequence numer kolejny w strumieniu do tego połączenia lub 0.
+     * @param messageId identyfikator wiadomości.
+     * @param timestamp czas wysłania w mikrosekundach od początku epoki lub 0.
+     */
+    public Message(String messageText, String connectionName, long senderId, String senderName, int replyPort,
+                   long sequence, long messageId, long timestamp) {
         this.messageText = messageText;
         this.connectionName = connectionName;
+        this.senderId = senderId;
+        this.senderName = senderName;
+        this.replyPort = replyPort;
+        this.sequence = sequence;
+        this.messageId = messageId;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Zwraca nowy identyfikator wiadomości.
+     * @return identyfikator niepowtarzalny w obrębie tej instancji programu.
+     */
+    public static long nextMessageId() {
+        return MESSAGE_IDS.incrementAndGet();
+    }
+
+    /**
+     * Zwraca bieżący czas z dokładnością do mikrosekund, w jednostkach pola timestamp.
+     * @return liczba mikrosekund od początku epoki.
+     */
+    public static long currentTimeMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
     }
 
     /**
@@ -43,4 +149,100 @@ public class Message implements Serializable {
     public String getMessageText() {
         return messageText;
     }
+
+    /**
+     * Getter identyfikatora nadawcy.
+     * @return identyfikator nadawcy lub 0, gdy koperta jest pusta.
+     */
+    public long getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Getter nazwy nadawcy.
+     * @return nazwa nadawcy lub null.
+     */
+    public String getSenderName() {
+        return senderName;
+    }
+
+    /**
+     * Getter portu, na którym nasłuchuje nadawca.
+     * @return numer portu lub 0.
+     */
+    public int getReplyPort() {
+        return replyPort;
+    }
+
+    /**
+     * Getter numeru kolejnego wiadomości.
+     * @return numer kolejny lub 0 dla wiadomości spoza strumienia.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Getter identyfikatora wiadomości.
+     * @return identyfikator wiadomości lub 0.
+     */
+    public long getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Getter czasu wysłania.
+     * @return czas w mikrosekundach od początku epoki lub 0.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Getter adresu hosta, od którego odebrano wiadomość.
+     * @return adres IP lub null.
+     */
+    public String getSenderAddress() {
+        return senderAddress;
+    }
+
+    /**
+     * Setter adresu hosta, od którego odebrano wiadomość.
+     * @param senderAddress adres IP.
+     */
+    void setSenderAddress(String senderAddress) {
+        this.senderAddress = senderAddress;
+    }
+
+    /**
+     * Getter nazwy rozmowy, w której należy wyświetlić wiadomość.
+     * @return nazwa rozmowy przypisana przez odbiorcę, a gdy jej nie ma - nazwa połączenia z wiadomości.
+     */
+    public String getConversationName() {
+        return conversationName != null ? conversationName : connectionName;
+    }
+
+    /**
+     * Setter nazwy rozmowy, w której należy wyświetlić wiadomość.
+     * @param conversationName nazwa rozmowy.
+     */
+    void setConversationName(String conversationName) {
+        this.conversationName = conversationName;
+    }
+
+    /**
+     * Getter nazwy serwera nasłuchującego, który odebrał wiadomość.
+     * @return nazwa serwera nasłuchującego lub null.
+     */
+    public String getListenerName() {
+        return listenerName;
+    }
+
+    /**
+     * Setter nazwy serwera nasłuchującego, który odebrał wiadomość.
+     * @param listenerName nazwa serwera nasłuchującego.
+     */
+    void setListenerName(String listenerName) {
+        this.listenerName = listenerName;
+    }
 }
@@ -0,0 +1,41 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interfejs kodeka zamieniającego wiadomość na bajty przesyłane w treści ramki i z powrotem.
+ * Pierwszy bajt zakodowanej wiadomości jest zawsze numerem wersji kodeka,
+ * dzięki czemu odbiorca rozpoznaje format nadawcy.
+ */
+public interface MessageCodec {
+
+    /**
+     * Getter numeru wersji formatu, zapisywanego jako pierwszy bajt treści ramki.
+     * @return numer wersji formatu.
+     */
+    byte getVersion();
+
+    /**
+     * Zwraca górne ograniczenie liczby bajtów potrzebnych do zakodowania wiadomości.
+     * @param message wiadomość do zakodowania.
+     * @return maksymalna długość zakodowanej wiadomości razem z bajtem wersji.
+     */
+    int maxEncodedLength(Message message);
+
+    /**
+     * Zapisuje wiadomość do bufora, zaczynając od bajtu wersji.
+     * @param message wiadomość do zakodowania.
+     * @param buffer bufor z co najmniej maxEncodedLength(message) wolnymi bajtami.
+     * @throws IOException gdy nie udało się zakodować wiadomości.
+     */
+    void encode(Message message, ByteBuffer buffer) throws IOException;
+
+    /**
+     * Odczytuje wiadomość z bufora. Bufor zaczyna się od bajtu wersji i kończy razem z treścią ramki.
+     * @param buffer bufor z zakodowaną wiadomością.
+     * @return odczytana wiadomość.
+     * @throws IOException gdy bufor nie zawiera poprawnej wiadomości.
+     */
+    Message decode(ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,86 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+
+/**
+ * Rejestr dostępnych kodeków wiadomości.
+ * Nadawca używa kodeka wybranego przy starcie programu, a odbiorca rozpoznaje kodek nadawcy po bajcie wersji.
+ */
+public final class MessageCodecs {
+
+    /**
+     * Kodek binarny, używany domyślnie.
+     */
+    public static final MessageCodec BINARY = new BinaryMessageCodec();
+
+    /**
+     * Kodek binarny bez koperty nadawcy, dla hostów ze starszą wersją programu.
+     */
+    public static final MessageCodec BINARY_V1 = new BinaryMessageCodec(BinaryMessageCodec.VERSION_1);
+
+    /**
+     * Kodek oparty na serializacji Javy, zgodny ze starszymi wersjami programu.
+     */
+    public static final MessageCodec SERIALIZED = new SerializedMessageCodec();
+
+    /**
+     * Domyślny próg kompresji w bajtach. Krótsze wiadomości mieszczą się w jednym pakiecie i tak.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+
+    /**
+     * Kodek odczytujący ramki skompresowane, niezależnie od kodeka użytego przed kompresją.
+     */
+    private static final MessageCodec COMPRESSED = new CompressingMessageCodec(BINARY, DEFAULT_COMPRESSION_THRESHOLD);
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * Zwraca kodek o zadanej nazwie.
+     * @param name nazwa kodeka: "binary", "binary-v1" lub "serialized".
+     * @return kodek o zadanej nazwie.
+     * @throws IllegalArgumentException gdy nie ma kodeka o takiej nazwie.
+     */
+    public static MessageCodec forName(String name) {
+        switch (name) {
+            case "binary":
+                return BINARY;
+            case "binary-v1":
+                return BINARY_V1;
+            case "serialized":
+                return SERIALIZED;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + name);
+        }
+    }
+
+    /**
+     * Zwraca kodek wybrany właściwościami systemowymi: wazzup.codec ("binary", "binary-v1" lub "serialized")
+     * oraz wazzup.compression (true/false) z progiem wazzup.compression.threshold w bajtach.
+     * Kompresja jest domyślnie wyłączona, bo starsze wersje programu nie odczytują ramek skompresowanych.
+     * @return kodek wysyłanych wiadomości.
+     */
+    public static MessageCodec fromProperties() {
+        MessageCodec codec = forName(System.getProperty("wazzup.codec", "binary"));
+        if (Boolean.getBoolean("wazzup.compression"))
+            codec = new CompressingMessageCodec(codec, Integer.getInteger("wazzup.compression.threshold", DEFAULT_COMPRESSION_THRESHOLD));
+        return codec;
+    }
+
+    /**
+     * Zwraca kodek, który zapisuje wiadomości z zadanym bajtem wersji.
+     * @param version bajt wersji odczytany z ramki.
+     * @return kodek obsługujący daną wersję.
+     * @throws IOException gdy wersja nie jest znana, np. gdy nadawca używa nowszego formatu.
+     */
+    public static MessageCodec forVersion(byte version) throws IOException {
+        if (version == BinaryMessageCodec.VERSION || version == BinaryMessageCodec.VERSION_1)
+            return BINARY;
+        if (version == SerializedMessageCodec.VERSION)
+            return SERIALIZED;
+        if (version == CompressingMessageCodec.VERSION)
+            return COMPRESSED;
+        throw new IOException("Unsupported message format version: " + version);
+    }
+}
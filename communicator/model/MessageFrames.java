@@ -0,0 +1,101 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Klasa pomocnicza do zamiany wiadomości na ramki przesyłane przez sieć i z powrotem.
+ * Ramka składa się z czterobajtowej długości oraz wiadomości zakodowanej kodekiem (patrz MessageCodec),
+ * dzięki czemu odbiorca może czytać dane kawałkami i wie, kiedy otrzymał całą wiadomość.
+ */
+public final class MessageFrames {
+
+    /**
+     * Rozmiar nagłówka ramki (pole długości) w bajtach.
+     */
+    public static final int HEADER_LENGTH = 4;
+
+    /**
+     * Maksymalna dopuszczalna długość treści ramki w bajtach.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * Pierwsze cztery bajty strumienia ObjectOutputStream, którym wysyłały wiadomości najstarsze wersje programu.
+     */
+    private static final int LEGACY_STREAM_HEADER = 0xACED0005;
+
+    private MessageFrames() {
+    }
+
+    /**
+     * Zamienia wiadomość na ramkę gotową do wysłania.
+     * @param message wiadomość do zakodowania.
+     * @param codec kodek, którym zostanie zakodowana wiadomość.
+     * @param buffer bufor do ponownego użycia lub null. Nowy bufor jest tworzony, gdy ten jest za mały.
+     * @return bufor zawierający nagłówek i treść ramki, ustawiony do odczytu.
+     * @throws IOException gdy nie udało się zakodować wiadomości lub wiadomość nie mieści się w ramce.
+     */
+    public static ByteBuffer encode(Message message, MessageCodec codec, ByteBuffer buffer) throws IOException {
+        int capacity = HEADER_LENGTH + codec.maxEncodedLength(message);
+        if (buffer == null || buffer.capacity() < capacity)
+            buffer = ByteBuffer.allocate(Math.max(capacity, buffer == null ? 0 : buffer.capacity() * 2));
+
+        buffer.clear();
+        buffer.position(HEADER_LENGTH);
+        codec.encode(message, buffer);
+        int length = buffer.position() - HEADER_LENGTH;
+        checkEncodedLength(length);
+        buffer.putInt(0, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Sprawdza czy wiadomość zakodowana zadanym kodekiem zmieści się w jednej ramce, którą odbiorca przyjmie.
+     * Zwykle wystarcza górne ograniczenie długości, wiadomość jest kodowana tylko wtedy, gdy ono nie wystarcza.
+     * @param message wiadomość do sprawdzenia.
+     * @param codec kodek, którym zostanie zakodowana wiadomość.
+     * @throws IOException gdy zakodowana wiadomość jest dłuższa niż MAX_FRAME_LENGTH.
+     */
+    public static void checkMessage(Message message, MessageCodec codec) throws IOException {
+        if (codec.maxEncodedLength(message) > MAX_FRAME_LENGTH)
+            encode(message, codec, null);
+    }
+
+    /**
+     * Sprawdza długość treści ramki przed wysłaniem. Dłuższej ramki odbiorca nie przyjmie i zamknie połączenie.
+     * @param length długość zakodowanej wiadomości.
+     * @throws IOException gdy długość przekracza MAX_FRAME_LENGTH.
+     */
+    static void checkEncodedLength(int length) throws IOException {
+        if (length > MAX_FRAME_LENGTH)
+            throw new IOException("Message too long: " + length + " bytes encoded, a frame holds at most " + MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Odtwarza wiadomość z treści ramki, dobierając kodek na podstawie bajtu wersji.
+     * @param payload treść ramki (bez nagłówka), od pozycji do limitu bufora.
+     * @return odczytana wiadomość.
+     * @throws IOException gdy treść ramki nie zawiera poprawnej wiadomości.
+     */
+    public static Message decode(ByteBuffer payload) throws IOException {
+        if (!payload.hasRemaining())
+            throw new IOException("Empty frame");
+
+        MessageCodec codec = MessageCodecs.forVersion(payload.get(payload.position()));
+        return codec.decode(payload);
+    }
+
+    /**
+     * Sprawdza poprawność długości ramki odczytanej z nagłówka.
+     * @param length długość treści ramki.
+     * @throws IOException gdy długość jest ujemna lub zbyt duża.
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length == LEGACY_STREAM_HEADER)
+            throw new IOException("Peer uses the legacy object stream protocol");
+        if (length <= 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length: " + length);
+    }
+}
@@ -0,0 +1,96 @@
+package proz.communicator.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Historia jednej rozmowy przechowywana w buforze cyklicznym o ograniczonej pojemności.
+ * Wpisy numerowane są kolejno przez cały czas działania programu, od zera lub od numeru, na którym
+ * skończyła się rozmowa zapisana w dzienniku. Gdy bufor jest pełny, najstarsze wpisy są nadpisywane
+ * i przestają być dostępne.
+ */
+public class MessageHistory {
+
+    /**
+     * Bufor cykliczny z wpisami.
+     */
+    private final HistoryEntry[] entries;
+
+    /**
+     * Liczba wszystkich dodanych wpisów, a zarazem numer następnego wpisu.
+     */
+    private long size;
+
+    /**
+     * Numer pierwszego wpisu historii.
+     */
+    private final long first;
+
+    /**
+     * Konstruktor klasy. Wpisy są numerowane od zera.
+     * @param capacity maksymalna liczba przechowywanych wpisów.
+     */
+    public MessageHistory(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * Konstruktor klasy.
+     * @param capacity maksymalna liczba przechowywanych wpisów.
+     * @param first numer pierwszego dodanego wpisu, np. liczba wcześniejszych wpisów rozmowy w dzienniku.
+     */
+    public MessageHistory(int capacity, long first) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        entries = new HistoryEntry[capacity];
+        this.first = first;
+        this.size = first;
+    }
+
+    /**
+     * Dodaje nowy wpis na koniec historii.
+     * @param timestamp czas wiadomości w milisekundach od początku epoki.
+     * @param direction kierunek wiadomości.
+     * @param author nazwa autora.
+     * @param text treść wiadomości.
+     * @return nowy wpis.
+     */
+    public synchronized HistoryEntry add(long timestamp, HistoryEntry.Direction direction, String author, String text) {
+        HistoryEntry entry = new HistoryEntry(size, timestamp, direction, author, text);
+        entries[(int) (size % entries.length)] = entry;
+        size++;
+        return entry;
+    }
+
+    /**
+     * Zwraca numer następnego wpisu, czyli liczbę wszystkich wpisów rozmowy.
+     * @return numer następnego wpisu.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Zwraca numer najstarszego wpisu, który jest nadal przechowywany.
+     * @return numer najstarszego dostępnego wpisu.
+     */
+    public synchronized long firstAvailable() {
+        return Math.max(first, size - entries.length);
+    }
+
+    /**
+     * Zwraca wpisy o numerach z zadanego przedziału, ograniczonego do wpisów dostępnych w buforze.
+     * @param from numer pierwszego wpisu (włącznie).
+     * @param to numer ostatniego wpisu (wyłącznie).
+     * @return wpisy w kolejności dodania.
+     */
+    public synchronized List<HistoryEntry> range(long from, long to) {
+        from = Math.max(from, firstAvailable());
+        to = Math.min(to, size);
+
+        List<HistoryEntry> result = new ArrayList<>((int) Math.max(0, to - from));
+        for (long i = from; i < to; i++)
+            result.add(entries[(int) (i % entries.length)]);
+        return result;
+    }
+}
@@ -0,0 +1,501 @@
+package proz.communicator.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dziennik wiadomości zapisywany na dysku.
+ * Każda rozmowa ma własny katalog z plikami segmentów, do których wpisy są wyłącznie dopisywane.
+ * Zapis wykonuje osobny wątek, który zbiera wszystkie oczekujące wpisy i wykonuje jedno fsync na całą paczkę.
+ * Odczyt ostatnich wpisów korzysta z segmentów odwzorowanych w pamięci i przechodzi je od końca,
+ * więc nie wymaga czytania całego pliku.
+ *
+ * Format wpisu: długość treści (int), czas (long), kierunek (byte), autor i treść (długość int + UTF-8),
+ * ponownie długość treści (int) - pozwala przechodzić segment od końca.
+ * Segment przerwany w trakcie zapisu (np. po awarii) jest przy otwarciu przycinany do ostatniego pełnego wpisu,
+ * więc nowe wpisy nie trafiają za uszkodzony koniec.
+ */
+public class MessageJournal {
+
+    /**
+     * Rozmiar segmentu, po którego przekroczeniu zaczynany jest nowy plik.
+     */
+    private static final long SEGMENT_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * Rozszerzenie plików segmentów.
+     */
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Znacznik końca pracy wstawiany do kolejki przy zamykaniu dziennika.
+     */
+    private static final PendingRecord CLOSE = new PendingRecord(null, null);
+
+    /**
+     * Katalog główny dziennika.
+     */
+    private final Path directory;
+
+    /**
+     * Wpisy oczekujące na zapis.
+     */
+    private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+
+    /**
+     * Otwarte segmenty, do których dopisywane są wpisy, według nazwy połączenia.
+     */
+    private final Map<String, SegmentWriter> writers = new ConcurrentHashMap<>();
+
+    /**
+     * Wątek zapisujący wpisy na dysk.
+     */
+    private final Thread writerThread;
+
+    /**
+     * Flaga mówiąca o tym czy dziennik przyjmuje nowe wpisy.
+     */
+    private volatile boolean open = true;
+
+    /**
+     * Konstruktor klasy. Uruchamia wątek zapisujący.
+     * @param directory katalog główny dziennika, tworzony w razie potrzeby.
+     * @throws IOException gdy nie udało się utworzyć katalogu.
+     */
+    public MessageJournal(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        writerThread = new Thread(this::writeLoop, "journal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Zwraca domyślny katalog dziennika: właściwość systemowa wazzup.journal.dir
+     * lub katalog .wazzup/journal w katalogu domowym użytkownika.
+     * @return domyślny katalog dziennika.
+     */
+    public static Path defaultDirectory() {
+        String dir = System.getProperty("wazzup.journal.dir");
+        if (dir != null)
+            return Paths.get(dir);
+        return Paths.get(System.getProperty("user.home"), ".wazzup", "journal");
+    }
+
+    /**
+     * Zleca dopisanie wpisu do dziennika rozmowy. Nie czeka na zapis na dysk.
+     * @param connectionName nazwa połączenia.
+     * @param entry wpis historii.
+     */
+    public void append(String connectionName, HistoryEntry entry) {
+        if (open)
+            pending.offer(new PendingRecord(connectionName, entry));
+    }
+
+    /**
+     * Odczytuje ostatnie wpisy z dziennika rozmowy.
+     * Zwracane wpisy mają numery kolejne w całej rozmowie, licząc od zera od pierwszego wpisu dziennika,
+     * więc te same wiadomości mają te same numery po każdym uruchomieniu programu.
+     * @param connectionName nazwa połączenia.
+     * @param count maksymalna liczba wpisów.
+     * @return wpisy w kolejności zapisu, najwyżej count ostatnich.
+     * @throws IOException gdy odczyt segmentu się nie powiódł.
+     */
+    public List<HistoryEntry> readLast(String connectionName, int count) throws IOException {
+        List<RecordData> records = new ArrayList<>();
+        List<Path> segments = listSegments(connectionDirectory(connectionName));
+        SegmentWriter writer = writers.get(connectionName);
+
+        long total = 0;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Path segment = segments.get(i);
+            long length = writer != null && writer.path.equals(segment) ? writer.committed : validLength(segment);
+            if (records.size() < count)
+                readBackwards(segment, length, count - records.size(), records);
+            // Older segments are only counted, their records are skipped by length.
+            total += countRecords(segment, length);
+        }
+
+        Collections.reverse(records);
+        long first = total - records.size();
+        List<HistoryEntry> entries = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            RecordData r = records.get(i);
+            entries.add(new HistoryEntry(first + i, r.timestamp, r.direction, r.author, r.text));
+        }
+        return entries;
+    }
+
+    /**
+     * Zamyka dziennik: zapisuje oczekujące wpisy i zamyka pliki.
+     * @param timeout maksymalny czas oczekiwania na zapis.
+     * @param unit jednostka czasu oczekiwania.
+     */
+    public void close(long timeout, TimeUnit unit) {
+        open = false;
+        // Do not interrupt the writer, an interrupted FileChannel closes itself.
+        pending.offer(CLOSE);
+        try {
+            writerThread.join(unit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pętla wątku zapisującego. Zapisuje wpisy paczkami, z jednym fsync na plik na paczkę.
+     */
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        boolean closing = false;
+        while (!closing) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                closing = true;
+            }
+            pending.drainTo(batch);
+            closing |= batch.remove(CLOSE);
+            writeBatch(batch);
+            batch.clear();
+        }
+
+        for (SegmentWriter writer : writers.values())
+            writer.close();
+    }
+
+    /**
+     * Zapisuje paczkę wpisów i wymusza ich zapis na dysk.
+     * @param batch wpisy do zapisania.
+     */
+    private void writeBatch(List<PendingRecord> batch) {
+        Set<SegmentWriter> touched = new HashSet<>();
+        for (PendingRecord record : batch) {
+            try {
+                SegmentWriter writer = writerFor(record.connectionName);
+                writer.write(encode(record.entry));
+                touched.add(writer);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Group commit: one fsync per segment per batch.
+        for (SegmentWriter writer : touched) {
+            try {
+                writer.commit();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Zwraca segment, do którego dopisywane są wpisy rozmowy, rozpoczynając nowy, gdy obecny jest pełny.
+     * @param connectionName nazwa połączenia.
+     * @return otwarty segment.
+     * @throws IOException gdy nie udało się otworzyć pliku.
+     */
+    private SegmentWriter writerFor(String connectionName) throws IOException {
+        SegmentWriter writer = writers.get(connectionName);
+        if (writer != null && writer.written < SEGMENT_SIZE)
+            return writer;
+
+        Path dir = connectionDirectory(connectionName);
+        Files.createDirectories(dir);
+
+        long index = 0;
+        List<Path> segments = listSegments(dir);
+        if (!segments.isEmpty()) {
+            Path last = segments.get(segments.size() - 1);
+            index = segmentIndex(last);
+            if (validLength(last) >= SEGMENT_SIZE)
+                index++;
+        }
+
+        if (writer != null) {
+            writer.close();
+            index = Math.max(index, segmentIndex(writer.path) + 1);
+        }
+
+        writer = new SegmentWriter(dir.resolve(String.format("%016d%s", index, SEGMENT_SUFFIX)));
+        writers.put(connectionName, writer);
+        return writer;
+    }
+
+    /**
+     * Koduje wpis do postaci zapisywanej w segmencie.
+     * @param entry wpis historii.
+     * @return bufor z wpisem, ustawiony do odczytu.
+     */
+    private static ByteBuffer encode(HistoryEntry entry) {
+        byte[] author = entry.getAuthor().getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.getText().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 8 + 1 + 4 + author.length + 4 + text.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bodyLength + 4);
+        buffer.putInt(bodyLength);
+        buffer.putLong(entry.getTimestamp());
+        buffer.put((byte) entry.getDirection().ordinal());
+        buffer.putInt(author.length).put(author);
+        buffer.putInt(text.length).put(text);
+        buffer.putInt(bodyLength);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Odczytuje wpisy segmentu od końca, korzystając z odwzorowania pliku w pamięci.
+     * @param segment plik segmentu.
+     * @param length liczba bajtów segmentu zawierających zapisane wpisy.
+     * @param count maksymalna liczba wpisów do odczytania.
+     * @param records lista, do której dopisywane są wpisy, od najnowszego.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    private static void readBackwards(Path segment, long length, int count, List<RecordData> records) throws IOException {
+        if (length <= 0)
+            return;
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, channel.size()));
+
+            int end = map.limit();
+            for (int read = 0; read < count && end >= 8; read++) {
+                int bodyLength = map.getInt(end - 4);
+                int start = end - 4 - bodyLength - 4;
+                if (bodyLength < 0 || start < 0 || map.getInt(start) != bodyLength)
+                    break;      // Torn or corrupted tail, nothing older can be trusted in this segment.
+
+                map.position(start + 4);
+                long timestamp = map.getLong();
+                int direction = map.get();
+                if (direction < 0 || direction >= HistoryEntry.Direction.values().length)
+                    break;
+                String author = readString(map);
+                String text = readString(map);
+                records.add(new RecordData(timestamp, HistoryEntry.Direction.values()[direction], author, text));
+                end = start;
+            }
+        }
+    }
+
+    /**
+     * Wyznacza długość początkowej części segmentu złożonej z pełnych, poprawnych wpisów, przechodząc go od początku.
+     * Wpisy są przeskakiwane po długości, więc odczytywane są tylko ich nagłówki.
+     * @param segment plik segmentu.
+     * @return liczba bajtów do końca ostatniego poprawnego wpisu.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    private static long validLength(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            if (channel.size() == 0)
+                return 0;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = 0;
+            for (int next; (next = nextRecord(map, end)) > 0; )
+                end = next;
+            return end;
+        }
+    }
+
+    /**
+     * Zlicza wpisy na początku segmentu, przeskakując je po długości.
+     * @param segment plik segmentu.
+     * @param length liczba bajtów segmentu zawierających poprawne wpisy.
+     * @return liczba wpisów.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    private static long countRecords(Path segment, long length) throws IOException {
+        if (length <= 0)
+            return 0;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, channel.size()));
+            long records = 0;
+            for (int end = 0; (end = nextRecord(map, end)) > 0; )
+                records++;
+            return records;
+        }
+    }
+
+    /**
+     * Sprawdza wpis zaczynający się w zadanym miejscu segmentu.
+     * @param map odwzorowanie segmentu w pamięci.
+     * @param start początek wpisu.
+     * @return koniec wpisu lub -1, gdy od tego miejsca nie ma pełnego, poprawnego wpisu.
+     */
+    private static int nextRecord(ByteBuffer map, int start) {
+        int limit = map.limit();
+        if (limit - start < 4)
+            return -1;
+        int bodyLength = map.getInt(start);
+        int next = start + 4 + bodyLength + 4;
+        if (bodyLength < 8 + 1 + 4 + 4 || next < 0 || next > limit || map.getInt(next - 4) != bodyLength)
+            return -1;
+        int direction = map.get(start + 4 + 8);
+        int authorLength = map.getInt(start + 4 + 8 + 1);
+        if (direction < 0 || direction >= HistoryEntry.Direction.values().length
+                || authorLength < 0 || authorLength > bodyLength - 8 - 1 - 4 - 4
+                || map.getInt(start + 4 + 8 + 1 + 4 + authorLength) != bodyLength - 8 - 1 - 4 - authorLength - 4)
+            return -1;
+        return next;
+    }
+
+    /**
+     * Odczytuje z bufora napis zapisany jako długość i bajty UTF-8.
+     * @param buffer bufor źródłowy.
+     * @return odczytany napis.
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Zwraca katalog dziennika rozmowy. Znaki spoza bezpiecznego zbioru są zapisywane szesnastkowo.
+     * @param connectionName nazwa połączenia.
+     * @return katalog rozmowy.
+     */
+    private Path connectionDirectory(String connectionName) {
+        StringBuilder name = new StringBuilder();
+        for (char c : connectionName.toCharArray()) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-')
+                name.append(c);
+            else
+                name.append('_').append(String.format("%04x", (int) c));
+        }
+        return directory.resolve(name.toString());
+    }
+
+    /**
+     * Zwraca segmenty w katalogu rozmowy, posortowane od najstarszego.
+     * @param dir katalog rozmowy.
+     * @return lista plików segmentów.
+     * @throws IOException gdy odczyt katalogu się nie powiódł.
+     */
+    private static List<Path> listSegments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        File[] files = dir.toFile().listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null)
+            return segments;
+        for (File file : files)
+            segments.add(file.toPath());
+        segments.sort(Comparator.comparing(Path::getFileName));
+        return segments;
+    }
+
+    /**
+     * Zwraca numer segmentu zapisany w nazwie pliku.
+     * @param segment plik segmentu.
+     * @return numer segmentu.
+     */
+    private static long segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Wpis oczekujący na zapis.
+     */
+    private static class PendingRecord {
+        final String connectionName;
+        final HistoryEntry entry;
+
+        PendingRecord(String connectionName, HistoryEntry entry) {
+            this.connectionName = connectionName;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Dane wpisu odczytane z segmentu.
+     */
+    private static class RecordData {
+        final long timestamp;
+        final HistoryEntry.Direction direction;
+        final String author;
+        final String text;
+
+        RecordData(long timestamp, HistoryEntry.Direction direction, String author, String text) {
+            this.timestamp = timestamp;
+            this.direction = direction;
+            this.author = author;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Otwarty segment, do którego dopisywane są wpisy.
+     */
+    private static class SegmentWriter {
+
+        /**
+         * Plik segmentu.
+         */
+        final Path path;
+
+        /**
+         * Kanał pliku otwarty do dopisywania.
+         */
+        final FileChannel channel;
+
+        /**
+         * Liczba bajtów segmentu zapisanych na dysk. Czytelnicy nie czytają dalej.
+         */
+        volatile long committed;
+
+        /**
+         * Liczba bajtów zapisanych, ale być może jeszcze nie utrwalonych.
+         */
+        long written;
+
+        SegmentWriter(Path path) throws IOException {
+            this.path = path;
+            long valid = Files.exists(path) ? validLength(path) : 0;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.size() > valid) {
+                // A torn record from a crash, cut it off so new records follow the last complete one.
+                channel.truncate(valid);
+                channel.force(false);
+            }
+            channel.position(valid);
+            written = valid;
+            committed = written;
+        }
+
+        void write(ByteBuffer record) throws IOException {
+            while (record.hasRemaining())
+                written += channel.write(record);
+        }
+
+        void commit() throws IOException {
+            if (!channel.isOpen())
+                return;     // Rolled over and already committed on close.
+            channel.force(false);
+            committed = written;
+        }
+
+        void close() {
+            try {
+                commit();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,105 +1,313 @@
 package proz.communicator.model;
 
-import javafx.application.Platform;
-import proz.communicator.controller.Controller;
+import proz.communicator.metrics.Metrics;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Klasa serwera nasłuchującego przychodzacych wiadomośći.
+ * Wątek serwera tylko przyjmuje połączenia, a każde przyjęte połączenie przekazuje puli wątków
+ * (patrz ListenerSettings), w której jeden wątek odczytuje z niego wiele wiadomości.
+ * Gdy wszystkie wątki są zajęte i kolejka puli jest pełna, albo host przekroczył limit połączeń
+ * z jednego adresu, połączenie jest od razu zamykane.
  */
-public class MessageListener extends Thread {
+public class MessageListener extends ServerThread {
 
     /**
-     * Numer portu serwera.
+     * Serwery, które zajęły port i jeszcze nie zostały zamknięte.
      */
-    private int port;
+    private static final Set<MessageListener> RUNNING = ConcurrentHashMap.newKeySet();
+
+    static {
+        // One gauge for all listeners, a stopped listener drops out of the sum and can be collected.
+        Metrics.get().registerGauge("listener.connections", MessageListener::openConnections);
+    }
+
+    /**
+     * Adres i port serwera.
+     */
+    private InetSocketAddress address;
 
     /**
      * Socket serwera.
      */
-    private ServerSocket serverSocket;
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * Odbiorca odebranych wiadomości.
+     */
+    private MessageSink sink;
+
+    /**
+     * Obsługi aktualnie otwartych połączeń, również tych czekających w kolejce puli.
+     */
+    private Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Liczba otwartych połączeń według adresu hosta.
+     */
+    private final Map<InetAddress, Integer> connectionsPerAddress = new ConcurrentHashMap<>();
+
+    /**
+     * Konfiguracja szyfrowania lub null, gdy serwer przyjmuje połączenia nieszyfrowane.
+     */
+    private TlsContext tls;
+
+    /**
+     * Ustawienia puli wątków, kolejki połączeń i limitów.
+     */
+    private final ListenerSettings settings;
 
     /**
-     * Flaga mówiąca o tym czy serwer ma nadal nasłuchiwać wiadomości.
+     * Pula wątków obsługujących połączenia, tworzona przy zajęciu portu.
      */
-    private boolean listenFlag = true;
+    private volatile ExecutorService pool;
 
     /**
-     * Wskazanie na kontroler programu.
+     * Ograniczenie szybkości przyjmowania ramek.
      */
-    private Controller controller;
+    private final RateLimiter rateLimiter;
 
     /**
      * Konstrukotr klasy.
-     * @param controller kontroler serwera
+     * @param sink odbiorca odebranych wiadomości
      * @param port numer portu, na którym ma słuchać serwer.
      */
-    public MessageListener(Controller controller, int port) {
-        this.controller = controller;
-        this.port = port;
+    public MessageListener(MessageSink sink, int port) {
+        this(sink, port, null);
     }
 
     /**
-     * Rozpoczyna nasłuchiwananie wiadomości.
+     * Konstruktor klasy. Ustawienia serwera pobierane są z właściwości systemowych.
+     * @param sink odbiorca odebranych wiadomości
+     * @param port numer portu, na którym ma słuchać serwer.
+     * @param tls konfiguracja szyfrowania lub null dla połączeń nieszyfrowanych.
+     */
+    public MessageListener(MessageSink sink, int port, TlsContext tls) {
+        this(sink, port, tls, ListenerSettings.fromProperties());
+    }
+
+    /**
+     * Konstruktor klasy.
+     * @param sink odbiorca odebranych wiadomości
+     * @param port numer portu, na którym ma słuchać serwer.
+     * @param tls konfiguracja szyfrowania lub null dla połączeń nieszyfrowanych.
+     * @param settings ustawienia puli wątków, kolejki połączeń i limitów.
+     */
+    public MessageListener(MessageSink sink, int port, TlsContext tls, ListenerSettings settings) {
+        this(sink, new InetSocketAddress(port), tls, settings);
+    }
+
+    /**
+     * Konstruktor klasy.
+     * @param sink odbiorca odebranych wiadomości
+     * @param address adres i port, na którym ma słuchać serwer, np. tylko na jednym interfejsie.
+     * @param tls konfiguracja szyfrowania lub null dla połączeń nieszyfrowanych.
+     * @param settings ustawienia puli wątków, kolejki połączeń i limitów.
+     */
+    public MessageListener(MessageSink sink, InetSocketAddress address, TlsContext tls, ListenerSettings settings) {
+        super("message-listener");
+        this.sink = sink;
+        this.address = address;
+        this.tls = tls;
+        this.settings = settings;
+        this.rateLimiter = new RateLimiter(settings);
+    }
+
+    /**
+     * Zwraca liczbę otwartych połączeń wszystkich działających serwerów.
+     * @return liczba połączeń.
+     */
+    private static long openConnections() {
+        long connections = 0;
+        for (MessageListener listener : RUNNING)
+            connections += listener.handlers.size();
+        return connections;
+    }
+
+    /**
+     * Zajmuje port serwera i tworzy pulę wątków obsługujących połączenia.
+     * @throws IOException gdy nie udało się zająć portu.
      */
     @Override
-    public void run() {
-        Socket clientSocket;
+    protected void bind() throws IOException {
+        ServerSocket socket = tls == null ? new ServerSocket() : tls.createServerSocket();
+        serverSocket = socket;
+        socket.setReuseAddress(true);
+        socket.bind(address, settings.getBacklog());
+        pool = createPool();
+        RUNNING.add(this);
+    }
 
-        try {
-            serverSocket = new ServerSocket(port);
-            while (listenFlag) {
+    /**
+     * Tworzy pulę wątków według ustawień.
+     * @return pula wirtualnych wątków lub ograniczona pula wątków z ograniczoną kolejką.
+     */
+    private ExecutorService createPool() {
+        if (settings.getHandlerThreads() == ListenerSettings.VIRTUAL_THREADS) {
+            try {
+                // Looked up at run time, the code itself targets releases without virtual threads.
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads require Java 21 or newer", e);
+            }
+        }
 
+        int threads = settings.getHandlerThreads();
+        BlockingQueue<Runnable> queue = settings.getQueueCapacity() == 0
+                ? new SynchronousQueue<>()
+                : new ArrayBlockingQueue<>(settings.getQueueCapacity());
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                runnable -> {
+                    Thread thread = new Thread(runnable, "client-handler-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (task, rejectedBy) -> reject((ClientHandler) task));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Przyjmuje połączenia, dopóki serwer nie zostanie zatrzymany, a potem czeka, aż wątki połączeń
+     * dokończą odczyt rozpoczętych wiadomości.
+     * @throws IOException gdy socket serwera przestał działać z innego powodu niż zatrzymanie.
+     */
+    @Override
+    protected void serve() throws IOException {
+        while (listenFlag) {
+            Socket clientSocket;
+            try {
                 clientSocket = serverSocket.accept();
-                if (clientSocket != null) {
-
-                    // Host has just connected to the server.
-                    try (ObjectInputStream inputStream = new ObjectInputStream(clientSocket.getInputStream())) {
-
-                        try {
-                            final Message message = (Message) inputStream.readObject();   // Received Message object.
-                            // Tell controller to update view - write message.
-                            Platform.runLater(() -> controller.write(message));
-
-                        } catch (ClassNotFoundException e) {
-                            e.printStackTrace();
-                        } catch (IOException ee) {
-                            ee.printStackTrace();
-                        }
-                    }
-                }
+            } catch (IOException e) {
+                if (listenFlag)
+                    throw e;
+                break;      // Closed by stopListening.
             }
-        } catch (IOException e) {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                try {
-                    serverSocket.close();
-                } catch (IOException ee) {
-                    ee.printStackTrace();
-                }
+
+            InetAddress address = clientSocket.getInetAddress();
+            if (!acquireAddress(address)) {
+                Metrics.get().listenerLimited.increment();
+                closeQuietly(clientSocket);
+                continue;
             }
+
+            // Host has just connected to the server. Read its messages on a pool thread.
+            ClientHandler handler = new ClientHandler(clientSocket, sink, this, settings,
+                    rateLimiter.open(address.getHostAddress()));
+            handlers.add(handler);
+            pool.execute(handler);
+        }
+
+        for (ClientHandler handler : handlers)
+            handler.drain();
+        pool.shutdown();
+        try {
+            pool.awaitTermination(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Setter dla flagi nasłuchiwania. Flaga ustawiona na false wyłącza nasłuchiwanie serwera.
-     * @param bool wartość flagi.
+     * Zamyka socket serwera, co od razu przerywa oczekiwanie na połączenia.
      */
-    public void setListenFlag(boolean bool) {
-        listenFlag = bool;
+    @Override
+    protected void wakeUp() {
+        closeServerSocket();
     }
 
+    /**
+     * Zamyka socket serwera, wszystkie przyjęte połączenia i pulę wątków.
+     */
+    @Override
+    protected void closeAll() {
+        RUNNING.remove(this);
+        closeServerSocket();
+        for (ClientHandler handler : handlers)
+            handler.close();
+        ExecutorService current = pool;
+        if (current != null)
+            current.shutdownNow();
+    }
+
+    /**
+     * Zamyka socket serwera, jeśli jest otwarty.
+     */
+    private void closeServerSocket() {
+        ServerSocket socket = serverSocket;
+        if (socket != null && !socket.isClosed()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
     /**
-     * Zatrzumuje działanie serwera, zamyka jego socket.
+     * Zamyka połączenie odrzucone przez pulę, bo wszystkie wątki i miejsca w kolejce są zajęte.
+     * Host może ponowić wysłanie później.
+     * @param handler obsługa odrzuconego połączenia.
      */
-    public void stopListening() {
+    private void reject(ClientHandler handler) {
+        Metrics.get().listenerRejected.increment();
+        handler.close();
+        handlerFinished(handler);
+    }
+
+    /**
+     * Zlicza nowe połączenie z adresu, o ile nie przekracza ono limitu połączeń z jednego adresu.
+     * @param address adres hosta.
+     * @return true, gdy połączenie mieści się w limicie.
+     */
+    private boolean acquireAddress(InetAddress address) {
+        int limit = settings.getMaxConnectionsPerAddress();
+        boolean[] acquired = new boolean[1];
+        connectionsPerAddress.compute(address, (key, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= limit)
+                return count;
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * Zamyka socket, ignorując błędy.
+     * @param socket socket do zamknięcia.
+     */
+    private static void closeQuietly(Socket socket) {
         try {
-            serverSocket.close();
+            socket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            // Nothing to do, the connection is being dropped anyway.
         }
     }
+
+    /**
+     * Usuwa obsługę połączenia z listy aktywnych obsług i zwalnia miejsce w limicie adresu hosta.
+     * @param handler obsługa, która zakończyła działanie.
+     */
+    void handlerFinished(ClientHandler handler) {
+        if (handlers.remove(handler))
+            connectionsPerAddress.computeIfPresent(handler.getAddress(), (key, count) -> count == 1 ? null : count - 1);
+    }
 }
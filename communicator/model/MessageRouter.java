@@ -0,0 +1,732 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Odbiorca przypisujący odebrane wiadomości do rozmów na podstawie koperty nadawcy (patrz Message)
+ * i przekazujący je dalej. Rozmowa nadawcy jest wyznaczana raz i zapamiętywana według identyfikatora nadawcy,
+ * więc każda kolejna wiadomość trafia do niej jednym wyszukaniem w mapie.
+ * Wiadomość o numerze kolejnym nie większym niż ostatni odebrany w tym samym strumieniu jest powtórzeniem
+ * po ponownej próbie nadawcy i jest odrzucana. Wiadomości z pustą kopertą przypisywane są jak dotąd,
+ * według nazwy połączenia.
+ *
+ * Potwierdzenie jest skumulowane, więc wiadomości przekazywane są tylko po kolei: wiadomość, przed którą brakuje
+ * wcześniejszej, jest wstrzymywana (co najwyżej MAX_HELD na strumień) i nie jest potwierdzana, a nadawca
+ * po ACK_TIMEOUT wysyła ponownie wszystko od brakującej. Strumień nieznany odbiorcy (po ponownym uruchomieniu
+ * którejś ze stron) zaczyna się od numeru 1 albo od wiadomości, którą nadawca ponowił jako najstarszą
+ * niepotwierdzoną. Jeśli luka nie zostanie uzupełniona przez GAP_TIMEOUT, np. gdy potwierdzenia nie docierają
+ * do nadawcy i ten niczego nie ponawia, strumień jest wznawiany od najmniejszego wstrzymanego numeru.
+ * Nadawcom bez połączenia potwierdzenia nie są wysyłane, więc ich wiadomości nie są wstrzymywane,
+ * a odrzucane są tylko powtórzenia.
+ *
+ * Wiadomość jest potwierdzana dopiero wtedy, gdy odbiorca ją przyjmie (patrz MessageSink.offerAll).
+ * Wiadomości, których odbiorca nie przyjął, pozostają niepotwierdzone i nadawca wyśle je ponownie.
+ *
+ * Nadawcom, z którymi jest połączenie, odsyłane są skumulowane potwierdzenia (patrz Acknowledgement):
+ * zmiany stanu strumieni zbierane są przez ACK_DELAY_MILLIS i wysyłane jedną ramką na strumień,
+ * więc paczka wiadomości kosztuje jedno potwierdzenie. Powtórzenie wiadomości wymusza ponowne potwierdzenie,
+ * bo oznacza, że nadawca nie dostał poprzedniego.
+ *
+ * Potwierdzenie przyznaje nadawcy kredyt o FLOW_WINDOW wiadomości ponad odebrane, pomniejszony o zaległości
+ * odbiorcy (patrz MessageSink.getBacklog). Gdy odbiorca nie nadąża, kredyt przestaje rosnąć i nadawca czeka;
+ * dopóki okno jest zmniejszone, kredyt jest sprawdzany ponownie co ACK_DELAY_MILLIS, a gdy zaległości maleją,
+ * nadawca dostaje potwierdzenie z nowym kredytem. Przyznany kredyt nigdy nie jest cofany.
+ *
+ * Z nadawcą, z którego serwerem nie ma połączenia, połączenie nie jest nawiązywane samoczynnie: jego wiadomości
+ * trafiają do rozmowy "nazwa@adres", a host czeka na przyjęcie przez użytkownika (patrz Model.acceptPeer).
+ * Liczba pamiętanych nadawców i oczekujących hostów jest ograniczona, a nieaktywni są zapominani po SENDER_IDLE,
+ * więc nadawca zmieniający identyfikatory nie wyczerpie pamięci ani połączeń.
+ */
+class MessageRouter implements MessageSink {
+
+    /**
+     * Czas zbierania zmian przed wysłaniem potwierdzeń w milisekundach.
+     */
+    private static final long ACK_DELAY_MILLIS = 20;
+
+    /**
+     * Liczba wiadomości, które nadawca może wysłać ponad potwierdzone, z właściwości systemowej wazzup.flow.window.
+     */
+    private static final int FLOW_WINDOW = Integer.getInteger("wazzup.flow.window", 1024);
+
+    /**
+     * Maksymalna liczba pamiętanych nadawców, z właściwości systemowej wazzup.router.maxSenders.
+     * Po jej przekroczeniu zapominany jest nadawca, który najdłużej nic nie przysłał.
+     */
+    private static final int MAX_SENDERS = Integer.getInteger("wazzup.router.maxSenders", 4096);
+
+    /**
+     * Maksymalna liczba hostów czekających na przyjęcie, z właściwości systemowej wazzup.router.maxPending.
+     * Wiadomości od kolejnych nieznanych nadawców trafiają do wspólnej rozmowy adresu hosta.
+     */
+    private static final int MAX_PENDING = Integer.getInteger("wazzup.router.maxPending", 64);
+
+    /**
+     * Czas bezczynności w milisekundach, po którym nadawca lub oczekujący host jest zapominany,
+     * z właściwości systemowej wazzup.router.senderIdle.
+     */
+    private static final long SENDER_IDLE = Long.getLong("wazzup.router.senderIdle", 600_000);
+
+    /**
+     * Maksymalna liczba wiadomości wstrzymanych w jednym strumieniu do czasu uzupełnienia luki,
+     * z właściwości systemowej wazzup.router.maxHeld. Kolejne są odrzucane i nadawca wyśle je ponownie.
+     */
+    private static final int MAX_HELD = Integer.getInteger("wazzup.router.maxHeld", 256);
+
+    /**
+     * Czas w milisekundach, po którym nieuzupełniona luka w strumieniu jest pomijana,
+     * z właściwości systemowej wazzup.router.gapTimeout.
+     */
+    private static final long GAP_TIMEOUT = Long.getLong("wazzup.router.gapTimeout", 30_000);
+
+    /**
+     * Model, w którym wyszukiwane i dodawane są połączenia z nadawcami.
+     */
+    private final Model model;
+
+    /**
+     * Odbiorca, któremu przekazywane są wiadomości.
+     */
+    private final MessageSink target;
+
+    /**
+     * Stan nadawców według identyfikatora nadawcy.
+     */
+    private final Map<Long, Sender> senders = new ConcurrentHashMap<>();
+
+    /**
+     * Serwery nadawców czekających na przyjęcie według nazwy rozmowy, od najdawniej aktywnego.
+     * Dostęp pod blokadą mapy.
+     */
+    private final Map<String, PendingPeer> pendingPeers = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Strumienie, których stan zmienił się od ostatniego wysłania potwierdzeń.
+     */
+    private final Queue<Stream> changed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Flaga mówiąca o tym czy wysłanie potwierdzeń jest zaplanowane.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * Wątek wysyłający zebrane potwierdzenia.
+     */
+    private final ScheduledExecutorService ackScheduler;
+
+    /**
+     * Konstruktor klasy.
+     * @param model model, w którym wyszukiwane i dodawane są połączenia z nadawcami.
+     * @param target odbiorca, któremu przekazywane są wiadomości.
+     */
+    MessageRouter(Model model, MessageSink target) {
+        this.model = model;
+        this.target = target;
+        this.ackScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ack-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweep = Math.max(1, Math.min(SENDER_IDLE, 60_000));
+        ackScheduler.scheduleWithFixedDelay(this::forgetIdle, sweep, sweep, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Przypisuje wiadomość do rozmowy i przekazuje ją dalej, o ile nie jest powtórzeniem.
+     * @param m odebrana wiadomość.
+     */
+    @Override
+    public void write(Message m) {
+        writeAll(Collections.singletonList(m));
+    }
+
+    /**
+     * Przypisuje wiadomości do rozmów i przekazuje dalej jedną paczką te, które nie są powtórzeniami,
+     * razem z wiadomościami wstrzymanymi do czasu uzupełnienia luki.
+     * @param messages odebrane wiadomości, w kolejności odebrania.
+     */
+    @Override
+    public void writeAll(List<Message> messages) {
+        List<Message> accepted = new ArrayList<>(messages.size());
+        for (Message m : messages)
+            route(m, accepted);
+        deliver(accepted);
+    }
+
+    /**
+     * Przekazuje Modelowi potwierdzenie od hosta, któremu wysyłano wiadomości.
+     * @param ack odebrane potwierdzenie.
+     */
+    @Override
+    public void acknowledge(Acknowledgement ack) {
+        Metrics.get().acksReceived.increment();
+        model.acknowledged(ack);
+    }
+
+    /**
+     * Przyjmuje pliki tylko od hostów, z którymi jest połączenie, czyli dodanych lub przyjętych przez użytkownika.
+     * @param senderAddress adres IP nadawcy pliku.
+     * @return true, gdy z hostem o tym adresie jest połączenie.
+     */
+    @Override
+    public boolean acceptsFile(String senderAddress) {
+        return model.isConnectedTo(senderAddress);
+    }
+
+    /**
+     * Zapisuje wyświetlenie wiadomości, by potwierdzić je nadawcy.
+     * @param m wyświetlona wiadomość.
+     */
+    void displayed(Message m) {
+        if (m.getSenderId() == 0 || m.getSequence() == 0)
+            return;
+        Sender sender = senders.get(m.getSenderId());
+        if (sender == null)
+            return;
+        synchronized (sender) {
+            Stream stream = sender.streams.get(m.getConnectionName());
+            if (stream == null || m.getSequence() <= stream.displayed)
+                return;
+            stream.displayed = Math.min(m.getSequence(), stream.delivered);
+            markChanged(stream);
+        }
+    }
+
+    /**
+     * Przyjmuje hosta czekającego na przyjęcie i zapomina go.
+     * @param conversationName nazwa rozmowy hosta.
+     * @return adres serwera hosta lub null, gdy żaden host nie czeka pod tą nazwą.
+     */
+    InetSocketAddress accept(String conversationName) {
+        PendingPeer peer;
+        synchronized (pendingPeers) {
+            peer = pendingPeers.remove(conversationName);
+        }
+        return peer == null ? null : InetSocketAddress.createUnresolved(peer.address, peer.port);
+    }
+
+    /**
+     * Sprawdza czy pod zadaną nazwą rozmowy czeka host do przyjęcia.
+     * @param conversationName nazwa rozmowy.
+     * @return true, gdy host czeka na przyjęcie.
+     */
+    boolean isPending(String conversationName) {
+        synchronized (pendingPeers) {
+            return pendingPeers.containsKey(conversationName);
+        }
+    }
+
+    /**
+     * Przestaje wysyłać potwierdzenia.
+     */
+    void close() {
+        ackScheduler.shutdownNow();
+    }
+
+    /**
+     * Przypisuje wiadomość do rozmowy i mierzy jej opóźnienie.
+     * @param m odebrana wiadomość.
+     * @param accepted lista wiadomości do przekazania odbiorcy, do której dodawana jest ta wiadomość
+     *                 i wstrzymane wiadomości, które mogą już po niej nastąpić.
+     */
+    private void route(Message m, List<Message> accepted) {
+        Metrics metrics = Metrics.get();
+        if (m.getTimestamp() > 0) {
+            // Meaningful only as far as the clocks of both hosts agree.
+            long latencyMicros = Message.currentTimeMicros() - m.getTimestamp();
+            if (latencyMicros >= 0)
+                metrics.oneWayLatency.record(latencyMicros * 1000);
+        }
+
+        // Group messages stay in the group conversation, as before, and are not acknowledged.
+        if (m.getSenderId() == 0 || m.getSequence() == 0) {
+            accepted.add(m);
+            return;
+        }
+
+        Sender known = senders.get(m.getSenderId());
+        if (known == null) {
+            known = senders.computeIfAbsent(m.getSenderId(), Sender::new);
+            if (senders.size() > MAX_SENDERS)
+                forgetLeastRecent(known);
+        }
+        Sender sender = known;
+        sender.lastSeen = System.nanoTime();
+        synchronized (sender) {
+            // Resolved again when the reply port changes or the connection was added or removed meanwhile.
+            if (sender.conversation == null || m.getReplyPort() != sender.replyPort
+                    || sender.connected != model.hasConnection(sender.conversation))
+                resolve(m, sender);
+            m.setConversationName(sender.conversation);
+
+            Stream stream = sender.streams.computeIfAbsent(m.getConnectionName(), name -> new Stream(sender, name));
+            long sequence = m.getSequence();
+            if (stream.started && sequence <= stream.received) {
+                metrics.duplicateMessages.increment();
+                if (sequence <= stream.delivered) {
+                    // The sender missed the acknowledgement, repeat it.
+                    stream.repeatAck = true;
+                    markChanged(stream);
+                }
+                return;
+            }
+
+            if (!sender.connected) {
+                // Nothing is acknowledged to this sender, so nothing can be claimed for a missing message.
+                stream.started = true;
+                stream.received = sequence;
+                accepted.add(m);
+                return;
+            }
+
+            boolean next = stream.started ? sequence == stream.received + 1
+                    : sequence == 1 || (!stream.held.isEmpty() && sequence <= stream.held.firstKey());
+            if (!next) {
+                hold(stream, m);
+                return;
+            }
+            stream.started = true;
+            stream.received = sequence;
+            accepted.add(m);
+            release(stream, accepted);
+        }
+    }
+
+    /**
+     * Wstrzymuje wiadomość, przed którą brakuje wcześniejszej, lub pierwszą wiadomość strumienia nieznanego
+     * odbiorcy. Potwierdzenie pozostaje poniżej luki, więc nadawca po swoim czasie oczekiwania wyśle ponownie
+     * wszystko od brakującej wiadomości; w nowym strumieniu puste potwierdzenie prosi o to samo.
+     * Wywoływana pod blokadą nadawcy.
+     * @param stream strumień wiadomości.
+     * @param m wstrzymywana wiadomość.
+     */
+    private void hold(Stream stream, Message m) {
+        Metrics.get().outOfOrderMessages.increment();
+        if (stream.held.isEmpty())
+            stream.heldSince = System.nanoTime();
+        if (stream.held.size() < MAX_HELD)
+            stream.held.putIfAbsent(m.getSequence(), m);
+        stream.repeatAck = true;
+        markChanged(stream);
+        scheduleResync(stream, GAP_TIMEOUT);
+    }
+
+    /**
+     * Dodaje do listy wstrzymane wiadomości, które następują bez luki po ostatniej przekazanej.
+     * Wywoływana pod blokadą nadawcy.
+     * @param stream strumień wiadomości.
+     * @param accepted lista wiadomości do przekazania odbiorcy.
+     */
+    private void release(Stream stream, List<Message> accepted) {
+        while (!stream.held.isEmpty() && stream.held.firstKey() <= stream.received + 1) {
+            Map.Entry<Long, Message> held = stream.held.pollFirstEntry();
+            if (held.getKey() == stream.received + 1) {
+                stream.received = held.getKey();
+                accepted.add(held.getValue());
+            }
+        }
+    }
+
+    /**
+     * Planuje sprawdzenie, czy luka w strumieniu została uzupełniona. Wywoływana pod blokadą nadawcy.
+     * @param stream strumień z wstrzymanymi wiadomościami.
+     * @param delay czas do sprawdzenia w milisekundach.
+     */
+    private void scheduleResync(Stream stream, long delay) {
+        if (stream.resyncScheduled)
+            return;
+        stream.resyncScheduled = true;
+        try {
+            ackScheduler.schedule(() -> resync(stream), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+        }
+    }
+
+    /**
+     * Pomija lukę, która nie została uzupełniona przez GAP_TIMEOUT, i przekazuje wstrzymane wiadomości
+     * od najmniejszego numeru. Nadawca, który nie ponawia wiadomości, np. bo nie dostaje potwierdzeń,
+     * nie wstrzyma w ten sposób strumienia na zawsze. Wykonywana przez wątek potwierdzeń.
+     * @param stream strumień z wstrzymanymi wiadomościami.
+     */
+    private void resync(Stream stream) {
+        List<Message> accepted = new ArrayList<>();
+        synchronized (stream.sender) {
+            stream.resyncScheduled = false;
+            if (stream.held.isEmpty())
+                return;
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stream.heldSince);
+            if (waited < GAP_TIMEOUT) {
+                // The gap was filled meanwhile and a newer one opened later.
+                scheduleResync(stream, GAP_TIMEOUT - waited);
+                return;
+            }
+            Metrics.get().resyncedStreams.increment();
+            stream.started = true;
+            stream.received = Math.max(stream.received, stream.held.firstKey() - 1);
+            release(stream, accepted);
+            if (!stream.held.isEmpty()) {
+                stream.heldSince = System.nanoTime();
+                scheduleResync(stream, GAP_TIMEOUT);
+            }
+        }
+        deliver(accepted);
+    }
+
+    /**
+     * Przekazuje wiadomości odbiorcy i potwierdza te, które przyjął. Numer ostatniej przekazanej wiadomości
+     * w strumieniu wraca przed pierwszą nieprzyjętą, więc ponowienie nadawcy nie zostanie uznane za powtórzenie.
+     * @param accepted wiadomości do przekazania, w kolejności numerów w każdym strumieniu.
+     */
+    private void deliver(List<Message> accepted) {
+        if (accepted.isEmpty())
+            return;
+        int taken = target.offerAll(accepted);
+        for (int i = 0; i < accepted.size(); i++) {
+            Message m = accepted.get(i);
+            if (m.getSenderId() == 0 || m.getSequence() == 0)
+                continue;
+            Sender sender = senders.get(m.getSenderId());
+            if (sender == null)
+                continue;
+            synchronized (sender) {
+                Stream stream = sender.streams.get(m.getConnectionName());
+                if (stream == null)
+                    continue;
+                if (i < taken) {
+                    stream.delivered = Math.max(stream.delivered, m.getSequence());
+                    markChanged(stream);
+                } else {
+                    stream.received = Math.min(stream.received, m.getSequence() - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dodaje strumień do zmienionych i planuje wysłanie potwierdzeń. Wywoływana pod blokadą nadawcy.
+     * @param stream strumień, którego stan się zmienił.
+     */
+    private void markChanged(Stream stream) {
+        if (!stream.sender.connected || stream.queued)
+            return;
+        stream.queued = true;
+        changed.add(stream);
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                ackScheduler.schedule(this::flush, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, nothing more is acknowledged.
+            }
+        }
+    }
+
+    /**
+     * Wysyła jedno skumulowane potwierdzenie dla każdego zmienionego strumienia.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        int window = Math.max(0, FLOW_WINDOW - target.getBacklog());
+        List<Stream> recheck = new ArrayList<>();
+        Stream stream;
+        while ((stream = changed.poll()) != null) {
+            Sender sender = stream.sender;
+            Acknowledgement ack;
+            String conversation;
+            synchronized (sender) {
+                stream.queued = false;
+                if (window < FLOW_WINDOW)
+                    recheck.add(stream);
+                long credit = Math.max(stream.credit, stream.creditBase() + window);
+                if (!stream.repeatAck && stream.delivered == stream.ackedDelivered
+                        && stream.displayed == stream.ackedDisplayed && credit == stream.credit)
+                    continue;
+                stream.repeatAck = false;
+                stream.ackedDelivered = stream.delivered;
+                stream.ackedDisplayed = stream.displayed;
+                stream.credit = credit;
+                ack = model.createAcknowledgement(sender.id, stream.name, stream.delivered, stream.displayed, credit);
+                conversation = sender.conversation;
+            }
+            model.sendAcknowledgement(conversation, ack);
+        }
+
+        // The window is narrowed by the backlog, grant more credit once it shrinks.
+        for (Stream narrowed : recheck) {
+            synchronized (narrowed.sender) {
+                markChanged(narrowed);
+            }
+        }
+    }
+
+    /**
+     * Wyznacza rozmowę nadawcy: połączenie z serwerem nadawcy, jeśli już istnieje, a w przeciwnym razie
+     * rozmowę "nazwa@adres", której host czeka na przyjęcie przez użytkownika.
+     * @param m wiadomość od nadawcy.
+     * @param sender stan nadawcy.
+     */
+    private void resolve(Message m, Sender sender) {
+        String address = m.getSenderAddress();
+        int port = m.getReplyPort();
+        sender.replyPort = port;
+        if (address == null || port == 0) {
+            // The sender does not listen or came through a hub, it cannot be answered directly.
+            String name = m.getSenderName() != null ? m.getSenderName() : m.getConnectionName();
+            sender.conversation = address == null ? name : name + "@" + address;
+            sender.connected = false;
+            return;
+        }
+
+        Connection connection = model.findConnection(address, port);
+        if (connection == null) {
+            sender.conversation = awaitAcceptance(m.getSenderName() != null ? m.getSenderName() : m.getConnectionName(),
+                    address, port);
+            sender.connected = false;
+        } else {
+            sender.conversation = connection.getConnectionName();
+            sender.connected = true;
+        }
+    }
+
+    /**
+     * Zapisuje serwer nadawcy jako czekający na przyjęcie.
+     * @param name nazwa nadawcy.
+     * @param address adres IP nadawcy.
+     * @param port port serwera nadawcy.
+     * @return nazwa rozmowy nadawcy: "nazwa@adres" lub sam adres, gdy czeka już zbyt wielu hostów.
+     */
+    private String awaitAcceptance(String name, String address, int port) {
+        String conversation = name + "@" + address;
+        synchronized (pendingPeers) {
+            PendingPeer peer = pendingPeers.get(conversation);
+            if (peer == null) {
+                if (pendingPeers.size() >= MAX_PENDING)
+                    return address;
+                peer = new PendingPeer(address, port);
+                pendingPeers.put(conversation, peer);
+            }
+            peer.port = port;
+            peer.lastSeen = System.nanoTime();
+        }
+        return conversation;
+    }
+
+    /**
+     * Zapomina nadawcę, który najdłużej nic nie przysłał, by zrobić miejsce dla nowego.
+     * @param added nowy nadawca, który nie jest brany pod uwagę.
+     */
+    private void forgetLeastRecent(Sender added) {
+        Sender oldest = null;
+        for (Sender candidate : senders.values()) {
+            if (candidate != added && (oldest == null || candidate.lastSeen - oldest.lastSeen < 0))
+                oldest = candidate;
+        }
+        if (oldest != null)
+            senders.remove(oldest.id, oldest);
+    }
+
+    /**
+     * Zapomina nadawców i oczekujące hosty nieaktywne dłużej niż SENDER_IDLE. Wykonywana okresowo
+     * przez wątek potwierdzeń. Zapomniany nadawca, który znów się odezwie, zaczyna nowe strumienie.
+     */
+    private void forgetIdle() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(SENDER_IDLE);
+        senders.values().removeIf(sender -> sender.lastSeen - cutoff < 0);
+        synchronized (pendingPeers) {
+            // Access order, the least recently active come first.
+            Iterator<PendingPeer> peers = pendingPeers.values().iterator();
+            while (peers.hasNext() && peers.next().lastSeen - cutoff < 0)
+                peers.remove();
+        }
+    }
+
+    /**
+     * Stan jednego nadawcy: przypisana rozmowa i jego strumienie.
+     */
+    private static class Sender {
+
+        /**
+         * Identyfikator nadawcy.
+         */
+        private final long id;
+
+        /**
+         * Nazwa rozmowy nadawcy lub null, gdy nie została jeszcze wyznaczona.
+         */
+        private String conversation;
+
+        /**
+         * Flaga mówiąca o tym czy rozmowa jest połączeniem z serwerem nadawcy.
+         */
+        private boolean connected;
+
+        /**
+         * Port zwrotny z koperty, dla którego wyznaczono rozmowę.
+         */
+        private int replyPort;
+
+        /**
+         * Czas ostatniej wiadomości (System.nanoTime).
+         */
+        private volatile long lastSeen;
+
+        /**
+         * Strumienie według nazwy, pod którą nadawca zna ten program.
+         */
+        private final Map<String, Stream> streams = new HashMap<>();
+
+        /**
+         * Konstruktor klasy.
+         * @param id identyfikator nadawcy.
+         */
+        Sender(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Serwer nadawcy czekającego na przyjęcie. Pola są dostępne pod blokadą mapy oczekujących.
+     */
+    private static class PendingPeer {
+
+        /**
+         * Adres IP nadawcy.
+         */
+        private final String address;
+
+        /**
+         * Port serwera nadawcy z ostatniej koperty.
+         */
+        private int port;
+
+        /**
+         * Czas ostatniej wiadomości (System.nanoTime).
+         */
+        private long lastSeen;
+
+        /**
+         * Konstruktor klasy.
+         * @param address adres IP nadawcy.
+         * @param port port serwera nadawcy.
+         */
+        PendingPeer(String address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+    }
+
+    /**
+     * Strumień wiadomości od nadawcy do jednego z jego połączeń. Pola są dostępne pod blokadą nadawcy.
+     */
+    private static class Stream {
+
+        /**
+         * Nadawca strumienia.
+         */
+        private final Sender sender;
+
+        /**
+         * Nazwa strumienia, czyli nazwa połączenia u nadawcy.
+         */
+        private final String name;
+
+        /**
+         * Ostatni numer kolejny przyjęty przez odbiorcę. Wiadomości przekazywane są tylko po kolei,
+         * więc wszystkie wcześniejsze również zostały przyjęte.
+         */
+        private long delivered;
+
+        /**
+         * Ostatni numer kolejny przekazany odbiorcy; większy od delivered, dopóki odbiorca go nie przyjmie.
+         */
+        private long received;
+
+        /**
+         * Flaga mówiąca o tym czy znany jest początek strumienia, od którego liczony jest received.
+         */
+        private boolean started;
+
+        /**
+         * Wiadomości wstrzymane do czasu uzupełnienia luki, według numeru kolejnego.
+         */
+        private final TreeMap<Long, Message> held = new TreeMap<>();
+
+        /**
+         * Czas (System.nanoTime), od którego w strumieniu są wstrzymane wiadomości.
+         */
+        private long heldSince;
+
+        /**
+         * Flaga mówiąca o tym czy sprawdzenie luki jest zaplanowane.
+         */
+        private boolean resyncScheduled;
+
+        /**
+         * Ostatni wyświetlony numer kolejny.
+         */
+        private long displayed;
+
+        /**
+         * Numer odebranych wiadomości w ostatnim wysłanym potwierdzeniu.
+         */
+        private long ackedDelivered;
+
+        /**
+         * Numer wyświetlonych wiadomości w ostatnim wysłanym potwierdzeniu.
+         */
+        private long ackedDisplayed;
+
+        /**
+         * Kredyt przyznany w ostatnim wysłanym potwierdzeniu.
+         */
+        private long credit;
+
+        /**
+         * Flaga mówiąca o tym czy potwierdzenie trzeba wysłać, nawet jeśli stan się nie zmienił.
+         */
+        private boolean repeatAck;
+
+        /**
+         * Flaga mówiąca o tym czy strumień czeka w kolejce zmienionych.
+         */
+        private boolean queued;
+
+        /**
+         * Konstruktor klasy.
+         * @param sender nadawca strumienia.
+         * @param name nazwa strumienia.
+         */
+        Stream(Sender sender, String name) {
+            this.sender = sender;
+            this.name = name;
+        }
+
+        /**
+         * Zwraca numer kolejny, od którego liczony jest kredyt: ostatni przyjęty, a w strumieniu, którego
+         * początek nie jest jeszcze znany, numer poprzedzający najmniejszą wstrzymaną wiadomość.
+         * @return numer kolejny.
+         */
+        long creditBase() {
+            return started || held.isEmpty() ? delivered : Math.max(delivered, held.firstKey() - 1);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package proz.communicator.model;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interfejs serwera nasłuchującego przychodzących wiadomości.
+ * Pozwala Modelowi w ten sam sposób uruchamiać i zatrzymywać różne implementacje serwera.
+ * Żadna z metod nie blokuje wywołującego wątku, poza awaitTermination.
+ */
+public interface MessageServer {
+
+    /**
+     * Rozpoczyna nasłuchiwanie w osobnym wątku.
+     * @return future zakończony, gdy serwer zajął port, lub wyjątkiem (np. BindException), gdy to się nie udało.
+     */
+    CompletableFuture<Void> startListening();
+
+    /**
+     * Zatrzymuje serwer: od razu przestaje przyjmować połączenia, dokańcza odczyt rozpoczętych wiadomości
+     * i zamyka wszystkie połączenia.
+     * @return future zakończony po zatrzymaniu serwera, lub wyjątkiem, gdy serwer przerwał pracę z powodu błędu.
+     */
+    CompletableFuture<Void> stopListening();
+
+    /**
+     * Czeka na zatrzymanie serwera.
+     * @param timeout maksymalny czas oczekiwania.
+     * @param unit jednostka czasu oczekiwania.
+     * @return true, gdy serwer został zatrzymany przed upływem czasu.
+     * @throws InterruptedException gdy oczekiwanie zostało przerwane.
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,66 @@
+package proz.communicator.model;
+
+import java.util.List;
+
+/**
+ * Interfejs odbiorcy wiadomości odebranych przez serwer.
+ * Model zależy tylko od tego interfejsu, dzięki czemu może działać zarówno z Widokiem JavaFX,
+ * jak i bez interfejsu graficznego.
+ */
+public interface MessageSink {
+
+    /**
+     * Przekazuje odebraną wiadomość odbiorcy.
+     * @param m odebrana wiadomość.
+     */
+    void write(Message m);
+
+    /**
+     * Przekazuje odbiorcy paczkę odebranych wiadomości.
+     * Domyślnie przekazuje wiadomości po kolei metodą write.
+     * @param messages odebrane wiadomości, w kolejności odebrania.
+     */
+    default void writeAll(List<Message> messages) {
+        for (Message m : messages)
+            write(m);
+    }
+
+    /**
+     * Przekazuje odbiorcy paczkę wiadomości, o ile może je przyjąć. Wiadomości z końca paczki, których odbiorca
+     * nie przyjął, nie są potwierdzane nadawcy, więc zostaną wysłane ponownie.
+     * Domyślnie odbiorca przyjmuje całą paczkę metodą writeAll.
+     * @param messages odebrane wiadomości, w kolejności odebrania.
+     * @return liczba przyjętych wiadomości z początku paczki.
+     */
+    default int offerAll(List<Message> messages) {
+        writeAll(messages);
+        return messages.size();
+    }
+
+    /**
+     * Przekazuje odbiorcy potwierdzenie odebrane od hosta, któremu wysyłano wiadomości.
+     * Domyślnie potwierdzenie jest pomijane.
+     * @param ack odebrane potwierdzenie.
+     */
+    default void acknowledge(Acknowledgement ack) {
+    }
+
+    /**
+     * Sprawdza czy odbiorca przyjmuje pliki (patrz FileTransfers) od hosta o zadanym adresie.
+     * Domyślnie pliki są odrzucane.
+     * @param senderAddress adres IP nadawcy pliku.
+     * @return true, gdy plik można odebrać.
+     */
+    default boolean acceptsFile(String senderAddress) {
+        return false;
+    }
+
+    /**
+     * Zwraca liczbę wiadomości przyjętych przez odbiorcę, ale jeszcze nieobsłużonych, np. czekających na Widok.
+     * Gdy rośnie, nadawcy dostają mniejszy kredyt (patrz Acknowledgement). Domyślnie odbiorca nie ma zaległości.
+     * @return liczba nieobsłużonych wiadomości.
+     */
+    default int getBacklog() {
+        return 0;
+    }
+}
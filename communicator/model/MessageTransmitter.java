@@ -1,56 +1,312 @@
 package proz.communicator.model;
 
+import proz.communicator.metrics.ConnectionStats;
+import proz.communicator.metrics.Metrics;
+
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Klasa służąca do nawiązywania połączenia z serwerem hosta i wysyłania mu wiadomości.
- * Dziedziczy po klasie Thread, aby wiadomości mogły być wysyłane w odzielnych wątkach.
+ * Jeden obiekt obsługuje jedno połączenie przez cały czas jego trwania - kanał jest otwierany raz
+ * i wykorzystywany do wysłania wielu wiadomości w postaci ramek (patrz MessageFrames).
+ * Po błędzie połączenie jest nawiązywane ponownie.
+ * Nadajnik nie czeka między próbami - ponawianiem z opóźnieniem zajmuje się skrzynka nadawcza (Outbox).
+ * Wiadomości wysyłane są przez wątki SendScheduler, który gwarantuje, że dla jednego nadajnika
+ * w danej chwili wysyłana jest co najwyżej jedna wiadomość.
+ *
+ * Wątki SendScheduler są wspólne dla wszystkich hostów, więc nawiązanie połączenia jest ograniczone przez
+ * CONNECT_TIMEOUT, a nawiązanie połączenia razem z zapisem przez WRITE_TIMEOUT. Zapis, który trwa dłużej,
+ * np. do hosta, który przestał odbierać, przerywa wspólny wątek nadzorujący, zamykając połączenie.
  */
-public class MessageTransmitter extends Thread {
+public class MessageTransmitter {
 
     /**
-     * Adres IP hosta.
+     * Maksymalna liczba prób wysłania jednej ramki. Druga próba, od razu na nowym połączeniu,
+     * obsługuje połączenie zerwane od czasu poprzedniej wiadomości. Dalsze próby, z opóźnieniem, planuje Outbox.
      */
-    private String hostAddress;
+    private static final int MAX_ATTEMPTS = 2;
+
+    /**
+     * Czas oczekiwania na nawiązanie połączenia TCP w milisekundach, z właściwości systemowej wazzup.connect.timeout.
+     */
+    private static final int CONNECT_TIMEOUT = Integer.getInteger("wazzup.connect.timeout", 5_000);
+
+    /**
+     * Maksymalny czas jednej próby wysłania (połączenie, uzgodnienie TLS i zapis) w milisekundach,
+     * z właściwości systemowej wazzup.write.timeout.
+     */
+    private static final long WRITE_TIMEOUT = Long.getLong("wazzup.write.timeout", 10_000);
+
+    /**
+     * Nadajniki, które właśnie łączą się z hostem lub zapisują do niego dane.
+     */
+    private static final Set<MessageTransmitter> WRITING = ConcurrentHashMap.newKeySet();
+
+    static {
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transmitter-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(10, Math.min(WRITE_TIMEOUT / 4, 1_000));
+        watchdog.scheduleWithFixedDelay(MessageTransmitter::abortStalled, period, period, TimeUnit.MILLISECONDS);
+    }
+
     /**
-     * Wiadomość do wysłania.
+     * Adres IP hosta.
      */
-    private Message message;
+    private String hostAddress;
     /**
      * Numer portu hosta.
      */
     private int port;
+    /**
+     * Kodek, którym kodowane są wysyłane wiadomości.
+     */
+    private MessageCodec codec;
+    /**
+     * Konfiguracja szyfrowania lub null, gdy połączenie nie jest szyfrowane.
+     */
+    private TlsContext tls;
+    /**
+     * Bufor na kodowane ramki, używany ponownie dla kolejnych wiadomości.
+     */
+    private ByteBuffer frameBuffer;
+    /**
+     * Blokujący kanał połączenia z hostem lub null, gdy połączenie nie jest nawiązane.
+     * Przy szyfrowaniu jest to kanał TLS działający na kanale połączenia TCP.
+     */
+    private volatile ByteChannel channel;
+    /**
+     * Kanał połączenia TCP, zamykany przez wątek nadzorujący bez blokady nadajnika, lub null.
+     */
+    private volatile SocketChannel socket;
+    /**
+     * Termin (System.nanoTime) zakończenia bieżącej próby wysłania, sprawdzany przez wątek nadzorujący.
+     */
+    private volatile long deadline;
+    /**
+     * Flaga mówiąca o tym czy nadajnik został zamknięty.
+     */
+    private volatile boolean closed = false;
 
 
     /**
      * Konstruktor klasy.
-     * @param message wiadomość do wysłania
      * @param hostAddress adres IP hosta
      * @param port numer portu hosta
+     * @param codec kodek, którym kodowane są wysyłane wiadomości
      */
-    public MessageTransmitter(Message message, String hostAddress, int port) {
-        this.message = message;
+    public MessageTransmitter(String hostAddress, int port, MessageCodec codec) {
+        this(hostAddress, port, codec, null);
+    }
+
+    /**
+     * Konstruktor klasy.
+     * @param hostAddress adres IP hosta
+     * @param port numer portu hosta
+     * @param codec kodek, którym kodowane są wysyłane wiadomości
+     * @param tls konfiguracja szyfrowania lub null dla połączenia nieszyfrowanego
+     */
+    public MessageTransmitter(String hostAddress, int port, MessageCodec codec, TlsContext tls) {
         this.hostAddress = hostAddress;
         this.port = port;
+        this.codec = codec;
+        this.tls = tls;
     }
 
     /**
-     * Wysyła wiadomość do hosta.
+     * Wysyła wiadomość do hosta, w razie potrzeby nawiązując połączenie ponownie.
+     * Metoda blokuje wątek do czasu wysłania wiadomości.
+     * @param message wiadomość do wysłania
+     * @throws IOException gdy nie udało się wysłać wiadomości po wszystkich próbach lub nadajnik został zamknięty.
      */
-    @Override
-    public void run() {
-        try {
-            Socket socket = new Socket(hostAddress, port);
+    public void send(Message message) throws IOException {
+        long encodeStart = System.nanoTime();
+        ByteBuffer frame = MessageFrames.encode(message, codec, frameBuffer);
+        frameBuffer = frame;
+        Metrics.get().serializeLatency.record(System.nanoTime() - encodeStart);
+
+        sendFrame(frame, message.getConnectionName());
+    }
 
-            try (ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream())) {
-                outputStream.writeObject(message);
+    /**
+     * Wysyła paczkę wiadomości do hosta jednym zapisem, w razie potrzeby nawiązując połączenie ponownie.
+     * @param messages wiadomości do wysłania, w kolejności.
+     * @throws IOException gdy nie udało się wysłać paczki po wszystkich próbach, nadajnik został zamknięty
+     * lub któraś z wiadomości nie mieści się w ramce.
+     */
+    public void sendAll(List<Message> messages) throws IOException {
+        if (messages.isEmpty())
+            return;
+
+        long encodeStart = System.nanoTime();
+        ByteBuffer batch = frameBuffer;
+        int length = 0;
+        for (Message message : messages) {
+            // Encode straight into the batch buffer, one frame after another.
+            int needed = MessageFrames.HEADER_LENGTH + codec.maxEncodedLength(message);
+            if (batch == null || batch.capacity() - length < needed) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(length + needed, batch == null ? 0 : batch.capacity() * 2));
+                if (batch != null) {
+                    batch.limit(length).position(0);
+                    bigger.put(batch);
+                }
+                batch = bigger;
+            }
+            batch.limit(batch.capacity()).position(length + MessageFrames.HEADER_LENGTH);
+            codec.encode(message, batch);
+            int frameLength = batch.position() - length - MessageFrames.HEADER_LENGTH;
+            MessageFrames.checkEncodedLength(frameLength);
+            batch.putInt(length, frameLength);
+            length = batch.position();
+        }
+        batch.limit(length).position(0);
+        frameBuffer = batch;
+        Metrics.get().serializeLatency.record(System.nanoTime() - encodeStart);
+
+        write(batch, messages.get(0).getConnectionName(), messages.size());
+    }
+
+    /**
+     * Wysyła gotową, zakodowaną ramkę do hosta, w razie potrzeby nawiązując połączenie ponownie.
+     * Bufor ramki nie jest modyfikowany, więc ta sama ramka (np. tylko do odczytu) może być
+     * wysyłana równolegle przez wiele nadajników.
+     * @param frame ramka wiadomości, od pozycji do limitu bufora.
+     * @param connectionName nazwa połączenia, na którego konto zapisywane są statystyki.
+     * @throws IOException gdy nie udało się wysłać ramki po wszystkich próbach lub nadajnik został zamknięty.
+     */
+    public void sendFrame(ByteBuffer frame, String connectionName) throws IOException {
+        write(frame, connectionName, 1);
+    }
+
+    /**
+     * Zapisuje ramki do kanału, w razie potrzeby nawiązując połączenie ponownie.
+     * @param frame ramki do wysłania, od pozycji do limitu bufora; bufor nie jest modyfikowany.
+     * @param connectionName nazwa połączenia, na którego konto zapisywane są statystyki.
+     * @param messages liczba wiadomości w buforze.
+     * @throws IOException gdy nie udało się wysłać ramek po wszystkich próbach lub nadajnik został zamknięty.
+     */
+    private void write(ByteBuffer frame, String connectionName, int messages) throws IOException {
+        Metrics metrics = Metrics.get();
+        ConnectionStats stats = metrics.connection(connectionName);
+
+        for (int attempt = 1; ; attempt++) {
+            if (closed) {
+                stats.failed();
+                throw new IOException("Transmitter is closed");
             }
 
-            socket.close();
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT);
+            WRITING.add(this);
+            try {
+                ByteChannel current = channel;
+                if (current == null) {
+                    long connectStart = System.nanoTime();
+                    current = connect();
+                    metrics.connectLatency.record(System.nanoTime() - connectStart);
+                }
+
+                long writeStart = System.nanoTime();
+                ByteBuffer view = frame.duplicate();    // Own position, the frame may be shared.
+                int frameLength = view.remaining();
+                while (view.hasRemaining())
+                    current.write(view);
+                metrics.writeLatency.record(System.nanoTime() - writeStart);
+                stats.sent(messages, frameLength);
+                return;
+            } catch (IOException e) {
+                closeSocket();
+                if (attempt == MAX_ATTEMPTS) {
+                    stats.failed();
+                    throw e;
+                }
+            } finally {
+                WRITING.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Sprawdza czy wiadomość zakodowana kodekiem nadajnika zmieści się w jednej ramce.
+     * @param message wiadomość do sprawdzenia.
+     * @throws IOException gdy wiadomość nie mieści się w ramce.
+     */
+    void checkMessage(Message message) throws IOException {
+        MessageFrames.checkMessage(message, codec);
+    }
+
+    /**
+     * Zamyka nadajnik i jego połączenie z hostem.
+     */
+    public void close() {
+        closed = true;
+        closeSocket();
+    }
+
+    /**
+     * Nawiązuje połączenie z hostem. Przy szyfrowaniu uzgadnia też połączenie TLS,
+     * wznawiając sesję z poprzedniego połączenia, jeśli to możliwe.
+     * @return kanał nowego połączenia.
+     * @throws IOException gdy nie udało się połączyć z hostem.
+     */
+    private synchronized ByteChannel connect() throws IOException {
+        SocketChannel opened = SocketChannel.open();
+        socket = opened;
+        try {
+            opened.socket().connect(new InetSocketAddress(hostAddress, port), CONNECT_TIMEOUT);
+            opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel = tls == null ? opened : tls.clientChannel(opened, hostAddress, port);
         } catch (IOException e) {
-            e.printStackTrace();
+            opened.close();
+            socket = null;
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Zamyka połączenia nadajników, których próba wysłania przekroczyła WRITE_TIMEOUT. Zablokowany zapis
+     * kończy się wtedy wyjątkiem i zwalnia wątek SendScheduler. Wykonywana okresowo przez wątek nadzorujący.
+     */
+    private static void abortStalled() {
+        long now = System.nanoTime();
+        for (MessageTransmitter transmitter : WRITING) {
+            SocketChannel stalled = transmitter.socket;
+            if (stalled == null || now - transmitter.deadline < 0)
+                continue;
+            Metrics.get().sendTimeouts.increment();
+            try {
+                stalled.close();
+            } catch (IOException e) {
+                // Closing is all that can be done, the writer sees the failure.
+            }
+        }
+    }
+
+    /**
+     * Zamyka kanał połączenia, jeśli jest otwarty.
+     */
+    private synchronized void closeSocket() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        channel = null;
+        socket = null;
     }
 }
@@ -1,9 +1,30 @@
 package proz.communicator.model;
 
-import proz.communicator.controller.Controller;
+import proz.communicator.metrics.Metrics;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 
 /**
@@ -12,19 +33,154 @@ import java.util.List;
 public class Model {
 
     /**
-     * Serwer nasłuchujący wiadomości.
+     * Nazwa serwera uruchamianego metodą startServerListening na porcie serverPort.
      */
-    private MessageListener messageListener;
+    public static final String DEFAULT_LISTENER = "default";
 
     /**
-     * Obiekt służący do nawiązywania połączenia i wysyłania wiadomości.
+     * Działające serwery nasłuchujące wiadomości według nazwy. Każda nazwa to osobna tożsamość
+     * na własnym porcie lub interfejsie, wszystkie przekazują wiadomości temu samemu odbiorcy.
      */
-    private MessageTransmitter messageTransmitter;
+    private final Map<String, MessageServer> listeners = new ConcurrentHashMap<>();
 
     /**
-     * Lista nawiązanych połączeń.
+     * Porty serwerów, które zajęły port, według nazwy serwera.
      */
-    private List<Connection> connections;
+    private final Map<String, Integer> listenerPorts = new ConcurrentHashMap<>();
+
+    /**
+     * Nazwa serwera, którego port jest ogłaszany w kopercie wiadomości (port zwrotny potwierdzeń)
+     * i przez wykrywanie hostów, lub null, gdy żaden serwer nie działa.
+     */
+    private String advertisedListener;
+
+    /**
+     * Wspólny wątek NIO obsługujący wszystkie serwery w trybie NIO lub null, gdy nie został jeszcze uruchomiony.
+     */
+    private NioMessageListener ioGroup;
+
+    /**
+     * Future zakończony po uruchomieniu wspólnego wątku NIO.
+     */
+    private CompletableFuture<Void> ioGroupStarted;
+
+    /**
+     * Flaga mówiąca o tym czy serwer ma korzystać z nieblokującego wejścia/wyjścia (NIO).
+     */
+    private boolean nioListenerEnabled = true;
+
+    /**
+     * Flaga mówiąca o tym czy serwer ma działać jako przekaźnik (hub) między klientami.
+     */
+    private boolean relayEnabled = false;
+
+    /**
+     * Połączenie z hubem lub null, gdy Model nie jest klientem żadnego huba.
+     */
+    private RelayClient relayClient;
+
+    /**
+     * Wykrywanie hostów w sieci lokalnej lub null, gdy nie jest uruchomione.
+     */
+    private PeerDiscovery discovery;
+
+    /**
+     * Nazwa, pod którą przedstawia się wykrywanie hostów, zapamiętana do jego ponownego uruchomienia z innym portem.
+     */
+    private String discoveryName;
+
+    /**
+     * Funkcja powiadamiana o połączeniach dodanych przez wykrywanie hostów.
+     */
+    private Consumer<Connection> discoveryCallback;
+
+    /**
+     * Kodek, którym kodowane są wysyłane wiadomości.
+     * Domyślnie wybierany przy starcie na podstawie właściwości systemowych wazzup.codec ("binary", "binary-v1" lub "serialized")
+     * i wazzup.compression (patrz MessageCodecs.fromProperties).
+     */
+    private MessageCodec codec = MessageCodecs.fromProperties();
+
+    /**
+     * Konfiguracja szyfrowania połączeń lub null, gdy połączenia nie są szyfrowane.
+     * Wybierana przy starcie na podstawie właściwości systemowych (patrz TlsContext.fromProperties).
+     */
+    private TlsContext tls = TlsContext.fromProperties();
+
+    /**
+     * Obiekty służące do wysyłania wiadomości, po jednym dla każdego nawiązanego połączenia.
+     * Kluczem jest nazwa połączenia.
+     */
+    private Map<String, MessageTransmitter> transmitters;
+
+    /**
+     * Planista wysyłający wiadomości przez nadajniki połączeń.
+     */
+    private SendScheduler sendScheduler;
+
+    /**
+     * Skrzynki nadawcze połączeń, przez które wysyłane są wszystkie wiadomości do pojedynczych połączeń.
+     */
+    private Outbox outbox;
+
+    /**
+     * Wątki przesyłające pliki, oddzielne od planisty wiadomości, by duże pliki nie opóźniały wiadomości.
+     */
+    private ExecutorService fileTransfers;
+
+    /**
+     * Maksymalna liczba prób wysłania pliku. Każda kolejna próba wznawia przesyłanie od miejsca przerwania.
+     */
+    private static final int FILE_ATTEMPTS = 3;
+
+    /**
+     * Funkcja powiadamiana o zmianach stanu dostarczenia wiadomości i plików.
+     */
+    private volatile Consumer<String> deliveryListener = name -> { };
+
+    /**
+     * Rejestr nawiązanych połączeń.
+     */
+    private ConnectionRegistry connections;
+
+    /**
+     * Grupy połączeń według nazwy grupy.
+     */
+    private Map<String, ConnectionGroup> groups;
+
+    /**
+     * Zezwolenia ograniczające liczbę jednocześnie wysyłanych kopii wiadomości grupowych.
+     * Domyślna liczba pobierana jest z właściwości systemowej wazzup.broadcast.concurrency.
+     */
+    private volatile SendPermits broadcastPermits = new SendPermits(Integer.getInteger("wazzup.broadcast.concurrency", 16));
+
+    /**
+     * Historie rozmów według nazwy połączenia.
+     */
+    private Map<String, MessageHistory> histories;
+
+    /**
+     * Maksymalna liczba wpisów przechowywanych w historii jednej rozmowy.
+     * Domyślnie pobierana z właściwości systemowej wazzup.history.capacity.
+     */
+    private int historyCapacity = Integer.getInteger("wazzup.history.capacity", 10_000);
+
+    /**
+     * Liczba ostatnich wpisów wczytywanych z dziennika przy otwieraniu historii rozmowy.
+     */
+    private static final int JOURNAL_PRELOAD = 500;
+
+    /**
+     * Dziennik zapisujący wszystkie wiadomości na dysku lub null, gdy dziennik jest wyłączony
+     * lub nie udało się go otworzyć.
+     * Można go wyłączyć właściwością systemową wazzup.journal=false.
+     */
+    private MessageJournal journal;
+
+    /**
+     * Indeks pełnotekstowy wszystkich zapisanych wiadomości.
+     */
+    private SearchIndex searchIndex;
 
     /**
      * Numer portu serwera nasłuchującego wiadomości.
@@ -32,105 +188,952 @@ public class Model {
     private int serverPort;
 
     /**
-     * Wskazanie na kontroler programu.
+     * Odbiorca wiadomości odebranych przez serwer. Przypisuje wiadomości do rozmów (patrz MessageRouter).
+     */
+    private MessageSink sink;
+
+    /**
+     * Odbiorca przypisujący wiadomości do rozmów i odsyłający potwierdzenia ich odbioru.
+     */
+    private final MessageRouter router;
+
+    /**
+     * Tożsamość tej instancji zapisywana w kopercie wysyłanych wiadomości.
      */
-    private Controller controller;
+    private final SenderIdentity identity = SenderIdentity.fromProperties();
 
     /**
      * Konstruktor klasy Model.
-     * @param controller kontroler programu sterujący modelem.
+     * @param sink odbiorca wiadomości odebranych przez serwer, np. kolejka Widoku lub konsola.
      */
-    public Model(Controller controller) {
-        this.controller = controller;
-        connections = new ArrayList<>();
+    public Model(MessageSink sink) {
+        this.router = new MessageRouter(this, sink);
+        this.sink = router;
+        connections = new ConnectionRegistry();
+        transmitters = new ConcurrentHashMap<>();
+        histories = new ConcurrentHashMap<>();
+        groups = new ConcurrentHashMap<>();
+
+        searchIndex = new SearchIndex();
+        OutboxStore outboxStore = null;
+
+        // The search index and the outboxes are persisted only together with the journal.
+        // Each is opened on its own, so one that fails does not leave the others closed.
+        if (Boolean.parseBoolean(System.getProperty("wazzup.journal", "true"))) {
+            try {
+                journal = new MessageJournal(MessageJournal.defaultDirectory());
+            } catch (IOException e) {
+                e.printStackTrace();    // Runs without the journal, history lives only in memory.
+            }
+            try {
+                searchIndex = SearchIndex.load(SearchIndex.defaultFile());
+            } catch (IOException e) {
+                e.printStackTrace();    // Starts with an empty index, new messages are still indexed.
+            }
+            try {
+                outboxStore = new OutboxStore(OutboxStore.defaultDirectory());
+            } catch (IOException e) {
+                e.printStackTrace();    // Outboxes are kept only in memory.
+            }
+        }
+        sendScheduler = new SendScheduler(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        outbox = new Outbox(sendScheduler, outboxStore, identity);
+
+        AtomicInteger transferThreads = new AtomicInteger();
+        fileTransfers = Executors.newFixedThreadPool(2, task -> {
+            Thread thread = new Thread(task, "file-transfer-" + transferThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * Rozpoczyna działanie serwera nasłuchującego wiadomości.
+     * Rozpoczyna działanie serwera nasłuchującego wiadomości. Nie czeka na zajęcie portu.
+     * @return future zakończony, gdy serwer zajął port, lub wyjątkiem (np. BindException), gdy to się nie udało.
      */
-    public void startServerListening() {
-        messageListener = new MessageListener(controller, serverPort);
-        messageListener.start();
+    public CompletableFuture<Void> startServerListening() {
+        return startListener(DEFAULT_LISTENER, new InetSocketAddress(serverPort));
     }
 
     /**
-     * Kończy działanie serwera nasłuchującego wiadomości.
+     * Kończy działanie serwera nasłuchującego wiadomości. Nie czeka na zatrzymanie serwera,
+     * więc może być wywołana z wątku Widoku.
+     * @return future zakończony, gdy serwer zwolnił port i zamknął wszystkie połączenia.
      */
-    public void stopServerListening() {
+    public CompletableFuture<Void> stopServerListening() {
+        return stopListener(DEFAULT_LISTENER);
+    }
 
-        messageListener.setListenFlag(false);
+    /**
+     * Uruchamia nazwany serwer nasłuchujący na zadanym adresie. Nie czeka na zajęcie portu.
+     * W trybie NIO wszystkie serwery są punktami nasłuchiwania jednego wspólnego wątku (patrz NioMessageListener),
+     * w pozostałych trybach każdy serwer ma własny wątek. Odebrane wiadomości niosą nazwę serwera
+     * (patrz Message.getListenerName). Pierwszy działający serwer staje się serwerem ogłaszanym
+     * (patrz advertiseListener).
+     * @param name nazwa serwera, np. nazwa tożsamości.
+     * @param address adres i port, na którym ma słuchać serwer; adres wieloznaczny oznacza wszystkie interfejsy.
+     * @return future zakończony, gdy serwer zajął port, lub wyjątkiem, gdy to się nie udało lub nazwa jest zajęta.
+     */
+    public CompletableFuture<Void> startListener(String name, InetSocketAddress address) {
+        MessageServer server;
+        CompletableFuture<Void> started;
+        synchronized (this) {
+            if (listeners.containsKey(name))
+                return failedSend(new IllegalStateException("Listener " + name + " is already running"));
 
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            MessageSink named = new NamedSink(name, sink);
+            if (relayEnabled) {
+                server = new RelayServer(named, address);
+                started = server.startListening();
+            } else if (nioListenerEnabled) {
+                MessageServer endpoint = ioGroup().endpoint(name, address, sink);
+                server = endpoint;
+                started = ioGroupStarted.thenCompose(ignored -> endpoint.startListening());
+            } else {
+                server = new MessageListener(named, address, tls, ListenerSettings.fromProperties());
+                started = server.startListening();
+            }
+            listeners.put(name, server);
         }
 
-        messageListener.stopListening();
+        // A listener that could not bind frees its name before the caller learns about the failure.
+        return started.whenComplete((ignored, error) -> {
+            if (error != null) {
+                listeners.remove(name, server);
+                return;
+            }
+            synchronized (this) {
+                if (listeners.get(name) != server)
+                    return;     // Stopped meanwhile.
+                listenerPorts.put(name, address.getPort());
+                if (advertisedListener == null)
+                    advertise(name);
+            }
+        });
+    }
+
+    /**
+     * Zatrzymuje nazwany serwer nasłuchujący. Nie czeka na zatrzymanie, pozostałe serwery działają dalej.
+     * Gdy był to serwer ogłaszany, ogłaszany jest jeden z pozostałych, a gdy nie ma żadnego,
+     * wiadomości przestają wskazywać port zwrotny, a wykrywanie hostów jest zatrzymywane.
+     * @param name nazwa serwera.
+     * @return future zakończony, gdy serwer zwolnił port i zamknął swoje połączenia.
+     */
+    public CompletableFuture<Void> stopListener(String name) {
+        MessageServer server;
+        synchronized (this) {
+            server = listeners.remove(name);
+            if (server == null)
+                return CompletableFuture.completedFuture(null);
+            listenerPorts.remove(name);
+            if (name.equals(advertisedListener)) {
+                Iterator<String> remaining = listenerPorts.keySet().iterator();
+                advertise(remaining.hasNext() ? remaining.next() : null);
+            }
+        }
+        return server.stopListening();
+    }
+
+    /**
+     * Wybiera serwer, którego port jest ogłaszany: podawany w kopercie wysyłanych wiadomości jako port,
+     * na który odbiorcy wysyłają potwierdzenia, i ogłaszany innym hostom przez wykrywanie.
+     * @param name nazwa działającego serwera.
+     * @return true, gdy serwer został wybrany, false gdy nie ma działającego serwera o tej nazwie.
+     */
+    public synchronized boolean advertiseListener(String name) {
+        if (!listenerPorts.containsKey(name))
+            return false;
+        if (!name.equals(advertisedListener))
+            advertise(name);
+        return true;
+    }
+
+    /**
+     * Getter nazwy ogłaszanego serwera.
+     * @return nazwa serwera, którego port jest ogłaszany, lub null, gdy żaden serwer nie działa.
+     */
+    public synchronized String getAdvertisedListener() {
+        return advertisedListener;
+    }
 
+    /**
+     * Ogłasza port zadanego serwera w kopercie wiadomości i, jeśli wykrywanie hostów działa, uruchamia je
+     * ponownie z tym portem.
+     * @param name nazwa działającego serwera lub null, gdy żaden serwer nie działa.
+     */
+    private synchronized void advertise(String name) {
+        advertisedListener = name;
+        int port = name == null ? 0 : listenerPorts.get(name);
+        // Zero tells receivers there is nowhere to send acknowledgements, so nothing waits for them.
+        identity.setReplyPort(port);
+        if (discovery == null)
+            return;
+        stopDiscovery();
+        if (name == null)
+            return;
         try {
-            messageListener.join();
-        } catch (InterruptedException e) {
+            startDiscovery(discoveryName, discoveryCallback);
+        } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        messageListener = null;
+    /**
+     * Getter nazw działających serwerów nasłuchujących.
+     * @return niemodyfikowalny widok nazw.
+     */
+    public Collection<String> getListenerNames() {
+        return Collections.unmodifiableSet(listeners.keySet());
+    }
+
+    /**
+     * Zwraca wspólny wątek NIO, uruchamiając go przy pierwszym użyciu.
+     * @return wspólny wątek NIO.
+     */
+    private synchronized NioMessageListener ioGroup() {
+        if (ioGroup == null) {
+            ioGroup = new NioMessageListener(tls);
+            ioGroupStarted = ioGroup.startListening();
+        }
+        return ioGroup;
+    }
+
+    /**
+     * Rozpoczyna wykrywanie hostów w sieci lokalnej (patrz PeerDiscovery). Ogłasza port ogłaszanego serwera
+     * (patrz advertiseListener) pod zadaną nazwą, a każdy nowy host dodaje jako połączenie.
+     * Jeśli nazwa jest już zajęta przez inne połączenie, do nazwy dopisywany jest adres hosta.
+     * @param displayName nazwa, pod którą ta instancja przedstawia się innym hostom.
+     * @param connectionAdded funkcja wywoływana z wątku wykrywania dla każdego dodanego połączenia.
+     * @throws IOException gdy nie udało się dołączyć do grupy multicast.
+     */
+    public synchronized void startDiscovery(String displayName, Consumer<Connection> connectionAdded) throws IOException {
+        if (discovery != null)
+            return;
+        discoveryName = displayName;
+        discoveryCallback = connectionAdded;
+        int port = identity.getReplyPort() != 0 ? identity.getReplyPort() : serverPort;
+        PeerDiscovery started = PeerDiscovery.fromProperties(displayName, port, new PeerDiscovery.Listener() {
+            @Override
+            public void peerFound(DiscoveredPeer peer) {
+                Connection connection = addPeerConnection(peer.getName(), peer.getHostAddress(), peer.getHostPort());
+                if (connection != null)
+                    connectionAdded.accept(connection);
+            }
+
+            @Override
+            public void peerLost(DiscoveredPeer peer) {
+                // The connection stays, together with its history and undelivered messages.
+            }
+        });
+        started.startDiscovery();
+        discovery = started;
+    }
+
+    /**
+     * Kończy wykrywanie hostów. Połączenia dodane przez wykrywanie pozostają.
+     */
+    public synchronized void stopDiscovery() {
+        if (discovery != null) {
+            discovery.stopDiscovery();
+            discovery = null;
+        }
     }
 
     /**
-     * Setter numeru portu serwera.
+     * Getter wykrytych hostów.
+     * @return hosty obecnie widoczne w sieci lokalnej lub pusta kolekcja, gdy wykrywanie nie działa.
+     */
+    public synchronized Collection<DiscoveredPeer> getDiscoveredPeers() {
+        return discovery == null ? Collections.emptyList() : discovery.getPeers();
+    }
+
+    /**
+     * Dodaje połączenie z hostem wykrytym w sieci, o ile nie ma jeszcze
+     * połączenia z jego serwerem. Jeśli nazwa jest zajęta przez inne połączenie, dopisywany jest do niej adres hosta.
+     * @param name nazwa, pod którą przedstawia się host.
+     * @param hostAddress adres IP hosta.
+     * @param hostPort numer portu serwera hosta.
+     * @return dodane połączenie lub null, gdy połączenie z tym serwerem już istnieje.
+     */
+    synchronized Connection addPeerConnection(String name, String hostAddress, int hostPort) {
+        if (getConnection(hostAddress, hostPort) != null)
+            return null;
+        if (hasConnection(name))
+            name = name + "@" + hostAddress + ":" + hostPort;
+        if (!addNewConnection(hostAddress, hostPort, name))
+            return null;
+        return getConnection(name);
+    }
+
+    /**
+     * Sprawdza czy rozmowa należy do hosta, który napisał pierwszy i czeka na przyjęcie (patrz acceptPeer).
+     * @param conversationName nazwa rozmowy.
+     * @return true, gdy host czeka na przyjęcie.
+     */
+    public boolean isPendingPeer(String conversationName) {
+        return router.isPending(conversationName);
+    }
+
+    /**
+     * Przyjmuje hosta, który przysłał wiadomości, a z którego serwerem nie ma połączenia (patrz MessageRouter):
+     * nawiązuje połączenie z jego serwerem pod nazwą jego rozmowy, więc można mu odpowiadać,
+     * a on dostaje potwierdzenia. Takie hosty nie są przyjmowane samoczynnie.
+     * @param conversationName nazwa rozmowy hosta.
+     * @return połączenie z hostem lub null, gdy żaden host nie czeka na przyjęcie pod tą nazwą.
+     */
+    public synchronized Connection acceptPeer(String conversationName) {
+        InetSocketAddress server = router.accept(conversationName);
+        if (server == null)
+            return null;
+        Connection existing = getConnection(server.getHostString(), server.getPort());
+        if (existing != null)
+            return existing;
+        if (!addNewConnection(server.getHostString(), server.getPort(), conversationName))
+            return null;
+        return getConnection(conversationName);
+    }
+
+    /**
+     * Setter numeru portu serwera uruchamianego metodą startServerListening. Dopóki żaden serwer nie działa,
+     * ten port jest też ogłaszany jako port zwrotny; potem ogłaszany jest port wybranego serwera.
      * @param port numer portu serwera.
      */
-    public void setServerPort(int port) {
+    public synchronized void setServerPort(int port) {
         serverPort = port;
+        if (advertisedListener == null)
+            identity.setReplyPort(port);
     }
 
     /**
-     * Getter listy nawiązanych połączeń.
-     * @return lista połączeń.
+     * Wybiera implementację serwera używaną przy kolejnym uruchomieniu nasłuchiwania.
+     * @param enabled true dla serwera opartego na selektorze NIO, false dla serwera z wątkiem na połączenie.
      */
-    public List<Connection> getConnections() {
-        return connections;
+    public void setNioListenerEnabled(boolean enabled) {
+        nioListenerEnabled = enabled;
     }
 
+    /**
+     * Wybiera tryb pracy serwera przy kolejnym uruchomieniu nasłuchiwania.
+     * @param enabled true, gdy serwer ma przekazywać wiadomości między klientami huba.
+     */
+    public void setRelayEnabled(boolean enabled) {
+        relayEnabled = enabled;
+    }
 
     /**
-     * Dodaje nowe połączenie do listy połączeń.
+     * Wybiera kodek używany przez połączenia nawiązane od tej chwili.
+     * Serwer rozpoznaje format nadawcy samodzielnie, niezależnie od tego ustawienia.
+     * @param codec kodek wysyłanych wiadomości.
+     */
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Getter nawiązanych połączeń.
+     * @return niemodyfikowalny widok połączeń.
+     */
+    public Collection<Connection> getConnections() {
+        return connections.getAll();
+    }
+
+
+    /**
+     * Dodaje nowe połączenie do rejestru połączeń.
      * @param hostAddress adres IP hosta.
      * @param hostPort numer portu hosta.
      * @param connectionName nazwa połączenia.
+     * @return true, gdy połączenie zostało dodane, false gdy istnieje już połączenie o tej nazwie.
+     */
+    public boolean addNewConnection(String hostAddress, int hostPort, String connectionName) {
+        if (!connections.add(new Connection(hostAddress, hostPort, connectionName)))
+            return false;
+
+        MessageTransmitter transmitter = new MessageTransmitter(hostAddress, hostPort, codec, tls);
+        transmitters.put(connectionName, transmitter);
+        // Resumes messages left undelivered by the previous run.
+        outbox.attach(connectionName, transmitter);
+        return true;
+    }
+
+    /**
+     * Usuwa połączenie o zadanej nazwie z rejestru połączeń i zamyka jego kanał do hosta.
+     * @param connectionName nazwa połączenia.
+     */
+    public void deleteConnection(String connectionName) {
+        connections.remove(connectionName);
+        outbox.discard(connectionName);
+
+        MessageTransmitter transmitter = transmitters.remove(connectionName);
+        if (transmitter != null) {
+            sendScheduler.forget(transmitter);
+            transmitter.close();
+        }
+
+        for (ConnectionGroup group : groups.values())
+            group.removeMember(connectionName);
+    }
+
+    /**
+     * Tworzy grupę połączeń.
+     * @param groupName nazwa grupy.
+     * @param members nazwy połączeń należących do grupy.
+     * @return true, gdy grupa została utworzona, false gdy istnieje już grupa o tej nazwie.
      */
-    public void addNewConnection(String hostAddress, int hostPort, String connectionName) {
-        connections.add(new Connection(hostAddress, hostPort, connectionName));
+    public boolean createGroup(String groupName, Collection<String> members) {
+        return groups.putIfAbsent(groupName, new ConnectionGroup(groupName, members)) == null;
     }
 
+    /**
+     * Usuwa grupę połączeń. Połączenia członków pozostają nawiązane.
+     * @param groupName nazwa grupy.
+     */
+    public void deleteGroup(String groupName) {
+        groups.remove(groupName);
+    }
 
     /**
-     * Zwraca połączanie o zadanej nazwie z listy nawiązanych połączeń.
+     * Zwraca grupę o zadanej nazwie.
+     * @param groupName nazwa grupy.
+     * @return grupa lub null, gdy nie ma grupy o zadanej nazwie.
+     */
+    public ConnectionGroup getGroup(String groupName) {
+        return groups.get(groupName);
+    }
+
+    /**
+     * Getter grup połączeń.
+     * @return niemodyfikowalny widok grup.
+     */
+    public Collection<ConnectionGroup> getGroups() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    /**
+     * Setter maksymalnej liczby jednocześnie wysyłanych kopii wiadomości grupowych.
+     * Dotyczy wiadomości grupowych zlecanych od tej chwili.
+     * @param concurrency maksymalna liczba jednocześnie trwających wysłań, co najmniej 1.
+     */
+    public void setBroadcastConcurrency(int concurrency) {
+        broadcastPermits = new SendPermits(concurrency);
+    }
+
+
+    /**
+     * Zwraca połączanie o zadanej nazwie z rejestru połączeń.
      * @param connectionName nazwa połączenia.
      * @return połączenie lub null, gdy nie ma połączenia o zadanej nazwie.
      */
     public Connection getConnection(String connectionName) {
-        for(Connection connection : connections) {
-            if (connection.getConnectionName().equals(connectionName))
-                return connection;
+        return connections.get(connectionName);
+    }
+
+    /**
+     * Zwraca połączenie z hostem o zadanym adresie i porcie.
+     * @param hostAddress adres IP hosta.
+     * @param hostPort numer portu hosta.
+     * @return połączenie lub null, gdy nie ma połączenia z takim hostem.
+     */
+    public Connection getConnection(String hostAddress, int hostPort) {
+        return connections.getByAddress(hostAddress, hostPort);
+    }
+
+    /**
+     * Sprawdza czy jest połączenie z którymkolwiek serwerem hosta o zadanym adresie IP.
+     * @param ipAddress adres IP hosta.
+     * @return true, gdy takie połączenie istnieje.
+     */
+    boolean isConnectedTo(String ipAddress) {
+        for (Connection candidate : connections.getAll()) {
+            if (candidate.getHostAddress().equals(ipAddress))
+                return true;
+            try {
+                if (InetAddress.getByName(candidate.getHostAddress()).getHostAddress().equals(ipAddress))
+                    return true;
+            } catch (UnknownHostException e) {
+                // Not resolvable, so not this host.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Zwraca połączenie z serwerem o zadanym adresie IP i porcie, również wtedy, gdy połączenie
+     * zostało dodane z nazwą hosta zamiast adresu IP. Nazwy hostów są wtedy rozwiązywane, więc metoda
+     * jest przeznaczona do jednorazowego wyszukania, a nie dla każdej wiadomości.
+     * @param ipAddress adres IP hosta.
+     * @param hostPort numer portu hosta.
+     * @return połączenie lub null, gdy nie ma połączenia z tym serwerem.
+     */
+    Connection findConnection(String ipAddress, int hostPort) {
+        Connection connection = connections.getByAddress(ipAddress, hostPort);
+        if (connection != null)
+            return connection;
+        for (Connection candidate : connections.getAll()) {
+            if (candidate.getHostPort() != hostPort)
+                continue;
+            try {
+                if (InetAddress.getByName(candidate.getHostAddress()).getHostAddress().equals(ipAddress))
+                    return candidate;
+            } catch (UnknownHostException e) {
+                // Not resolvable, so not this host.
+            }
         }
         return null;
     }
 
     /**
-     * Tworzy obiekt klasy Message z zadanymi argumentami.
-     * Tworzy obiekt klasy MessageTransmiter i z jego pomocą wysysła obiekt klasy Message.
+     * Sprawdza czy istnieje połączenie o zadanej nazwie.
+     * @param connectionName nazwa połączenia.
+     * @return true, gdy połączenie istnieje.
+     */
+    public boolean hasConnection(String connectionName) {
+        return connections.contains(connectionName);
+    }
+
+    /**
+     * Setter pojemności historii rozmów. Dotyczy historii tworzonych od tej chwili.
+     * @param capacity maksymalna liczba wpisów w historii jednej rozmowy.
+     */
+    public void setHistoryCapacity(int capacity) {
+        historyCapacity = capacity;
+    }
+
+    /**
+     * Zwraca historię rozmowy o zadanej nazwie, tworząc ją, jeśli jeszcze nie istnieje.
+     * Nowa historia wypełniana jest ostatnimi wpisami z dziennika.
+     * @param connectionName nazwa połączenia.
+     * @return historia rozmowy.
+     */
+    public MessageHistory getHistory(String connectionName) {
+        return histories.computeIfAbsent(connectionName, this::loadHistory);
+    }
+
+    /**
+     * Tworzy historię rozmowy i wczytuje do niej ostatnie wpisy z dziennika.
+     * @param connectionName nazwa połączenia.
+     * @return nowa historia rozmowy.
+     */
+    private MessageHistory loadHistory(String connectionName) {
+        if (journal == null)
+            return new MessageHistory(historyCapacity);
+
+        try {
+            List<HistoryEntry> entries = journal.readLast(connectionName, Math.min(historyCapacity, JOURNAL_PRELOAD));
+            // Keep the journal numbering, the search index points at entries by these numbers.
+            MessageHistory history = new MessageHistory(historyCapacity, entries.isEmpty() ? 0 : entries.get(0).getSequence());
+            for (HistoryEntry entry : entries)
+                history.add(entry.getTimestamp(), entry.getDirection(), entry.getAuthor(), entry.getText());
+            return history;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new MessageHistory(historyCapacity);
+        }
+    }
+
+    /**
+     * Zapisuje wiadomość w historii rozmowy.
+     * @param connectionName nazwa połączenia.
+     * @param direction kierunek wiadomości.
+     * @param author nazwa autora wyświetlana przy wiadomości.
+     * @param text treść wiadomości.
+     * @return nowy wpis historii.
+     */
+    public HistoryEntry recordMessage(String connectionName, HistoryEntry.Direction direction, String author, String text) {
+        HistoryEntry entry = getHistory(connectionName).add(System.currentTimeMillis(), direction, author, text);
+        if (journal != null)
+            journal.append(connectionName, entry);
+        searchIndex.add(connectionName, entry.getSequence(), entry.getTimestamp(), text);
+        return entry;
+    }
+
+    /**
+     * Wyszukuje w historii wszystkich rozmów wiadomości zawierające wszystkie słowa zapytania.
+     * @param query zapytanie.
+     * @param limit maksymalna liczba wyników.
+     * @return wyniki od najnowszej wiadomości.
+     */
+    public List<SearchIndex.Hit> search(String query, int limit) {
+        return searchIndex.search(query, limit);
+    }
+
+    /**
+     * Dodaje wiadomość do skrzynki nadawczej połączenia, która wyśle ją, gdy host będzie dostępny.
      * @param message treść wiadomości.
      * @param connection połączenie, do którego zostanie skierowana wiadomość.
+     * @return future zakończony po dostarczeniu wiadomości lub wyjątkiem, gdy wiadomość została odrzucona.
      */
-    public void sendMessage(String message, Connection connection) {
-        String hostAddress = connection.getHostAddress();
-        String connectionName = connection.getConnectionName();
-        int port = connection.getHostPort();
+    public CompletableFuture<Void> sendMessage(String message, Connection connection) {
+        return sendMessage(message, connection, null);
+    }
+
+    /**
+     * Dodaje wiadomość do skrzynki nadawczej połączenia, która wyśle ją, gdy host będzie dostępny.
+     * Stan dostarczenia wiadomości jest na bieżąco ustawiany we wpisie historii.
+     * @param message treść wiadomości.
+     * @param connection połączenie, do którego zostanie skierowana wiadomość.
+     * @param entry wpis historii odpowiadający wiadomości lub null.
+     * @return future zakończony po dostarczeniu wiadomości lub wyjątkiem, gdy wiadomość została odrzucona.
+     */
+    public CompletableFuture<Void> sendMessage(String message, Connection connection, HistoryEntry entry) {
+        if (connection == null) {
+            if (entry != null)
+                entry.setDeliveryState(HistoryEntry.DeliveryState.FAILED);
+            return failedSend(new IOException("No such connection"));
+        }
+        return outbox.enqueue(connection.getConnectionName(), message, entry);
+    }
+
+    /**
+     * Setter funkcji powiadamianej o zmianach stanu dostarczenia wiadomości.
+     * Wywoływana jest z wątków wysyłających, nie z wątku Widoku.
+     * @param listener funkcja przyjmująca nazwę połączenia, którego wiadomości zmieniły stan.
+     */
+    public void setDeliveryListener(Consumer<String> listener) {
+        deliveryListener = listener;
+        outbox.setDeliveryListener(listener);
+    }
+
+    /**
+     * Wysyła plik do hosta osobnym połączeniem, w wątku przesyłania plików.
+     * Przerwane przesyłanie jest ponawiane i wznawiane od miejsca, w którym zostało przerwane.
+     * Stan dostarczenia pliku jest na bieżąco ustawiany we wpisie historii.
+     * @param file plik do wysłania.
+     * @param connection połączenie, do którego zostanie skierowany plik.
+     * @param entry wpis historii odpowiadający plikowi lub null.
+     * @return future zakończony po odebraniu i sprawdzeniu pliku przez hosta lub wyjątkiem, gdy wysłanie się nie powiodło.
+     */
+    public CompletableFuture<Void> sendFile(Path file, Connection connection, HistoryEntry entry) {
+        if (connection == null) {
+            if (entry != null)
+                entry.setDeliveryState(HistoryEntry.DeliveryState.FAILED);
+            return failedSend(new IOException("No such connection"));
+        }
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        try {
+            fileTransfers.execute(() -> transferFile(file, connection, entry, sent));
+        } catch (RejectedExecutionException e) {
+            sent.completeExceptionally(e);
+        }
+        return sent;
+    }
 
-        Message messageToSend = new Message(message, connectionName);
-        messageTransmitter = new MessageTransmitter(messageToSend, hostAddress, port);
-        messageTransmitter.start();
+    /**
+     * Przesyła plik, ponawiając próby po przerwaniu. Wykonywana w wątku przesyłania plików.
+     * @param file plik do wysłania.
+     * @param connection połączenie, do którego zostanie skierowany plik.
+     * @param entry wpis historii odpowiadający plikowi lub null.
+     * @param sent future kończony po zakończeniu przesyłania.
+     */
+    private void transferFile(Path file, Connection connection, HistoryEntry entry, CompletableFuture<Void> sent) {
+        IOException failure = null;
+        for (int attempt = 1; attempt <= FILE_ATTEMPTS; attempt++) {
+            try {
+                FileTransfers.send(file, connection.getHostAddress(), connection.getHostPort(), connection.getConnectionName(), tls);
+                failure = null;
+                break;
+            } catch (IOException e) {
+                failure = e;
+                if (entry != null)
+                    entry.setDeliveryState(HistoryEntry.DeliveryState.QUEUED);
+                deliveryListener.accept(connection.getConnectionName());
+                if (attempt == FILE_ATTEMPTS)
+                    break;
+                try {
+                    Thread.sleep(Outbox.retryDelay(attempt));
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+
+        if (entry != null)
+            entry.setDeliveryState(failure == null ? HistoryEntry.DeliveryState.DELIVERED : HistoryEntry.DeliveryState.FAILED);
+        deliveryListener.accept(connection.getConnectionName());
+        if (failure == null)
+            sent.complete(null);
+        else
+            sent.completeExceptionally(failure);
+    }
+
+    /**
+     * Wysyła wiadomość do wszystkich członków grupy.
+     * Wiadomość jest kodowana raz, do współdzielonego bufora tylko do odczytu, a następnie wysyłana
+     * równolegle przez nadajniki członków, z ograniczeniem liczby jednocześnie trwających wysłań.
+     * Odbiorcy widzą wiadomość pod nazwą grupy.
+     * @param message treść wiadomości.
+     * @param group grupa odbiorców.
+     * @return future wysłania do każdego członka według nazwy połączenia, w kolejności członków grupy.
+     */
+    public Map<String, CompletableFuture<Void>> broadcastMessage(String message, ConnectionGroup group) {
+        // Group messages are outside the per-connection sequences, all members get the same copy.
+        Message messageToSend = identity.stamp(message, group.getGroupName(), 0, Message.nextMessageId());
+        Map<String, CompletableFuture<Void>> results = new LinkedHashMap<>();
+
+        ByteBuffer frame;
+        try {
+            long encodeStart = System.nanoTime();
+            ByteBuffer encoded = MessageFrames.encode(messageToSend, codec, null);
+            // One direct copy shared by all members, so channel writes need no further copying.
+            frame = ByteBuffer.allocateDirect(encoded.remaining());
+            frame.put(encoded).flip();
+            frame = frame.asReadOnlyBuffer();
+            Metrics.get().serializeLatency.record(System.nanoTime() - encodeStart);
+        } catch (IOException e) {
+            for (String member : group.getMembers())
+                results.put(member, failedSend(e));
+            return results;
+        }
+
+        SendPermits permits = broadcastPermits;
+        for (String member : group.getMembers()) {
+            MessageTransmitter transmitter = transmitters.get(member);
+            if (transmitter == null) {
+                results.put(member, failedSend(new IOException("Not connected to " + member)));
+            } else {
+                results.put(member, sendScheduler.submitFrame(transmitter, frame, member, permits));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Łączy się z hubem. Wiadomości od innych klientów huba trafiają do odbiorcy wiadomości Modelu
+     * pod identyfikatorem nadawcy. Poprzednie połączenie z hubem jest zamykane.
+     * @param hubAddress adres IP huba.
+     * @param hubPort numer portu huba.
+     * @param clientId identyfikator, pod którym Model będzie znany innym klientom huba.
+     * @throws IOException gdy nie udało się połączyć z hubem.
+     */
+    public synchronized void connectRelay(String hubAddress, int hubPort, String clientId) throws IOException {
+        disconnectRelay();
+        RelayClient client = new RelayClient(hubAddress, hubPort, clientId, codec, sink);
+        client.connect();
+        relayClient = client;
+    }
+
+    /**
+     * Zamyka połączenie z hubem, jeśli jest nawiązane.
+     */
+    public synchronized void disconnectRelay() {
+        if (relayClient != null) {
+            relayClient.close();
+            relayClient = null;
+        }
+    }
+
+    /**
+     * Wysyła wiadomość do innego klienta huba.
+     * @param message treść wiadomości.
+     * @param recipientId identyfikator odbiorcy.
+     * @return future zakończony po przekazaniu wiadomości hubowi lub wyjątkiem, gdy wysłanie się nie powiodło.
+     */
+    public CompletableFuture<Void> sendRelayed(String message, String recipientId) {
+        RelayClient client;
+        synchronized (this) {
+            client = relayClient;
+        }
+        if (client == null)
+            return failedSend(new IOException("Not connected to a hub"));
+        return client.send(recipientId, message);
+    }
+
+    /**
+     * Zapisuje wyświetlenie odebranych wiadomości, by potwierdzić je nadawcom.
+     * Powinna być wywołana po pokazaniu wiadomości użytkownikowi.
+     * @param messages wyświetlone wiadomości.
+     */
+    public void messagesDisplayed(List<Message> messages) {
+        for (Message m : messages)
+            router.displayed(m);
+    }
+
+    /**
+     * Tworzy potwierdzenie wysyłane przez tę instancję.
+     * @param senderId identyfikator nadawcy potwierdzanych wiadomości.
+     * @param stream nazwa strumienia u nadawcy.
+     * @param delivered numer kolejny, do którego wiadomości zostały odebrane.
+     * @param displayed numer kolejny, do którego wiadomości zostały wyświetlone.
+     * @param credit numer kolejny, do którego nadawca może wysyłać wiadomości.
+     * @return potwierdzenie.
+     */
+    Acknowledgement createAcknowledgement(long senderId, String stream, long delivered, long displayed, long credit) {
+        return new Acknowledgement(senderId, identity.getId(), stream, delivered, displayed, credit);
+    }
+
+    /**
+     * Wysyła potwierdzenie połączeniem z serwerem nadawcy. Potwierdzenie, którego nie da się wysłać,
+     * jest pomijane: nadawca ponowi wiadomości, a odpowiedzią na powtórzenie będzie kolejne potwierdzenie.
+     * @param connectionName nazwa połączenia z serwerem nadawcy.
+     * @param ack potwierdzenie do wysłania.
+     */
+    void sendAcknowledgement(String connectionName, Acknowledgement ack) {
+        MessageTransmitter transmitter = transmitters.get(connectionName);
+        if (transmitter == null)
+            return;
+        sendScheduler.submitFrame(transmitter, ack.toFrame(), connectionName, null);
+        Metrics.get().acksSent.increment();
+    }
+
+    /**
+     * Obsługuje potwierdzenie odebrane przez serwer. Potwierdzenia skierowane do innej instancji są pomijane.
+     * @param ack odebrane potwierdzenie.
+     */
+    void acknowledged(Acknowledgement ack) {
+        if (ack.getSenderId() != identity.getId())
+            return;
+        outbox.acknowledged(ack.getStream(), ack.getDelivered(), ack.getDisplayed(), ack.getCredit());
+    }
+
+    /**
+     * Tworzy future wysłania zakończony błędem.
+     * @param cause przyczyna niepowodzenia.
+     * @return future zakończony wyjątkiem.
+     */
+    private static CompletableFuture<Void> failedSend(Throwable cause) {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(cause);
+        return failed;
+    }
+
+    /**
+     * Kończy pracę Modelu: czeka na wysłanie zleconych wiadomości, zamyka połączenia, serwer i dziennik,
+     * zapisuje indeks wyszukiwania.
+     * @param timeout maksymalny czas oczekiwania na wysłanie wiadomości.
+     * @param unit jednostka czasu oczekiwania.
+     * @return true, gdy wszystkie zlecone wiadomości zostały obsłużone przed upływem czasu.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        router.close();
+        boolean drained = sendScheduler.shutdown(timeout, unit);
+        // Whatever is still undelivered stays in the outbox store for the next run.
+        outbox.close(timeout, unit);
+        // An interrupted file transfer resumes from the partial file next time.
+        fileTransfers.shutdownNow();
+
+        for (MessageTransmitter transmitter : transmitters.values())
+            transmitter.close();
+        transmitters.clear();
+        disconnectRelay();
+        PeerDiscovery stoppedDiscovery;
+        synchronized (this) {
+            stoppedDiscovery = discovery;
+        }
+        stopDiscovery();
+        if (stoppedDiscovery != null) {
+            // Let it announce the departure before the process exits.
+            try {
+                stoppedDiscovery.join(unit.toMillis(timeout));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Messages whose frames have already started arriving still reach the journal.
+        List<CompletableFuture<Void>> stopped = new ArrayList<>();
+        for (String name : listeners.keySet())
+            stopped.add(stopListener(name));
+        NioMessageListener group;
+        synchronized (this) {
+            group = ioGroup;
+            ioGroup = null;
+        }
+        if (group != null)
+            stopped.add(group.stopListening());
+        try {
+            CompletableFuture.allOf(stopped.toArray(new CompletableFuture<?>[0])).get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // A listener has failed or hangs, its sockets are closed anyway.
+        }
+
+        if (journal != null)
+            journal.close(timeout, unit);
+
+        if (journal != null) {
+            try {
+                searchIndex.save(SearchIndex.defaultFile());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return drained;
+    }
+
+    /**
+     * Odbiorca oznaczający odebrane wiadomości nazwą serwera, który je odebrał, i przekazujący je dalej.
+     */
+    private static class NamedSink implements MessageSink {
+
+        /**
+         * Nazwa serwera.
+         */
+        private final String name;
+
+        /**
+         * Odbiorca, któremu przekazywane są wiadomości.
+         */
+        private final MessageSink target;
+
+        /**
+         * Konstruktor klasy.
+         * @param name nazwa serwera.
+         * @param target odbiorca, któremu przekazywane są wiadomości.
+         */
+        NamedSink(String name, MessageSink target) {
+            this.name = name;
+            this.target = target;
+        }
+
+        /**
+         * Oznacza wiadomość nazwą serwera i przekazuje ją dalej.
+         * @param m odebrana wiadomość.
+         */
+        @Override
+        public void write(Message m) {
+            m.setListenerName(name);
+            target.write(m);
+        }
+
+        /**
+         * Oznacza wiadomości nazwą serwera i przekazuje je dalej jedną paczką.
+         * @param messages odebrane wiadomości, w kolejności odebrania.
+         */
+        @Override
+        public void writeAll(List<Message> messages) {
+            for (Message m : messages)
+                m.setListenerName(name);
+            target.writeAll(messages);
+        }
+
+        /**
+         * Przekazuje potwierdzenie dalej.
+         * @param ack odebrane potwierdzenie.
+         */
+        @Override
+        public void acknowledge(Acknowledgement ack) {
+            target.acknowledge(ack);
+        }
+
+        /**
+         * Pyta dalszego odbiorcę, czy przyjmuje pliki od hosta.
+         * @param senderAddress adres IP nadawcy pliku.
+         * @return true, gdy plik można odebrać.
+         */
+        @Override
+        public boolean acceptsFile(String senderAddress) {
+            return target.acceptsFile(senderAddress);
+        }
+
+        /**
+         * Zwraca zaległości odbiorcy docelowego.
+         * @return liczba nieobsłużonych wiadomości.
+         */
+        @Override
+        public int getBacklog() {
+            return target.getBacklog();
+        }
     }
 }
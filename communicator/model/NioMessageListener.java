@@ -0,0 +1,982 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serwer nasłuchujący przychodzących wiadomości oparty na nieblokującym wejściu/wyjściu (NIO).
+ * Jeden wątek obsługuje za pomocą selektora wszystkie połączenia, więc wolny lub zawieszony host
+ * nie blokuje odbioru wiadomości od pozostałych hostów.
+ *
+ * Ten sam wątek może obsługiwać wiele nazwanych punktów nasłuchiwania (patrz endpoint) na różnych
+ * portach i interfejsach, każdy z własnym odbiorcą wiadomości. Kilka tożsamości w jednym procesie
+ * kosztuje wtedy jeden wątek i jeden selektor zamiast osobnego procesu dla każdej.
+ *
+ * Połączenie przekraczające limit szybkości (patrz RateLimiter) jest wyrejestrowywane z odczytu do czasu
+ * uzupełnienia żetonów. Ramki, które już nadeszły, czekają w jego buforze, a kolejne w buforach TCP.
+ *
+ * Połączenia z ramką OFFER opuszczają selektor i odbierają plik w ograniczonej puli FILE_RECEIVERS wątków,
+ * z limitem czasu odczytu z ustawień serwera. Gdy pula i jej kolejka są pełne, połączenie jest zamykane.
+ */
+public class NioMessageListener extends ServerThread {
+
+    /**
+     * Nazwa punktu nasłuchiwania tworzonego przez konstruktory z numerem portu.
+     */
+    public static final String DEFAULT_ENDPOINT = "default";
+
+    /**
+     * Liczba wątków odbierających pliki, z właściwości systemowej wazzup.transfer.receivers.
+     */
+    private static final int FILE_RECEIVERS = Integer.getInteger("wazzup.transfer.receivers", 4);
+
+    /**
+     * Liczba połączeń z plikami, które mogą czekać na wolny wątek odbierający. Kolejne są od razu zamykane.
+     */
+    private static final int FILE_QUEUE = 16;
+
+    /**
+     * Selektor obsługujący kanały serwera i wszystkie przyjęte połączenia.
+     */
+    private volatile Selector selector;
+
+    /**
+     * Punkty nasłuchiwania według nazwy.
+     */
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Zadania zlecone wątkowi selektora przez inne wątki, np. rejestracja nowego punktu nasłuchiwania.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Flaga mówiąca o tym czy selektor został zamknięty. Zadania zlecone później wykonuje wątek zlecający.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Połączenia, którymi przyjdą pliki, do przekazania osobnym wątkom po bieżącym przebiegu selektora.
+     */
+    private final List<FileHandoff> fileHandoffs = new ArrayList<>();
+
+    /**
+     * Klucze połączeń, których odczyt jest wstrzymany przez ograniczenie szybkości. Używane tylko przez wątek selektora.
+     */
+    private final List<SelectionKey> throttled = new ArrayList<>();
+
+    /**
+     * Flaga mówiąca o tym czy serwer dokańcza odczyty przed zatrzymaniem. Limity szybkości nie obowiązują wtedy.
+     */
+    private boolean draining;
+
+    /**
+     * Ograniczenie szybkości przyjmowania ramek.
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Czas oczekiwania na dane odbieranego pliku w milisekundach lub 0 dla braku limitu.
+     */
+    private final int readTimeoutMillis;
+
+    /**
+     * Pula wątków odbierających pliki, tworzona przy zajęciu portów.
+     */
+    private volatile ThreadPoolExecutor fileReceivers;
+
+    /**
+     * Konfiguracja szyfrowania lub null, gdy serwer przyjmuje połączenia nieszyfrowane.
+     */
+    private TlsContext tls;
+
+    /**
+     * Konstruktor klasy.
+     * @param sink odbiorca odebranych wiadomości
+     * @param port numer portu, na którym ma słuchać serwer.
+     */
+    public NioMessageListener(MessageSink sink, int port) {
+        this(sink, port, null);
+    }
+
+    /**
+     * Konstruktor klasy. Serwer ma jeden punkt nasłuchiwania o nazwie DEFAULT_ENDPOINT.
+     * @param sink odbiorca odebranych wiadomości
+     * @param port numer portu, na którym ma słuchać serwer.
+     * @param tls konfiguracja szyfrowania lub null dla połączeń nieszyfrowanych.
+     */
+    public NioMessageListener(MessageSink sink, int port, TlsContext tls) {
+        this(tls);
+        endpoints.put(DEFAULT_ENDPOINT, new Endpoint(DEFAULT_ENDPOINT, new InetSocketAddress(port), sink));
+    }
+
+    /**
+     * Konstruktor klasy. Serwer nie ma punktów nasłuchiwania, dodaje się je metodą endpoint.
+     * Limity szybkości pobierane są z właściwości systemowych.
+     * @param tls konfiguracja szyfrowania lub null dla połączeń nieszyfrowanych.
+     */
+    public NioMessageListener(TlsContext tls) {
+        this(tls, ListenerSettings.fromProperties());
+    }
+
+    /**
+     * Konstruktor klasy. Serwer nie ma punktów nasłuchiwania, dodaje się je metodą endpoint.
+     * Z ustawień używane są limity szybkości i limit czasu odczytu plików, połączenia obsługuje jeden wątek.
+     * @param tls konfiguracja szyfrowania lub null dla połączeń nieszyfrowanych.
+     * @param settings ustawienia z limitami szybkości przyjmowania ramek.
+     */
+    public NioMessageListener(TlsContext tls, ListenerSettings settings) {
+        super("nio-listener");
+        this.tls = tls;
+        this.rateLimiter = new RateLimiter(settings);
+        this.readTimeoutMillis = settings.getReadTimeoutMillis();
+    }
+
+    /**
+     * Tworzy punkt nasłuchiwania obsługiwany przez wątek tego serwera. Punkt zajmuje port dopiero
+     * przy startListening i może być zatrzymany niezależnie od pozostałych punktów.
+     * @param name nazwa punktu nasłuchiwania, przekazywana w odebranych wiadomościach.
+     * @param address adres i port, na którym ma słuchać punkt.
+     * @param sink odbiorca wiadomości odebranych przez ten punkt.
+     * @return punkt nasłuchiwania.
+     */
+    public MessageServer endpoint(String name, InetSocketAddress address, MessageSink sink) {
+        return new Endpoint(name, address, sink);
+    }
+
+    /**
+     * Getter nazw działających punktów nasłuchiwania.
+     * @return niemodyfikowalny widok nazw.
+     */
+    public Collection<String> getEndpointNames() {
+        return Collections.unmodifiableSet(endpoints.keySet());
+    }
+
+    /**
+     * Otwiera selektor i zajmuje porty punktów nasłuchiwania utworzonych w konstruktorze.
+     * @throws IOException gdy nie udało się zająć portu.
+     */
+    @Override
+    protected void bind() throws IOException {
+        selector = Selector.open();
+        for (Endpoint endpoint : endpoints.values()) {
+            endpoint.open();
+            endpoint.register();
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(FILE_RECEIVERS, FILE_RECEIVERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(FILE_QUEUE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "file-receiver-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (task, rejectedBy) -> rejectFile((FileHandoff) task));
+        executor.allowCoreThreadTimeOut(true);
+        fileReceivers = executor;
+    }
+
+    /**
+     * Obsługuje zdarzenia selektora, dopóki serwer nie zostanie zatrzymany, a potem dokańcza rozpoczęte odczyty.
+     * @throws IOException gdy selektor przestał działać.
+     */
+    @Override
+    protected void serve() throws IOException {
+        while (listenFlag) {
+            long drainTimeout = drainTimeout();
+            long throttleTimeout = throttleTimeout();
+            long timeout = drainTimeout == 0 || throttleTimeout == 0
+                    ? Math.max(drainTimeout, throttleTimeout)
+                    : Math.min(drainTimeout, throttleTimeout);
+            if (timeout == 0)
+                selector.select();
+            else
+                selector.select(timeout);
+            runTasks();
+            handleSelected();
+            if (throttleTimeout != 0)
+                resumeThrottled();
+
+            if (!fileHandoffs.isEmpty())
+                startFileTransfers();
+            if (drainTimeout != 0)
+                drainEndpoints();
+        }
+        drain();
+    }
+
+    /**
+     * Wykonuje zadania zlecone przez inne wątki.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+
+    /**
+     * Zleca zadanie wątkowi selektora i budzi go.
+     * @param task zadanie do wykonania w wątku selektora.
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        if (closed)
+            runTasks();     // Nobody else would run it, they fail on the closed selector.
+        else
+            wakeUp();
+    }
+
+    /**
+     * Obsługuje klucze wybrane przez selektor.
+     * @throws IOException gdy kanał serwera został zamknięty.
+     */
+    private void handleSelected() throws IOException {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if (!key.isValid())
+                continue;
+
+            if (key.isAcceptable())
+                accept((Endpoint) key.attachment());
+            else if (key.isReadable())
+                read(key);
+        }
+    }
+
+    /**
+     * Przestaje przyjmować połączenia i dokańcza odczyt wiadomości, których początek już nadszedł.
+     * Połączenia bez rozpoczętej ramki są zamykane od razu, pozostałe najpóźniej po DRAIN_TIMEOUT_MILLIS.
+     * @throws IOException gdy selektor przestał działać.
+     */
+    private void drain() throws IOException {
+        for (Endpoint endpoint : endpoints.values())
+            endpoint.closeServerChannel();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+
+        // Frames already received are delivered regardless of the rate limits.
+        draining = true;
+        for (SelectionKey key : throttled) {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+                read(key);
+            }
+        }
+        throttled.clear();
+
+        // Whatever already sits in the socket buffers is read first.
+        selector.selectNow();
+        while (true) {
+            handleSelected();
+            // No new file transfers while stopping.
+            for (FileHandoff handoff : fileHandoffs)
+                closeChannel(handoff.source);
+            fileHandoffs.clear();
+
+            if (!closeIdleConnections(null))
+                return;
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0)
+                return;
+            selector.select(remaining);
+        }
+    }
+
+    /**
+     * Zwraca czas oczekiwania selektora wynikający z zatrzymywanych punktów nasłuchiwania.
+     * @return czas do najbliższego terminu dokańczania odczytów w milisekundach lub 0, gdy żaden punkt nie jest zatrzymywany.
+     */
+    private long drainTimeout() {
+        long timeout = 0;
+        long now = System.nanoTime();
+        for (Endpoint endpoint : endpoints.values()) {
+            if (endpoint.drainDeadline == 0)
+                continue;
+            long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(endpoint.drainDeadline - now));
+            timeout = timeout == 0 ? remaining : Math.min(timeout, remaining);
+        }
+        return timeout;
+    }
+
+    /**
+     * Zwraca czas oczekiwania selektora wynikający z połączeń wstrzymanych przez ograniczenie szybkości.
+     * @return czas do wznowienia najbliższego połączenia w milisekundach lub 0, gdy żadne nie jest wstrzymane.
+     */
+    private long throttleTimeout() {
+        if (throttled.isEmpty())
+            return 0;
+        long now = System.nanoTime();
+        long earliest = Long.MAX_VALUE;
+        for (SelectionKey key : throttled)
+            earliest = Math.min(earliest, ((InboundConnection) key.attachment()).resumeAt - now);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * Wstrzymuje odczyt połączenia, które przekroczyło limit szybkości.
+     * @param key klucz połączenia.
+     * @param connection stan połączenia.
+     * @param pauseNanos czas wstrzymania w nanosekundach.
+     */
+    private void throttle(SelectionKey key, InboundConnection connection, long pauseNanos) {
+        key.interestOps(0);
+        connection.resumeAt = System.nanoTime() + pauseNanos;
+        throttled.add(key);
+    }
+
+    /**
+     * Wznawia odczyt połączeń, których czas wstrzymania minął, i przetwarza ramki czekające w ich buforach.
+     */
+    private void resumeThrottled() {
+        long now = System.nanoTime();
+        List<SelectionKey> due = new ArrayList<>();
+        Iterator<SelectionKey> keys = throttled.iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            if (!key.isValid()) {
+                keys.remove();
+            } else if (((InboundConnection) key.attachment()).resumeAt - now <= 0) {
+                keys.remove();
+                due.add(key);
+            }
+        }
+        for (SelectionKey key : due) {
+            key.interestOps(SelectionKey.OP_READ);
+            read(key);
+        }
+    }
+
+    /**
+     * Kończy zatrzymywanie punktów nasłuchiwania, których połączenia dokończyły odczyt lub minął ich termin.
+     */
+    private void drainEndpoints() {
+        long now = System.nanoTime();
+        for (Endpoint endpoint : endpoints.values()) {
+            if (endpoint.drainDeadline == 0)
+                continue;
+            if (closeIdleConnections(endpoint) && now - endpoint.drainDeadline < 0)
+                continue;
+            closeConnections(endpoint);
+            endpoints.remove(endpoint.name, endpoint);
+            endpoint.terminated.complete(null);
+        }
+    }
+
+    /**
+     * Zamyka połączenia, w których nie ma rozpoczętej ramki.
+     * @param endpoint punkt nasłuchiwania, którego połączenia są zamykane, lub null dla wszystkich połączeń.
+     * @return true, gdy zostały połączenia z rozpoczętą ramką.
+     */
+    private boolean closeIdleConnections(Endpoint endpoint) {
+        boolean partial = false;
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof InboundConnection))
+                continue;
+            InboundConnection connection = (InboundConnection) key.attachment();
+            if (endpoint != null && connection.endpoint != endpoint)
+                continue;
+            if (connection.reader.hasPartialFrame())
+                partial = true;
+            else
+                close(key);
+        }
+        return partial;
+    }
+
+    /**
+     * Zamyka wszystkie połączenia przyjęte przez punkt nasłuchiwania.
+     * @param endpoint punkt nasłuchiwania.
+     */
+    private void closeConnections(Endpoint endpoint) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof InboundConnection && ((InboundConnection) key.attachment()).endpoint == endpoint)
+                close(key);
+        }
+    }
+
+    /**
+     * Przyjmuje wszystkie oczekujące połączenia punktu nasłuchiwania i rejestruje je w selektorze.
+     * @param endpoint punkt nasłuchiwania gotowy do przyjęcia połączeń.
+     * @throws IOException gdy kanał serwera został zamknięty.
+     */
+    private void accept(Endpoint endpoint) throws IOException {
+        SocketChannel channel;
+        int accepted = 0;
+        while ((channel = endpoint.serverChannel.accept()) != null) {
+            accepted++;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                // With TLS the handshake is driven by the reads, one step per readiness event.
+                ByteChannel source = tls == null ? channel : tls.serverChannel(channel);
+                String senderAddress = channel.socket().getInetAddress().getHostAddress();
+                channel.register(selector, SelectionKey.OP_READ,
+                        new InboundConnection(source, endpoint, senderAddress, rateLimiter.open(senderAddress)));
+            } catch (IOException e) {
+                // This host is already gone, keep accepting the others.
+                Metrics.get().listenerErrors.increment();
+                closeChannel(channel);
+            }
+        }
+        // How many connections were waiting in the backlog for this pass.
+        Metrics.get().acceptQueueDepth.record(accepted);
+    }
+
+    /**
+     * Odczytuje dostępne dane z połączenia i przekazuje odbiorcy wszystkie kompletne wiadomości.
+     * @param key klucz selektora gotowego do odczytu połączenia.
+     */
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        InboundConnection connection = (InboundConnection) key.attachment();
+        FrameReader reader = connection.reader;
+        MessageSink sink = connection.endpoint.sink;
+
+        Metrics metrics = Metrics.get();
+        try {
+            int read;
+            boolean buffered;
+            do {
+                // A resumed connection first uses up the frames it holds, so its buffer does not grow while throttled.
+                buffered = reader.hasFrame();
+                read = buffered ? 0 : reader.readFrom(connection.source);
+                long frameReady = System.nanoTime();
+
+                ByteBuffer frame;
+                while (true) {
+                    // Checked before the frame is taken out, so a throttled frame waits in the buffer.
+                    if (!draining && reader.hasFrame()) {
+                        long pause = connection.quota.acquire();
+                        if (pause > 0) {
+                            throttle(key, connection, pause);
+                            return;
+                        }
+                    }
+                    if ((frame = reader.nextFrame()) == null)
+                        break;
+                    if (FileTransfers.isOffer(frame)) {
+                        // The file is streamed without frames, so this connection leaves the selector.
+                        ByteBuffer offer = ByteBuffer.allocate(frame.remaining()).put(frame).flip();
+                        key.cancel();
+                        connection.quota.close();
+                        fileHandoffs.add(new FileHandoff(channel, connection.source, offer, sink));
+                        return;
+                    }
+                    if (Acknowledgement.isAck(frame)) {
+                        sink.acknowledge(Acknowledgement.decode(frame));
+                        continue;
+                    }
+                    Message message = MessageFrames.decode(frame);
+                    message.setListenerName(connection.endpoint.name);
+                    message.setSenderAddress(connection.senderAddress);
+                    metrics.connection(message.getConnectionName()).received(reader.getLastFrameLength());
+                    // Hand the message over to the sink - the view or the headless console.
+                    sink.write(message);
+                    metrics.deliverLatency.record(System.nanoTime() - frameReady);
+                }
+                // TLS may hold decrypted data the socket no longer signals, so drain it now.
+            } while ((read > 0 || buffered) && connection.source != channel);
+
+            if (read < 0)
+                close(key);
+        } catch (IOException e) {
+            // Broken connection, failed TLS handshake or malformed frame, drop this host only.
+            metrics.listenerErrors.increment();
+            close(key);
+        }
+    }
+
+    /**
+     * Przekazuje połączenia z ramką OFFER puli wątków odbierających pliki.
+     * @throws IOException gdy selektor został zamknięty.
+     */
+    private void startFileTransfers() throws IOException {
+        // Flush the cancelled keys before the channels get a selector of their own.
+        selector.selectNow();
+        for (FileHandoff handoff : fileHandoffs)
+            fileReceivers.execute(handoff);
+        fileHandoffs.clear();
+    }
+
+    /**
+     * Zamyka połączenie z plikiem odrzucone przez pulę, bo wszystkie wątki i miejsca w kolejce są zajęte.
+     * Nadawca może ponowić wysłanie później.
+     * @param handoff odrzucone połączenie.
+     */
+    private static void rejectFile(FileHandoff handoff) {
+        Metrics.get().listenerRejected.increment();
+        closeChannel(handoff.source);
+    }
+
+    /**
+     * Zamyka połączenie.
+     * @param channel kanał połączenia.
+     */
+    private static void closeChannel(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Połączenie, którym przyjdzie plik, razem z jego ramką OFFER. Wykonywane w puli odbiera plik i zamyka połączenie.
+     */
+    private class FileHandoff implements Runnable {
+
+        /**
+         * Kanał połączenia.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * Kanał, którym przesyłane są dane - kanał połączenia lub działający na nim kanał TLS.
+         */
+        private final ByteChannel source;
+
+        /**
+         * Kopia treści ramki OFFER.
+         */
+        private final ByteBuffer offer;
+
+        /**
+         * Odbiorca powiadomienia o odebranym pliku.
+         */
+        private final MessageSink sink;
+
+        /**
+         * Konstruktor klasy.
+         * @param channel kanał połączenia.
+         * @param source kanał, którym przesyłane są dane.
+         * @param offer kopia treści ramki OFFER.
+         * @param sink odbiorca powiadomienia o odebranym pliku.
+         */
+        FileHandoff(SocketChannel channel, ByteChannel source, ByteBuffer offer, MessageSink sink) {
+            this.channel = channel;
+            this.source = source;
+            this.offer = offer;
+            this.sink = sink;
+        }
+
+        /**
+         * Odbiera plik i zamyka połączenie.
+         */
+        @Override
+        public void run() {
+            String senderAddress = channel.socket().getInetAddress().getHostAddress();
+            try (TimedChannel timed = new TimedChannel(channel, source, readTimeoutMillis)) {
+                FileTransfers.receive(offer, senderAddress, timed, timed, sink);
+            } catch (SocketTimeoutException e) {
+                // Stalled sender, free the thread. It resumes from the partial file on the next attempt.
+                Metrics.get().listenerTimeouts.increment();
+            } catch (IOException e) {
+                // Sender is gone, it resumes from the partial file on the next attempt.
+                Metrics.get().listenerErrors.increment();
+            } finally {
+                closeChannel(source);
+            }
+        }
+    }
+
+    /**
+     * Kanał odbieranego pliku z limitem czasu: połączenie zostaje nieblokujące, a na gotowość czeka
+     * własny selektor, więc zawieszony nadawca nie zajmuje wątku dłużej niż limit czasu odczytu.
+     */
+    private static class TimedChannel implements ByteChannel {
+
+        /**
+         * Kanał połączenia.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * Kanał, którym przesyłane są dane - kanał połączenia lub działający na nim kanał TLS.
+         */
+        private final ByteChannel source;
+
+        /**
+         * Selektor, na którym czeka wątek odbierający.
+         */
+        private final Selector selector;
+
+        /**
+         * Limit czasu oczekiwania w milisekundach lub 0 dla braku limitu.
+         */
+        private final int timeoutMillis;
+
+        /**
+         * Konstruktor klasy.
+         * @param channel nieblokujący kanał połączenia.
+         * @param source kanał, którym przesyłane są dane.
+         * @param timeoutMillis limit czasu oczekiwania w milisekundach lub 0.
+         * @throws IOException gdy nie udało się utworzyć selektora.
+         */
+        TimedChannel(SocketChannel channel, ByteChannel source, int timeoutMillis) throws IOException {
+            this.channel = channel;
+            this.source = source;
+            this.timeoutMillis = timeoutMillis;
+            this.selector = Selector.open();
+            try {
+                channel.register(selector, 0);
+            } catch (IOException e) {
+                selector.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Odczytuje dane, czekając na nie co najwyżej limit czasu.
+         * @param buffer bufor docelowy.
+         * @return liczba odczytanych bajtów lub -1 na końcu strumienia.
+         * @throws IOException gdy odczyt się nie powiódł lub minął limit czasu.
+         */
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            int read;
+            while ((read = source.read(buffer)) == 0 && buffer.hasRemaining())
+                await(SelectionKey.OP_READ);
+            return read;
+        }
+
+        /**
+         * Zapisuje dane, czekając na miejsce w buforze socketu co najwyżej limit czasu.
+         * @param buffer bufor źródłowy.
+         * @return liczba zapisanych bajtów.
+         * @throws IOException gdy zapis się nie powiódł lub minął limit czasu.
+         */
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            int written;
+            while ((written = source.write(buffer)) == 0 && buffer.hasRemaining())
+                await(SelectionKey.OP_WRITE);
+            return written;
+        }
+
+        /**
+         * Czeka na gotowość połączenia.
+         * @param ops operacje, na które czeka wątek.
+         * @throws IOException gdy minął limit czasu lub wątek został przerwany.
+         */
+        private void await(int ops) throws IOException {
+            channel.keyFor(selector).interestOps(ops);
+            int ready = selector.select(timeoutMillis);
+            selector.selectedKeys().clear();
+            if (Thread.interrupted())
+                throw new InterruptedIOException("File transfer interrupted");
+            if (ready == 0 && timeoutMillis > 0)
+                throw new SocketTimeoutException("No progress for " + timeoutMillis + " ms");
+        }
+
+        /**
+         * Sprawdza czy kanał jest otwarty.
+         * @return true, gdy kanał jest otwarty.
+         */
+        @Override
+        public boolean isOpen() {
+            return source.isOpen();
+        }
+
+        /**
+         * Zamyka selektor. Połączenie zamyka właściciel.
+         * @throws IOException gdy zamknięcie selektora się nie powiodło.
+         */
+        @Override
+        public void close() throws IOException {
+            selector.close();
+        }
+    }
+
+    /**
+     * Stan jednego przyjętego połączenia: kanał, z którego czytane są dane, i bufor odczytu ramek.
+     */
+    private static class InboundConnection {
+
+        /**
+         * Kanał, z którego czytane są dane - kanał połączenia lub działający na nim kanał TLS.
+         */
+        private final ByteChannel source;
+
+        /**
+         * Punkt nasłuchiwania, który przyjął połączenie.
+         */
+        private final Endpoint endpoint;
+
+        /**
+         * Adres IP hosta.
+         */
+        private final String senderAddress;
+
+        /**
+         * Bufor odczytu ramek.
+         */
+        private final FrameReader reader = new FrameReader();
+
+        /**
+         * Przydział żetonów połączenia.
+         */
+        private final RateLimiter.Quota quota;
+
+        /**
+         * Czas (System.nanoTime) wznowienia odczytu wstrzymanego przez ograniczenie szybkości.
+         */
+        private long resumeAt;
+
+        /**
+         * Konstruktor klasy.
+         * @param source kanał, z którego czytane są dane.
+         * @param endpoint punkt nasłuchiwania, który przyjął połączenie.
+         * @param senderAddress adres IP hosta.
+         * @param quota przydział żetonów połączenia.
+         */
+        InboundConnection(ByteChannel source, Endpoint endpoint, String senderAddress, RateLimiter.Quota quota) {
+            this.source = source;
+            this.endpoint = endpoint;
+            this.senderAddress = senderAddress;
+            this.quota = quota;
+        }
+    }
+
+    /**
+     * Zamyka połączenie powiązane z kluczem selektora.
+     * @param key klucz połączenia.
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        if (key.attachment() instanceof InboundConnection)
+            ((InboundConnection) key.attachment()).quota.close();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Zamyka wszystkie połączenia, kanały serwera i selektor.
+     */
+    @Override
+    protected void closeAll() {
+        if (selector != null) {
+            try {
+                for (SelectionKey key : selector.keys())
+                    key.channel().close();
+                selector.close();
+            } catch (ClosedSelectorException | IOException e) {
+                // Already closed.
+            }
+        }
+        for (Endpoint endpoint : endpoints.values()) {
+            endpoint.closeServerChannel();
+            endpoint.terminated.complete(null);
+        }
+        endpoints.clear();
+
+        ThreadPoolExecutor executor = fileReceivers;
+        if (executor != null) {
+            // Queued transfers are closed, running ones are interrupted and close their own connections.
+            for (Runnable queued : executor.shutdownNow())
+                closeChannel(((FileHandoff) queued).source);
+        }
+
+        // Endpoints that were still waiting for the selector thread.
+        closed = true;
+        runTasks();
+    }
+
+    /**
+     * Budzi wątek selektora, który przestaje przyjmować połączenia i dokańcza rozpoczęte odczyty.
+     */
+    @Override
+    protected void wakeUp() {
+        Selector current = selector;
+        if (current != null)
+            current.wakeup();
+    }
+
+    /**
+     * Nazwany punkt nasłuchiwania: kanał serwera na jednym adresie i porcie oraz odbiorca wiadomości
+     * odebranych przez przyjęte nim połączenia. Wszystkie operacje na selektorze wykonuje wątek serwera.
+     */
+    private class Endpoint implements MessageServer {
+
+        /**
+         * Nazwa punktu nasłuchiwania.
+         */
+        private final String name;
+
+        /**
+         * Adres i port punktu nasłuchiwania.
+         */
+        private final InetSocketAddress address;
+
+        /**
+         * Odbiorca odebranych wiadomości.
+         */
+        private final MessageSink sink;
+
+        /**
+         * Kanał serwera przyjmujący nowe połączenia.
+         */
+        private ServerSocketChannel serverChannel;
+
+        /**
+         * Future zakończony po zatrzymaniu punktu nasłuchiwania.
+         */
+        private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+
+        /**
+         * Termin dokończenia odczytów po zatrzymaniu (System.nanoTime) lub 0, gdy punkt nie jest zatrzymywany.
+         * Używany wyłącznie przez wątek selektora.
+         */
+        private long drainDeadline;
+
+        /**
+         * Konstruktor klasy.
+         * @param name nazwa punktu nasłuchiwania.
+         * @param address adres i port punktu nasłuchiwania.
+         * @param sink odbiorca odebranych wiadomości.
+         */
+        Endpoint(String name, InetSocketAddress address, MessageSink sink) {
+            this.name = name;
+            this.address = address;
+            this.sink = sink;
+        }
+
+        /**
+         * Zajmuje port punktu nasłuchiwania.
+         * @throws IOException gdy nie udało się zająć portu.
+         */
+        void open() throws IOException {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(address);
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            serverChannel = channel;
+        }
+
+        /**
+         * Rejestruje kanał serwera w selektorze. Wywoływana w wątku selektora.
+         * @throws ClosedChannelException gdy kanał został zamknięty.
+         */
+        void register() throws ClosedChannelException {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+        }
+
+        /**
+         * Zamyka kanał serwera, jeśli jest otwarty.
+         */
+        void closeServerChannel() {
+            if (serverChannel != null && serverChannel.isOpen())
+                closeChannel(serverChannel);
+        }
+
+        /**
+         * Zajmuje port w wątku wywołującym, a rejestrację w selektorze zleca wątkowi serwera.
+         * @return future zakończony po rejestracji lub wyjątkiem (np. BindException), gdy się nie udała.
+         */
+        @Override
+        public CompletableFuture<Void> startListening() {
+            CompletableFuture<Void> started = new CompletableFuture<>();
+            if (!listenFlag || selector == null) {
+                started.completeExceptionally(new IllegalStateException("Listener is not running"));
+                return started;
+            }
+            if (endpoints.putIfAbsent(name, this) != null) {
+                started.completeExceptionally(new IllegalStateException("Endpoint already exists: " + name));
+                return started;
+            }
+            try {
+                open();
+            } catch (IOException e) {
+                endpoints.remove(name, this);
+                started.completeExceptionally(e);
+                return started;
+            }
+            execute(() -> {
+                try {
+                    if (!listenFlag)
+                        throw new ClosedChannelException();
+                    register();
+                    started.complete(null);
+                } catch (IOException | ClosedSelectorException e) {
+                    endpoints.remove(name, this);
+                    closeServerChannel();
+                    started.completeExceptionally(e);
+                    terminated.complete(null);
+                }
+            });
+            return started;
+        }
+
+        /**
+         * Zatrzymuje punkt nasłuchiwania: od razu przestaje przyjmować połączenia, a jego połączenia
+         * zamykane są po dokończeniu rozpoczętych ramek. Pozostałe punkty działają dalej.
+         * @return future zakończony po zamknięciu wszystkich połączeń punktu.
+         */
+        @Override
+        public CompletableFuture<Void> stopListening() {
+            if (endpoints.get(name) != this) {
+                terminated.complete(null);
+                return terminated;
+            }
+            execute(() -> {
+                if (drainDeadline != 0)
+                    return;
+                closeServerChannel();
+                drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+                drainEndpoints();
+            });
+            return terminated;
+        }
+
+        /**
+         * Czeka na zatrzymanie punktu nasłuchiwania.
+         * @param timeout maksymalny czas oczekiwania.
+         * @param unit jednostka czasu oczekiwania.
+         * @return true, gdy punkt został zatrzymany przed upływem czasu.
+         * @throws InterruptedException gdy oczekiwanie zostało przerwane.
+         */
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            try {
+                terminated.get(timeout, unit);
+                return true;
+            } catch (ExecutionException e) {
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Skrzynka nadawcza - kolejka wiadomości czekających na dostarczenie, osobna dla każdego połączenia.
+ * Wiadomość trafia najpierw do skrzynki, a skrzynka wysyła oczekujące wiadomości paczkami, po kolei.
+ * Gdy host nie odpowiada, wiadomości czekają, a kolejna próba planowana jest we wspólnym wątku
+ * z wykładniczo rosnącym, losowo rozrzuconym opóźnieniem. Gdy host znów odpowiada, cała zaległość
+ * wysyłana jest paczkami. Zawartość skrzynek może być zapisywana na dysku (OutboxStore).
+ * Wiadomość może dotrzeć do hosta więcej niż raz, gdy połączenie zerwie się w trakcie wysyłania paczki;
+ * odbiorca rozpoznaje wtedy powtórzenie po numerze kolejnym w kopercie (patrz MessageRouter).
+ *
+ * Gdy ta instancja nasłuchuje, odbiorca potwierdza odebrane i wyświetlone wiadomości (patrz Acknowledgement),
+ * a wysłane wiadomości mają stan SENT do czasu potwierdzenia odbioru. Jeśli host potwierdzał już wcześniej
+ * wiadomości, a potwierdzenie nie przychodzi przez ACK_TIMEOUT, niepotwierdzone wiadomości są wysyłane ponownie.
+ * Hosty ze starszą wersją programu nie potwierdzają wiadomości, więc im wiadomości nie są ponawiane.
+ * Wiadomość jest usuwana z zapisu na dysku dopiero po potwierdzeniu odbioru, więc wiadomości wysłane,
+ * ale niepotwierdzone przed zamknięciem programu, są wysyłane ponownie po jego uruchomieniu.
+ * Bez portu nasłuchującego potwierdzenie nie może przyjść, więc wiadomość jest usuwana po zapisie do połączenia.
+ *
+ * Potwierdzenia niosą kredyt odbiorcy: skrzynka nie wysyła wiadomości o numerze większym niż przyznany kredyt,
+ * dopóki kolejne potwierdzenie go nie przesunie. Jeśli kredyt nie rośnie przez ACK_TIMEOUT, wysyłana jest
+ * jedna wiadomość próbna, na którą odbiorca odpowiada potwierdzeniem z bieżącym kredytem.
+ */
+public class Outbox {
+
+    /**
+     * Maksymalna liczba wiadomości wysyłanych jedną paczką.
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * Opóźnienie pierwszej ponownej próby w milisekundach.
+     */
+    private static final long BASE_DELAY = 500;
+
+    /**
+     * Maksymalne opóźnienie ponownej próby w milisekundach.
+     */
+    private static final long MAX_DELAY = 60_000;
+
+    /**
+     * Czas oczekiwania na potwierdzenie odbioru przed ponownym wysłaniem w milisekundach,
+     * z właściwości systemowej wazzup.ack.timeout. Rośnie dwukrotnie z każdym kolejnym ponowieniem.
+     */
+    private static final long ACK_TIMEOUT = Long.getLong("wazzup.ack.timeout", 5000);
+
+    /**
+     * Maksymalna liczba wiadomości wysłanych i czekających na potwierdzenie w jednej skrzynce. Gdy host potwierdza
+     * wiadomości, kolejne czekają w skrzynce ze stanem PENDING, aż potwierdzenie zwolni miejsce. Dopóki host nie
+     * potwierdził żadnej wiadomości (np. starsza wersja programu), najstarsze przestają być śledzone.
+     * Tyle samo wiadomości jest śledzonych do potwierdzenia wyświetlenia.
+     */
+    private static final int MAX_UNACKNOWLEDGED = 4096;
+
+    /**
+     * Planista wysyłający paczki przez nadajniki połączeń.
+     */
+    private final SendScheduler sendScheduler;
+
+    /**
+     * Zapis skrzynek na dysku lub null, gdy skrzynki są trzymane tylko w pamięci.
+     */
+    private final OutboxStore store;
+
+    /**
+     * Tożsamość nadawcy zapisywana w kopercie wysyłanych wiadomości.
+     */
+    private final SenderIdentity identity;
+
+    /**
+     * Wspólny wątek planujący ponowne próby wszystkich skrzynek.
+     */
+    private final ScheduledExecutorService retryScheduler;
+
+    /**
+     * Skrzynki według nazwy połączenia.
+     */
+    private final Map<String, ConnectionOutbox> outboxes = new ConcurrentHashMap<>();
+
+    /**
+     * Funkcja wywoływana z nazwą połączenia, gdy zmienił się stan dostarczenia jego wiadomości.
+     */
+    private volatile Consumer<String> deliveryListener = name -> { };
+
+    /**
+     * Konstruktor klasy.
+     * @param sendScheduler planista wysyłający wiadomości.
+     * @param store zapis skrzynek na dysku lub null.
+     * @param identity tożsamość nadawcy.
+     */
+    Outbox(SendScheduler sendScheduler, OutboxStore store, SenderIdentity identity) {
+        this.sendScheduler = sendScheduler;
+        this.store = store;
+        this.identity = identity;
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Setter funkcji powiadamianej o zmianach stanu dostarczenia wiadomości.
+     * Wywoływana jest z wątków wysyłających, nie z wątku Widoku.
+     * @param listener funkcja przyjmująca nazwę połączenia.
+     */
+    public void setDeliveryListener(Consumer<String> listener) {
+        deliveryListener = listener;
+    }
+
+    /**
+     * Podłącza nadajnik do skrzynki połączenia. Przy pierwszym podłączeniu wczytuje z dysku
+     * wiadomości niedostarczone w poprzednim uruchomieniu programu i zaczyna je wysyłać.
+     * @param connectionName nazwa połączenia.
+     * @param transmitter nadajnik połączenia.
+     */
+    public void attach(String connectionName, MessageTransmitter transmitter) {
+        outboxFor(connectionName).attach(transmitter);
+    }
+
+    /**
+     * Dodaje wiadomość do skrzynki połączenia.
+     * @param connectionName nazwa połączenia.
+     * @param text treść wiadomości.
+     * @param historyEntry wpis historii, którego stan dostarczenia ma być aktualizowany, lub null.
+     * @return future zakończony po dostarczeniu wiadomości lub wyjątkiem, gdy wiadomość została odrzucona,
+     * np. dlatego, że po zakodowaniu nie mieści się w ramce (patrz MessageFrames.MAX_FRAME_LENGTH).
+     */
+    public CompletableFuture<Void> enqueue(String connectionName, String text, HistoryEntry historyEntry) {
+        return outboxFor(connectionName).enqueue(text, historyEntry);
+    }
+
+    /**
+     * Odrzuca wszystkie niedostarczone wiadomości połączenia i odłącza jego nadajnik, np. po usunięciu połączenia.
+     * @param connectionName nazwa połączenia.
+     */
+    public void discard(String connectionName) {
+        ConnectionOutbox outbox = outboxes.get(connectionName);
+        if (outbox != null)
+            outbox.discard();
+    }
+
+    /**
+     * Obsługuje potwierdzenie od hosta: oznacza potwierdzone wiadomości jako dostarczone lub wyświetlone.
+     * @param connectionName nazwa połączenia, którym wysyłano wiadomości.
+     * @param delivered numer kolejny, do którego wiadomości zostały odebrane.
+     * @param displayed numer kolejny, do którego wiadomości zostały wyświetlone.
+     * @param credit numer kolejny, do którego host pozwala wysyłać wiadomości.
+     */
+    public void acknowledged(String connectionName, long delivered, long displayed, long credit) {
+        ConnectionOutbox outbox = outboxes.get(connectionName);
+        if (outbox != null)
+            outbox.acknowledged(delivered, displayed, credit);
+    }
+
+    /**
+     * Zwraca liczbę wiadomości czekających w skrzynce połączenia.
+     * @param connectionName nazwa połączenia.
+     * @return liczba niedostarczonych wiadomości.
+     */
+    public int getPendingCount(String connectionName) {
+        ConnectionOutbox outbox = outboxes.get(connectionName);
+        return outbox == null ? 0 : outbox.pendingCount();
+    }
+
+    /**
+     * Kończy pracę skrzynek: przestaje planować ponowne próby i zapisuje oczekujące wpisy na dysk.
+     * Niedostarczone wiadomości zostaną wysłane po ponownym uruchomieniu programu.
+     * @param timeout maksymalny czas oczekiwania na zapis.
+     * @param unit jednostka czasu oczekiwania.
+     */
+    public void close(long timeout, TimeUnit unit) {
+        retryScheduler.shutdownNow();
+        if (store != null)
+            store.close(timeout, unit);
+    }
+
+    /**
+     * Zwraca skrzynkę połączenia, tworząc ją przy pierwszym użyciu.
+     * @param connectionName nazwa połączenia.
+     * @return skrzynka połączenia.
+     */
+    private ConnectionOutbox outboxFor(String connectionName) {
+        return outboxes.computeIfAbsent(connectionName, this::createOutbox);
+    }
+
+    /**
+     * Tworzy skrzynkę połączenia, wczytując jej zawartość z dysku.
+     * @param connectionName nazwa połączenia.
+     * @return nowa skrzynka.
+     */
+    private ConnectionOutbox createOutbox(String connectionName) {
+        List<OutboxEntry> backlog = Collections.emptyList();
+        if (store != null) {
+            try {
+                backlog = store.load(connectionName);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new ConnectionOutbox(connectionName, backlog);
+    }
+
+    /**
+     * Wylicza opóźnienie kolejnej próby: połowa stała, połowa losowa, by skrzynki nie ponawiały prób jednocześnie.
+     * @param attempt numer nieudanej próby, od 1.
+     * @return opóźnienie w milisekundach.
+     */
+    static long retryDelay(int attempt) {
+        long ceiling = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Skrzynka jednego połączenia. Co najwyżej jedna paczka jest wysyłana lub czeka na ponowienie w danej chwili.
+     */
+    private class ConnectionOutbox {
+
+        /**
+         * Nazwa połączenia.
+         */
+        private final String connectionName;
+
+        /**
+         * Niedostarczone wiadomości w kolejności dodania.
+         */
+        private final Deque<OutboxEntry> pending = new ArrayDeque<>();
+
+        /**
+         * Wiadomości wysłane i czekające na potwierdzenie odbioru, w kolejności numerów.
+         */
+        private final Deque<OutboxEntry> unacknowledged = new ArrayDeque<>();
+
+        /**
+         * Wiadomości odebrane przez hosta i czekające na potwierdzenie wyświetlenia, w kolejności numerów.
+         */
+        private final Deque<OutboxEntry> undisplayed = new ArrayDeque<>();
+
+        /**
+         * Flaga mówiąca o tym czy host potwierdził już jakąś wiadomość, czyli czy potwierdzenia działają.
+         */
+        private boolean acksSeen;
+
+        /**
+         * Liczba kolejnych ponowień z powodu braku potwierdzenia.
+         */
+        private int ackTimeouts;
+
+        /**
+         * Flaga mówiąca o tym czy sprawdzenie potwierdzeń jest zaplanowane.
+         */
+        private boolean ackCheckScheduled;
+
+        /**
+         * Największy numer kolejny, który host pozwolił wysłać. Do pierwszego potwierdzenia nieograniczony.
+         */
+        private long credit = Long.MAX_VALUE;
+
+        /**
+         * Flaga mówiąca o tym czy wysyłanie czeka na kredyt.
+         */
+        private boolean flowBlocked;
+
+        /**
+         * Flaga mówiąca o tym czy wysyłanie czeka, bo MAX_UNACKNOWLEDGED wiadomości czeka na potwierdzenie.
+         */
+        private boolean windowFull;
+
+        /**
+         * Flaga mówiąca o tym czy wysłanie wiadomości próbnej jest zaplanowane.
+         */
+        private boolean probeScheduled;
+
+        /**
+         * Nadajnik połączenia lub null, gdy połączenie nie jest nawiązane.
+         */
+        private MessageTransmitter transmitter;
+
+        /**
+         * Flaga mówiąca o tym czy paczka jest wysyłana lub czeka na ponowną próbę.
+         */
+        private boolean busy;
+
+        /**
+         * Liczba kolejnych nieudanych prób.
+         */
+        private int failedAttempts;
+
+        /**
+         * Numer kolejnej dodanej wiadomości.
+         */
+        private long nextId;
+
+        /**
+         * Konstruktor klasy.
+         * @param connectionName nazwa połączenia.
+         * @param backlog wiadomości niedostarczone w poprzednim uruchomieniu.
+         */
+        ConnectionOutbox(String connectionName, List<OutboxEntry> backlog) {
+            this.connectionName = connectionName;
+            pending.addAll(backlog);
+            for (OutboxEntry entry : backlog)
+                nextId = Math.max(nextId, entry.id + 1);
+        }
+
+        /**
+         * Podłącza nadajnik i zaczyna wysyłać zaległe wiadomości.
+         * @param transmitter nadajnik połączenia.
+         */
+        synchronized void attach(MessageTransmitter transmitter) {
+            this.transmitter = transmitter;
+            failedAttempts = 0;
+            sendNextBatch();
+        }
+
+        /**
+         * Dodaje wiadomość i zaczyna ją wysyłać, jeśli skrzynka nie jest zajęta.
+         * @param text treść wiadomości.
+         * @param historyEntry wpis historii lub null.
+         * @return future dostarczenia wiadomości, zakończony od razu wyjątkiem, gdy wiadomość nie mieści się w ramce.
+         */
+        synchronized CompletableFuture<Void> enqueue(String text, HistoryEntry historyEntry) {
+            if (transmitter != null) {
+                try {
+                    // The receiver would drop a longer frame together with the connection, refuse it here instead.
+                    transmitter.checkMessage(identity.stamp(text, connectionName, nextId + 1, 0));
+                } catch (IOException e) {
+                    if (historyEntry != null)
+                        historyEntry.setDeliveryState(HistoryEntry.DeliveryState.FAILED);
+                    CompletableFuture<Void> rejected = new CompletableFuture<>();
+                    rejected.completeExceptionally(e);
+                    return rejected;
+                }
+            }
+            OutboxEntry entry = new OutboxEntry(nextId++, System.currentTimeMillis(), text, historyEntry);
+            entry.setState(failedAttempts > 0 ? HistoryEntry.DeliveryState.QUEUED : HistoryEntry.DeliveryState.PENDING);
+            pending.add(entry);
+            if (store != null)
+                store.enqueued(connectionName, entry);
+            sendNextBatch();
+            return entry.delivered;
+        }
+
+        /**
+         * Odrzuca wszystkie niedostarczone wiadomości.
+         */
+        void discard() {
+            List<OutboxEntry> dropped;
+            synchronized (this) {
+                transmitter = null;
+                dropped = new ArrayList<>(pending);
+                pending.clear();
+                unacknowledged.clear();
+                undisplayed.clear();
+                if (store != null)
+                    store.discard(connectionName);
+            }
+            for (OutboxEntry entry : dropped) {
+                entry.setState(HistoryEntry.DeliveryState.FAILED);
+                entry.delivered.completeExceptionally(new IOException("Connection " + connectionName + " was removed"));
+            }
+            deliveryListener.accept(connectionName);
+        }
+
+        /**
+         * Zwraca liczbę niedostarczonych wiadomości.
+         * @return liczba wiadomości w skrzynce.
+         */
+        synchronized int pendingCount() {
+            return pending.size();
+        }
+
+        /**
+         * Zleca wysłanie paczki z początku kolejki, jeśli skrzynka nie jest zajęta.
+         */
+        private void sendNextBatch() {
+            if (busy || pending.isEmpty() || transmitter == null)
+                return;
+            if (pending.peek().sequence() > credit) {
+                // The receiver has not made room yet, its next acknowledgement resumes sending.
+                if (!flowBlocked) {
+                    flowBlocked = true;
+                    Metrics.get().flowBlocked.increment();
+                }
+                scheduleProbe();
+                return;
+            }
+            flowBlocked = false;
+            // Only a host that acknowledges can free room, before that nothing is held back.
+            int room = acksSeen ? MAX_UNACKNOWLEDGED - unacknowledged.size() : MAX_BATCH;
+            windowFull = room <= 0;
+            if (windowFull)
+                return;     // The next acknowledgement or the ack timeout resumes sending.
+            busy = true;
+
+            int limit = Math.min(MAX_BATCH, room);
+            List<OutboxEntry> batch = new ArrayList<>(Math.min(pending.size(), limit));
+            List<Message> messages = new ArrayList<>(batch.size());
+            for (OutboxEntry entry : pending) {
+                if (entry.sequence() > credit)
+                    break;
+                batch.add(entry);
+                // Retries repeat the sequence number and id, so the receiver can drop what it already has.
+                messages.add(identity.stamp(entry.text, connectionName, entry.sequence(), entry.messageId));
+                if (batch.size() == limit)
+                    break;
+            }
+
+            MessageTransmitter target = transmitter;
+            sendScheduler.submitBatch(target, messages)
+                    .whenComplete((result, error) -> batchCompleted(target, batch, error));
+        }
+
+        /**
+         * Obsługuje zakończenie wysyłania paczki.
+         * @param target nadajnik, którym paczka była wysyłana.
+         * @param batch wysłane wiadomości.
+         * @param error wyjątek lub null, gdy paczka została wysłana.
+         */
+        private void batchCompleted(MessageTransmitter target, List<OutboxEntry> batch, Throwable error) {
+            synchronized (this) {
+                busy = false;
+                if (target != transmitter) {
+                    // Discarded or re-attached meanwhile, carry on with the current transmitter.
+                    sendNextBatch();
+                    return;
+                }
+
+                if (error == null) {
+                    failedAttempts = 0;
+                    // Without a listening port no acknowledgement can come back, written counts as delivered.
+                    boolean expectAcks = identity.getReplyPort() != 0;
+                    long now = System.nanoTime();
+                    for (OutboxEntry entry : batch) {
+                        pending.poll();
+                        if (expectAcks) {
+                            // Stays in the store until acknowledged, a restart before that sends it again.
+                            entry.sentAt = now;
+                            entry.setState(HistoryEntry.DeliveryState.SENT);
+                            unacknowledged.add(entry);
+                        } else {
+                            if (store != null)
+                                store.delivered(connectionName, entry.id);
+                            entry.setState(HistoryEntry.DeliveryState.DELIVERED);
+                        }
+                    }
+                    while (!acksSeen && unacknowledged.size() > MAX_UNACKNOWLEDGED) {
+                        // No acknowledgement so far, the host may never send one. Stop tracking the oldest.
+                        OutboxEntry untracked = unacknowledged.poll();
+                        if (store != null)
+                            store.delivered(connectionName, untracked.id);
+                    }
+                    scheduleAckCheck();
+                    sendNextBatch();
+                } else {
+                    failedAttempts++;
+                    busy = true;
+                    try {
+                        retryScheduler.schedule(this::retry, retryDelay(failedAttempts), TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // Shutting down, the messages stay in the store for the next run.
+                    }
+                }
+            }
+
+            for (OutboxEntry entry : batch) {
+                if (error == null)
+                    entry.delivered.complete(null);
+                else
+                    entry.setState(HistoryEntry.DeliveryState.QUEUED);
+            }
+            if (error != null) {
+                synchronized (this) {
+                    for (OutboxEntry entry : pending)
+                        entry.setState(HistoryEntry.DeliveryState.QUEUED);
+                }
+            }
+            deliveryListener.accept(connectionName);
+        }
+
+        /**
+         * Ponowna próba wysłania, wykonywana przez wspólny wątek planujący.
+         */
+        private synchronized void retry() {
+            busy = false;
+            sendNextBatch();
+        }
+
+        /**
+         * Oznacza wiadomości objęte skumulowanym potwierdzeniem jako dostarczone lub wyświetlone.
+         * @param delivered numer kolejny, do którego wiadomości zostały odebrane.
+         * @param displayed numer kolejny, do którego wiadomości zostały wyświetlone.
+         * @param credit numer kolejny, do którego host pozwala wysyłać wiadomości.
+         */
+        void acknowledged(long delivered, long displayed, long credit) {
+            synchronized (this) {
+                // The first acknowledgement replaces the unlimited credit, later ones only extend it.
+                this.credit = acksSeen ? Math.max(this.credit, credit) : credit;
+                acksSeen = true;
+                ackTimeouts = 0;
+                while (!unacknowledged.isEmpty() && unacknowledged.peek().sequence() <= delivered) {
+                    OutboxEntry entry = unacknowledged.poll();
+                    if (store != null)
+                        store.delivered(connectionName, entry.id);
+                    entry.setState(HistoryEntry.DeliveryState.DELIVERED);
+                    undisplayed.add(entry);
+                    if (undisplayed.size() > MAX_UNACKNOWLEDGED)
+                        undisplayed.poll();     // Stays DELIVERED, only the display state is not followed.
+                }
+                while (!undisplayed.isEmpty() && undisplayed.peek().sequence() <= displayed)
+                    undisplayed.poll().setState(HistoryEntry.DeliveryState.DISPLAYED);
+                scheduleAckCheck();
+                if (flowBlocked || windowFull)
+                    sendNextBatch();
+            }
+            deliveryListener.accept(connectionName);
+        }
+
+        /**
+         * Planuje sprawdzenie, czy najstarsza niepotwierdzona wiadomość czeka na potwierdzenie zbyt długo.
+         */
+        private void scheduleAckCheck() {
+            if (ackCheckScheduled || unacknowledged.isEmpty() || !acksSeen)
+                return;
+            ackCheckScheduled = true;
+            try {
+                retryScheduler.schedule(this::checkAcknowledgements, ackTimeout(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        }
+
+        /**
+         * Planuje wysłanie wiadomości próbnej na wypadek, gdyby potwierdzenie z nowym kredytem zaginęło.
+         */
+        private void scheduleProbe() {
+            if (probeScheduled)
+                return;
+            probeScheduled = true;
+            long grantedCredit = credit;
+            try {
+                retryScheduler.schedule(() -> probe(grantedCredit), ackTimeout(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        }
+
+        /**
+         * Przesuwa kredyt o jedną wiadomość, jeśli od zaplanowania próby nie przyszedł nowy.
+         * Wykonywana przez wspólny wątek planujący.
+         * @param grantedCredit kredyt w chwili zaplanowania próby.
+         */
+        private synchronized void probe(long grantedCredit) {
+            probeScheduled = false;
+            if (!flowBlocked)
+                return;
+            if (credit == grantedCredit)
+                credit++;
+            sendNextBatch();
+        }
+
+        /**
+         * Zwraca bieżący czas oczekiwania na potwierdzenie.
+         * @return czas w milisekundach.
+         */
+        private long ackTimeout() {
+            return ACK_TIMEOUT << Math.min(ackTimeouts, 4);
+        }
+
+        /**
+         * Wysyła ponownie niepotwierdzone wiadomości, jeśli najstarsza z nich czeka dłużej niż ackTimeout.
+         * Wykonywana przez wspólny wątek planujący.
+         */
+        private void checkAcknowledgements() {
+            synchronized (this) {
+                ackCheckScheduled = false;
+                if (unacknowledged.isEmpty())
+                    return;
+                long waited = System.nanoTime() - unacknowledged.peek().sentAt;
+                if (busy || transmitter == null || waited < TimeUnit.MILLISECONDS.toNanos(ackTimeout())) {
+                    // A batch in flight still counts on the queue order, look again later.
+                    scheduleAckCheck();
+                    return;
+                }
+
+                ackTimeouts++;
+                Metrics.get().retransmittedMessages.add(unacknowledged.size());
+                // Back to the front of the queue, ahead of newer messages, with the same sequence numbers.
+                Iterator<OutboxEntry> entries = unacknowledged.descendingIterator();
+                while (entries.hasNext()) {
+                    OutboxEntry entry = entries.next();
+                    entry.setState(HistoryEntry.DeliveryState.QUEUED);
+                    pending.addFirst(entry);
+                }
+                unacknowledged.clear();
+                sendNextBatch();
+            }
+            deliveryListener.accept(connectionName);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package proz.communicator.model;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Wiadomość czekająca w skrzynce nadawczej na dostarczenie.
+ */
+class OutboxEntry {
+
+    /**
+     * Numer wiadomości w skrzynce nadawczej połączenia. Numer o jeden większy jest numerem kolejnym
+     * wiadomości w kopercie (patrz Message.getSequence).
+     */
+    final long id;
+
+    /**
+     * Identyfikator wiadomości w kopercie, ten sam przy każdej próbie wysłania.
+     */
+    final long messageId = Message.nextMessageId();
+
+    /**
+     * Czas zlecenia wysłania w milisekundach od początku epoki.
+     */
+    final long timestamp;
+
+    /**
+     * Treść wiadomości.
+     */
+    final String text;
+
+    /**
+     * Wpis historii, którego stan dostarczenia jest aktualizowany, lub null.
+     */
+    final HistoryEntry historyEntry;
+
+    /**
+     * Czas ostatniego zapisu wiadomości do połączenia (System.nanoTime), dostępny pod blokadą skrzynki.
+     */
+    long sentAt;
+
+    /**
+     * Future kończony po dostarczeniu wiadomości.
+     */
+    final CompletableFuture<Void> delivered = new CompletableFuture<>();
+
+    /**
+     * Konstruktor klasy.
+     * @param id numer wiadomości w skrzynce nadawczej.
+     * @param timestamp czas zlecenia wysłania.
+     * @param text treść wiadomości.
+     * @param historyEntry wpis historii lub null.
+     */
+    OutboxEntry(long id, long timestamp, String text, HistoryEntry historyEntry) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.text = text;
+        this.historyEntry = historyEntry;
+    }
+
+    /**
+     * Zwraca numer kolejny wiadomości w kopercie.
+     * @return numer kolejny, od 1.
+     */
+    long sequence() {
+        return id + 1;
+    }
+
+    /**
+     * Ustawia stan dostarczenia we wpisie historii, jeśli jest.
+     * @param state nowy stan dostarczenia.
+     */
+    void setState(HistoryEntry.DeliveryState state) {
+        if (historyEntry != null)
+            historyEntry.setDeliveryState(state);
+    }
+}
@@ -0,0 +1,373 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zapis skrzynek nadawczych na dysku, tak aby niedostarczone wiadomości przetrwały ponowne uruchomienie programu.
+ * Każde połączenie ma plik, do którego dopisywane są wpisy "dodano wiadomość" i "dostarczono wiadomość".
+ * Wpis "dostarczono" skrzynka zleca po potwierdzeniu odbioru przez hosta (patrz Outbox).
+ * Zapis wykonuje osobny wątek, który czeka chwilę na kolejne wpisy i zapisuje je paczką, z jednym fsync na plik.
+ * Wiadomość dostarczona w tej samej paczce, w której została dodana, w ogóle nie trafia na dysk,
+ * a plik bez oczekujących wiadomości jest obcinany do zera.
+ *
+ * Format wpisu: długość treści (int), typ (byte), numer wiadomości (long),
+ * dla wpisu "dodano" dodatkowo czas (long) i treść (długość int + UTF-8).
+ */
+class OutboxStore {
+
+    /**
+     * Czas (w milisekundach), przez który wątek zapisujący zbiera wpisy przed zapisem paczki.
+     */
+    private static final long LINGER = 100;
+
+    /**
+     * Rozszerzenie plików skrzynek nadawczych.
+     */
+    private static final String SUFFIX = ".outbox";
+
+    /**
+     * Typ wpisu: wiadomość dodana do skrzynki.
+     */
+    private static final byte ENQUEUED = 1;
+
+    /**
+     * Typ wpisu: wiadomość dostarczona.
+     */
+    private static final byte DELIVERED = 2;
+
+    /**
+     * Typ polecenia: usunięcie całej skrzynki. Nie jest zapisywany w pliku.
+     */
+    private static final byte DISCARD = 3;
+
+    /**
+     * Znacznik końca pracy wstawiany do kolejki przy zamykaniu.
+     */
+    private static final Record CLOSE = new Record(null, (byte) 0, null, 0);
+
+    /**
+     * Katalog plików skrzynek nadawczych.
+     */
+    private final Path directory;
+
+    /**
+     * Wpisy oczekujące na zapis.
+     */
+    private final BlockingQueue<Record> pending = new LinkedBlockingQueue<>();
+
+    /**
+     * Liczba niedostarczonych wiadomości zapisanych w pliku, według nazwy połączenia.
+     */
+    private final Map<String, Long> live = new ConcurrentHashMap<>();
+
+    /**
+     * Otwarte pliki skrzynek według nazwy połączenia. Używane tylko przez wątek zapisujący.
+     */
+    private final Map<String, FileChannel> files = new HashMap<>();
+
+    /**
+     * Wątek zapisujący wpisy na dysk.
+     */
+    private final Thread writerThread;
+
+    /**
+     * Konstruktor klasy. Uruchamia wątek zapisujący.
+     * @param directory katalog plików skrzynek, tworzony w razie potrzeby.
+     * @throws IOException gdy nie udało się utworzyć katalogu.
+     */
+    OutboxStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        writerThread = new Thread(this::writeLoop, "outbox-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Zwraca domyślny katalog skrzynek nadawczych: właściwość systemowa wazzup.outbox.dir
+     * lub katalog .wazzup/outbox w katalogu domowym użytkownika.
+     * @return domyślny katalog skrzynek.
+     */
+    static Path defaultDirectory() {
+        String dir = System.getProperty("wazzup.outbox.dir");
+        if (dir != null)
+            return Paths.get(dir);
+        return Paths.get(System.getProperty("user.home"), ".wazzup", "outbox");
+    }
+
+    /**
+     * Wczytuje niedostarczone wiadomości połączenia. Musi być wywołana przed pierwszym zapisem do jego skrzynki.
+     * Uszkodzona końcówka pliku, np. po awarii w trakcie zapisu, jest odcinana.
+     * @param connectionName nazwa połączenia.
+     * @return niedostarczone wiadomości w kolejności dodania.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    List<OutboxEntry> load(String connectionName) throws IOException {
+        Path file = fileFor(connectionName);
+        Map<Long, OutboxEntry> entries = new LinkedHashMap<>();
+        if (Files.exists(file)) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+            int valid = 0;
+            while (data.remaining() >= 4) {
+                int length = data.getInt();
+                if (length < 9 || length > data.remaining())
+                    break;
+                int end = data.position() + length;
+                byte type = data.get();
+                long id = data.getLong();
+                if (type == ENQUEUED) {
+                    long timestamp = data.getLong();
+                    int textLength = data.getInt();
+                    if (textLength < 0 || data.position() + textLength != end)
+                        break;
+                    String text = new String(data.array(), data.position(), textLength, StandardCharsets.UTF_8);
+                    entries.put(id, new OutboxEntry(id, timestamp, text, null));
+                } else if (type == DELIVERED) {
+                    entries.remove(id);
+                } else {
+                    break;
+                }
+                data.position(end);
+                valid = end;
+            }
+            if (valid < data.limit()) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+        }
+        live.put(connectionName, (long) entries.size());
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Zleca zapisanie dodania wiadomości do skrzynki.
+     * @param connectionName nazwa połączenia.
+     * @param entry dodana wiadomość.
+     */
+    void enqueued(String connectionName, OutboxEntry entry) {
+        pending.offer(new Record(connectionName, ENQUEUED, entry, entry.id));
+    }
+
+    /**
+     * Zleca zapisanie dostarczenia wiadomości.
+     * @param connectionName nazwa połączenia.
+     * @param id numer dostarczonej wiadomości.
+     */
+    void delivered(String connectionName, long id) {
+        pending.offer(new Record(connectionName, DELIVERED, null, id));
+    }
+
+    /**
+     * Zleca usunięcie całej skrzynki połączenia.
+     * @param connectionName nazwa połączenia.
+     */
+    void discard(String connectionName) {
+        pending.offer(new Record(connectionName, DISCARD, null, 0));
+    }
+
+    /**
+     * Zapisuje oczekujące wpisy i zamyka pliki.
+     * @param timeout maksymalny czas oczekiwania na zapis.
+     * @param unit jednostka czasu oczekiwania.
+     */
+    void close(long timeout, TimeUnit unit) {
+        // Do not interrupt the writer, an interrupted FileChannel closes itself.
+        pending.offer(CLOSE);
+        try {
+            writerThread.join(unit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pętla wątku zapisującego.
+     */
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        boolean closing = false;
+        while (!closing) {
+            try {
+                batch.add(pending.take());
+                // Give deliveries a moment to cancel out the records they follow.
+                if (batch.get(0) != CLOSE)
+                    Thread.sleep(LINGER);
+            } catch (InterruptedException e) {
+                closing = true;
+            }
+            pending.drainTo(batch);
+            closing |= batch.remove(CLOSE);
+            writeBatch(batch);
+            batch.clear();
+        }
+
+        for (FileChannel channel : files.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Zapisuje paczkę wpisów, z jednym zapisem i jednym fsync na plik.
+     * @param batch wpisy do zapisania.
+     */
+    private void writeBatch(List<Record> batch) {
+        // Messages enqueued and delivered within this batch never need to reach the disk.
+        Set<String> cancelled = new HashSet<>();
+        Set<String> enqueuedHere = new HashSet<>();
+        for (Record record : batch) {
+            if (record.type == ENQUEUED)
+                enqueuedHere.add(record.key());
+            else if (record.type == DELIVERED && enqueuedHere.contains(record.key()))
+                cancelled.add(record.key());
+        }
+
+        Map<String, List<ByteBuffer>> writes = new LinkedHashMap<>();
+        for (Record record : batch) {
+            String name = record.connectionName;
+            if (record.type == DISCARD) {
+                writes.remove(name);
+                truncate(name);
+                live.put(name, 0L);
+                continue;
+            }
+            if (cancelled.contains(record.key()))
+                continue;
+            writes.computeIfAbsent(name, n -> new ArrayList<>()).add(encode(record));
+            live.merge(name, record.type == ENQUEUED ? 1L : -1L, Long::sum);
+        }
+
+        for (Map.Entry<String, List<ByteBuffer>> entry : writes.entrySet()) {
+            String name = entry.getKey();
+            try {
+                if (live.getOrDefault(name, 0L) <= 0) {
+                    // Nothing left to deliver, the whole file can go.
+                    truncate(name);
+                    continue;
+                }
+                FileChannel channel = channelFor(name);
+                ByteBuffer[] buffers = entry.getValue().toArray(new ByteBuffer[0]);
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers)
+                    remaining += buffer.remaining();
+                while (remaining > 0)
+                    remaining -= channel.write(buffers);
+                channel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Koduje wpis do postaci zapisywanej w pliku.
+     * @param record wpis.
+     * @return bufor z wpisem, ustawiony do odczytu.
+     */
+    private static ByteBuffer encode(Record record) {
+        byte[] text = record.type == ENQUEUED ? record.entry.text.getBytes(StandardCharsets.UTF_8) : null;
+        int length = 1 + 8 + (text == null ? 0 : 8 + 4 + text.length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        buffer.put(record.type);
+        buffer.putLong(record.id);
+        if (text != null) {
+            buffer.putLong(record.entry.timestamp);
+            buffer.putInt(text.length).put(text);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Obcina plik skrzynki połączenia do zera, jeśli nie jest pusty.
+     * @param connectionName nazwa połączenia.
+     */
+    private void truncate(String connectionName) {
+        try {
+            FileChannel channel = files.get(connectionName);
+            if (channel != null) {
+                if (channel.size() > 0) {
+                    channel.truncate(0);
+                    channel.force(false);
+                }
+            } else if (Files.exists(fileFor(connectionName))) {
+                try (FileChannel file = FileChannel.open(fileFor(connectionName), StandardOpenOption.WRITE)) {
+                    file.truncate(0);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Zwraca otwarty plik skrzynki połączenia.
+     * @param connectionName nazwa połączenia.
+     * @return kanał pliku otwarty do dopisywania.
+     * @throws IOException gdy nie udało się otworzyć pliku.
+     */
+    private FileChannel channelFor(String connectionName) throws IOException {
+        FileChannel channel = files.get(connectionName);
+        if (channel == null) {
+            channel = FileChannel.open(fileFor(connectionName),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            files.put(connectionName, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Zwraca plik skrzynki połączenia. Znaki spoza bezpiecznego zbioru są zapisywane szesnastkowo.
+     * @param connectionName nazwa połączenia.
+     * @return plik skrzynki.
+     */
+    private Path fileFor(String connectionName) {
+        StringBuilder name = new StringBuilder();
+        for (char c : connectionName.toCharArray()) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-')
+                name.append(c);
+            else
+                name.append('_').append(String.format("%04x", (int) c));
+        }
+        return directory.resolve(name + SUFFIX);
+    }
+
+    /**
+     * Wpis oczekujący na zapis.
+     */
+    private static class Record {
+        final String connectionName;
+        final byte type;
+        final OutboxEntry entry;
+        final long id;
+
+        Record(String connectionName, byte type, OutboxEntry entry, long id) {
+            this.connectionName = connectionName;
+            this.type = type;
+            this.entry = entry;
+            this.id = id;
+        }
+
+        String key() {
+            return connectionName + '\u0000' + id;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wykrywanie hostów w sieci lokalnej przez multicast UDP.
+ * Każda instancja co jakiś czas ogłasza w grupie multicast port swojego serwera i nazwę,
+ * a z ogłoszeń innych instancji buduje tablicę hostów. Wpis wygasa, gdy przez trzy okresy
+ * ogłaszania host się nie odezwie, lub od razu, gdy host ogłosi, że kończy pracę.
+ *
+ * Ogłoszenie to jeden datagram: [magic][wersja][typ][long instancja][short port][short okres w s][byte długość nazwy][nazwa UTF-8],
+ * czyli kilkadziesiąt bajtów. Okres ogłaszania rośnie z liczbą znanych hostów tak, by cała sieć
+ * wysyłała łącznie najwyżej LAN_ANNOUNCEMENTS_PER_SECOND ogłoszeń na sekundę - przy kilkuset hostach
+ * to pojedyncze kilobajty na sekundę. Nowa instancja zaczyna od ogłoszenia HELLO, na które pozostałe
+ * odpowiadają przyspieszonym, rozłożonym losowo w czasie ogłoszeniem, więc nie trzeba czekać pełnego okresu.
+ *
+ * Do testów na jednym komputerze można uruchomić kilka instancji z -Dwazzup.discovery.interface=lo.
+ */
+public class PeerDiscovery extends Thread {
+
+    /**
+     * Domyślny adres grupy multicast (zakres administrowany lokalnie).
+     */
+    public static final String DEFAULT_GROUP = "239.255.77.77";
+
+    /**
+     * Domyślny port grupy multicast.
+     */
+    public static final int DEFAULT_PORT = 47777;
+
+    /**
+     * Najkrótszy okres ogłaszania jednej instancji.
+     */
+    static final long MIN_INTERVAL_MILLIS = 5000;
+
+    /**
+     * Łączna liczba ogłoszeń na sekundę, której nie przekroczą wszystkie instancje w sieci razem.
+     */
+    static final int LAN_ANNOUNCEMENTS_PER_SECOND = 20;
+
+    /**
+     * Liczba okresów ogłaszania bez ogłoszenia, po której host usuwany jest z tablicy.
+     */
+    static final int TTL_INTERVALS = 3;
+
+    /**
+     * Maksymalna długość nazwy w ogłoszeniu, w bajtach UTF-8.
+     */
+    static final int MAX_NAME_BYTES = 64;
+
+    /**
+     * Pierwszy bajt każdego ogłoszenia.
+     */
+    private static final byte MAGIC = 0x57;
+
+    /**
+     * Wersja formatu ogłoszeń.
+     */
+    private static final byte VERSION = 1;
+
+    /**
+     * Pierwsze ogłoszenie nowej instancji, prosi pozostałe o szybką odpowiedź.
+     */
+    private static final byte TYPE_HELLO = 1;
+
+    /**
+     * Okresowe ogłoszenie.
+     */
+    private static final byte TYPE_ANNOUNCE = 2;
+
+    /**
+     * Ogłoszenie zakończenia pracy.
+     */
+    private static final byte TYPE_BYE = 3;
+
+    /**
+     * Długość ogłoszenia bez nazwy.
+     */
+    private static final int HEADER_LENGTH = 3 + 8 + 2 + 2 + 1;
+
+    /**
+     * Najdłuższy czas oczekiwania selektora, co tyle sprawdzane są wygasłe wpisy.
+     */
+    private static final long TICK_MILLIS = 1000;
+
+    /**
+     * Losowy identyfikator tej instancji, pozwala pominąć własne ogłoszenia.
+     */
+    private final long instanceId;
+
+    /**
+     * Nazwa ogłaszana innym hostom.
+     */
+    private final byte[] name;
+
+    /**
+     * Ogłaszany port serwera nasłuchującego.
+     */
+    private final int listenPort;
+
+    /**
+     * Adres i port grupy multicast.
+     */
+    private final InetSocketAddress group;
+
+    /**
+     * Interfejs sieciowy, na którym wysyłane i odbierane są ogłoszenia.
+     */
+    private final NetworkInterface networkInterface;
+
+    /**
+     * Odbiorca zmian tablicy hostów.
+     */
+    private final Listener listener;
+
+    /**
+     * Tablica wykrytych hostów według identyfikatora instancji.
+     */
+    private final Map<Long, DiscoveredPeer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Generator losowych opóźnień ogłoszeń.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Bufor odbieranych i wysyłanych datagramów, używany wyłącznie przez wątek wykrywania.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + 255);
+
+    /**
+     * Liczba wysłanych ogłoszeń.
+     */
+    private final LongAdder sent = new LongAdder();
+
+    /**
+     * Liczba odebranych ogłoszeń innych instancji.
+     */
+    private final LongAdder received = new LongAdder();
+
+    /**
+     * Kanał UDP dołączony do grupy multicast.
+     */
+    private DatagramChannel channel;
+
+    /**
+     * Selektor, na którym wątek czeka na ogłoszenia lub kolejny termin ogłoszenia.
+     */
+    private Selector selector;
+
+    /**
+     * Flaga mówiąca o tym czy wykrywanie ma nadal działać.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Chwila (System.nanoTime) następnego ogłoszenia.
+     */
+    private long nextAnnounce;
+
+    /**
+     * Konstruktor klasy.
+     * @param name nazwa ogłaszana innym hostom.
+     * @param listenPort port serwera nasłuchującego tej instancji.
+     * @param group adres i port grupy multicast.
+     * @param networkInterface interfejs sieciowy ogłoszeń.
+     * @param listener odbiorca zmian tablicy hostów.
+     */
+    public PeerDiscovery(String name, int listenPort, InetSocketAddress group, NetworkInterface networkInterface, Listener listener) {
+        super("peer-discovery");
+        setDaemon(true);
+        this.instanceId = random.nextLong();
+        this.name = truncate(name);
+        this.listenPort = listenPort;
+        this.group = group;
+        this.networkInterface = networkInterface;
+        this.listener = listener;
+
+        Metrics metrics = Metrics.get();
+        metrics.registerGauge("discovery.peers", peers::size);
+        metrics.registerGauge("discovery.sent", sent::sum);
+        metrics.registerGauge("discovery.received", received::sum);
+    }
+
+    /**
+     * Tworzy wykrywanie skonfigurowane właściwościami wazzup.discovery.group, wazzup.discovery.port
+     * i wazzup.discovery.interface.
+     * @param name nazwa ogłaszana innym hostom.
+     * @param listenPort port serwera nasłuchującego tej instancji.
+     * @param listener odbiorca zmian tablicy hostów.
+     * @return nieuruchomione wykrywanie.
+     * @throws IOException gdy wskazany interfejs nie istnieje.
+     */
+    public static PeerDiscovery fromProperties(String name, int listenPort, Listener listener) throws IOException {
+        InetAddress address = InetAddress.getByName(System.getProperty("wazzup.discovery.group", DEFAULT_GROUP));
+        int port = Integer.getInteger("wazzup.discovery.port", DEFAULT_PORT);
+        return new PeerDiscovery(name, listenPort, new InetSocketAddress(address, port),
+                defaultInterface(System.getProperty("wazzup.discovery.interface")), listener);
+    }
+
+    /**
+     * Wybiera interfejs sieciowy ogłoszeń.
+     * @param interfaceName nazwa interfejsu lub null, by wybrać pierwszy działający interfejs z adresem IPv4.
+     * @return interfejs sieciowy; interfejs pętli zwrotnej, gdy żaden inny nie jest dostępny.
+     * @throws SocketException gdy wskazany interfejs nie istnieje.
+     */
+    static NetworkInterface defaultInterface(String interfaceName) throws SocketException {
+        if (interfaceName != null) {
+            NetworkInterface named = NetworkInterface.getByName(interfaceName);
+            if (named == null)
+                throw new SocketException("No network interface " + interfaceName);
+            return named;
+        }
+
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface candidate = interfaces.nextElement();
+            if (!candidate.isUp() || candidate.isLoopback() || candidate.isVirtual() || !candidate.supportsMulticast())
+                continue;
+            Enumeration<InetAddress> addresses = candidate.getInetAddresses();
+            while (addresses.hasMoreElements()) {
+                if (addresses.nextElement() instanceof Inet4Address)
+                    return candidate;
+            }
+        }
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Dołącza do grupy multicast i uruchamia wątek wykrywania.
+     * @throws IOException gdy nie udało się dołączyć do grupy.
+     */
+    public void startDiscovery() throws IOException {
+        DatagramChannel opened = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            // Several instances on one host share the group port.
+            opened.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            opened.bind(new InetSocketAddress(group.getPort()));
+            opened.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            opened.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+            opened.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            opened.join(group.getAddress(), networkInterface);
+            opened.configureBlocking(false);
+            selector = Selector.open();
+            opened.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        channel = opened;
+        start();
+    }
+
+    /**
+     * Kończy wykrywanie. Wątek wysyła ogłoszenie zakończenia pracy i zamyka kanał. Nie czeka na wątek.
+     */
+    public void stopDiscovery() {
+        running = false;
+        Selector current = selector;
+        if (current != null)
+            current.wakeup();
+    }
+
+    /**
+     * Getter tablicy hostów.
+     * @return niemodyfikowalny widok wykrytych hostów.
+     */
+    public Collection<DiscoveredPeer> getPeers() {
+        return Collections.unmodifiableCollection(peers.values());
+    }
+
+    /**
+     * Ogłasza instancję, odbiera ogłoszenia i usuwa wygasłe wpisy, dopóki wykrywanie nie zostanie zakończone.
+     */
+    @Override
+    public void run() {
+        try {
+            send(TYPE_HELLO);
+            nextAnnounce = System.nanoTime() + jitter(interval());
+
+            while (running) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(nextAnnounce - System.nanoTime());
+                selector.select(Math.max(1, Math.min(wait, TICK_MILLIS)));
+                selector.selectedKeys().clear();
+                receive();
+
+                long now = System.nanoTime();
+                if (now - nextAnnounce >= 0) {
+                    send(TYPE_ANNOUNCE);
+                    nextAnnounce = now + jitter(interval());
+                }
+                evictExpired(now);
+            }
+            send(TYPE_BYE);
+        } catch (IOException e) {
+            if (running)
+                e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Okres ogłaszania tej instancji: rośnie z liczbą hostów, by łączny ruch w sieci był stały.
+     * @return okres ogłaszania w milisekundach.
+     */
+    long interval() {
+        return Math.max(MIN_INTERVAL_MILLIS, (peers.size() + 1) * 1000L / LAN_ANNOUNCEMENTS_PER_SECOND);
+    }
+
+    /**
+     * Losowo rozrzuca termin ogłoszenia w przedziale od 3/4 do 5/4 okresu, by instancje
+     * uruchomione razem nie ogłaszały się jednocześnie.
+     * @param millis okres w milisekundach.
+     * @return opóźnienie w nanosekundach.
+     */
+    private long jitter(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis * 3 / 4 + (long) (random.nextDouble() * millis / 2));
+    }
+
+    /**
+     * Wysyła ogłoszenie do grupy.
+     * @param type typ ogłoszenia.
+     * @throws IOException gdy wysłanie się nie powiodło.
+     */
+    private void send(byte type) throws IOException {
+        buffer.clear();
+        buffer.put(MAGIC).put(VERSION).put(type)
+                .putLong(instanceId)
+                .putShort((short) listenPort)
+                .putShort((short) Math.min(0xFFFF, TimeUnit.MILLISECONDS.toSeconds(interval() + 999)))
+                .put((byte) name.length)
+                .put(name);
+        buffer.flip();
+        channel.send(buffer, group);
+        sent.increment();
+    }
+
+    /**
+     * Odbiera wszystkie oczekujące ogłoszenia.
+     * @throws IOException gdy kanał przestał działać.
+     */
+    private void receive() throws IOException {
+        while (true) {
+            buffer.clear();
+            SocketAddress from = channel.receive(buffer);
+            if (from == null)
+                return;
+            buffer.flip();
+            handle(buffer, ((InetSocketAddress) from).getAddress().getHostAddress());
+        }
+    }
+
+    /**
+     * Obsługuje jedno ogłoszenie. Niepoprawne datagramy i własne ogłoszenia są pomijane.
+     * @param packet treść datagramu.
+     * @param hostAddress adres nadawcy.
+     */
+    private void handle(ByteBuffer packet, String hostAddress) {
+        if (packet.remaining() < HEADER_LENGTH || packet.get() != MAGIC || packet.get() != VERSION)
+            return;
+        byte type = packet.get();
+        long id = packet.getLong();
+        int port = packet.getShort() & 0xFFFF;
+        long intervalMillis = TimeUnit.SECONDS.toMillis(packet.getShort() & 0xFFFF);
+        int nameLength = packet.get() & 0xFF;
+        if (id == instanceId || packet.remaining() < nameLength)
+            return;
+        byte[] nameBytes = new byte[nameLength];
+        packet.get(nameBytes);
+        String peerName = new String(nameBytes, StandardCharsets.UTF_8);
+        received.increment();
+
+        if (type == TYPE_BYE) {
+            DiscoveredPeer gone = peers.remove(id);
+            if (gone != null)
+                listener.peerLost(gone);
+            return;
+        }
+        if (type != TYPE_HELLO && type != TYPE_ANNOUNCE)
+            return;
+
+        long now = System.nanoTime();
+        DiscoveredPeer peer = peers.get(id);
+        if (peer == null || !peer.sameEndpoint(peerName, hostAddress, port)) {
+            DiscoveredPeer replaced = peer;
+            peer = new DiscoveredPeer(id, peerName, hostAddress, port);
+            peer.setExpiresAt(now + TimeUnit.MILLISECONDS.toNanos(TTL_INTERVALS * Math.max(MIN_INTERVAL_MILLIS, intervalMillis)));
+            peers.put(id, peer);
+            if (replaced != null)
+                listener.peerLost(replaced);
+            listener.peerFound(peer);
+        } else {
+            peer.setExpiresAt(now + TimeUnit.MILLISECONDS.toNanos(TTL_INTERVALS * Math.max(MIN_INTERVAL_MILLIS, intervalMillis)));
+        }
+
+        if (type == TYPE_HELLO) {
+            // Answer the newcomer early, spread over a window wide enough to respect the LAN budget.
+            long window = Math.max(TICK_MILLIS, peers.size() * 1000L / LAN_ANNOUNCEMENTS_PER_SECOND);
+            long reply = now + TimeUnit.MILLISECONDS.toNanos((long) (random.nextDouble() * window));
+            if (reply - nextAnnounce < 0)
+                nextAnnounce = reply;
+        }
+    }
+
+    /**
+     * Usuwa hosty, które zbyt długo się nie ogłaszały.
+     * @param now bieżąca chwila w jednostkach System.nanoTime.
+     */
+    private void evictExpired(long now) {
+        Iterator<DiscoveredPeer> iterator = peers.values().iterator();
+        while (iterator.hasNext()) {
+            DiscoveredPeer peer = iterator.next();
+            if (now - peer.getExpiresAt() >= 0) {
+                iterator.remove();
+                listener.peerLost(peer);
+            }
+        }
+    }
+
+    /**
+     * Opuszcza grupę i zamyka kanał oraz selektor.
+     */
+    private void close() {
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Koduje nazwę w UTF-8, skracając ją do MAX_NAME_BYTES bez dzielenia znaków.
+     * @param name nazwa.
+     * @return zakodowana nazwa.
+     */
+    private static byte[] truncate(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        while (bytes.length > MAX_NAME_BYTES) {
+            name = name.substring(0, name.offsetByCodePoints(name.length(), -1));
+            bytes = name.getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    /**
+     * Odbiorca zmian tablicy hostów. Wywoływany z wątku wykrywania.
+     */
+    public interface Listener {
+
+        /**
+         * Wywoływana, gdy pojawił się nowy host lub host zmienił adres, port albo nazwę.
+         * @param peer wykryty host.
+         */
+        void peerFound(DiscoveredPeer peer);
+
+        /**
+         * Wywoływana, gdy host ogłosił zakończenie pracy lub jego wpis wygasł.
+         * @param peer utracony host.
+         */
+        void peerLost(DiscoveredPeer peer);
+    }
+}
@@ -0,0 +1,198 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ograniczenie szybkości przyjmowania ramek przez serwer, sprawdzane przed dekodowaniem ramki.
+ * Każde połączenie ma własny kubeł żetonów, a wszystkie połączenia z jednego adresu dzielą dodatkowy
+ * wspólny kubeł, więc host nie obejdzie limitu, otwierając wiele połączeń. Kubeł napełnia się
+ * ze stałą szybkością do pojemności odpowiadającej sekundzie ruchu, więc krótkie serie przechodzą bez opóźnień.
+ *
+ * Połączenie, dla którego zabrakło żetonu, nie jest zamykane ani nie traci ramek: serwer przestaje je czytać
+ * do czasu uzupełnienia kubła, a nadmiar danych czeka w buforach TCP i spowalnia nadawcę.
+ */
+final class RateLimiter {
+
+    /**
+     * Najkrótsze wstrzymanie odczytu w nanosekundach, by nie budzić serwera dla pojedynczego żetonu.
+     */
+    private static final long MIN_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Limit ramek na sekundę dla jednego połączenia lub 0.
+     */
+    private final int connectionRate;
+
+    /**
+     * Limit ramek na sekundę dla jednego adresu lub 0.
+     */
+    private final int addressRate;
+
+    /**
+     * Wspólne kubły adresów, z których są otwarte połączenia.
+     */
+    private final Map<String, Bucket> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * Konstruktor klasy.
+     * @param settings ustawienia serwera z limitami szybkości.
+     */
+    RateLimiter(ListenerSettings settings) {
+        this.connectionRate = settings.getMessagesPerSecond();
+        this.addressRate = settings.getAddressMessagesPerSecond();
+    }
+
+    /**
+     * Tworzy przydział żetonów dla nowego połączenia. Przydział należy zamknąć po zamknięciu połączenia.
+     * @param address adres IP hosta.
+     * @return przydział żetonów połączenia.
+     */
+    Quota open(String address) {
+        Bucket shared = null;
+        if (addressRate > 0) {
+            shared = addresses.compute(address, (key, bucket) -> {
+                Bucket current = bucket == null ? new Bucket(addressRate) : bucket;
+                current.users++;
+                return current;
+            });
+        }
+        return new Quota(address, connectionRate > 0 ? new Bucket(connectionRate) : null, shared);
+    }
+
+    /**
+     * Przydział żetonów jednego połączenia.
+     */
+    final class Quota {
+
+        /**
+         * Adres IP hosta.
+         */
+        private final String address;
+
+        /**
+         * Kubeł połączenia lub null, gdy limit połączenia jest wyłączony.
+         */
+        private final Bucket own;
+
+        /**
+         * Kubeł adresu lub null, gdy limit adresu jest wyłączony.
+         */
+        private final Bucket shared;
+
+        /**
+         * Flaga mówiąca o tym czy przydział został zamknięty.
+         */
+        private boolean closed;
+
+        /**
+         * Konstruktor klasy.
+         * @param address adres IP hosta.
+         * @param own kubeł połączenia lub null.
+         * @param shared kubeł adresu lub null.
+         */
+        private Quota(String address, Bucket own, Bucket shared) {
+            this.address = address;
+            this.own = own;
+            this.shared = shared;
+        }
+
+        /**
+         * Pobiera żeton na kolejną ramkę.
+         * @return 0, gdy ramkę można przetworzyć, a w przeciwnym razie czas w nanosekundach,
+         * na który należy wstrzymać odczyt połączenia.
+         */
+        long acquire() {
+            if (own == null && shared == null)
+                return 0;
+            long now = System.nanoTime();
+            long wait = own == null ? 0 : own.waitNanos(now);
+            if (wait == 0 && shared != null)
+                wait = shared.waitNanos(now);
+            if (wait > 0) {
+                Metrics.get().listenerThrottled.increment();
+                return Math.max(wait, MIN_PAUSE_NANOS);
+            }
+            // Another connection from the address may take the same token, the bucket then goes briefly negative.
+            if (own != null)
+                own.take();
+            if (shared != null)
+                shared.take();
+            return 0;
+        }
+
+        /**
+         * Zwalnia kubeł adresu, gdy było to ostatnie połączenie z tego adresu.
+         */
+        synchronized void close() {
+            if (closed || shared == null)
+                return;
+            closed = true;
+            addresses.computeIfPresent(address, (key, bucket) -> --bucket.users == 0 ? null : bucket);
+        }
+    }
+
+    /**
+     * Kubeł żetonów napełniany ze stałą szybkością.
+     */
+    private static final class Bucket {
+
+        /**
+         * Liczba żetonów przybywających w ciągu nanosekundy.
+         */
+        private final double tokensPerNano;
+
+        /**
+         * Pojemność kubła.
+         */
+        private final double capacity;
+
+        /**
+         * Bieżąca liczba żetonów.
+         */
+        private double tokens;
+
+        /**
+         * Czas (System.nanoTime) ostatniego uzupełnienia kubła.
+         */
+        private long updated = System.nanoTime();
+
+        /**
+         * Liczba połączeń korzystających z kubła, zmieniana w mapie adresów.
+         */
+        private int users;
+
+        /**
+         * Konstruktor klasy. Nowy kubeł jest pełny.
+         * @param ratePerSecond liczba żetonów przybywających w ciągu sekundy.
+         */
+        Bucket(int ratePerSecond) {
+            this.tokensPerNano = ratePerSecond / 1e9;
+            this.capacity = ratePerSecond;
+            this.tokens = capacity;
+        }
+
+        /**
+         * Uzupełnia kubeł i zwraca czas oczekiwania na żeton.
+         * @param now bieżący czas (System.nanoTime).
+         * @return 0, gdy żeton jest dostępny, lub czas do jego pojawienia się w nanosekundach.
+         */
+        synchronized long waitNanos(long now) {
+            if (now - updated > 0) {
+                tokens = Math.min(capacity, tokens + (now - updated) * tokensPerNano);
+                updated = now;
+            }
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        /**
+         * Zabiera żeton z kubła.
+         */
+        synchronized void take() {
+            tokens--;
+        }
+    }
+}
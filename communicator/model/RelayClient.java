@@ -0,0 +1,183 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Klient huba (patrz RelayServer). Utrzymuje jedno stałe połączenie z hubem, którym wysyła wiadomości
+ * do dowolnych innych klientów i odbiera wiadomości od nich.
+ * Wiadomości wysyłane są po kolei przez jeden wątek, a odbierane przez osobny wątek czytający.
+ */
+public class RelayClient {
+
+    /**
+     * Adres IP huba.
+     */
+    private final String hubAddress;
+
+    /**
+     * Numer portu huba.
+     */
+    private final int hubPort;
+
+    /**
+     * Identyfikator, pod którym klient jest znany innym klientom huba.
+     */
+    private final String clientId;
+
+    /**
+     * Kodek, którym kodowane są wysyłane wiadomości.
+     */
+    private final MessageCodec codec;
+
+    /**
+     * Odbiorca wiadomości przekazanych przez hub.
+     */
+    private final MessageSink sink;
+
+    /**
+     * Wątek wysyłający wiadomości, zachowujący kolejność zleceń.
+     */
+    private final ExecutorService writer;
+
+    /**
+     * Kanał połączenia z hubem lub null przed połączeniem.
+     */
+    private volatile SocketChannel channel;
+
+    /**
+     * Wątek odbierający wiadomości od huba.
+     */
+    private Thread reader;
+
+    /**
+     * Konstruktor klasy.
+     * @param hubAddress adres IP huba.
+     * @param hubPort numer portu huba.
+     * @param clientId identyfikator klienta.
+     * @param codec kodek wysyłanych wiadomości.
+     * @param sink odbiorca wiadomości przekazanych przez hub.
+     */
+    public RelayClient(String hubAddress, int hubPort, String clientId, MessageCodec codec, MessageSink sink) {
+        this.hubAddress = hubAddress;
+        this.hubPort = hubPort;
+        this.clientId = clientId;
+        this.codec = codec;
+        this.sink = sink;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "relay-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Łączy się z hubem, przedstawia się i zaczyna odbierać wiadomości.
+     * @throws IOException gdy nie udało się połączyć z hubem.
+     */
+    public void connect() throws IOException {
+        SocketChannel opened = SocketChannel.open(new InetSocketAddress(hubAddress, hubPort));
+        opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        write(opened, RelayProtocol.hello(clientId));
+        channel = opened;
+
+        reader = new Thread(() -> receive(opened), "relay-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Getter identyfikatora klienta.
+     * @return identyfikator klienta.
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Zleca wysłanie wiadomości do innego klienta huba.
+     * @param recipientId identyfikator odbiorcy.
+     * @param text treść wiadomości.
+     * @return future zakończony po przekazaniu wiadomości hubowi lub wyjątkiem, gdy wysłanie się nie powiodło.
+     */
+    public CompletableFuture<Void> send(String recipientId, String text) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                SocketChannel current = channel;
+                if (current == null)
+                    throw new IOException("Not connected to the hub");
+
+                long encodeStart = System.nanoTime();
+                ByteBuffer frame = RelayProtocol.route(recipientId, new Message(text, clientId), codec);
+                long writeStart = System.nanoTime();
+                Metrics.get().serializeLatency.record(writeStart - encodeStart);
+
+                int frameLength = frame.remaining();
+                write(current, frame);
+                Metrics.get().writeLatency.record(System.nanoTime() - writeStart);
+                Metrics.get().connection(recipientId).sent(frameLength);
+            } catch (IOException e) {
+                Metrics.get().connection(recipientId).failed();
+                throw new UncheckedIOException(e);
+            }
+        }, writer);
+    }
+
+    /**
+     * Zamyka połączenie z hubem. Wiadomości już zlecone zostaną odrzucone.
+     */
+    public void close() {
+        writer.shutdown();
+        SocketChannel current = channel;
+        channel = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Odbiera wiadomości od huba, dopóki połączenie jest otwarte. Wykonywana w wątku czytającym.
+     * @param source kanał połączenia z hubem.
+     */
+    private void receive(SocketChannel source) {
+        FrameReader frames = new FrameReader();
+        try {
+            while (frames.readFrom(source) >= 0) {
+                ByteBuffer payload;
+                while ((payload = frames.nextFrame()) != null) {
+                    Message message = RelayProtocol.isRelayFrame(payload)
+                            ? RelayProtocol.decodeRoute(payload)
+                            : MessageFrames.decode(payload);
+                    Metrics.get().connection(message.getConnectionName()).received(frames.getLastFrameLength());
+                    sink.write(message);
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed or the hub sent a malformed frame.
+        }
+    }
+
+    /**
+     * Zapisuje całą ramkę do kanału.
+     * @param target kanał połączenia z hubem.
+     * @param frame ramka do zapisania.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    private static void write(SocketChannel target, ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining())
+            target.write(frame);
+    }
+}
@@ -0,0 +1,143 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ramki protokołu przekaźnika (huba), przesyłane tym samym kanałem co zwykłe ramki wiadomości.
+ * Treść ramki przekaźnika zaczyna się bajtem TYPE, różnym od bajtów wersji kodeków, po nim następuje kod operacji:
+ * HELLO - [TYPE][1][identyfikator klienta], wysyłana raz po połączeniu z hubem;
+ * ROUTE - [TYPE][2][identyfikator][treść wiadomości zakodowana kodekiem].
+ * W ramce ROUTE wysłanej przez klienta identyfikator wskazuje odbiorcę, a w ramce przekazanej przez hub - nadawcę.
+ * Hub nie dekoduje treści wiadomości, tylko podmienia identyfikator.
+ */
+public final class RelayProtocol {
+
+    /**
+     * Pierwszy bajt treści ramki przekaźnika ('R').
+     */
+    public static final byte TYPE = 0x52;
+
+    /**
+     * Kod operacji przedstawienia się klienta.
+     */
+    static final byte OP_HELLO = 1;
+
+    /**
+     * Kod operacji przekazania wiadomości.
+     */
+    static final byte OP_ROUTE = 2;
+
+    /**
+     * Długość nagłówka ramki przekaźnika: bajt typu i kod operacji.
+     */
+    private static final int RELAY_HEADER_LENGTH = 2;
+
+    private RelayProtocol() {
+    }
+
+    /**
+     * Tworzy ramkę HELLO.
+     * @param clientId identyfikator klienta.
+     * @return kompletna ramka, gotowa do wysłania.
+     */
+    public static ByteBuffer hello(String clientId) {
+        byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(MessageFrames.HEADER_LENGTH + RELAY_HEADER_LENGTH + 4 + id.length);
+        frame.putInt(frame.capacity() - MessageFrames.HEADER_LENGTH);
+        frame.put(TYPE).put(OP_HELLO);
+        frame.putInt(id.length).put(id);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Tworzy ramkę ROUTE z wiadomością do zadanego odbiorcy.
+     * @param recipientId identyfikator odbiorcy.
+     * @param message wiadomość.
+     * @param codec kodek, którym kodowana jest wiadomość.
+     * @return kompletna ramka, gotowa do wysłania.
+     * @throws IOException gdy kodowanie wiadomości się nie powiodło.
+     */
+    public static ByteBuffer route(String recipientId, Message message, MessageCodec codec) throws IOException {
+        byte[] id = recipientId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(MessageFrames.HEADER_LENGTH + RELAY_HEADER_LENGTH + 4 + id.length
+                + codec.maxEncodedLength(message));
+        frame.position(MessageFrames.HEADER_LENGTH);
+        frame.put(TYPE).put(OP_ROUTE);
+        frame.putInt(id.length).put(id);
+        codec.encode(message, frame);
+        frame.putInt(0, frame.position() - MessageFrames.HEADER_LENGTH);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Sprawdza czy treść ramki jest ramką przekaźnika.
+     * @param payload treść ramki.
+     * @return true dla ramki przekaźnika, false dla zwykłej wiadomości.
+     */
+    public static boolean isRelayFrame(ByteBuffer payload) {
+        return payload.hasRemaining() && payload.get(payload.position()) == TYPE;
+    }
+
+    /**
+     * Odczytuje nagłówek ramki przekaźnika.
+     * @param payload treść ramki, pozycja zostaje przesunięta za kod operacji.
+     * @return kod operacji.
+     * @throws IOException gdy ramka jest za krótka.
+     */
+    static byte readOperation(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < RELAY_HEADER_LENGTH)
+            throw new IOException("Truncated relay frame");
+        payload.get();
+        return payload.get();
+    }
+
+    /**
+     * Odczytuje identyfikator klienta.
+     * @param payload treść ramki, pozycja zostaje przesunięta za identyfikator.
+     * @return identyfikator.
+     * @throws IOException gdy ramka jest niepoprawna.
+     */
+    static String readId(ByteBuffer payload) throws IOException {
+        try {
+            return BinaryMessageCodec.getString(payload);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated relay frame", e);
+        }
+    }
+
+    /**
+     * Tworzy ramkę ROUTE przekazywaną przez hub odbiorcy.
+     * @param senderId identyfikator nadawcy zakodowany w UTF-8.
+     * @param message treść wiadomości zakodowana kodekiem, od pozycji do limitu; nie jest modyfikowana.
+     * @return kompletna ramka, gotowa do wysłania.
+     */
+    static ByteBuffer forward(byte[] senderId, ByteBuffer message) {
+        ByteBuffer frame = ByteBuffer.allocate(MessageFrames.HEADER_LENGTH + RELAY_HEADER_LENGTH + 4 + senderId.length
+                + message.remaining());
+        frame.putInt(frame.capacity() - MessageFrames.HEADER_LENGTH);
+        frame.put(TYPE).put(OP_ROUTE);
+        frame.putInt(senderId.length).put(senderId);
+        frame.put(message.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Dekoduje ramkę ROUTE przekazaną przez hub.
+     * @param payload treść ramki.
+     * @return wiadomość, której nazwą połączenia jest identyfikator nadawcy.
+     * @throws IOException gdy ramka jest niepoprawna.
+     */
+    public static Message decodeRoute(ByteBuffer payload) throws IOException {
+        if (readOperation(payload) != OP_ROUTE)
+            throw new IOException("Unexpected relay operation");
+        String senderId = readId(payload);
+        Message message = MessageFrames.decode(payload);
+        return new Message(message.getMessageText(), senderId);
+    }
+}
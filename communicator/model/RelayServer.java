@@ -0,0 +1,484 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serwer w trybie przekaźnika (huba) dla topologii gwiazdy.
+ * Klienci utrzymują jedno stałe połączenie z hubem, przedstawiają się ramką HELLO, a hub przekazuje
+ * ich wiadomości (ramki ROUTE) odbiorcom według tablicy tras (patrz RelayProtocol).
+ * Każdy odbiorca ma własną, ograniczoną kolejkę wychodzącą, więc wolny odbiorca nie wstrzymuje pozostałych -
+ * gdy jego kolejka jest pełna, kolejne wiadomości do niego są odrzucane i zliczane.
+ * Zwykłe ramki wiadomości, niebędące ramkami przekaźnika, przekazywane są odbiorcy wiadomości jak w NioMessageListener.
+ * Klient przekraczający limit szybkości (patrz RateLimiter) nie jest czytany do czasu uzupełnienia żetonów.
+ */
+public class RelayServer extends ServerThread {
+
+    /**
+     * Maksymalna liczba bajtów oczekujących w kolejce wychodzącej jednego odbiorcy.
+     */
+    public static final int MAX_QUEUED_BYTES = 1 << 20;
+
+    /**
+     * Długość kolejki połączeń oczekujących na przyjęcie.
+     * Przy tysiącach klientów łączących się naraz domyślne 50 powoduje ponawianie SYN przez klientów.
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * Maksymalna liczba buforów zapisywanych jednym wywołaniem systemowym.
+     */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * Adres i port serwera.
+     */
+    private InetSocketAddress address;
+
+    /**
+     * Kanał serwera przyjmujący nowe połączenia.
+     */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Selektor obsługujący kanał serwera i wszystkie połączenia klientów.
+     */
+    private volatile Selector selector;
+
+    /**
+     * Odbiorca zwykłych wiadomości skierowanych do samego huba.
+     */
+    private MessageSink sink;
+
+    /**
+     * Tablica tras - sesje klientów według identyfikatora.
+     */
+    private final Map<String, RelaySession> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Bufory zapisywane jednym wywołaniem systemowym, używane ponownie przez wątek selektora.
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    /**
+     * Liczba przekazanych wiadomości.
+     */
+    private final LongAdder routed = new LongAdder();
+
+    /**
+     * Liczba wiadomości do nieznanych odbiorców.
+     */
+    private final LongAdder unroutable = new LongAdder();
+
+    /**
+     * Liczba wiadomości odrzuconych z powodu pełnej kolejki odbiorcy.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Ograniczenie szybkości przyjmowania ramek.
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Sesje, których odczyt jest wstrzymany przez ograniczenie szybkości. Używane tylko przez wątek selektora.
+     */
+    private final List<RelaySession> throttled = new ArrayList<>();
+
+    /**
+     * Konstruktor klasy.
+     * @param sink odbiorca zwykłych wiadomości skierowanych do huba.
+     * @param port numer portu, na którym ma słuchać serwer.
+     */
+    public RelayServer(MessageSink sink, int port) {
+        this(sink, new InetSocketAddress(port));
+    }
+
+    /**
+     * Konstruktor klasy. Limity szybkości pobierane są z właściwości systemowych.
+     * @param sink odbiorca zwykłych wiadomości skierowanych do huba.
+     * @param address adres i port, na którym ma słuchać serwer.
+     */
+    public RelayServer(MessageSink sink, InetSocketAddress address) {
+        this(sink, address, ListenerSettings.fromProperties());
+    }
+
+    /**
+     * Konstruktor klasy. Z ustawień używane są tylko limity szybkości.
+     * @param sink odbiorca zwykłych wiadomości skierowanych do huba.
+     * @param address adres i port, na którym ma słuchać serwer.
+     * @param settings ustawienia z limitami szybkości przyjmowania ramek.
+     */
+    public RelayServer(MessageSink sink, InetSocketAddress address, ListenerSettings settings) {
+        super("relay-server");
+        this.sink = sink;
+        this.address = address;
+        this.rateLimiter = new RateLimiter(settings);
+
+        Metrics metrics = Metrics.get();
+        metrics.registerGauge("relay.clients", routes::size);
+        metrics.registerGauge("relay.routed", routed::sum);
+        metrics.registerGauge("relay.unroutable", unroutable::sum);
+        metrics.registerGauge("relay.dropped", dropped::sum);
+    }
+
+    /**
+     * Zajmuje port serwera i rejestruje kanał serwera w selektorze.
+     * @throws IOException gdy nie udało się zająć portu.
+     */
+    @Override
+    protected void bind() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Obsługuje zdarzenia selektora, dopóki serwer nie zostanie zatrzymany.
+     * Wiadomości przekazywane są w całości przez kolejki odbiorców, więc po zatrzymaniu nie ma czego dokańczać.
+     * @throws IOException gdy kanał serwera przestał działać.
+     */
+    @Override
+    protected void serve() throws IOException {
+        try {
+            while (listenFlag) {
+                long timeout = throttleTimeout();
+                if (timeout == 0)
+                    selector.select();
+                else
+                    selector.select(timeout);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    RelaySession session = (RelaySession) key.attachment();
+                    if (key.isWritable())
+                        flush(session);
+                    if (key.isValid() && key.isReadable())
+                        read(session);
+                }
+                if (timeout != 0)
+                    resumeThrottled();
+            }
+        } catch (ClosedSelectorException e) {
+            // Selector closed, the server is stopping.
+        }
+    }
+
+    /**
+     * Przyjmuje wszystkie oczekujące połączenia i rejestruje je w selektorze.
+     * @throws IOException gdy kanał serwera został zamknięty.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        int accepted = 0;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            RelaySession session = new RelaySession(channel,
+                    rateLimiter.open(channel.socket().getInetAddress().getHostAddress()));
+            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            accepted++;
+        }
+        Metrics.get().acceptQueueDepth.record(accepted);
+    }
+
+    /**
+     * Odczytuje dostępne dane od klienta i obsługuje wszystkie kompletne ramki.
+     * @param session sesja klienta.
+     */
+    private void read(RelaySession session) {
+        try {
+            // A resumed client first uses up the frames it holds, so its buffer does not grow while throttled.
+            int read = session.reader.hasFrame() ? 0 : session.reader.readFrom(session.channel);
+
+            ByteBuffer payload;
+            while (true) {
+                if (session.reader.hasFrame()) {
+                    long pause = session.quota.acquire();
+                    if (pause > 0) {
+                        session.resumeAt = System.nanoTime() + pause;
+                        session.throttled = true;
+                        throttled.add(session);
+                        updateInterest(session);
+                        return;
+                    }
+                }
+                if ((payload = session.reader.nextFrame()) == null)
+                    break;
+                if (RelayProtocol.isRelayFrame(payload)) {
+                    handleRelayFrame(session, payload);
+                } else if (Acknowledgement.isAck(payload)) {
+                    sink.acknowledge(Acknowledgement.decode(payload));
+                } else {
+                    Message message = MessageFrames.decode(payload);
+                    Metrics.get().connection(message.getConnectionName()).received(session.reader.getLastFrameLength());
+                    sink.write(message);
+                }
+            }
+
+            if (read < 0)
+                close(session);
+        } catch (IOException e) {
+            // Broken connection or malformed frame, drop this client only.
+            Metrics.get().listenerErrors.increment();
+            close(session);
+        }
+    }
+
+    /**
+     * Obsługuje ramkę przekaźnika.
+     * @param session sesja nadawcy.
+     * @param payload treść ramki.
+     * @throws IOException gdy ramka jest niepoprawna lub klient się nie przedstawił.
+     */
+    private void handleRelayFrame(RelaySession session, ByteBuffer payload) throws IOException {
+        byte operation = RelayProtocol.readOperation(payload);
+
+        if (operation == RelayProtocol.OP_HELLO) {
+            if (session.clientId != null)
+                throw new IOException("Client has already introduced itself");
+            session.clientId = RelayProtocol.readId(payload);
+            session.encodedId = session.clientId.getBytes(StandardCharsets.UTF_8);
+
+            // The newest connection wins, the previous one is most likely stale.
+            RelaySession previous = routes.put(session.clientId, session);
+            if (previous != null)
+                close(previous);
+        } else if (operation == RelayProtocol.OP_ROUTE) {
+            if (session.clientId == null)
+                throw new IOException("Client has not introduced itself");
+            RelaySession recipient = routes.get(RelayProtocol.readId(payload));
+            if (recipient == null) {
+                unroutable.increment();
+                return;
+            }
+            enqueue(recipient, RelayProtocol.forward(session.encodedId, payload));
+        } else {
+            throw new IOException("Unknown relay operation: " + operation);
+        }
+    }
+
+    /**
+     * Dodaje ramkę do kolejki wychodzącej odbiorcy i od razu próbuje ją wysłać.
+     * @param recipient sesja odbiorcy.
+     * @param frame kompletna ramka.
+     */
+    private void enqueue(RelaySession recipient, ByteBuffer frame) {
+        if (recipient.queuedBytes + frame.remaining() > MAX_QUEUED_BYTES) {
+            dropped.increment();
+            return;
+        }
+        recipient.outbound.add(frame);
+        recipient.queuedBytes += frame.remaining();
+        routed.increment();
+
+        // Write through when nothing is pending, otherwise the selector reports when the socket drains.
+        if (recipient.outbound.size() == 1)
+            flush(recipient);
+    }
+
+    /**
+     * Wysyła tyle oczekujących ramek, ile przyjmie socket odbiorcy.
+     * Gdy coś zostaje w kolejce, zgłasza w selektorze gotowość do zapisu.
+     * @param session sesja odbiorcy.
+     */
+    private void flush(RelaySession session) {
+        try {
+            while (!session.outbound.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer frame : session.outbound) {
+                    gather[count++] = frame;
+                    if (count == MAX_GATHER)
+                        break;
+                }
+                long written = session.channel.write(gather, 0, count);
+                session.queuedBytes -= written;
+
+                while (!session.outbound.isEmpty() && !session.outbound.peek().hasRemaining())
+                    session.outbound.poll();
+                if (written == 0 || !session.outbound.isEmpty() && session.outbound.peek().position() > 0)
+                    break;  // Socket buffer is full.
+            }
+            Arrays.fill(gather, null);
+        } catch (IOException e) {
+            close(session);
+            return;
+        }
+
+        updateInterest(session);
+    }
+
+    /**
+     * Ustawia zdarzenia selektora sesji: odczyt, o ile sesja nie jest wstrzymana, i zapis, gdy coś czeka w kolejce.
+     * @param session sesja klienta.
+     */
+    private void updateInterest(RelaySession session) {
+        int interest = (session.throttled ? 0 : SelectionKey.OP_READ)
+                | (session.outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        if (session.key.isValid() && session.key.interestOps() != interest)
+            session.key.interestOps(interest);
+    }
+
+    /**
+     * Zwraca czas oczekiwania selektora wynikający z sesji wstrzymanych przez ograniczenie szybkości.
+     * @return czas do wznowienia najbliższej sesji w milisekundach lub 0, gdy żadna nie jest wstrzymana.
+     */
+    private long throttleTimeout() {
+        if (throttled.isEmpty())
+            return 0;
+        long now = System.nanoTime();
+        long earliest = Long.MAX_VALUE;
+        for (RelaySession session : throttled)
+            earliest = Math.min(earliest, session.resumeAt - now);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * Wznawia odczyt sesji, których czas wstrzymania minął, i przetwarza ramki czekające w ich buforach.
+     */
+    private void resumeThrottled() {
+        long now = System.nanoTime();
+        List<RelaySession> due = new ArrayList<>();
+        Iterator<RelaySession> sessions = throttled.iterator();
+        while (sessions.hasNext()) {
+            RelaySession session = sessions.next();
+            if (!session.key.isValid()) {
+                sessions.remove();
+            } else if (session.resumeAt - now <= 0) {
+                sessions.remove();
+                due.add(session);
+            }
+        }
+        for (RelaySession session : due) {
+            session.throttled = false;
+            updateInterest(session);
+            read(session);
+        }
+    }
+
+    /**
+     * Zamyka połączenie klienta i usuwa go z tablicy tras.
+     * @param session sesja klienta.
+     */
+    private void close(RelaySession session) {
+        if (session.clientId != null)
+            routes.remove(session.clientId, session);
+        session.outbound.clear();
+        session.queuedBytes = 0;
+        session.quota.close();
+        session.key.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Zamyka wszystkie połączenia, kanał serwera i selektor.
+     */
+    @Override
+    protected void closeAll() {
+        routes.clear();
+        if (selector != null) {
+            try {
+                for (SelectionKey key : selector.keys())
+                    key.channel().close();
+                selector.close();
+            } catch (ClosedSelectorException | IOException e) {
+                // Already closed.
+            }
+        }
+        if (serverChannel != null && serverChannel.isOpen()) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Getter liczby przedstawionych klientów.
+     * @return liczba wpisów w tablicy tras.
+     */
+    public int getClientCount() {
+        return routes.size();
+    }
+
+    /**
+     * Getter liczby przekazanych wiadomości.
+     * @return liczba wiadomości przyjętych do kolejek odbiorców.
+     */
+    public long getRoutedCount() {
+        return routed.sum();
+    }
+
+    /**
+     * Getter liczby odrzuconych wiadomości.
+     * @return liczba wiadomości odrzuconych z powodu pełnej kolejki lub nieznanego odbiorcy.
+     */
+    public long getDroppedCount() {
+        return dropped.sum() + unroutable.sum();
+    }
+
+    /**
+     * Budzi wątek selektora, który po sprawdzeniu flagi nasłuchiwania zamyka wszystkie połączenia.
+     */
+    @Override
+    protected void wakeUp() {
+        Selector current = selector;
+        if (current != null)
+            current.wakeup();
+    }
+
+    /**
+     * Stan połączenia jednego klienta huba. Używany wyłącznie przez wątek selektora.
+     */
+    private static class RelaySession {
+
+        final SocketChannel channel;
+        final FrameReader reader = new FrameReader();
+        final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        final RateLimiter.Quota quota;
+        SelectionKey key;
+        String clientId;
+        byte[] encodedId;
+        long queuedBytes;
+        boolean throttled;
+        long resumeAt;
+
+        RelaySession(SocketChannel channel, RateLimiter.Quota quota) {
+            this.channel = channel;
+            this.quota = quota;
+        }
+    }
+}
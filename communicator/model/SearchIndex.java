@@ -0,0 +1,449 @@
+package proz.communicator.model;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Indeks pełnotekstowy historii wiadomości.
+ * Każda wiadomość dostaje kolejny numer, a każde słowo wiadomości wskazuje na listę numerów wiadomości,
+ * w których występuje. Listy trzymane są w tablicach typu int, posortowane rosnąco, więc zapytanie
+ * złożone z kilku słów to przecięcie kilku posortowanych tablic.
+ * Indeks jest aktualizowany na bieżąco i może być zapisany do pliku oraz wczytany przy starcie.
+ */
+public class SearchIndex {
+
+    /**
+     * Znacznik początku pliku indeksu.
+     */
+    private static final int FILE_MAGIC = 0x57535832;   // "WSX2"
+
+    /**
+     * Znacznik początku pliku indeksu w poprzednim formacie, bez numerów wpisów historii.
+     */
+    private static final int FILE_MAGIC_V1 = 0x57535831;   // "WSX1"
+
+    /**
+     * Wynik wyszukiwania - wskazanie na wiadomość w historii rozmowy.
+     */
+    public static class Hit {
+
+        /**
+         * Nazwa połączenia, w którego historii jest wiadomość.
+         */
+        private final String connectionName;
+
+        /**
+         * Numer wpisu w historii rozmowy lub -1, gdy nie jest znany.
+         */
+        private final long sequence;
+
+        /**
+         * Czas wiadomości w milisekundach od początku epoki.
+         */
+        private final long timestamp;
+
+        /**
+         * Konstruktor klasy.
+         * @param connectionName nazwa połączenia.
+         * @param sequence numer wpisu w historii rozmowy lub -1.
+         * @param timestamp czas wiadomości.
+         */
+        Hit(String connectionName, long sequence, long timestamp) {
+            this.connectionName = connectionName;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Getter nazwy połączenia.
+         * @return nazwa połączenia.
+         */
+        public String getConnectionName() {
+            return connectionName;
+        }
+
+        /**
+         * Getter numeru wpisu w historii rozmowy (patrz HistoryEntry.getSequence).
+         * Kilka wiadomości może mieć ten sam czas, numer wskazuje dokładnie jedną.
+         * @return numer wpisu lub -1 dla wiadomości z indeksu zapisanego przez starszą wersję programu.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Getter czasu wiadomości.
+         * @return czas w milisekundach od początku epoki.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * Listy numerów wiadomości według słowa.
+     */
+    private final Map<String, PostingList> postings = new HashMap<>();
+
+    /**
+     * Nazwy połączeń. Wiadomości wskazują na połączenie numerem z tej listy.
+     */
+    private final List<String> connectionNames = new ArrayList<>();
+
+    /**
+     * Numery połączeń według nazwy.
+     */
+    private final Map<String, Integer> connectionIds = new HashMap<>();
+
+    /**
+     * Numer połączenia każdej wiadomości.
+     */
+    private int[] docConnections = new int[1024];
+
+    /**
+     * Numer wpisu historii każdej wiadomości.
+     */
+    private long[] docSequences = new long[1024];
+
+    /**
+     * Czas każdej wiadomości.
+     */
+    private long[] docTimestamps = new long[1024];
+
+    /**
+     * Liczba zaindeksowanych wiadomości.
+     */
+    private int docCount = 0;
+
+    /**
+     * Zwraca domyślny plik indeksu: właściwość systemowa wazzup.search.file
+     * lub plik .wazzup/search.idx w katalogu domowym użytkownika.
+     * @return domyślny plik indeksu.
+     */
+    public static Path defaultFile() {
+        String file = System.getProperty("wazzup.search.file");
+        if (file != null)
+            return Paths.get(file);
+        return Paths.get(System.getProperty("user.home"), ".wazzup", "search.idx");
+    }
+
+    /**
+     * Dodaje wiadomość do indeksu.
+     * @param connectionName nazwa połączenia.
+     * @param sequence numer wpisu w historii rozmowy.
+     * @param timestamp czas wiadomości.
+     * @param text treść wiadomości.
+     */
+    public synchronized void add(String connectionName, long sequence, long timestamp, String text) {
+        int doc = docCount;
+        if (doc == docConnections.length) {
+            docConnections = Arrays.copyOf(docConnections, doc * 2);
+            docSequences = Arrays.copyOf(docSequences, doc * 2);
+            docTimestamps = Arrays.copyOf(docTimestamps, doc * 2);
+        }
+        docConnections[doc] = connectionId(connectionName);
+        docSequences[doc] = sequence;
+        docTimestamps[doc] = timestamp;
+        docCount++;
+
+        for (String term : tokenize(text))
+            postings.computeIfAbsent(term, t -> new PostingList()).add(doc);
+    }
+
+    /**
+     * Wyszukuje wiadomości zawierające wszystkie słowa zapytania.
+     * @param query zapytanie - słowa oddzielone spacjami lub innymi znakami niebędącymi literą ani cyfrą.
+     * @param limit maksymalna liczba wyników.
+     * @return wyniki od najnowszej wiadomości.
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        List<PostingList> lists = new ArrayList<>();
+        for (String term : tokenize(query)) {
+            PostingList list = postings.get(term);
+            if (list == null)
+                return Collections.emptyList();
+            lists.add(list);
+        }
+        if (lists.isEmpty())
+            return Collections.emptyList();
+
+        // Start from the shortest list, every intersection can only make it shorter.
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        int[] result = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+        int resultSize = result.length;
+        for (int i = 1; i < lists.size() && resultSize > 0; i++)
+            resultSize = intersect(result, resultSize, lists.get(i));
+
+        List<Hit> hits = new ArrayList<>(Math.min(limit, resultSize));
+        for (int i = resultSize - 1; i >= 0 && hits.size() < limit; i--) {
+            int doc = result[i];
+            hits.add(new Hit(connectionNames.get(docConnections[doc]), docSequences[doc], docTimestamps[doc]));
+        }
+        return hits;
+    }
+
+    /**
+     * Zwraca liczbę zaindeksowanych wiadomości.
+     * @return liczba wiadomości.
+     */
+    public synchronized int size() {
+        return docCount;
+    }
+
+    /**
+     * Zapisuje indeks do pliku. Zapis odbywa się do pliku tymczasowego, który zastępuje docelowy.
+     * @param file plik indeksu.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    public synchronized void save(Path file) throws IOException {
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(FILE_MAGIC);
+
+            out.writeInt(connectionNames.size());
+            for (String name : connectionNames)
+                writeString(out, name);
+
+            out.writeInt(docCount);
+            for (int i = 0; i < docCount; i++) {
+                out.writeInt(docConnections[i]);
+                out.writeLong(docSequences[i]);
+                out.writeLong(docTimestamps[i]);
+            }
+
+            out.writeInt(postings.size());
+            for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+                writeString(out, entry.getKey());
+                PostingList list = entry.getValue();
+                out.writeInt(list.size);
+                // Ids are sorted, store gaps as variable length integers.
+                int previous = 0;
+                for (int i = 0; i < list.size; i++) {
+                    writeVarInt(out, list.ids[i] - previous);
+                    previous = list.ids[i];
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Wczytuje indeks z pliku. Indeks zapisany przez starszą wersję programu jest wczytywany bez numerów wpisów.
+     * @param file plik indeksu.
+     * @return wczytany indeks lub pusty indeks, gdy plik nie istnieje.
+     * @throws IOException gdy plik jest uszkodzony lub odczyt się nie powiódł.
+     */
+    public static SearchIndex load(Path file) throws IOException {
+        SearchIndex index = new SearchIndex();
+        if (!Files.exists(file))
+            return index;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != FILE_MAGIC && magic != FILE_MAGIC_V1)
+                throw new IOException("Not a search index file: " + file);
+            boolean v1 = magic == FILE_MAGIC_V1;
+
+            int names = in.readInt();
+            for (int i = 0; i < names; i++)
+                index.connectionId(v1 ? in.readUTF() : readString(in));
+
+            int docs = in.readInt();
+            index.docConnections = new int[Math.max(1024, docs)];
+            index.docSequences = new long[Math.max(1024, docs)];
+            index.docTimestamps = new long[Math.max(1024, docs)];
+            for (int i = 0; i < docs; i++) {
+                index.docConnections[i] = in.readInt();
+                index.docSequences[i] = v1 ? -1 : in.readLong();
+                index.docTimestamps[i] = in.readLong();
+            }
+            index.docCount = docs;
+
+            int terms = in.readInt();
+            for (int t = 0; t < terms; t++) {
+                String term = v1 ? in.readUTF() : readString(in);
+                int size = in.readInt();
+                PostingList list = new PostingList(size);
+                int id = 0;
+                for (int i = 0; i < size; i++) {
+                    id += readVarInt(in);
+                    list.add(id);
+                }
+                index.postings.put(term, list);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Dzieli tekst na słowa pisane małymi literami.
+     * @param text tekst do podziału.
+     * @return lista słów, bez powtórzeń, w kolejności wystąpienia.
+     */
+    static Collection<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Zwraca numer połączenia, nadając nowy, gdy połączenie nie było jeszcze znane.
+     * @param connectionName nazwa połączenia.
+     * @return numer połączenia.
+     */
+    private int connectionId(String connectionName) {
+        Integer id = connectionIds.get(connectionName);
+        if (id == null) {
+            id = connectionNames.size();
+            connectionNames.add(connectionName);
+            connectionIds.put(connectionName, id);
+        }
+        return id;
+    }
+
+    /**
+     * Zostawia w tablicy wynikowej tylko numery obecne także na liście.
+     * @param result posortowana tablica wynikowa, modyfikowana w miejscu.
+     * @param resultSize liczba elementów tablicy wynikowej.
+     * @param list posortowana lista numerów.
+     * @return nowa liczba elementów tablicy wynikowej.
+     */
+    private static int intersect(int[] result, int resultSize, PostingList list) {
+        int out = 0;
+        int j = 0;
+        for (int i = 0; i < resultSize && j < list.size; i++) {
+            int id = result[i];
+            // Gallop through the longer list instead of stepping one by one.
+            if (list.ids[j] < id)
+                j = lowerBound(list.ids, j, list.size, id);
+            if (j < list.size && list.ids[j] == id)
+                result[out++] = id;
+        }
+        return out;
+    }
+
+    /**
+     * Zwraca indeks pierwszego elementu nie mniejszego niż zadana wartość.
+     * @param ids posortowana tablica.
+     * @param from początek przeszukiwanego zakresu.
+     * @param to koniec przeszukiwanego zakresu (wyłącznie).
+     * @param value szukana wartość.
+     * @return indeks pierwszego elementu nie mniejszego niż value lub to, gdy takiego nie ma.
+     */
+    private static int lowerBound(int[] ids, int from, int to, int value) {
+        int step = 1;
+        int hi = from;
+        while (hi < to && ids[hi] < value) {
+            from = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, to);
+        while (from < hi) {
+            int mid = (from + hi) >>> 1;
+            if (ids[mid] < value)
+                from = mid + 1;
+            else
+                hi = mid;
+        }
+        return from;
+    }
+
+    /**
+     * Zapisuje nieujemną liczbę w zmiennej liczbie bajtów, po 7 bitów na bajt.
+     * @param out strumień wyjściowy.
+     * @param value liczba do zapisania.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Zapisuje napis jako długość (writeVarInt) i bajty UTF-8, bez ograniczenia długości writeUTF.
+     * @param out strumień wyjściowy.
+     * @param value napis do zapisania.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Odczytuje napis zapisany przez writeString.
+     * @param in strumień wejściowy.
+     * @return odczytany napis.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0)
+            throw new IOException("Malformed string length: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Odczytuje liczbę zapisaną przez writeVarInt.
+     * @param in strumień wejściowy.
+     * @return odczytana liczba.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * Rosnąca lista numerów wiadomości przechowywana w tablicy typu int.
+     */
+    private static class PostingList {
+
+        int[] ids;
+        int size;
+
+        PostingList() {
+            this(4);
+        }
+
+        PostingList(int capacity) {
+            ids = new int[Math.max(4, capacity)];
+        }
+
+        void add(int id) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package proz.communicator.model;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Ograniczenie liczby jednocześnie trwających wysłań, które nie blokuje wątków.
+ * Zamiast czekać na zezwolenie, wysłanie dostaje future zakończony w chwili przydzielenia zezwolenia.
+ * Zezwolenia przydzielane są w kolejności zgłoszeń.
+ */
+class SendPermits {
+
+    /**
+     * Liczba wolnych zezwoleń.
+     */
+    private int available;
+
+    /**
+     * Zgłoszenia czekające na zezwolenie.
+     */
+    private final Queue<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+    /**
+     * Konstruktor klasy.
+     * @param permits maksymalna liczba jednocześnie trwających wysłań.
+     */
+    SendPermits(int permits) {
+        if (permits < 1)
+            throw new IllegalArgumentException("At least one permit is required: " + permits);
+        this.available = permits;
+    }
+
+    /**
+     * Zgłasza potrzebę zezwolenia.
+     * @return future zakończony, gdy zezwolenie zostanie przydzielone.
+     */
+    CompletableFuture<Void> acquire() {
+        synchronized (this) {
+            if (available == 0) {
+                CompletableFuture<Void> permit = new CompletableFuture<>();
+                waiting.add(permit);
+                return permit;
+            }
+            available--;
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Zwalnia zezwolenie, przekazując je pierwszemu czekającemu zgłoszeniu.
+     */
+    void release() {
+        CompletableFuture<Void> next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                available++;
+                return;
+            }
+        }
+        // Complete outside the lock, the next send may start right here.
+        next.complete(null);
+    }
+}
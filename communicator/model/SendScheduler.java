@@ -0,0 +1,159 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Planista wysyłania wiadomości.
+ * Wiadomości wysyłane są przez ograniczoną pulę wątków zamiast osobnego wątku dla każdej wiadomości.
+ * Wiadomości do jednego nadajnika wysyłane są po kolei, w kolejności zlecenia,
+ * a wiadomości do różnych nadajników mogą być wysyłane równolegle.
+ */
+public class SendScheduler {
+
+    /**
+     * Pula wątków wysyłających wiadomości.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Ostatnie zlecone wysłanie dla każdego nadajnika. Kolejne wysłanie zaczyna się dopiero po jego zakończeniu.
+     */
+    private final Map<MessageTransmitter, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    /**
+     * Flaga mówiąca o tym czy planista przyjmuje nowe wiadomości.
+     */
+    private volatile boolean accepting = true;
+
+    /**
+     * Konstruktor klasy.
+     * @param threads maksymalna liczba wątków wysyłających wiadomości.
+     */
+    public SendScheduler(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "sender-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Zleca wysłanie wiadomości przez zadany nadajnik.
+     * @param transmitter nadajnik połączenia z hostem.
+     * @param message wiadomość do wysłania.
+     * @return future zakończony po wysłaniu wiadomości lub wyjątkiem, gdy wysłanie się nie powiodło.
+     */
+    public CompletableFuture<Void> submit(MessageTransmitter transmitter, Message message) {
+        return enqueue(transmitter, () -> transmitter.send(message), null);
+    }
+
+    /**
+     * Zleca wysłanie paczki wiadomości przez zadany nadajnik, jednym zapisem do socketu.
+     * @param transmitter nadajnik połączenia z hostem.
+     * @param messages wiadomości do wysłania, w kolejności.
+     * @return future zakończony po wysłaniu całej paczki lub wyjątkiem, gdy wysłanie się nie powiodło.
+     */
+    public CompletableFuture<Void> submitBatch(MessageTransmitter transmitter, List<Message> messages) {
+        return enqueue(transmitter, () -> transmitter.sendAll(messages), null);
+    }
+
+    /**
+     * Zleca wysłanie gotowej ramki przez zadany nadajnik, np. jednej z wielu kopii wiadomości grupowej.
+     * Wysłanie zaczyna się po wcześniej zleconych wysłaniach tego nadajnika i po otrzymaniu zezwolenia.
+     * @param transmitter nadajnik połączenia z hostem.
+     * @param frame ramka wiadomości; nie jest modyfikowana, więc może być współdzielona przez wiele wysłań.
+     * @param connectionName nazwa połączenia odbiorcy.
+     * @param permits zezwolenia ograniczające liczbę jednocześnie trwających wysłań.
+     * @return future zakończony po wysłaniu ramki lub wyjątkiem, gdy wysłanie się nie powiodło.
+     */
+    CompletableFuture<Void> submitFrame(MessageTransmitter transmitter, ByteBuffer frame, String connectionName, SendPermits permits) {
+        return enqueue(transmitter, () -> transmitter.sendFrame(frame, connectionName), permits);
+    }
+
+    /**
+     * Dołącza wysłanie na koniec kolejki nadajnika.
+     * @param transmitter nadajnik połączenia z hostem.
+     * @param task wysłanie do wykonania.
+     * @param permits zezwolenia, od których zależy start wysłania, lub null, gdy wysłanie nie jest ograniczane.
+     * @return future zakończony po wykonaniu wysłania.
+     */
+    private CompletableFuture<Void> enqueue(MessageTransmitter transmitter, SendTask task, SendPermits permits) {
+        if (!accepting) {
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new RejectedExecutionException("Send scheduler is shut down"));
+            return rejected;
+        }
+
+        return tails.compute(transmitter, (key, tail) -> {
+            CompletableFuture<Void> previous = tail == null
+                    ? CompletableFuture.completedFuture(null)
+                    : tail.exceptionally(e -> null);    // A failed send must not block the next one.
+            if (permits != null)
+                previous = previous.thenCompose(ignored -> permits.acquire());
+            return previous.thenRunAsync(() -> {
+                try {
+                    task.run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    if (permits != null)
+                        permits.release();
+                }
+            }, pool);
+        });
+    }
+
+    /**
+     * Zapomina kolejkę nadajnika, np. po usunięciu połączenia.
+     * Wysłania już zlecone dla tego nadajnika nadal się wykonują.
+     * @param transmitter nadajnik do zapomnienia.
+     */
+    public void forget(MessageTransmitter transmitter) {
+        tails.remove(transmitter);
+    }
+
+    /**
+     * Przestaje przyjmować nowe wiadomości, czeka na wysłanie już zleconych i zamyka pulę wątków.
+     * @param timeout maksymalny czas oczekiwania.
+     * @param unit jednostka czasu oczekiwania.
+     * @return true, gdy wszystkie zlecone wiadomości zostały obsłużone przed upływem czasu.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        accepting = false;
+
+        boolean drained = true;
+        CompletableFuture<?>[] pending = tails.values().toArray(new CompletableFuture<?>[0]);
+        try {
+            CompletableFuture.allOf(pending).exceptionally(e -> null).get(timeout, unit);
+        } catch (TimeoutException e) {
+            drained = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        } catch (ExecutionException e) {
+            // Failed sends are reported through their own futures.
+        }
+
+        pool.shutdown();
+        return drained;
+    }
+
+    /**
+     * Pojedyncze wysłanie przez nadajnik.
+     */
+    private interface SendTask {
+
+        /**
+         * Wykonuje wysłanie.
+         * @throws IOException gdy wysłanie się nie powiodło.
+         */
+        void run() throws IOException;
+    }
+}
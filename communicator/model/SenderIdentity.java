@@ -0,0 +1,91 @@
+package proz.communicator.model;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tożsamość tej instancji programu jako nadawcy, zapisywana w kopercie każdej wysyłanej wiadomości
+ * (patrz Message). Identyfikator jest losowany przy starcie, więc po ponownym uruchomieniu odbiorcy
+ * zaczynają dla nadawcy nowe strumienie numerów kolejnych.
+ */
+class SenderIdentity {
+
+    /**
+     * Identyfikator instancji, różny od 0.
+     */
+    private final long id;
+
+    /**
+     * Nazwa, pod którą instancja przedstawia się odbiorcom.
+     */
+    private final String name;
+
+    /**
+     * Port serwera nasłuchującego, na który odbiorcy mogą odpowiadać, lub 0.
+     */
+    private volatile int replyPort;
+
+    /**
+     * Konstruktor klasy.
+     * @param name nazwa, pod którą instancja przedstawia się odbiorcom.
+     */
+    SenderIdentity(String name) {
+        long random;
+        do {
+            random = ThreadLocalRandom.current().nextLong();
+        } while (random == 0);
+        this.id = random;
+        this.name = name;
+    }
+
+    /**
+     * Tworzy tożsamość z nazwą z właściwości systemowej wazzup.name lub nazwą użytkownika systemu.
+     * @return tożsamość nadawcy.
+     */
+    static SenderIdentity fromProperties() {
+        return new SenderIdentity(System.getProperty("wazzup.name", System.getProperty("user.name")));
+    }
+
+    /**
+     * Getter identyfikatora instancji.
+     * @return identyfikator różny od 0.
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Getter nazwy instancji.
+     * @return nazwa instancji.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Getter portu, na który odbiorcy mogą odpowiadać.
+     * @return numer portu lub 0, gdy instancja nie nasłuchuje i nie może dostawać potwierdzeń.
+     */
+    int getReplyPort() {
+        return replyPort;
+    }
+
+    /**
+     * Setter portu, na który odbiorcy mogą odpowiadać.
+     * @param replyPort numer portu lub 0.
+     */
+    void setReplyPort(int replyPort) {
+        this.replyPort = replyPort;
+    }
+
+    /**
+     * Tworzy wiadomość z kopertą tej instancji i bieżącym czasem wysłania.
+     * @param text treść wiadomości.
+     * @param connectionName nazwa połączenia lub grupy.
+     * @param sequence numer kolejny w strumieniu do połączenia lub 0.
+     * @param messageId identyfikator wiadomości.
+     * @return wiadomość gotowa do zakodowania.
+     */
+    Message stamp(String text, String connectionName, long sequence, long messageId) {
+        return new Message(text, connectionName, id, name, replyPort, sequence, messageId, Message.currentTimeMicros());
+    }
+}
@@ -0,0 +1,95 @@
+package proz.communicator.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Dotychczasowy format wiadomości oparty na serializacji Javy.
+ * Strumień serializacji zawsze zaczyna się od bajtu 0xAC, który pełni tu rolę numeru wersji.
+ * Dzięki temu ramki wysyłane przez starsze wersje programu są nadal poprawnie odczytywane.
+ *
+ * Odbiorca rozpoznaje ten format niezależnie od wybranego kodeka, więc deserializacja danych z sieci jest
+ * ograniczona filtrem: strumień może zawierać wyłącznie obiekt Message z polami tekstowymi i prostymi.
+ */
+public class SerializedMessageCodec implements MessageCodec {
+
+    /**
+     * Pierwszy bajt strumienia serializacji Javy, używany jako numer wersji.
+     */
+    public static final byte VERSION = (byte) 0xAC;
+
+    /**
+     * Filtr deserializacji przepuszczający tylko klasy, z których składa się wiadomość.
+     * Wiadomość ma głębokość 1, a jej pola tekstowe 2; tablice nie są dozwolone.
+     */
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=2;maxrefs=16;maxarray=0;maxbytes=" + MessageFrames.MAX_FRAME_LENGTH
+                    + ";proz.communicator.model.Message;java.lang.String;!*");
+
+    /**
+     * Getter numeru wersji formatu.
+     * @return numer wersji formatu.
+     */
+    @Override
+    public byte getVersion() {
+        return VERSION;
+    }
+
+    /**
+     * Zwraca długość zserializowanej wiadomości. Wymaga wykonania serializacji.
+     * @param message wiadomość do zakodowania.
+     * @return długość zserializowanej wiadomości.
+     */
+    @Override
+    public int maxEncodedLength(Message message) {
+        try {
+            return serialize(message).length;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Serializuje wiadomość do bufora.
+     * @param message wiadomość do zakodowania.
+     * @param buffer bufor docelowy.
+     * @throws IOException gdy serializacja się nie powiodła.
+     */
+    @Override
+    public void encode(Message message, ByteBuffer buffer) throws IOException {
+        buffer.put(serialize(message));
+    }
+
+    /**
+     * Deserializuje wiadomość z bufora.
+     * @param buffer bufor z zakodowaną wiadomością.
+     * @return odczytana wiadomość.
+     * @throws IOException gdy bufor nie zawiera zserializowanej wiadomości lub zawiera obiekty odrzucone przez filtr.
+     */
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try (ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            // The bytes come straight from the network, nothing but a message may be instantiated.
+            inputStream.setObjectInputFilter(FILTER);
+            return (Message) inputStream.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Frame does not contain a message", e);
+        }
+    }
+
+    /**
+     * Serializuje wiadomość do tablicy bajtów.
+     * @param message wiadomość do serializacji.
+     * @return zserializowana wiadomość.
+     * @throws IOException gdy serializacja się nie powiodła.
+     */
+    private byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream outputStream = new ObjectOutputStream(bytes)) {
+            outputStream.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,141 @@
+package proz.communicator.model;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Wspólny cykl życia serwerów działających we własnym wątku: zajęcie portu, obsługa połączeń,
+ * dokończenie rozpoczętych odczytów i zamknięcie. Każdy etap jest sygnalizowany przez future,
+ * więc wątek Widoku nigdy nie czeka na serwer.
+ */
+public abstract class ServerThread extends Thread implements MessageServer {
+
+    /**
+     * Maksymalny czas dokańczania odczytu rozpoczętych wiadomości po zatrzymaniu serwera.
+     * Po nim połączenia są zamykane, nawet jeśli host nie dosłał reszty ramki.
+     */
+    protected static final long DRAIN_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * Flaga mówiąca o tym czy serwer ma nadal nasłuchiwać wiadomości.
+     */
+    protected volatile boolean listenFlag = true;
+
+    /**
+     * Future zakończony po zajęciu portu.
+     */
+    private final CompletableFuture<Void> started = new CompletableFuture<>();
+
+    /**
+     * Future zakończony po zatrzymaniu serwera.
+     */
+    private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+
+    /**
+     * Konstruktor klasy.
+     * @param name nazwa wątku serwera.
+     */
+    protected ServerThread(String name) {
+        super(name);
+    }
+
+    /**
+     * Rozpoczyna nasłuchiwanie w osobnym wątku.
+     * @return future zakończony, gdy serwer zajął port, lub wyjątkiem, gdy to się nie udało.
+     */
+    @Override
+    public CompletableFuture<Void> startListening() {
+        start();
+        return started;
+    }
+
+    /**
+     * Zajmuje port, obsługuje połączenia do zatrzymania serwera i zamyka wszystkie zasoby.
+     */
+    @Override
+    public final void run() {
+        try {
+            bind();
+        } catch (IOException | RuntimeException e) {
+            closeAll();
+            started.completeExceptionally(e);
+            terminated.completeExceptionally(e);
+            return;
+        }
+        started.complete(null);
+
+        try {
+            serve();
+            closeAll();
+            terminated.complete(null);
+        } catch (IOException | RuntimeException e) {
+            closeAll();
+            if (listenFlag) {
+                // Not a stop request, the server has failed.
+                e.printStackTrace();
+                terminated.completeExceptionally(e);
+            } else {
+                terminated.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Zatrzymuje serwer. Nie czeka na jego zatrzymanie.
+     * @return future zakończony po zatrzymaniu serwera.
+     */
+    @Override
+    public CompletableFuture<Void> stopListening() {
+        listenFlag = false;
+        if (getState() == State.NEW)
+            terminated.complete(null);
+        else
+            wakeUp();
+        return terminated;
+    }
+
+    /**
+     * Czeka na zatrzymanie serwera.
+     * @param timeout maksymalny czas oczekiwania.
+     * @param unit jednostka czasu oczekiwania.
+     * @return true, gdy serwer został zatrzymany przed upływem czasu.
+     * @throws InterruptedException gdy oczekiwanie zostało przerwane.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            terminated.get(timeout, unit);
+            return true;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Zajmuje port serwera. Port jest zajmowany z opcją SO_REUSEADDR, by serwer można było
+     * od razu uruchomić ponownie na tym samym porcie.
+     * @throws IOException gdy nie udało się zająć portu.
+     */
+    protected abstract void bind() throws IOException;
+
+    /**
+     * Obsługuje połączenia, dopóki flaga nasłuchiwania jest ustawiona, a potem dokańcza rozpoczęte odczyty.
+     * @throws IOException gdy serwer nie może dalej działać.
+     */
+    protected abstract void serve() throws IOException;
+
+    /**
+     * Budzi wątek serwera czekający na połączenia lub dane. Wywoływana z wątku zatrzymującego serwer.
+     */
+    protected abstract void wakeUp();
+
+    /**
+     * Zamyka port serwera i wszystkie połączenia.
+     */
+    protected abstract void closeAll();
+}
@@ -0,0 +1,363 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Szyfrowany kanał TLS działający na kanale połączenia TCP, oparty na SSLEngine.
+ * Działa zarówno z kanałem blokującym (nadajnik, odbiór plików), jak i nieblokującym (serwer NIO).
+ * Dla kanału nieblokującego uzgadnianie połączenia (handshake) jest prowadzone stopniowo przy kolejnych odczytach,
+ * a metody zwracają 0, gdy potrzeba więcej danych od hosta.
+ */
+public class TlsChannel implements ByteChannel {
+
+    /**
+     * Pusty bufor, używany, gdy SSLEngine musi wysłać dane uzgadniania, a nie ma danych aplikacji.
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Kanał połączenia TCP.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * Silnik TLS połączenia.
+     */
+    private final SSLEngine engine;
+
+    /**
+     * Zaszyfrowane dane odebrane od hosta, jeszcze nieodszyfrowane. Bufor jest w trybie zapisu.
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Zaszyfrowane dane do wysłania, jeszcze niezapisane do kanału. Bufor jest w trybie odczytu.
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * Odszyfrowane dane, jeszcze nieodczytane przez użytkownika kanału. Bufor jest w trybie odczytu.
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * Czas rozpoczęcia uzgadniania połączenia.
+     */
+    private final long handshakeStart;
+
+    /**
+     * Czas rozpoczęcia uzgadniania połączenia według zegara systemowego, do porównania z czasem utworzenia sesji.
+     */
+    private final long handshakeStartMillis;
+
+    /**
+     * Flaga mówiąca o tym czy uzgadnianie połączenia zostało zakończone.
+     */
+    private boolean handshakeFinished;
+
+    /**
+     * Flaga mówiąca o tym czy nadajnik czeka jeszcze na bilet sesji TLS 1.3, który serwer wysyła po uzgodnieniu połączenia.
+     * Bez biletu ponowne połączenie wymagałoby pełnego uzgadniania.
+     */
+    private boolean awaitingTicket;
+
+    /**
+     * Flaga mówiąca o tym czy host zakończył wysyłanie danych.
+     */
+    private boolean inboundClosed;
+
+    /**
+     * Konstruktor klasy. Rozpoczyna uzgadnianie połączenia, a dla kanału blokującego czeka na jego zakończenie.
+     * @param channel kanał połączenia TCP.
+     * @param engine silnik TLS w trybie klienta lub serwera.
+     * @throws IOException gdy uzgadnianie połączenia się nie powiodło.
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+
+        handshakeStart = System.nanoTime();
+        handshakeStartMillis = System.currentTimeMillis();
+        engine.beginHandshake();
+        if (channel.isBlocking() && !handshake())
+            throw new IOException("TLS handshake did not complete");
+    }
+
+    /**
+     * Odczytuje odszyfrowane dane od hosta.
+     * @param dst bufor docelowy.
+     * @return liczba odczytanych bajtów, 0 gdy kanał nieblokujący nie ma jeszcze danych, lub -1 gdy host zamknął połączenie.
+     * @throws IOException gdy odczyt się nie powiódł lub dane są niepoprawne.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (!appIn.hasRemaining()) {
+            if (inboundClosed)
+                return -1;
+            if (!handshake())
+                return 0;
+            if (!unwrap()) {
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    closeInbound();
+                    return -1;
+                }
+                if (read == 0)
+                    return 0;
+            }
+        }
+
+        int length = Math.min(dst.remaining(), appIn.remaining());
+        ByteBuffer chunk = appIn.duplicate();
+        chunk.limit(chunk.position() + length);
+        dst.put(chunk);
+        appIn.position(appIn.position() + length);
+        return length;
+    }
+
+    /**
+     * Szyfruje i wysyła dane do hosta.
+     * @param src bufor z danymi do wysłania.
+     * @return liczba zaszyfrowanych bajtów danych.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!handshake())
+            return 0;
+        if (awaitingTicket)
+            pollTicket();
+
+        int written = 0;
+        while (src.hasRemaining()) {
+            if (!flush())
+                break;
+            int before = src.remaining();
+            wrap(src);
+            written += before - src.remaining();
+        }
+        flush();
+        return written;
+    }
+
+    /**
+     * Prowadzi uzgadnianie połączenia, dopóki jest to możliwe bez czekania na kanał nieblokujący.
+     * @return true, gdy połączenie jest uzgodnione i można przesyłać dane.
+     * @throws IOException gdy uzgadnianie się nie powiodło.
+     */
+    private boolean handshake() throws IOException {
+        while (true) {
+            if (!flush())
+                return false;
+
+            switch (engine.getHandshakeStatus()) {
+                case NOT_HANDSHAKING:
+                case FINISHED:
+                    if (!handshakeFinished)
+                        handshakeFinished();
+                    return true;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                default:
+                    if (!unwrap()) {
+                        int read = channel.read(netIn);
+                        if (read < 0)
+                            throw new EOFException("Connection closed during the TLS handshake");
+                        if (read == 0)
+                            return false;
+                    }
+            }
+        }
+    }
+
+    /**
+     * Zapisuje czas uzgadniania w metrykach. Nadajnik TLS 1.3 zaczyna oczekiwać na bilet sesji.
+     */
+    private void handshakeFinished() {
+        handshakeFinished = true;
+        Metrics metrics = Metrics.get();
+        metrics.tlsHandshake.record(System.nanoTime() - handshakeStart);
+        SSLSession session = engine.getSession();
+        // A resumed session keeps the creation time of the one it was resumed from.
+        if (session.getCreationTime() < handshakeStartMillis)
+            metrics.tlsResumed.increment();
+        awaitingTicket = engine.getUseClientMode() && "TLSv1.3".equals(session.getProtocol());
+    }
+
+    /**
+     * Odczytuje bez czekania dane, które host wysłał po uzgodnieniu połączenia, w tym bilet sesji.
+     * Nadajnik nigdy nie czyta z połączenia, więc robi to przy kolejnych zapisach, dopóki bilet nie nadejdzie.
+     * @throws IOException gdy odczyt się nie powiódł.
+     */
+    private void pollTicket() throws IOException {
+        channel.configureBlocking(false);
+        try {
+            if (channel.read(netIn) < 0) {
+                awaitingTicket = false;
+                return;
+            }
+            while (netIn.position() > 0 && unwrap())
+                awaitingTicket = false;
+        } finally {
+            channel.configureBlocking(true);
+        }
+        // Post-handshake messages may need an answer, e.g. a key update.
+        handshake();
+    }
+
+    /**
+     * Odszyfrowuje dane odebrane od hosta.
+     * @return true, gdy odszyfrowano rekord TLS, false gdy potrzeba więcej danych od hosta.
+     * @throws IOException gdy dane są niepoprawne.
+     */
+    private boolean unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                appIn.flip();
+                netIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    return true;
+                case CLOSED:
+                    inboundClosed = true;
+                    return true;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                default:    // BUFFER_UNDERFLOW
+                    if (!netIn.hasRemaining()) {
+                        // A record larger than the buffer, keep what has been received.
+                        netIn.flip();
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize()).compact();
+                    }
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Szyfruje dane do bufora netOut. Bufor netOut musi być pusty.
+     * @param src dane do zaszyfrowania.
+     * @throws IOException gdy szyfrowanie się nie powiodło.
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    if (result.bytesProduced() == 0 && src.hasRemaining())
+                        throw new IOException("TLS connection is closed");
+                    return;
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Zapisuje zaszyfrowane dane z bufora netOut do kanału.
+     * @return true, gdy bufor netOut został opróżniony, false gdy kanał nieblokujący nie przyjął wszystkich danych.
+     * @throws IOException gdy zapis się nie powiódł.
+     */
+    private boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0 && !channel.isBlocking())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Powiększa bufor w trybie odczytu, zachowując jego zawartość.
+     * @param buffer bufor w trybie odczytu.
+     * @param minimumFree minimalna liczba wolnych bajtów w nowym buforze.
+     * @return nowy bufor w trybie odczytu.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int minimumFree) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.remaining() + Math.max(minimumFree, buffer.capacity()));
+        bigger.put(buffer);
+        bigger.flip();
+        return bigger;
+    }
+
+    /**
+     * Kończy odbieranie danych po zamknięciu połączenia przez hosta.
+     */
+    private void closeInbound() {
+        inboundClosed = true;
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // Closed without close_notify, every frame received so far was complete anyway.
+        }
+    }
+
+    /**
+     * Sprawdza czy kanał jest otwarty.
+     * @return true, gdy kanał połączenia TCP jest otwarty.
+     */
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Wysyła hostowi powiadomienie o zamknięciu połączenia TLS i zamyka kanał połączenia TCP.
+     * @throws IOException gdy zamknięcie kanału się nie powiodło.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // A ticket that arrived by now still makes the next connection to this host cheap.
+            if (awaitingTicket && channel.isBlocking() && channel.isConnected())
+                pollTicket();
+            engine.closeOutbound();
+            if (channel.isBlocking() && channel.isConnected()) {
+                flush();
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException e) {
+            // The connection is going away anyway.
+        } finally {
+            channel.close();
+        }
+    }
+}
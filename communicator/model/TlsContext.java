@@ -0,0 +1,200 @@
+package proz.communicator.model;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Konfiguracja szyfrowania połączeń TLS.
+ * Każdy host ma własny, samodzielnie podpisany certyfikat w magazynie kluczy (keystore),
+ * a magazyn zaufanych certyfikatów (truststore) zawiera certyfikaty hostów, z którymi wolno się łączyć.
+ * Obie strony połączenia przedstawiają certyfikaty, więc tylko znani hosty mogą wysyłać wiadomości.
+ * Hosty łączą się po adresach IP, dlatego nazwa hosta w certyfikacie nie jest sprawdzana - o zaufaniu
+ * decyduje obecność certyfikatu w magazynie zaufanych certyfikatów.
+ *
+ * Sesje TLS są zapamiętywane po obu stronach, więc ponowne połączenie z tym samym hostem
+ * jest wznawiane bez pełnego uzgadniania (weryfikacji certyfikatów i wymiany kluczy).
+ *
+ * Przygotowanie certyfikatów:
+ * keytool -genkeypair -alias alice -keyalg EC -groupname secp256r1 -dname CN=alice -validity 3650
+ *         -storetype PKCS12 -keystore alice.p12 -storepass hasło
+ * keytool -exportcert -alias alice -keystore alice.p12 -storepass hasło -file alice.cer
+ * keytool -importcert -noprompt -alias alice -file alice.cer -keystore bob-trust.p12 -storepass hasło
+ * Pierwsze polecenie wykonuje też metoda generateKeyStore. Magazyn kluczy z jednym certyfikatem
+ * może służyć jednocześnie jako magazyn zaufanych certyfikatów, np. dla kilku instancji programu na jednym komputerze.
+ */
+public class TlsContext {
+
+    /**
+     * Liczba sesji zapamiętywanych do wznawiania połączeń.
+     */
+    private static final int SESSION_CACHE_SIZE = 1024;
+
+    /**
+     * Czas, przez który zapamiętana sesja może zostać wznowiona.
+     */
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(24);
+
+    /**
+     * Włączone wersje protokołu, od najnowszej.
+     */
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    /**
+     * Kontekst TLS z kluczem hosta, zaufanymi certyfikatami i pamięcią sesji.
+     */
+    private final SSLContext context;
+
+    /**
+     * Konstruktor klasy.
+     * @param keyStore magazyn kluczy PKCS12 z kluczem prywatnym i certyfikatem hosta.
+     * @param trustStore magazyn PKCS12 z certyfikatami zaufanych hostów.
+     * @param password hasło obu magazynów.
+     * @throws IOException gdy nie udało się odczytać magazynów.
+     * @throws GeneralSecurityException gdy magazyny są niepoprawne.
+     */
+    public TlsContext(Path keyStore, Path trustStore, char[] password) throws IOException, GeneralSecurityException {
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(load(keyStore, password), password);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(load(trustStore, password));
+
+        context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        for (SSLSessionContext sessions : new SSLSessionContext[] {context.getClientSessionContext(), context.getServerSessionContext()}) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+    }
+
+    /**
+     * Tworzy konfigurację TLS na podstawie właściwości systemowych: wazzup.tls (true/false),
+     * wazzup.tls.keystore, wazzup.tls.truststore (domyślnie ten sam plik co magazyn kluczy) i wazzup.tls.password.
+     * @return konfiguracja TLS lub null, gdy szyfrowanie jest wyłączone.
+     * @throws IllegalStateException gdy szyfrowanie jest włączone, ale nie udało się wczytać certyfikatów.
+     * Program nie przechodzi wtedy po cichu na połączenia nieszyfrowane.
+     */
+    public static TlsContext fromProperties() {
+        if (!Boolean.getBoolean("wazzup.tls"))
+            return null;
+
+        Path keyStore = Paths.get(System.getProperty("wazzup.tls.keystore", defaultKeyStore().toString()));
+        Path trustStore = Paths.get(System.getProperty("wazzup.tls.truststore", keyStore.toString()));
+        char[] password = System.getProperty("wazzup.tls.password", "changeit").toCharArray();
+        try {
+            return new TlsContext(keyStore, trustStore, password);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot load TLS key store " + keyStore, e);
+        }
+    }
+
+    /**
+     * Zwraca domyślną ścieżkę magazynu kluczy: plik .wazzup/tls/keystore.p12 w katalogu domowym użytkownika.
+     * @return ścieżka magazynu kluczy.
+     */
+    public static Path defaultKeyStore() {
+        return Paths.get(System.getProperty("user.home"), ".wazzup", "tls", "keystore.p12");
+    }
+
+    /**
+     * Tworzy magazyn kluczy z nowym kluczem EC P-256 i samodzielnie podpisanym certyfikatem, za pomocą programu keytool.
+     * Klucze EC są znacznie tańsze w uzgadnianiu połączenia niż klucze RSA.
+     * @param keyStore ścieżka tworzonego magazynu kluczy.
+     * @param alias nazwa hosta w certyfikacie.
+     * @param password hasło magazynu.
+     * @throws IOException gdy program keytool zakończył się błędem.
+     */
+    public static void generateKeyStore(Path keyStore, String alias, char[] password) throws IOException {
+        if (keyStore.getParent() != null)
+            Files.createDirectories(keyStore.getParent());
+        Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", alias,
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=" + alias, "-validity", "3650",
+                "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", new String(password))
+                .redirectErrorStream(true)
+                .start();
+        try {
+            byte[] output = process.getInputStream().readAllBytes();
+            if (process.waitFor() != 0)
+                throw new IOException("keytool failed: " + new String(output));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running keytool", e);
+        }
+    }
+
+    /**
+     * Tworzy szyfrowany kanał po stronie nadawcy. Sesje są zapamiętywane według adresu i portu hosta.
+     * @param channel kanał połączenia z hostem.
+     * @param hostAddress adres IP hosta.
+     * @param port numer portu hosta.
+     * @return kanał TLS; dla kanału blokującego już uzgodniony.
+     * @throws IOException gdy uzgadnianie połączenia się nie powiodło.
+     */
+    TlsChannel clientChannel(SocketChannel channel, String hostAddress, int port) throws IOException {
+        SSLEngine engine = context.createSSLEngine(hostAddress, port);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(PROTOCOLS);
+        return new TlsChannel(channel, engine);
+    }
+
+    /**
+     * Tworzy szyfrowany kanał po stronie serwera. Host musi przedstawić zaufany certyfikat.
+     * @param channel kanał przyjętego połączenia.
+     * @return kanał TLS; dla kanału nieblokującego uzgadniany przy kolejnych odczytach.
+     * @throws IOException gdy uzgadnianie połączenia się nie powiodło.
+     */
+    TlsChannel serverChannel(SocketChannel channel) throws IOException {
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        SSLEngine engine = context.createSSLEngine(remote.getHostString(), remote.getPort());
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(true);
+        engine.setEnabledProtocols(PROTOCOLS);
+        return new TlsChannel(channel, engine);
+    }
+
+    /**
+     * Tworzy szyfrowany, jeszcze niezwiązany z portem socket serwera dla serwera opartego na wątkach.
+     * @return socket serwera wymagający od hostów zaufanych certyfikatów.
+     * @throws IOException gdy nie udało się utworzyć socketu.
+     */
+    ServerSocket createServerSocket() throws IOException {
+        SSLServerSocket serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+        SSLParameters parameters = serverSocket.getSSLParameters();
+        parameters.setProtocols(PROTOCOLS);
+        parameters.setNeedClientAuth(true);
+        serverSocket.setSSLParameters(parameters);
+        return serverSocket;
+    }
+
+    /**
+     * Wczytuje magazyn kluczy PKCS12.
+     * @param file plik magazynu.
+     * @param password hasło magazynu.
+     * @return wczytany magazyn.
+     * @throws IOException gdy nie udało się odczytać pliku.
+     * @throws GeneralSecurityException gdy magazyn jest niepoprawny.
+     */
+    private static KeyStore load(Path file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(file)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+}
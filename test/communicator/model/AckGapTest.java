@@ -0,0 +1,171 @@
+package proz.communicator.model;
+
+import proz.communicator.metrics.Metrics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Test potwierdzeń przy utracie paczki wiadomości w środku strumienia: późniejsze wiadomości nie mogą zostać
+ * potwierdzone, a brakująca paczka ma zostać wysłana ponownie i dostarczona przed nimi.
+ * Uruchamiany jako program; kończy się wyjątkiem, gdy sprawdzenie się nie powiedzie.
+ */
+public class AckGapTest {
+
+    /**
+     * Główna funkcja testu.
+     * @param args nieużywane.
+     * @throws Exception gdy test się nie powiódł.
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("wazzup.ack.timeout", "300");
+        System.setProperty("wazzup.journal", "false");
+        System.setProperty("wazzup.outbox.dir", Files.createTempDirectory("outbox-test").toString());
+
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        System.setProperty("wazzup.name", "bob");
+        Model bob = new Model(m -> received.add(m.getMessageText()));
+        bob.setNioListenerEnabled(false);
+        int bobPort = freePort();
+        bob.setServerPort(bobPort);
+        bob.startServerListening().get(5, TimeUnit.SECONDS);
+
+        System.setProperty("wazzup.name", "alice");
+        Model alice = new Model(m -> { });
+        alice.setNioListenerEnabled(false);
+        int alicePort = freePort();
+        alice.setServerPort(alicePort);
+        alice.startServerListening().get(5, TimeUnit.SECONDS);
+
+        // Acknowledgements go back over bob's own connection to alice.
+        bob.addNewConnection("127.0.0.1", alicePort, "alice");
+
+        try (ServerSocket proxy = new ServerSocket(0)) {
+            Thread forwarder = new Thread(() -> forward(proxy, bobPort, "m4", "m5", "m6"));
+            forwarder.setDaemon(true);
+            forwarder.start();
+            alice.addNewConnection("127.0.0.1", proxy.getLocalPort(), "bob");
+
+            MessageHistory history = new MessageHistory(100);
+            List<HistoryEntry> entries = new ArrayList<>();
+            for (int i = 1; i <= 3; i++)
+                send(alice, history, entries, "m" + i);
+            for (int i = 1; i <= 3; i++)
+                check(("m" + i).equals(received.poll(5, TimeUnit.SECONDS)), "m" + i + " not delivered");
+            waitFor(entries, 3);
+
+            // The second batch is lost on the way, the third arrives before its retransmission.
+            for (int i = 4; i <= 9; i++)
+                send(alice, history, entries, "m" + i);
+            Thread.sleep(150);
+            check(received.isEmpty(), "delivered past the gap: " + received);
+            for (int i = 3; i < 9; i++)
+                check(entries.get(i).getDeliveryState() != HistoryEntry.DeliveryState.DELIVERED,
+                        "m" + (i + 1) + " acknowledged before the gap was filled");
+
+            for (int i = 4; i <= 9; i++) {
+                String text = received.poll(5, TimeUnit.SECONDS);
+                check(("m" + i).equals(text), "expected m" + i + ", got " + text);
+            }
+            waitFor(entries, 9);
+            check(Metrics.get().retransmittedMessages.sum() > 0, "nothing was retransmitted");
+            check(Metrics.get().outOfOrderMessages.sum() > 0, "no message was held back");
+            Thread.sleep(200);
+            check(received.isEmpty(), "delivered twice: " + received);
+        }
+
+        alice.shutdown(1, TimeUnit.SECONDS);
+        bob.shutdown(1, TimeUnit.SECONDS);
+        System.out.println("AckGapTest passed");
+        System.exit(0);
+    }
+
+    /**
+     * Przekazuje ramki z pierwszego połączenia do serwera, gubiąc za pierwszym razem wiadomości o podanych treściach.
+     * @param proxy gniazdo, na którym łączy się nadawca.
+     * @param port port serwera odbiorcy.
+     * @param lost treści gubionych wiadomości.
+     */
+    private static void forward(ServerSocket proxy, int port, String... lost) {
+        List<String> toLose = new ArrayList<>(List.of(lost));
+        while (true) {
+            try (Socket in = proxy.accept(); Socket out = new Socket("127.0.0.1", port)) {
+                DataInputStream input = new DataInputStream(in.getInputStream());
+                DataOutputStream output = new DataOutputStream(out.getOutputStream());
+                while (true) {
+                    int length = input.readInt();
+                    MessageFrames.checkLength(length);
+                    byte[] payload = new byte[length];
+                    input.readFully(payload);
+                    if (toLose.remove(MessageFrames.decode(ByteBuffer.wrap(payload)).getMessageText()))
+                        continue;
+                    output.writeInt(length);
+                    output.write(payload);
+                    output.flush();
+                }
+            } catch (IOException e) {
+                if (proxy.isClosed())
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Wysyła wiadomość, śledząc jej stan dostarczenia we wpisie historii.
+     * @param model nadawca.
+     * @param history historia, do której dodawany jest wpis.
+     * @param entries lista wpisów wysłanych wiadomości.
+     * @param text treść wiadomości.
+     */
+    private static void send(Model model, MessageHistory history, List<HistoryEntry> entries, String text) {
+        HistoryEntry entry = history.add(0, HistoryEntry.Direction.OUTGOING, "alice", text);
+        entries.add(entry);
+        model.sendMessage(text, model.getConnection("bob"), entry);
+    }
+
+    /**
+     * Czeka, aż pierwsze wysłane wiadomości zostaną potwierdzone.
+     * @param entries wpisy wysłanych wiadomości.
+     * @param count liczba wiadomości, które mają zostać potwierdzone.
+     * @throws InterruptedException gdy wątek został przerwany.
+     */
+    private static void waitFor(List<HistoryEntry> entries, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (HistoryEntry entry : entries.subList(0, count)) {
+            while (entry.getDeliveryState() != HistoryEntry.DeliveryState.DELIVERED
+                    && entry.getDeliveryState() != HistoryEntry.DeliveryState.DISPLAYED) {
+                check(System.nanoTime() < deadline, entry.getText() + " is " + entry.getDeliveryState());
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Zwraca wolny port.
+     * @return numer portu.
+     * @throws IOException gdy nie udało się otworzyć gniazda.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Sprawdza warunek testu.
+     * @param condition warunek.
+     * @param description opis błędu, gdy warunek nie jest spełniony.
+     */
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError(description);
+    }
+}
@@ -0,0 +1,91 @@
+package proz.communicator.model;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.*;
+
+/**
+ * Test odrzucania wiadomości, które po zakodowaniu nie mieszczą się w jednej ramce.
+ * Uruchamiany jako program; kończy się wyjątkiem, gdy sprawdzenie się nie powiedzie.
+ */
+public class FrameLengthTest {
+
+    /**
+     * Główna funkcja testu.
+     * @param args nieużywane.
+     * @throws Exception gdy test się nie powiódł.
+     */
+    public static void main(String[] args) throws Exception {
+        BlockingQueue<Integer> frames = new LinkedBlockingQueue<>();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread reader = new Thread(() -> {
+                try (Socket socket = server.accept(); DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                    while (true) {
+                        int length = in.readInt();
+                        MessageFrames.checkLength(length);
+                        in.readFully(new byte[length]);
+                        frames.add(length);
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the test.
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+
+            SendScheduler scheduler = new SendScheduler(2);
+            Outbox outbox = new Outbox(scheduler, null, new SenderIdentity("tester"));
+            outbox.attach("peer", new MessageTransmitter("127.0.0.1", server.getLocalPort(), MessageCodecs.BINARY));
+
+            HistoryEntry oversized = new MessageHistory(10).add(0, HistoryEntry.Direction.OUTGOING, "me", "");
+            CompletableFuture<Void> rejected = outbox.enqueue("peer", repeat('x', MessageFrames.MAX_FRAME_LENGTH), oversized);
+            try {
+                rejected.get(1, TimeUnit.SECONDS);
+                throw new AssertionError("Oversized message was accepted");
+            } catch (ExecutionException e) {
+                check(e.getCause() instanceof IOException, "rejected with " + e.getCause());
+            }
+            check(oversized.getDeliveryState() == HistoryEntry.DeliveryState.FAILED, "oversized entry is " + oversized.getDeliveryState());
+            check(outbox.getPendingCount("peer") == 0, "oversized message left in the outbox");
+
+            // The connection stays usable and the next message keeps the sequence without a gap.
+            outbox.enqueue("peer", "hello", null).get(5, TimeUnit.SECONDS);
+            check(frames.poll(5, TimeUnit.SECONDS) != null, "message after the rejected one did not arrive");
+
+            try {
+                MessageFrames.encode(new Message(repeat('y', MessageFrames.MAX_FRAME_LENGTH), "peer"), MessageCodecs.BINARY, null);
+                throw new AssertionError("Oversized frame was encoded");
+            } catch (IOException e) {
+                // Expected.
+            }
+
+            outbox.close(1, TimeUnit.SECONDS);
+            scheduler.shutdown(1, TimeUnit.SECONDS);
+        }
+        System.out.println("FrameLengthTest passed");
+    }
+
+    /**
+     * Tworzy napis z powtórzonego znaku.
+     * @param c znak.
+     * @param count długość napisu.
+     * @return napis.
+     */
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        java.util.Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * Sprawdza warunek testu.
+     * @param condition warunek.
+     * @param description opis błędu, gdy warunek nie jest spełniony.
+     */
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError(description);
+    }
+}
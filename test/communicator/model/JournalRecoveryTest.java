@@ -0,0 +1,64 @@
+package proz.communicator.model;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Test odtwarzania dziennika po awarii, która przerwała zapis ostatniego wpisu.
+ * Uruchamiany jako program; kończy się wyjątkiem, gdy sprawdzenie się nie powiedzie.
+ */
+public class JournalRecoveryTest {
+
+    /**
+     * Główna funkcja testu.
+     * @param args nieużywane.
+     * @throws Exception gdy test się nie powiódł.
+     */
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("journal-test");
+        MessageHistory history = new MessageHistory(100);
+
+        MessageJournal journal = new MessageJournal(directory);
+        for (int i = 0; i < 5; i++)
+            journal.append("peer", history.add(i, HistoryEntry.Direction.INCOMING, "peer", "message " + i));
+        journal.close(5, TimeUnit.SECONDS);
+
+        // A crash in the middle of the last record.
+        Path segment;
+        try (Stream<Path> files = Files.walk(directory)) {
+            segment = files.filter(path -> path.toString().endsWith(".log")).findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        journal = new MessageJournal(directory);
+        check(journal.readLast("peer", 10).size() == 4, "records before the torn one are not readable");
+        journal.append("peer", history.add(5, HistoryEntry.Direction.OUTGOING, "me", "after the crash"));
+        journal.close(5, TimeUnit.SECONDS);
+
+        journal = new MessageJournal(directory);
+        List<HistoryEntry> entries = journal.readLast("peer", 10);
+        journal.close(5, TimeUnit.SECONDS);
+        check(entries.size() == 5, "expected 5 records, got " + entries.size());
+        for (int i = 0; i < 4; i++)
+            check(entries.get(i).getText().equals("message " + i), "record " + i + " is " + entries.get(i).getText());
+        check(entries.get(4).getText().equals("after the crash"), "last record is " + entries.get(4).getText());
+        System.out.println("JournalRecoveryTest passed");
+    }
+
+    /**
+     * Sprawdza warunek testu.
+     * @param condition warunek.
+     * @param description opis błędu, gdy warunek nie jest spełniony.
+     */
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError(description);
+    }
+}